@@ -0,0 +1,390 @@
+/***********************************************************************************************************************
+ *
+ * Dynamo Tomcat Sessions
+ * ==========================================
+ *
+ * Copyright (C) 2013 by EnergyHub Inc. (http://www.energyhub.com)
+ *
+ ***********************************************************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ *
+ **********************************************************************************************************************/
+
+package net.energyhub.session;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Replays a session access trace against a manager configuration in memory, to see what it would cost in Dynamo
+ * before trying it.
+ *
+ * Each line of the trace is 'sessionId,timestampMillis,mutated,payloadBytes', in time order, where mutated is 1 if
+ * the request changed the session's attributes. Requests are run through the same steps as loadSession and save
+ * (current table, then previous; expiry at load; put for new sessions, data or touch-only update otherwise; chunking
+ * past chunkSize) and the tables rotate every tableRotationSeconds as the rotator would, dropping tables older than
+ * the previous one. Units are charged as Dynamo does: a read unit per KB (half for eventually consistent reads), a
+ * write unit per KB of the item written, at least one each.
+ *
+ * Prints read and write units per second for every reporting interval, then a summary with the fallback read ratio
+ * after rotations, peak and average capacity, and the cost of provisioning for the peak versus the average.
+ *
+ * Needs nothing but this class on the classpath: java -cp dynamo-session-manager.jar
+ * net.energyhub.session.CapacitySimulator [options] trace.csv (use - to read the trace from stdin).
+ */
+public class CapacitySimulator {
+    /**
+     * Attribute names, id and number columns stored alongside the payload, in bytes.
+     */
+    public static final int ITEM_OVERHEAD = 100;
+    /**
+     * Payload of a session that has nothing in it yet, as written when a new session is added.
+     */
+    public static final int EMPTY_SESSION_BYTES = 100;
+
+    // configuration, as on DynamoManager, with its defaults
+    int tableRotationSeconds = DynamoManager.DEFAULT_TABLE_ROTATION_SECONDS;
+    int maxInactiveInterval = DynamoManager.DEFAULT_MAX_INACTIVE_INTERVAL;
+    boolean eventualConsistency = false;
+    int chunkSize = DynamoManager.DEFAULT_CHUNK_SIZE;
+    double sizeFactor = 1.0; // payload bytes written per trace byte, e.g. for a compressing serializer
+    int intervalSeconds = 60;
+    int rotationWindowSeconds = 300;
+    double readUnitHourPrice = 0.0065 / 50;
+    double writeUnitHourPrice = 0.0065 / 10;
+
+    private Map<String, Item> current = new HashMap<String, Item>();
+    private Map<String, Item> previous = new HashMap<String, Item>();
+    private long currentPeriod = Long.MIN_VALUE;
+
+    private final List<Interval> intervals = new ArrayList<Interval>();
+    private Interval interval;
+    final Totals totals = new Totals();
+    final Totals afterRotation = new Totals();
+    private long lastRotationMillis = Long.MIN_VALUE;
+
+    private static class Item {
+        long lastAccessed;
+        int bytes;
+
+        Item(long lastAccessed, int bytes) {
+            this.lastAccessed = lastAccessed;
+            this.bytes = bytes;
+        }
+    }
+
+    static class Totals {
+        long requests;
+        long loads;
+        long fallbackReads;
+        long fallbackHits;
+        long created;
+        long expired;
+        double readUnits;
+        double writeUnits;
+
+        double fallbackRatio() {
+            return loads == 0 ? 0 : (double) fallbackReads / loads;
+        }
+    }
+
+    private static class Interval {
+        final long startMillis;
+        double readUnits;
+        double writeUnits;
+        long loads;
+        long fallbackReads;
+
+        Interval(long startMillis) {
+            this.startMillis = startMillis;
+        }
+    }
+
+    /**
+     * Run one request of the trace.
+     */
+    void request(String id, long now, boolean mutated, int traceBytes) {
+        rotate(now);
+        interval(now).loads++;
+        totals.requests++;
+        totals.loads++;
+        boolean recent = now - lastRotationMillis < rotationWindowSeconds * 1000L;
+        if (recent) {
+            afterRotation.requests++;
+            afterRotation.loads++;
+        }
+        int bytes = (int) Math.round(traceBytes * sizeFactor);
+
+        // loadSession: current table, then previous
+        Item item = current.get(id);
+        readCharge(item, recent);
+        boolean fromPrevious = false;
+        if (item == null && previous != null) {
+            item = previous.get(id);
+            readCharge(item, recent);
+            fromPrevious = true;
+            interval.fallbackReads++;
+            totals.fallbackReads++;
+            if (item != null) {
+                totals.fallbackHits++;
+            }
+            if (recent) {
+                afterRotation.fallbackReads++;
+                if (item != null) {
+                    afterRotation.fallbackHits++;
+                }
+            }
+        }
+        if (item != null && maxInactiveInterval >= 0 && now - item.lastAccessed >= maxInactiveInterval * 1000L) {
+            // expired: remove from both tables
+            totals.expired++;
+            writeCharge(deleteUnits(current.remove(id)), recent);
+            if (previous != null) {
+                writeCharge(deleteUnits(previous.remove(id)), recent);
+            }
+            item = null;
+        }
+
+        // save
+        if (item == null) {
+            // a new session is put when it's added, then saved at the end of the request
+            totals.created++;
+            writeCharge(units(EMPTY_SESSION_BYTES), recent);
+            writeCharge(units(bytes), recent);
+            current.put(id, new Item(now, bytes));
+        } else if (fromPrevious) {
+            writeCharge(units(mutated ? bytes : item.bytes), recent); // copied forward with PutItem
+            current.put(id, new Item(now, mutated ? bytes : item.bytes));
+        } else {
+            int written = mutated ? bytes : item.bytes;
+            if (!mutated && shouldChunk(written)) {
+                writeCharge(1, recent); // touching a chunked session only rewrites the small head item
+            } else {
+                writeCharge(units(written), recent); // updates are charged for the whole item
+            }
+            item.lastAccessed = now;
+            item.bytes = written;
+        }
+    }
+
+    /**
+     * Switch tables when a new rotation period starts, as createCurrentTableName bins them.
+     */
+    private void rotate(long now) {
+        long period = now / 1000 / tableRotationSeconds;
+        if (period == currentPeriod) {
+            return;
+        }
+        if (currentPeriod != Long.MIN_VALUE) {
+            // the rotator keeps the outgoing table as previous, and deletes anything older
+            previous = period == currentPeriod + 1 ? current : new HashMap<String, Item>();
+            current = new HashMap<String, Item>();
+            lastRotationMillis = period * tableRotationSeconds * 1000L;
+        } else {
+            previous = null;
+        }
+        currentPeriod = period;
+    }
+
+    private Interval interval(long now) {
+        long start = now - now % (intervalSeconds * 1000L);
+        if (interval == null || interval.startMillis != start) {
+            interval = new Interval(start);
+            intervals.add(interval);
+        }
+        return interval;
+    }
+
+    private boolean shouldChunk(int bytes) {
+        return chunkSize > 0 && bytes > chunkSize;
+    }
+
+    /**
+     * @return write units for an item with this payload, chunked as SessionChunkStore would
+     */
+    double units(int bytes) {
+        if (!shouldChunk(bytes)) {
+            return kilobytes(bytes + ITEM_OVERHEAD);
+        }
+        double units = 1; // head item
+        for (int remaining = bytes; remaining > 0; remaining -= chunkSize) {
+            units += kilobytes(Math.min(remaining, chunkSize) + ITEM_OVERHEAD);
+        }
+        return units;
+    }
+
+    private double deleteUnits(Item item) {
+        return item == null ? 1 : units(item.bytes);
+    }
+
+    private void readCharge(Item item, boolean recent) {
+        double units = item == null ? 1 : units(item.bytes);
+        if (eventualConsistency) {
+            units /= 2;
+        }
+        interval.readUnits += units;
+        totals.readUnits += units;
+        if (recent) {
+            afterRotation.readUnits += units;
+        }
+    }
+
+    private void writeCharge(double units, boolean recent) {
+        interval.writeUnits += units;
+        totals.writeUnits += units;
+        if (recent) {
+            afterRotation.writeUnits += units;
+        }
+    }
+
+    private static double kilobytes(int bytes) {
+        return Math.max(1, (bytes + 1023) / 1024);
+    }
+
+    /**
+     * Read the whole trace.
+     * @return how many lines were skipped as malformed
+     */
+    long replay(BufferedReader trace) throws IOException {
+        long skipped = 0;
+        String line;
+        while ((line = trace.readLine()) != null) {
+            if (line.isEmpty() || line.charAt(0) == '#') {
+                continue;
+            }
+            int a = line.indexOf(',');
+            int b = a < 0 ? -1 : line.indexOf(',', a + 1);
+            int c = b < 0 ? -1 : line.indexOf(',', b + 1);
+            if (c < 0) {
+                skipped++;
+                continue;
+            }
+            try {
+                request(line.substring(0, a), Long.parseLong(line.substring(a + 1, b)),
+                        line.charAt(b + 1) == '1' || line.regionMatches(true, b + 1, "true", 0, 4),
+                        Integer.parseInt(line.substring(c + 1).trim()));
+            } catch (NumberFormatException e) {
+                skipped++;
+            }
+        }
+        return skipped;
+    }
+
+    void report(PrintStream out) {
+        out.println("time,readUnitsPerSecond,writeUnitsPerSecond,loads,fallbackReads");
+        double peakRead = 0;
+        double peakWrite = 0;
+        for (Interval i : intervals) {
+            double read = i.readUnits / intervalSeconds;
+            double write = i.writeUnits / intervalSeconds;
+            peakRead = Math.max(peakRead, read);
+            peakWrite = Math.max(peakWrite, write);
+            out.println(i.startMillis + "," + format(read) + "," + format(write) + "," + i.loads + ","
+                    + i.fallbackReads);
+        }
+        if (intervals.isEmpty()) {
+            return;
+        }
+        double seconds = (intervals.get(intervals.size() - 1).startMillis - intervals.get(0).startMillis) / 1000.0
+                + intervalSeconds;
+        double hours = seconds / 3600;
+        double averageRead = totals.readUnits / seconds;
+        double averageWrite = totals.writeUnits / seconds;
+        out.println("# requests=" + totals.requests + " created=" + totals.created + " expired=" + totals.expired
+                + " hours=" + format(hours));
+        out.println("# fallbackRatio=" + format(totals.fallbackRatio()) + " fallbackHits=" + totals.fallbackHits
+                + " fallbackRatioWithin" + rotationWindowSeconds + "sOfRotation="
+                + format(afterRotation.fallbackRatio()));
+        out.println("# read units/s: peak=" + format(peakRead) + " average=" + format(averageRead)
+                + " peakToAverage=" + format(averageRead == 0 ? 0 : peakRead / averageRead));
+        out.println("# write units/s: peak=" + format(peakWrite) + " average=" + format(averageWrite)
+                + " peakToAverage=" + format(averageWrite == 0 ? 0 : peakWrite / averageWrite));
+        out.println("# cost provisioned for peak=$" + format((Math.ceil(peakRead) * readUnitHourPrice
+                + Math.ceil(peakWrite) * writeUnitHourPrice) * hours)
+                + " provisioned for average=$" + format((Math.ceil(averageRead) * readUnitHourPrice
+                + Math.ceil(averageWrite) * writeUnitHourPrice) * hours)
+                + " (current table only, over " + format(hours) + "h)");
+    }
+
+    private static String format(double value) {
+        return String.format(Locale.ENGLISH, "%.3f", value);
+    }
+
+    private static void usage() {
+        System.err.println("Usage: CapacitySimulator [options] trace.csv|-\n"
+                + "  trace lines: sessionId,timestampMillis,mutated(0|1),payloadBytes, in time order\n"
+                + "  --tableRotationSeconds N   (" + DynamoManager.DEFAULT_TABLE_ROTATION_SECONDS + ")\n"
+                + "  --maxInactiveInterval N    seconds (" + DynamoManager.DEFAULT_MAX_INACTIVE_INTERVAL + ")\n"
+                + "  --eventualConsistency      use eventually consistent reads\n"
+                + "  --chunkSize N              bytes, 0 to disable (" + DynamoManager.DEFAULT_CHUNK_SIZE + ")\n"
+                + "  --sizeFactor F             stored bytes per trace byte, e.g. for another serializer (1.0)\n"
+                + "  --interval N               seconds per reported line (60)\n"
+                + "  --rotationWindow N         seconds after a rotation counted for its fallback ratio (300)\n"
+                + "  --readUnitHourPrice P      dollars per read unit hour (0.00013)\n"
+                + "  --writeUnitHourPrice P     dollars per write unit hour (0.00065)");
+        System.exit(2);
+    }
+
+    public static void main(String[] args) throws IOException {
+        CapacitySimulator simulator = new CapacitySimulator();
+        String file = null;
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if (arg.equals("--eventualConsistency")) {
+                simulator.eventualConsistency = true;
+            } else if (arg.startsWith("--") && i + 1 < args.length) {
+                String value = args[++i];
+                if (arg.equals("--tableRotationSeconds")) {
+                    simulator.tableRotationSeconds = Integer.parseInt(value);
+                } else if (arg.equals("--maxInactiveInterval")) {
+                    simulator.maxInactiveInterval = Integer.parseInt(value);
+                } else if (arg.equals("--chunkSize")) {
+                    simulator.chunkSize = Integer.parseInt(value);
+                } else if (arg.equals("--sizeFactor")) {
+                    simulator.sizeFactor = Double.parseDouble(value);
+                } else if (arg.equals("--interval")) {
+                    simulator.intervalSeconds = Integer.parseInt(value);
+                } else if (arg.equals("--rotationWindow")) {
+                    simulator.rotationWindowSeconds = Integer.parseInt(value);
+                } else if (arg.equals("--readUnitHourPrice")) {
+                    simulator.readUnitHourPrice = Double.parseDouble(value);
+                } else if (arg.equals("--writeUnitHourPrice")) {
+                    simulator.writeUnitHourPrice = Double.parseDouble(value);
+                } else {
+                    usage();
+                }
+            } else if (file == null && (arg.equals("-") || !arg.startsWith("--"))) {
+                file = arg;
+            } else {
+                usage();
+            }
+        }
+        if (file == null) {
+            usage();
+        }
+        Reader reader = file.equals("-") ? new InputStreamReader(System.in, "UTF-8")
+                : new InputStreamReader(new FileInputStream(file), "UTF-8");
+        BufferedReader trace = new BufferedReader(reader, 1 << 16);
+        try {
+            long skipped = simulator.replay(trace);
+            if (skipped > 0) {
+                System.err.println("Skipped " + skipped + " malformed lines");
+            }
+        } finally {
+            trace.close();
+        }
+        simulator.report(System.out);
+    }
+}
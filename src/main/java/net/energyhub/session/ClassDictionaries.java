@@ -0,0 +1,337 @@
+/***********************************************************************************************************************
+ *
+ * Dynamo Tomcat Sessions
+ * ==========================================
+ *
+ * Copyright (C) 2013 by EnergyHub Inc. (http://www.energyhub.com)
+ *
+ ***********************************************************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ *
+ **********************************************************************************************************************/
+
+package net.energyhub.session;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.dynamodb.AmazonDynamoDB;
+import com.amazonaws.services.dynamodb.model.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamClass;
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The class dictionaries of one manager: learns which class descriptors JavaSerializer writes most, builds a new
+ * dictionary of them when the table rotates, and keeps the dictionaries it has seen.
+ *
+ * Every dictionary is stored, under its version, in each table that is current while it is in use, so a payload
+ * written with it can always find it in the table the payload is in, current or previous. Nodes build their own
+ * dictionaries; a node reading a payload written with one it hasn't seen reads it from the tables once and caches it.
+ * A payload copied into a new table as it is carries its dictionary there too (see carry). Nodes that don't write
+ * with dictionaries keep a read-only instance, so turning them on or off a node at a time leaves sessions readable.
+ */
+public class ClassDictionaries {
+    final private static Logger log = Logger.getLogger(ClassDictionaries.class.getName());
+
+    /**
+     * The id prefix of dictionary items; ids with '#' are never loaded as sessions.
+     */
+    public static final String ITEM_PREFIX = "#classes#";
+    public static final String COLUMN_CLASSES = "classes";
+
+    private final AmazonDynamoDB dynamo;
+    private final boolean writing;
+    private final int maxEntries;
+    private final long minSamples;
+    private final ConcurrentHashMap<ObjectStreamClass, Seen> seen = new ConcurrentHashMap<ObjectStreamClass, Seen>();
+    private final LongAdder samples = new LongAdder();
+    private final ConcurrentHashMap<Long, ClassDictionary> known = new ConcurrentHashMap<Long, ClassDictionary>();
+    private final Set<String> stored = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    private volatile ClassDictionary active;
+    private volatile String currentTable;
+    private volatile String previousTable;
+
+    /**
+     * @param maxEntries the most descriptors to put in a dictionary
+     * @param minSamples how many descriptors to see before building the first dictionary
+     */
+    public ClassDictionaries(AmazonDynamoDB dynamo, int maxEntries, long minSamples) {
+        this.dynamo = dynamo;
+        this.writing = true;
+        this.maxEntries = maxEntries;
+        this.minSamples = minSamples;
+    }
+
+    /**
+     * Only read the dictionaries other nodes write, never build or write with one.
+     */
+    public ClassDictionaries(AmazonDynamoDB dynamo) {
+        this.dynamo = dynamo;
+        this.writing = false;
+        this.maxEntries = 0;
+        this.minSamples = Long.MAX_VALUE;
+    }
+
+    /**
+     * @return whether payloads are written with dictionaries, rather than only read
+     */
+    public boolean isWriting() {
+        return writing;
+    }
+
+    /**
+     * @return the dictionary to write with, or null to write descriptors inline
+     */
+    public ClassDictionary getActive() {
+        return active;
+    }
+
+    /**
+     * Count a descriptor written by the serializer, to decide what goes in the next dictionary.
+     */
+    public void record(ObjectStreamClass desc) {
+        if (!writing) {
+            return;
+        }
+        samples.increment();
+        Seen entry = seen.get(desc);
+        if (entry == null) {
+            if (seen.size() >= maxEntries * 4) {
+                return; // enough candidates; an application generating classes shouldn't fill the heap
+            }
+            Seen created = new Seen(describe(desc));
+            entry = seen.putIfAbsent(desc, created);
+            if (entry == null) {
+                entry = created;
+            }
+        }
+        entry.count.increment();
+    }
+
+    /**
+     * @return the descriptor as written on its own, the form dictionaries hold
+     */
+    public byte[] descriptorBytes(ObjectStreamClass desc) {
+        Seen entry = seen.get(desc);
+        return entry != null ? entry.bytes : describe(desc);
+    }
+
+    /**
+     * Called when the tables change: the active dictionary goes into the new current table (payloads already being
+     * written with it may land there), and unless this is startup, a new one is built from what was written since.
+     * If the active one can't be stored there, payloads are written without a dictionary until one is. Dictionaries
+     * only in tables no longer in use are forgotten.
+     */
+    public void tableChanged(String current, String previous) {
+        boolean first = currentTable == null;
+        this.currentTable = current;
+        this.previousTable = previous;
+        ClassDictionary dictionary = active;
+        if (dictionary != null && !store(current, dictionary)) {
+            this.active = null; // other nodes couldn't read what we wrote with it
+        }
+        if (!first && writing) {
+            rebuild();
+        }
+        forgetOtherTables(current, previous);
+    }
+
+    /**
+     * Drop what we know of dictionaries that aren't in the current or previous table, except the active one.
+     */
+    private void forgetOtherTables(String current, String previous) {
+        Set<Long> inUse = new HashSet<Long>();
+        for (Iterator<String> it = stored.iterator(); it.hasNext(); ) {
+            String key = it.next();
+            String table = key.substring(0, key.indexOf('\n'));
+            if (table.equals(current) || table.equals(previous)) {
+                inUse.add(Long.valueOf(key.substring(table.length() + 1)));
+            } else {
+                it.remove();
+            }
+        }
+        ClassDictionary dictionary = active;
+        if (dictionary != null) {
+            inUse.add(dictionary.getVersion());
+        }
+        known.keySet().retainAll(inUse);
+    }
+
+    /**
+     * A payload read from one table is about to be written as it is into another: store the dictionary it was
+     * written with there too, or the payload can't be read once the table it came from is deleted.
+     * @throws IOException if the dictionary is unknown or can't be stored
+     */
+    public void carry(ByteBuffer payload, String table) throws IOException {
+        int start = payload.position();
+        if (payload.remaining() < 9 || payload.get(start) != JavaSerializer.DICTIONARY_FORMAT) {
+            return; // descriptors are inline
+        }
+        ClassDictionary dictionary = resolve(payload.getLong(start + 1));
+        if (!store(table, dictionary)) {
+            throw new IOException("Unable to store class dictionary " + Long.toHexString(dictionary.getVersion())
+                    + " in " + table);
+        }
+    }
+
+    /**
+     * Build the first dictionary once enough has been written, rather than waiting for the table to rotate.
+     */
+    public void maybeBuild() {
+        if (writing && active == null && currentTable != null && samples.sum() >= minSamples) {
+            rebuild();
+        }
+    }
+
+    /**
+     * Build a dictionary of the descriptors written most since the last, store it and start writing with it.
+     * @return the new dictionary, or null if nothing was written or it couldn't be stored
+     */
+    public ClassDictionary rebuild() {
+        if (!writing) {
+            return null;
+        }
+        List<Map.Entry<ObjectStreamClass, Seen>> candidates =
+                new ArrayList<Map.Entry<ObjectStreamClass, Seen>>(seen.entrySet());
+        Collections.sort(candidates, new Comparator<Map.Entry<ObjectStreamClass, Seen>>() {
+            @Override
+            public int compare(Map.Entry<ObjectStreamClass, Seen> a, Map.Entry<ObjectStreamClass, Seen> b) {
+                return Long.compare(b.getValue().count.sum(), a.getValue().count.sum());
+            }
+        });
+        List<byte[]> entries = new ArrayList<byte[]>();
+        for (Map.Entry<ObjectStreamClass, Seen> candidate : candidates) {
+            if (entries.size() >= maxEntries || candidate.getValue().count.sum() == 0) {
+                break;
+            }
+            entries.add(candidate.getValue().bytes);
+        }
+        seen.clear();
+        samples.reset();
+        if (entries.isEmpty()) {
+            return null;
+        }
+        ClassDictionary dictionary = new ClassDictionary(entries);
+        ClassDictionary existing = known.putIfAbsent(dictionary.getVersion(), dictionary);
+        if (existing != null) {
+            dictionary = existing; // keep the one whose ids are already cached
+        }
+        String table = currentTable;
+        if (table == null || !store(table, dictionary)) {
+            // can't write payloads nobody else could read; keep the previous one only if it is in the table
+            ClassDictionary previous = active;
+            if (previous != null && (table == null || !stored.contains(table + '\n' + previous.getVersion()))) {
+                this.active = null;
+            }
+            return null;
+        }
+        log.info("Writing class descriptors from dictionary " + Long.toHexString(dictionary.getVersion()) + " ("
+                + dictionary.size() + " entries)");
+        this.active = dictionary;
+        return dictionary;
+    }
+
+    /**
+     * @return the dictionary with this version, from the cache or from the current or previous table
+     * @throws IOException if there is no such dictionary, so the payload can't be read
+     */
+    public ClassDictionary resolve(long version) throws IOException {
+        ClassDictionary dictionary = known.get(version);
+        if (dictionary != null) {
+            return dictionary;
+        }
+        for (String table : new String[]{currentTable, previousTable}) {
+            if (table == null) {
+                continue;
+            }
+            GetItemResult result;
+            try {
+                result = dynamo.getItem(new GetItemRequest().withTableName(table)
+                        .withKey(new Key().withHashKeyElement(new AttributeValue().withS(itemId(version))))
+                        .withConsistentRead(true));
+            } catch (AmazonClientException e) {
+                throw new IOException("Unable to read class dictionary " + Long.toHexString(version), e);
+            }
+            Map<String, AttributeValue> item = result == null ? null : result.getItem();
+            if (item != null && item.get(COLUMN_CLASSES) != null) {
+                ByteBuffer data = item.get(COLUMN_CLASSES).getB();
+                byte[] bytes = new byte[data.remaining()];
+                data.duplicate().get(bytes);
+                dictionary = ClassDictionary.fromBytes(bytes);
+                if (dictionary.getVersion() != version) {
+                    throw new IOException("Class dictionary " + Long.toHexString(version) + " is corrupt");
+                }
+                ClassDictionary existing = known.putIfAbsent(version, dictionary);
+                stored.add(table + '\n' + version);
+                return existing != null ? existing : dictionary;
+            }
+        }
+        throw new IOException("Unknown class dictionary " + Long.toHexString(version));
+    }
+
+    /**
+     * Write the dictionary into the table, once.
+     * @return whether it is there
+     */
+    boolean store(String table, ClassDictionary dictionary) {
+        String key = table + '\n' + dictionary.getVersion();
+        if (stored.contains(key)) {
+            return true;
+        }
+        Map<String, AttributeValue> item = new HashMap<String, AttributeValue>();
+        item.put(DynamoManager.COLUMN_ID, new AttributeValue().withS(itemId(dictionary.getVersion())));
+        item.put(COLUMN_CLASSES, new AttributeValue().withB(ByteBuffer.wrap(dictionary.toBytes())));
+        try {
+            dynamo.putItem(new PutItemRequest().withTableName(table).withItem(item));
+        } catch (AmazonClientException e) {
+            log.log(Level.WARNING, "Unable to store class dictionary " + Long.toHexString(dictionary.getVersion())
+                    + " in " + table, e);
+            return false;
+        }
+        stored.add(key);
+        return true;
+    }
+
+    static String itemId(long version) {
+        return ITEM_PREFIX + Long.toHexString(version);
+    }
+
+    /**
+     * @return the descriptor (with its superclasses) written on its own in a stream of its own
+     */
+    static byte[] describe(ObjectStreamClass desc) {
+        try {
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            ObjectOutputStream oos = new ObjectOutputStream(bos);
+            oos.writeObject(desc);
+            oos.flush();
+            return bos.toByteArray();
+        } catch (IOException e) {
+            throw new IllegalStateException(e); // can't happen writing to memory
+        }
+    }
+
+    private static class Seen {
+        final byte[] bytes;
+        final LongAdder count = new LongAdder();
+
+        Seen(byte[] bytes) {
+            this.bytes = bytes;
+        }
+    }
+}
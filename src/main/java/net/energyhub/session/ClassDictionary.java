@@ -0,0 +1,153 @@
+/***********************************************************************************************************************
+ *
+ * Dynamo Tomcat Sessions
+ * ==========================================
+ *
+ * Copyright (C) 2013 by EnergyHub Inc. (http://www.energyhub.com)
+ *
+ ***********************************************************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ *
+ **********************************************************************************************************************/
+
+package net.energyhub.session;
+
+import java.io.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * An immutable numbered list of serialized class descriptors, so JavaSerializer can write a small id instead of a
+ * descriptor it holds. Each entry is an ObjectStreamClass written on its own (with its superclasses) in a stream of its
+ * own, so reading it back gives exactly the descriptor the writer had, whatever the reader's version of the class.
+ *
+ * The version is a hash of the entries, so dictionaries built independently on different nodes never clash.
+ */
+public class ClassDictionary {
+    private final long version;
+    private final List<byte[]> entries;
+    private final Map<String, Integer> ids = new HashMap<String, Integer>();
+    private final ConcurrentHashMap<ObjectStreamClass, Integer> idsByClass =
+            new ConcurrentHashMap<ObjectStreamClass, Integer>();
+    private final AtomicReferenceArray<ObjectStreamClass> models;
+
+    public ClassDictionary(List<byte[]> entries) {
+        this.entries = new ArrayList<byte[]>(entries);
+        for (int id = 0; id < entries.size(); id++) {
+            ids.put(key(entries.get(id)), id);
+        }
+        this.version = hash(entries);
+        this.models = new AtomicReferenceArray<ObjectStreamClass>(entries.size());
+    }
+
+    public long getVersion() {
+        return version;
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    public byte[] getEntry(int id) {
+        return entries.get(id);
+    }
+
+    /**
+     * @param descriptorBytes the descriptor as written on its own (see ClassDictionaries.descriptorBytes)
+     * @return its id, or -1 if it isn't in this dictionary
+     */
+    public int idOf(ObjectStreamClass desc, byte[] descriptorBytes) {
+        Integer id = idsByClass.get(desc);
+        if (id == null) {
+            Integer found = ids.get(key(descriptorBytes));
+            id = found == null ? -1 : found;
+            idsByClass.putIfAbsent(desc, id);
+        }
+        return id;
+    }
+
+    /**
+     * @return the descriptor read back from an entry, if it has been, else null
+     */
+    ObjectStreamClass getModel(int id) {
+        return models.get(id);
+    }
+
+    void setModel(int id, ObjectStreamClass model) {
+        models.set(id, model);
+    }
+
+    public byte[] toBytes() {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bos);
+        try {
+            out.writeInt(entries.size());
+            for (byte[] entry : entries) {
+                out.writeInt(entry.length);
+                out.write(entry);
+            }
+            out.flush();
+        } catch (IOException e) {
+            throw new IllegalStateException(e); // can't happen writing to memory
+        }
+        return bos.toByteArray();
+    }
+
+    /**
+     * @throws IOException if the bytes aren't a dictionary
+     */
+    public static ClassDictionary fromBytes(byte[] bytes) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+        int count = in.readInt();
+        if (count < 0 || count > bytes.length) {
+            throw new IOException("Corrupt class dictionary: " + count + " entries");
+        }
+        List<byte[]> entries = new ArrayList<byte[]>(count);
+        for (int i = 0; i < count; i++) {
+            int length = in.readInt();
+            if (length < 0 || length > in.available()) {
+                throw new IOException("Corrupt class dictionary: entry of " + length + " bytes");
+            }
+            byte[] entry = new byte[length];
+            in.readFully(entry);
+            entries.add(entry);
+        }
+        return new ClassDictionary(entries);
+    }
+
+    private static String key(byte[] bytes) {
+        return new String(bytes, java.nio.charset.StandardCharsets.ISO_8859_1);
+    }
+
+    private static long hash(List<byte[]> entries) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            for (byte[] entry : entries) {
+                digest.update((byte) (entry.length >>> 24));
+                digest.update((byte) (entry.length >>> 16));
+                digest.update((byte) (entry.length >>> 8));
+                digest.update((byte) entry.length);
+                digest.update(entry);
+            }
+            byte[] sha = digest.digest();
+            long version = 0;
+            for (int i = 0; i < 8; i++) {
+                version = (version << 8) | (sha[i] & 0xff);
+            }
+            return version;
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e); // every JVM has SHA-1
+        }
+    }
+}
@@ -0,0 +1,106 @@
+/***********************************************************************************************************************
+ *
+ * Dynamo Tomcat Sessions
+ * ==========================================
+ *
+ * Copyright (C) 2013 by EnergyHub Inc. (http://www.energyhub.com)
+ *
+ ***********************************************************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ *
+ **********************************************************************************************************************/
+
+package net.energyhub.session;
+
+import java.security.SecureRandom;
+
+/**
+ * Makes 128-bit random ids, encoded as 22 URL-safe base64 characters.
+ *
+ * UUID.randomUUID() draws from one SecureRandom shared by the whole JVM, so under a burst of new sessions the
+ * threads queue on it. Here the randomness comes from a fixed set of SecureRandom stripes, picked by thread id, so
+ * threads rarely contend and the number of generators (and their seeding) stays bounded however many threads a
+ * connector runs. The ids are also 14 characters shorter than a UUID, which is sent in every key.
+ */
+public class CompactSessionIdGenerator implements SessionIdGenerator {
+    public static final int RANDOM_BYTES = 16;
+    public static final int ENCODED_LENGTH = (RANDOM_BYTES * 8 + 5) / 6;
+
+    private static final char[] ALPHABET =
+            "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789-_".toCharArray();
+
+    private final SecureRandom[] stripes;
+    private final int mask;
+    private String prefix = "";
+
+    public CompactSessionIdGenerator() {
+        this(Runtime.getRuntime().availableProcessors() * 2);
+    }
+
+    /**
+     * @param stripes how many SecureRandoms to spread the threads over, rounded up to a power of two
+     */
+    public CompactSessionIdGenerator(int stripes) {
+        int n = Integer.highestOneBit(Math.max(1, stripes - 1)) << 1;
+        this.stripes = new SecureRandom[n];
+        for (int i = 0; i < n; i++) {
+            this.stripes[i] = new SecureRandom();
+        }
+        this.mask = n - 1;
+    }
+
+    @Override
+    public void setPrefix(String prefix) {
+        this.prefix = prefix == null ? "" : prefix;
+    }
+
+    @Override
+    public String generateSessionId() {
+        byte[] bytes = new byte[RANDOM_BYTES];
+        SecureRandom random = stripes[(int) Thread.currentThread().getId() & mask];
+        synchronized (random) {
+            random.nextBytes(bytes);
+        }
+        return encode(prefix, bytes);
+    }
+
+    @Override
+    public int getSessionIdLength() {
+        return prefix.length() + ENCODED_LENGTH;
+    }
+
+    /**
+     * @return the prefix followed by the bytes in unpadded URL-safe base64
+     */
+    static String encode(String prefix, byte[] bytes) {
+        char[] chars = new char[prefix.length() + (bytes.length * 8 + 5) / 6];
+        prefix.getChars(0, prefix.length(), chars, 0);
+        int out = prefix.length();
+        int i = 0;
+        for (; i + 3 <= bytes.length; i += 3) {
+            int bits = (bytes[i] & 0xff) << 16 | (bytes[i + 1] & 0xff) << 8 | (bytes[i + 2] & 0xff);
+            chars[out++] = ALPHABET[bits >>> 18];
+            chars[out++] = ALPHABET[bits >>> 12 & 0x3f];
+            chars[out++] = ALPHABET[bits >>> 6 & 0x3f];
+            chars[out++] = ALPHABET[bits & 0x3f];
+        }
+        int remaining = bytes.length - i;
+        if (remaining > 0) {
+            int bits = (bytes[i] & 0xff) << 16 | (remaining > 1 ? (bytes[i + 1] & 0xff) << 8 : 0);
+            chars[out++] = ALPHABET[bits >>> 18];
+            chars[out++] = ALPHABET[bits >>> 12 & 0x3f];
+            if (remaining > 1) {
+                chars[out++] = ALPHABET[bits >>> 6 & 0x3f];
+            }
+        }
+        return new String(chars);
+    }
+}
@@ -0,0 +1,303 @@
+/***********************************************************************************************************************
+ *
+ * Dynamo Tomcat Sessions
+ * ==========================================
+ *
+ * Copyright (C) 2013 by EnergyHub Inc. (http://www.energyhub.com)
+ *
+ ***********************************************************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ *
+ **********************************************************************************************************************/
+
+package net.energyhub.session;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.dynamodb.AmazonDynamoDB;
+import com.amazonaws.services.dynamodb.model.*;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Takes session removals off the request thread. A removed session gets a local tombstone, so loads on this node
+ * treat it as gone straight away, and a tombstone item is written over it in the current table with the next flush,
+ * up to 25 to a BatchWriteItem.
+ *
+ * The tombstone item (the session id with a 'removed' time and no data) is what stops a load on another node from
+ * falling back to an older copy in the previous table, so nothing is ever written to the previous table; it is
+ * dropped with its tables by rotation, as are the chunks of a chunked session. A session removed because it expired
+ * needs no write at all, since every load finds it expired anyway.
+ */
+public class DeferredRemovals {
+    final private static Logger log = Logger.getLogger(DeferredRemovals.class.getName());
+
+    /**
+     * Stop adding tombstones past this many; removals are still written, loads just have to read them.
+     */
+    public static final int MAX_TOMBSTONES = 100000;
+    private static final int MAX_ATTEMPTS = 5;
+    private static final long DRAIN_PAUSE_MILLIS = 100;
+
+    private final DynamoManager manager;
+    private final AmazonDynamoDB dynamo;
+    private final long flushMillis;
+    private final long tombstoneMillis;
+    private final boolean deleteTouches;
+    private final ConcurrentHashMap<String, Long> tombstones = new ConcurrentHashMap<String, Long>();
+    private final ConcurrentHashMap<String, String> pending = new ConcurrentHashMap<String, String>();
+    private ScheduledExecutorService flusher;
+
+    /**
+     * @param flushMillis how often to write pending removals
+     * @param tombstoneMillis how long to remember a removed session locally
+     * @param deleteTouches whether sessions have touch items (see TouchBuffer) to delete as well
+     */
+    public DeferredRemovals(DynamoManager manager, AmazonDynamoDB dynamo, long flushMillis, long tombstoneMillis,
+                            boolean deleteTouches) {
+        this.manager = manager;
+        this.dynamo = dynamo;
+        this.flushMillis = flushMillis;
+        this.tombstoneMillis = tombstoneMillis;
+        this.deleteTouches = deleteTouches;
+    }
+
+    /**
+     * Start flushing every flushMillis.
+     */
+    public synchronized void start() {
+        if (flusher != null) {
+            return;
+        }
+        flusher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "dynamo-session-removals");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        flusher.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    flush();
+                    purge(System.currentTimeMillis());
+                } catch (RuntimeException e) {
+                    log.log(Level.WARNING, "Error flushing session removals", e);
+                }
+            }
+        }, flushMillis, flushMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stop the flusher and write what is left.
+     */
+    public void stop() {
+        stop(System.currentTimeMillis() + flushMillis + 5000);
+    }
+
+    /**
+     * Stop the flusher and write what is left, retrying failures until the deadline.
+     * @param deadline when to give up, in epoch millis
+     */
+    public void stop(long deadline) {
+        ScheduledExecutorService flusher;
+        synchronized (this) {
+            flusher = this.flusher;
+            this.flusher = null;
+        }
+        if (flusher != null) {
+            flusher.shutdown();
+            try {
+                flusher.awaitTermination(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        flush();
+        while (size() > 0 && System.currentTimeMillis() < deadline) {
+            try {
+                Thread.sleep(Math.min(DRAIN_PAUSE_MILLIS, Math.max(1, deadline - System.currentTimeMillis())));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+            flush();
+        }
+        if (size() > 0) {
+            log.warning("Dropping " + size() + " removals not written by the deadline");
+        }
+    }
+
+    /**
+     * Record that a session was removed.
+     * @param table the current table, where the tombstone item goes
+     * @param write whether it needs a tombstone item; false if it expired, so loads will ignore it anyway
+     */
+    public void remove(String table, String id, boolean write) {
+        if (tombstones.size() < MAX_TOMBSTONES || tombstones.containsKey(id)) {
+            tombstones.put(id, System.currentTimeMillis());
+        }
+        if (!write) {
+            manager.getStats().removalSkipped();
+        } else if (pending.put(id, table) != null) {
+            manager.getStats().coalescedRemoval();
+        }
+    }
+
+    /**
+     * @return whether the session was removed on this node recently enough that there is no point looking for it
+     */
+    public boolean isRemoved(String id) {
+        Long removed = tombstones.get(id);
+        return removed != null && System.currentTimeMillis() - removed < tombstoneMillis;
+    }
+
+    /**
+     * Forget a removal, because a new session is being stored under the same id.
+     */
+    public void forget(String id) {
+        tombstones.remove(id);
+        pending.remove(id);
+    }
+
+    /**
+     * Drop the tombstones older than tombstoneMillis.
+     */
+    public void purge(long now) {
+        for (Iterator<Long> it = tombstones.values().iterator(); it.hasNext(); ) {
+            if (now - it.next() >= tombstoneMillis) {
+                it.remove();
+            }
+        }
+    }
+
+    public int size() {
+        return pending.size();
+    }
+
+    public int getTombstoneCount() {
+        return tombstones.size();
+    }
+
+    /**
+     * Write all pending removals, up to 25 items to a batch. Removals that can't be written are kept for the next
+     * flush.
+     * @return how many sessions were written
+     */
+    public int flush() {
+        if (pending.isEmpty()) {
+            return 0;
+        }
+        long now = System.currentTimeMillis();
+        Map<String, List<WriteRequest>> byTable = new HashMap<String, List<WriteRequest>>();
+        for (Iterator<Map.Entry<String, String>> it = pending.entrySet().iterator(); it.hasNext(); ) {
+            Map.Entry<String, String> entry = it.next();
+            String id = entry.getKey();
+            String table = entry.getValue();
+            if (!pending.remove(id, table)) {
+                continue; // forgotten or removed again meanwhile
+            }
+            List<WriteRequest> requests = byTable.get(table);
+            if (requests == null) {
+                byTable.put(table, requests = new ArrayList<WriteRequest>());
+            }
+            Map<String, AttributeValue> item = new HashMap<String, AttributeValue>();
+            item.put(DynamoManager.COLUMN_ID, new AttributeValue().withS(id));
+            item.put(DynamoManager.COLUMN_REMOVED, new AttributeValue().withN(Long.toString(now)));
+            requests.add(new WriteRequest().withPutRequest(new PutRequest().withItem(item)));
+            if (deleteTouches) {
+                requests.add(new WriteRequest().withDeleteRequest(new DeleteRequest().withKey(
+                        new Key().withHashKeyElement(new AttributeValue().withS(TouchBuffer.touchKey(id))))));
+            }
+        }
+
+        int written = 0;
+        for (Map.Entry<String, List<WriteRequest>> table : byTable.entrySet()) {
+            List<WriteRequest> requests = table.getValue();
+            for (int start = 0; start < requests.size(); start += SessionChunkStore.MAX_BATCH_WRITE_ITEMS) {
+                List<WriteRequest> batch = requests.subList(start,
+                        Math.min(requests.size(), start + SessionChunkStore.MAX_BATCH_WRITE_ITEMS));
+                written += countPuts(batch);
+                for (WriteRequest request : batchWrite(table.getKey(), batch)) {
+                    if (request.getPutRequest() != null) {
+                        written--;
+                        // try again next time, unless a new session took the id meanwhile
+                        String id = request.getPutRequest().getItem().get(DynamoManager.COLUMN_ID).getS();
+                        if (tombstones.containsKey(id)) {
+                            pending.putIfAbsent(id, table.getKey());
+                        }
+                    } // a touch item left behind is harmless: it's ignored without its session
+                }
+            }
+        }
+        return written;
+    }
+
+    private static int countPuts(List<WriteRequest> requests) {
+        int puts = 0;
+        for (WriteRequest request : requests) {
+            if (request.getPutRequest() != null) {
+                puts++;
+            }
+        }
+        return puts;
+    }
+
+    /**
+     * @return whatever could not be written after retrying
+     */
+    private List<WriteRequest> batchWrite(String table, List<WriteRequest> requests) {
+        Map<String, List<WriteRequest>> request = new HashMap<String, List<WriteRequest>>();
+        request.put(table, new ArrayList<WriteRequest>(requests));
+        int sent = requests.size();
+        for (int attempt = 0; ; attempt++) {
+            BatchWriteItemResult result;
+            try {
+                result = dynamo.batchWriteItem(new BatchWriteItemRequest().withRequestItems(request));
+            } catch (ResourceNotFoundException e) {
+                log.fine("Table " + table + " is gone, dropping " + sent + " session removals");
+                return Collections.emptyList();
+            } catch (AmazonClientException e) {
+                log.warning("Unable to write " + sent + " session removals to " + table + ": " + e);
+                return request.get(table);
+            }
+            Double units = null;
+            if (result.getResponses() != null && result.getResponses().get(table) != null) {
+                units = result.getResponses().get(table).getConsumedCapacityUnits();
+            }
+            request = result.getUnprocessedItems();
+            List<WriteRequest> unprocessed = request == null ? null : request.get(table);
+            int done = sent - (unprocessed == null ? 0 : unprocessed.size());
+            manager.getStats().removalsWritten(table, done, units);
+            if (unprocessed == null || unprocessed.isEmpty()) {
+                return Collections.emptyList();
+            }
+            sent = unprocessed.size();
+            if (attempt + 1 >= MAX_ATTEMPTS) {
+                return unprocessed;
+            }
+            try {
+                Thread.sleep(10L << (attempt + 1));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return unprocessed;
+            }
+        }
+    }
+}
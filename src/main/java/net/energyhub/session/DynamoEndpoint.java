@@ -0,0 +1,111 @@
+/***********************************************************************************************************************
+ *
+ * Dynamo Tomcat Sessions
+ * ==========================================
+ *
+ * Copyright (C) 2013 by EnergyHub Inc. (http://www.energyhub.com)
+ *
+ ***********************************************************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ *
+ **********************************************************************************************************************/
+
+package net.energyhub.session;
+
+import com.amazonaws.services.dynamodb.AmazonDynamoDB;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * One of the Dynamo endpoints (usually regions) the sessions are kept in, with its client and the rotator that keeps
+ * its tables. Table names only depend on the time, so every endpoint has the same names.
+ */
+public class DynamoEndpoint {
+    private final String name;
+    private final String url;
+    private final String statKey;
+    private AmazonDynamoDB dynamo;
+    private DynamoTableRotator rotator;
+
+    public DynamoEndpoint(String name, String url) {
+        this.name = name;
+        this.url = url;
+        this.statKey = "session.endpoint." + name;
+    }
+
+    /**
+     * Parse a comma separated list of endpoints, each either name=url or just a url (named after its host).
+     * @throws IllegalArgumentException if an entry is empty or two have the same name
+     */
+    public static List<DynamoEndpoint> parse(String spec) {
+        List<DynamoEndpoint> endpoints = new ArrayList<DynamoEndpoint>();
+        for (String entry : spec.split(",")) {
+            entry = entry.trim();
+            int equals = entry.indexOf('=');
+            String name = equals < 0 ? hostOf(entry) : entry.substring(0, equals).trim();
+            String url = equals < 0 ? entry : entry.substring(equals + 1).trim();
+            if (name.isEmpty() || url.isEmpty()) {
+                throw new IllegalArgumentException("Empty endpoint in '" + spec + "'");
+            }
+            for (DynamoEndpoint endpoint : endpoints) {
+                if (endpoint.name.equals(name)) {
+                    throw new IllegalArgumentException("Endpoint " + name + " is listed twice in '" + spec + "'");
+                }
+            }
+            endpoints.add(new DynamoEndpoint(name, url));
+        }
+        return endpoints;
+    }
+
+    private static String hostOf(String url) {
+        int start = url.indexOf("://");
+        String host = start < 0 ? url : url.substring(start + 3);
+        int end = host.indexOf('/');
+        return end < 0 ? host : host.substring(0, end);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getUrl() {
+        return url;
+    }
+
+    /**
+     * @return the statsd key for reads from this endpoint
+     */
+    public String getStatKey() {
+        return statKey;
+    }
+
+    public AmazonDynamoDB getDynamo() {
+        return dynamo;
+    }
+
+    public void setDynamo(AmazonDynamoDB dynamo) {
+        this.dynamo = dynamo;
+    }
+
+    public DynamoTableRotator getRotator() {
+        return rotator;
+    }
+
+    public void setRotator(DynamoTableRotator rotator) {
+        this.rotator = rotator;
+    }
+
+    @Override
+    public String toString() {
+        return name + "=" + url;
+    }
+}
@@ -21,6 +21,7 @@
 
 package net.energyhub.session;
 
+import com.amazonaws.AmazonClientException;
 import com.amazonaws.auth.BasicAWSCredentials;
 import com.amazonaws.services.dynamodb.AmazonDynamoDB;
 import com.amazonaws.services.dynamodb.AmazonDynamoDBClient;
@@ -28,17 +29,36 @@ import com.amazonaws.services.dynamodb.model.*;
 import org.apache.catalina.*;
 import org.apache.catalina.connector.Request;
 
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.servlet.ServletContext;
 import java.beans.PropertyChangeEvent;
 import java.beans.PropertyChangeListener;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
 import java.nio.ByteBuffer;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import java.util.regex.Pattern;
 
 public class DynamoManager implements Manager, Lifecycle, PropertyChangeListener {
     final private static Logger log = Logger.getLogger(DynamoManager.class.getName());
+    final private static Logger slowLog = Logger.getLogger("net.energyhub.session.SlowOperations");
+    private static final String[] LOAD_STAT_KEYS = OperationTimer.statKeys("load");
+    private static final String[] SAVE_STAT_KEYS = OperationTimer.statKeys("save");
 
     private final Object lifecycleMonitor = new Object();
 
@@ -46,39 +66,125 @@ public class DynamoManager implements Manager, Lifecycle, PropertyChangeListener
     protected String awsSecretKey = "";  // Required for production environment
     protected String dynamoEndpoint = ""; // used only for QA mock dynamo connections (not production)
     protected String tableBaseName = "tomcat-sessions";
-    protected int tableRotationSeconds = 86400;
-    protected int maxInactiveInterval = 3600; // default in seconds
+    protected int tableRotationSeconds = DEFAULT_TABLE_ROTATION_SECONDS;
+    protected int maxInactiveInterval = DEFAULT_MAX_INACTIVE_INTERVAL; // default in seconds
     protected String ignoreUri = "";
     protected String ignoreHeader = "";
+    protected String requestRules = "";
     protected boolean logSessionContents = false;
     protected boolean eventualConsistency = false;
     protected long defaultReadCapacity = 1;
     protected long defaultWriteCapacity = 1;
     protected String statsdHost = "";
     protected int statsdPort = 8125;
+    protected long statsdFlushInterval = StatsdClient.DEFAULT_FLUSH_INTERVAL_MILLIS;
+    protected double statsdSampleRate = 1.0;
+    protected boolean statsdAggregateTimers = false;
+    protected long slowOperationThreshold = 0; // millis, 0 disables slow operation traces
+    protected double slowOperationSampleRate = 1.0;
+    protected double sizeProfileSampleRate = 0; // fraction of saves to break down by attribute
+    protected int sizeReportInterval = 300; // seconds between size profile reports
+    protected int sizeReportTopN = 10;
+    protected int sessionSizeSoftLimit = 0; // bytes, warn above this; 0 disables
+    protected int sessionSizeHardLimit = 0; // bytes, refuse to store above this; 0 disables
+    protected int chunkSize = DEFAULT_CHUNK_SIZE; // bytes, larger sessions are split over several items; 0 disables
+    protected ConflictPolicy conflictPolicy = ConflictPolicy.MERGE;
+    protected boolean shareSessions = true; // one instance per session id for overlapping requests on this node
+    protected boolean lazyDeserialization = true; // decode attributes on first access rather than at load
+
+    /**
+     * What to do when a save finds that another request has saved the session since it was loaded.
+     */
+    public enum ConflictPolicy {
+        /** keep the attributes this request changed, take the rest from the stored session */
+        MERGE,
+        /** overwrite the stored session */
+        LAST_WRITER_WINS,
+        /** drop this request's changes */
+        FAIL
+    }
+
+    private static final int MAX_CONFLICT_RETRIES = 3;
 
     public static final String COLUMN_ID = "id";
     public static final String COLUMN_LAST_ACCESSED = "lastAccessed";
     public static final String COLUMN_DATA = "data";
+    public static final String COLUMN_VERSION = "version";
+    public static final String COLUMN_CREATED = "created";
+    public static final String COLUMN_MAX_INACTIVE = "maxInactive";
+    public static final String COLUMN_REMOVED = "removed";
+    /**
+     * Descriptors to see before building the first class dictionary, when classDictionary is on.
+     */
+    static final long CLASS_DICTIONARY_SAMPLES = 500;
+    /**
+     * A new session still unsaved after this long (e.g. created outside a request) is saved by backgroundProcess.
+     */
+    static final long UNSAVED_SESSION_MILLIS = 60000;
+
+    public static final int DEFAULT_TABLE_ROTATION_SECONDS = 86400;
+    public static final int DEFAULT_MAX_INACTIVE_INTERVAL = 3600;
+    public static final int DEFAULT_CHUNK_SIZE = 61440;
 
     protected AmazonDynamoDB dynamo;
     protected DynamoTableRotator rotator;
+    protected SessionChunkStore chunkStore;
     private DynamoSessionTrackerValve trackerValve;
-    private ThreadLocal<DynamoSession> currentSession = new ThreadLocal<DynamoSession>();
 
-    // maintain hash of attributes on load so we can compare against a
-    // hash when deciding to update in dynamo
-    private int originalAttributeHash = 0;
     private Serializer serializer;
     private StatsdClient statsdClient = null;
+    private DynamoManagerStats stats = new DynamoManagerStats(maxInactiveInterval);
+    private ObjectName statsName;
+    private SessionSizeProfiler sizeProfiler = new SessionSizeProfiler();
+    private volatile TouchBuffer touchBuffer;
+    private volatile DeferredRemovals removals;
+    private volatile SessionReplicator replicator;
+    private DynamoEndpoint homeEndpoint;
+    private volatile DynamoEndpoint readEndpoint;
+    private List<DynamoEndpoint> replicaEndpoints = Collections.emptyList();
+    private final SharedSessions sharedSessions = new SharedSessions(this);
+    private volatile long lastSizeReport = System.currentTimeMillis();
+    private final AtomicLong lastSizeWarning = new AtomicLong();
 
     //Either 'kryo' or 'java'
     private String serializationStrategyClass = "net.energyhub.session.JavaSerializer";
+    private String sessionIdGeneratorClass = "net.energyhub.session.CompactSessionIdGenerator";
+    private String sessionIdPrefix = "";
+    private boolean waitForWritableTable = false;
+    private boolean coordinatedRotation = false;
+    private boolean touchRecords = false;
+    private long touchFlushMillis = 1000;
+    private boolean deferredRemovals = false;
+    private long removalFlushMillis = 1000;
+    private boolean deferNewSessions = false;
+    private boolean saveEmptySessions = true;
+    private final ConcurrentHashMap<String, DynamoSession> unsavedSessions =
+            new ConcurrentHashMap<String, DynamoSession>();
+    private long localCopyMillis = 0;
+    private String invalidationBind = "";
+    private String invalidationPeers = "";
+    private volatile LocalSessionCopies localCopies;
+    private volatile InvalidationChannel invalidations;
+    private String snapshotPathname = "";
+    private long sessionCountMillis = 0;
+    private volatile SessionCounts sessionCounts;
+    private long drainMillis = 10000;
+    private boolean classDictionary = false;
+    private int classDictionarySize = 256;
+    private volatile ClassDictionaries classDictionaries;
+    private String sessionService = "";
+    private DynamoSessionService service;
+    private String dynamoEndpoints = "";
+    private String homeEndpointName = "";
+    private long replicationFlushMillis = 200;
+    private int rotationLeaseSeconds = 60;
+    private int rotationPollSeconds = 10;
+    private int rotationGraceSeconds = 120;
+    private SessionIdGenerator sessionIdGenerator = new CompactSessionIdGenerator();
 
     private Container container;
 
-    private Pattern ignoreUriPattern;
-    private Pattern ignoreHeaderPattern;
+    private volatile RequestClassifier classifier;
 
     private volatile LifecycleState lifecycleState = LifecycleState.NEW;
 
@@ -93,6 +199,30 @@ public class DynamoManager implements Manager, Lifecycle, PropertyChangeListener
         this.dynamoEndpoint = endpoint;
     }
 
+    public String getDynamoEndpoints() {
+        return dynamoEndpoints;
+    }
+
+    public void setDynamoEndpoints(String dynamoEndpoints) {
+        this.dynamoEndpoints = dynamoEndpoints;
+    }
+
+    public String getHomeEndpoint() {
+        return homeEndpointName;
+    }
+
+    public void setHomeEndpoint(String homeEndpoint) {
+        this.homeEndpointName = homeEndpoint;
+    }
+
+    public long getReplicationFlushMillis() {
+        return replicationFlushMillis;
+    }
+
+    public void setReplicationFlushMillis(long replicationFlushMillis) {
+        this.replicationFlushMillis = replicationFlushMillis;
+    }
+
     public String getTableBaseName() {
         return tableBaseName;
     }
@@ -133,6 +263,14 @@ public class DynamoManager implements Manager, Lifecycle, PropertyChangeListener
         this.ignoreHeader = ignoreHeader;
     }
 
+    public String getRequestRules() {
+        return requestRules;
+    }
+
+    public void setRequestRules(String requestRules) {
+        this.requestRules = requestRules;
+    }
+
     public String getIgnoreUri() {
         return ignoreUri;
     }
@@ -187,10 +325,325 @@ public class DynamoManager implements Manager, Lifecycle, PropertyChangeListener
         return statsdPort;
     }
 
+    public void setStatsdFlushInterval(long statsdFlushInterval) {
+        this.statsdFlushInterval = statsdFlushInterval;
+    }
+    public long getStatsdFlushInterval() {
+        return statsdFlushInterval;
+    }
+
+    public void setStatsdSampleRate(double statsdSampleRate) {
+        this.statsdSampleRate = statsdSampleRate;
+    }
+    public double getStatsdSampleRate() {
+        return statsdSampleRate;
+    }
+
+    public void setStatsdAggregateTimers(boolean statsdAggregateTimers) {
+        this.statsdAggregateTimers = statsdAggregateTimers;
+    }
+    public boolean getStatsdAggregateTimers() {
+        return statsdAggregateTimers;
+    }
+
+    public long getSlowOperationThreshold() {
+        return slowOperationThreshold;
+    }
+
+    public void setSlowOperationThreshold(long slowOperationThreshold) {
+        this.slowOperationThreshold = slowOperationThreshold;
+    }
+
+    public double getSlowOperationSampleRate() {
+        return slowOperationSampleRate;
+    }
+
+    public void setSlowOperationSampleRate(double slowOperationSampleRate) {
+        this.slowOperationSampleRate = slowOperationSampleRate;
+    }
+
+    public double getSizeProfileSampleRate() {
+        return sizeProfileSampleRate;
+    }
+
+    public void setSizeProfileSampleRate(double sizeProfileSampleRate) {
+        this.sizeProfileSampleRate = sizeProfileSampleRate;
+    }
+
+    public int getSizeReportInterval() {
+        return sizeReportInterval;
+    }
+
+    public void setSizeReportInterval(int sizeReportInterval) {
+        this.sizeReportInterval = sizeReportInterval;
+    }
+
+    public int getSizeReportTopN() {
+        return sizeReportTopN;
+    }
+
+    public void setSizeReportTopN(int sizeReportTopN) {
+        this.sizeReportTopN = sizeReportTopN;
+    }
+
+    public int getSessionSizeSoftLimit() {
+        return sessionSizeSoftLimit;
+    }
+
+    public void setSessionSizeSoftLimit(int sessionSizeSoftLimit) {
+        this.sessionSizeSoftLimit = sessionSizeSoftLimit;
+    }
+
+    public int getSessionSizeHardLimit() {
+        return sessionSizeHardLimit;
+    }
+
+    public void setSessionSizeHardLimit(int sessionSizeHardLimit) {
+        this.sessionSizeHardLimit = sessionSizeHardLimit;
+    }
+
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    public void setChunkSize(int chunkSize) {
+        this.chunkSize = chunkSize;
+    }
+
+    public String getConflictPolicy() {
+        return conflictPolicy.name();
+    }
+
+    /**
+     * @param conflictPolicy 'merge', 'lastWriterWins' or 'fail'
+     */
+    public void setConflictPolicy(String conflictPolicy) {
+        String normalized = conflictPolicy.replaceAll("[^A-Za-z]", "").toUpperCase();
+        for (ConflictPolicy policy : ConflictPolicy.values()) {
+            if (policy.name().replace("_", "").equals(normalized)) {
+                this.conflictPolicy = policy;
+                return;
+            }
+        }
+        throw new IllegalArgumentException("Unknown conflict policy: " + conflictPolicy);
+    }
+
+    public boolean getShareSessions() {
+        return shareSessions;
+    }
+
+    public void setShareSessions(boolean shareSessions) {
+        this.shareSessions = shareSessions;
+    }
+
+    public boolean getLazyDeserialization() {
+        return lazyDeserialization;
+    }
+
+    public void setLazyDeserialization(boolean lazyDeserialization) {
+        this.lazyDeserialization = lazyDeserialization;
+    }
+
+    public SessionSizeProfiler getSizeProfiler() {
+        return sizeProfiler;
+    }
+
     public void setSerializationStrategyClass(String strategy) {
         this.serializationStrategyClass = strategy;
     }
 
+    public String getSessionIdGeneratorClass() {
+        return sessionIdGeneratorClass;
+    }
+
+    public void setSessionIdGeneratorClass(String sessionIdGeneratorClass) {
+        this.sessionIdGeneratorClass = sessionIdGeneratorClass;
+    }
+
+    public boolean getWaitForWritableTable() {
+        return waitForWritableTable;
+    }
+
+    public void setWaitForWritableTable(boolean waitForWritableTable) {
+        this.waitForWritableTable = waitForWritableTable;
+    }
+
+    public boolean getTouchRecords() {
+        return touchRecords;
+    }
+
+    public void setTouchRecords(boolean touchRecords) {
+        this.touchRecords = touchRecords;
+    }
+
+    public long getTouchFlushMillis() {
+        return touchFlushMillis;
+    }
+
+    public void setTouchFlushMillis(long touchFlushMillis) {
+        this.touchFlushMillis = touchFlushMillis;
+    }
+
+    public boolean getDeferredRemovals() {
+        return deferredRemovals;
+    }
+
+    public void setDeferredRemovals(boolean deferredRemovals) {
+        this.deferredRemovals = deferredRemovals;
+    }
+
+    public long getRemovalFlushMillis() {
+        return removalFlushMillis;
+    }
+
+    public void setRemovalFlushMillis(long removalFlushMillis) {
+        this.removalFlushMillis = removalFlushMillis;
+    }
+
+    public boolean getDeferNewSessions() {
+        return deferNewSessions;
+    }
+
+    public void setDeferNewSessions(boolean deferNewSessions) {
+        this.deferNewSessions = deferNewSessions;
+    }
+
+    public boolean getSaveEmptySessions() {
+        return saveEmptySessions;
+    }
+
+    public void setSaveEmptySessions(boolean saveEmptySessions) {
+        this.saveEmptySessions = saveEmptySessions;
+    }
+
+    public String getSessionService() {
+        return sessionService;
+    }
+
+    public void setSessionService(String sessionService) {
+        this.sessionService = sessionService;
+    }
+
+    public long getLocalCopyMillis() {
+        return localCopyMillis;
+    }
+
+    public void setLocalCopyMillis(long localCopyMillis) {
+        this.localCopyMillis = localCopyMillis;
+    }
+
+    public String getSnapshotPathname() {
+        return snapshotPathname;
+    }
+
+    public void setSnapshotPathname(String snapshotPathname) {
+        this.snapshotPathname = snapshotPathname;
+    }
+
+    public long getSessionCountMillis() {
+        return sessionCountMillis;
+    }
+
+    public void setSessionCountMillis(long sessionCountMillis) {
+        this.sessionCountMillis = sessionCountMillis;
+    }
+
+    public long getDrainMillis() {
+        return drainMillis;
+    }
+
+    public void setDrainMillis(long drainMillis) {
+        this.drainMillis = drainMillis;
+    }
+
+    public String getInvalidationBind() {
+        return invalidationBind;
+    }
+
+    public void setInvalidationBind(String invalidationBind) {
+        this.invalidationBind = invalidationBind;
+    }
+
+    public String getInvalidationPeers() {
+        return invalidationPeers;
+    }
+
+    public void setInvalidationPeers(String invalidationPeers) {
+        this.invalidationPeers = invalidationPeers;
+    }
+
+    public boolean getClassDictionary() {
+        return classDictionary;
+    }
+
+    public void setClassDictionary(boolean classDictionary) {
+        this.classDictionary = classDictionary;
+    }
+
+    public int getClassDictionarySize() {
+        return classDictionarySize;
+    }
+
+    public void setClassDictionarySize(int classDictionarySize) {
+        // ids are written as an unsigned short
+        this.classDictionarySize = Math.max(1, Math.min(classDictionarySize, 65536));
+    }
+
+    public boolean getCoordinatedRotation() {
+        return coordinatedRotation;
+    }
+
+    public void setCoordinatedRotation(boolean coordinatedRotation) {
+        this.coordinatedRotation = coordinatedRotation;
+    }
+
+    public int getRotationLeaseSeconds() {
+        return rotationLeaseSeconds;
+    }
+
+    public void setRotationLeaseSeconds(int rotationLeaseSeconds) {
+        this.rotationLeaseSeconds = rotationLeaseSeconds;
+    }
+
+    public int getRotationPollSeconds() {
+        return rotationPollSeconds;
+    }
+
+    public void setRotationPollSeconds(int rotationPollSeconds) {
+        this.rotationPollSeconds = rotationPollSeconds;
+    }
+
+    public int getRotationGraceSeconds() {
+        return rotationGraceSeconds;
+    }
+
+    public void setRotationGraceSeconds(int rotationGraceSeconds) {
+        this.rotationGraceSeconds = rotationGraceSeconds;
+    }
+
+    public String getSessionIdPrefix() {
+        return sessionIdPrefix;
+    }
+
+    /**
+     * @param sessionIdPrefix put at the front of new session ids; {jvmRoute} is replaced by the Engine's jvmRoute. It
+     * can't contain '#', which only the manager's own items have in their keys
+     */
+    public void setSessionIdPrefix(String sessionIdPrefix) {
+        this.sessionIdPrefix = sessionIdPrefix;
+    }
+
+    public DynamoManagerStats getStats() {
+        return stats;
+    }
+
+    /**
+     * @return what copies writes to the replica endpoints, or null if there are none
+     */
+    SessionReplicator getReplicator() {
+        return replicator;
+    }
+
 
     ////////////////////////////////////////////////////////////////////////////////
     //   Implement methods of Lifecycle
@@ -217,7 +670,9 @@ public class DynamoManager implements Manager, Lifecycle, PropertyChangeListener
     @Override
     public void start() throws LifecycleException {
         updateLifecycleState(LifecycleState.STARTING);
+        long startNanos = System.nanoTime();
         log.info("Starting Dynamo Session Manager in container: " + this.getContainer().getName());
+        this.stats = new DynamoManagerStats(maxInactiveInterval > 0 ? maxInactiveInterval : tableRotationSeconds);
         for (Valve valve : getContainer().getPipeline().getValves()) {
             if (valve instanceof DynamoSessionTrackerValve) {
                 trackerValve = (DynamoSessionTrackerValve) valve;
@@ -238,21 +693,112 @@ public class DynamoManager implements Manager, Lifecycle, PropertyChangeListener
             log.log(Level.SEVERE, "Unable to load serializer", e);
             throw new LifecycleException(e);
         }
+        try {
+            initSessionIdGenerator();
+        } catch (ClassNotFoundException e) {
+            log.log(Level.SEVERE, "Unable to load session id generator", e);
+            throw new LifecycleException(e);
+        } catch (InstantiationException e) {
+            log.log(Level.SEVERE, "Unable to load session id generator", e);
+            throw new LifecycleException(e);
+        } catch (IllegalAccessException e) {
+            log.log(Level.SEVERE, "Unable to load session id generator", e);
+            throw new LifecycleException(e);
+        }
+        if (sessionService != null && !sessionService.isEmpty()) {
+            service = DynamoSessionService.get(sessionService);
+            if (service == null) {
+                throw new LifecycleException("No Dynamo session service named " + sessionService);
+            }
+            log.info("Using shared Dynamo session service " + sessionService);
+            this.dynamo = service.getDynamo();
+        }
+        try {
+            initEndpoints();
+        } catch (IllegalArgumentException e) {
+            throw new LifecycleException("Invalid dynamo endpoints", e);
+        }
         initDbConnection();
+        if (!replicaEndpoints.isEmpty()) {
+            log.info("Writing sessions to " + homeEndpoint + ", copying them to " + replicaEndpoints + " every "
+                    + replicationFlushMillis + "ms" + (readEndpoint == null ? "" : ", reading from " + readEndpoint));
+            SessionReplicator copier = new SessionReplicator(this, replicaEndpoints, replicationFlushMillis);
+            copier.start();
+            this.replicator = copier;
+        }
+        if (touchRecords) {
+            log.info("Batching touches every " + touchFlushMillis + "ms");
+            TouchBuffer touches = new TouchBuffer(this, getDynamo(), touchFlushMillis);
+            touches.start();
+            this.touchBuffer = touches;
+        }
+        if (deferredRemovals) {
+            log.info("Writing session removals every " + removalFlushMillis + "ms");
+            // after two rotations both tables that could hold the session are gone, and the tombstone with them
+            DeferredRemovals deferred = new DeferredRemovals(this, getDynamo(), removalFlushMillis,
+                    2000L * getTableRotationSeconds(), touchRecords);
+            deferred.start();
+            this.removals = deferred;
+        }
+        if (localCopyMillis > 0) {
+            final LocalSessionCopies copies = new LocalSessionCopies(localCopyMillis);
+            if (invalidationBind != null && !invalidationBind.isEmpty()) {
+                InvalidationChannel channel;
+                try {
+                    channel = new InvalidationChannel(invalidationBind, invalidationPeers,
+                            getTableBaseName(), new InvalidationChannel.Listener() {
+                        @Override
+                        public void invalidated(String id, long version) {
+                            copies.invalidate(id, version);
+                            stats.invalidationReceived();
+                        }
+                    });
+                } catch (IllegalArgumentException e) {
+                    throw new LifecycleException("Invalid session invalidation peers", e);
+                }
+                try {
+                    channel.start();
+                } catch (IOException e) {
+                    throw new LifecycleException("Unable to open the session invalidation channel", e);
+                }
+                this.invalidations = channel;
+            }
+            log.info("Keeping local copies of sessions for up to " + localCopyMillis + "ms"
+                    + (invalidations == null ? ", without invalidations" : ""));
+            this.localCopies = copies;
+        }
 
         if (!getIgnoreUri().isEmpty()) {
             log.info("Setting URI ignore regex to: " + getIgnoreUri());
-            this.ignoreUriPattern = Pattern.compile(getIgnoreUri());
         }
         if (!getIgnoreHeader().isEmpty()) {
             log.info("Setting header ignore regex to: " + getIgnoreHeader());
-            this.ignoreHeaderPattern = Pattern.compile(getIgnoreHeader());
         }
-        if (!getStatsdHost().isEmpty()) {
+        if (!getRequestRules().isEmpty()) {
+            log.info("Setting request rules to: " + getRequestRules());
+        }
+        try {
+            this.classifier = RequestClassifier.compile(getRequestRules(), getIgnoreUri(), getIgnoreHeader());
+        } catch (IllegalArgumentException e) {
+            throw new LifecycleException("Invalid request rules", e);
+        }
+        if (service != null) {
+            this.statsdClient = service.getStatsdClient();
+        } else if (!getStatsdHost().isEmpty()) {
             log.info("Configuring statsd client on " + getStatsdHost() + ":" + getStatsdPort());
-            this.statsdClient = new StatsdClient(getStatsdHost(), getStatsdPort());
+            this.statsdClient = new StatsdClient(getStatsdHost(), getStatsdPort(), getStatsdFlushInterval(),
+                    getStatsdSampleRate(), getStatsdAggregateTimers());
+        }
+        registerStats();
+        try {
+            load();
+        } catch (IOException e) {
+            log.log(Level.WARNING, "Unable to read the session snapshot, starting without it", e);
+        } catch (ClassNotFoundException e) {
+            log.log(Level.WARNING, "Unable to read the session snapshot, starting without it", e);
         }
-        log.info("Finished starting manager");
+        recordStartup(startNanos);
+        log.info("Finished starting manager in " + stats.getStartupMillis() + "ms");
 
         updateLifecycleState(LifecycleState.STARTED);
     }
@@ -260,6 +806,75 @@ public class DynamoManager implements Manager, Lifecycle, PropertyChangeListener
     @Override
     public void stop() throws LifecycleException {
         updateLifecycleState(LifecycleState.STOPPING);
+        long deadline = System.currentTimeMillis() + drainMillis;
+        unregisterStats();
+        sharedSessions.saveInUse();
+        saveUnsavedSessions(Long.MAX_VALUE);
+        SessionCounts counts = sessionCounts;
+        if (counts != null) {
+            sessionCounts = null;
+            counts.publishAll();
+        }
+        DynamoSessionService service = this.service;
+        if (service != null) {
+            service.releaseRotator(getTableBaseName(), topologyListener);
+        } else if (rotator != null) {
+            rotator.shutdown();
+        }
+        TouchBuffer touches = touchBuffer;
+        if (touches != null) {
+            touchBuffer = null;
+            touches.stop(deadline);
+        }
+        DeferredRemovals deferred = removals;
+        if (deferred != null) {
+            removals = null;
+            deferred.stop(deadline);
+        }
+        InvalidationChannel channel = invalidations;
+        if (channel != null) {
+            invalidations = null;
+            channel.stop();
+        }
+        try {
+            unload();
+        } catch (IOException e) {
+            log.log(Level.WARNING, "Unable to write the session snapshot", e);
+        } catch (RuntimeException e) {
+            // don't let a bad copy keep the rest of stop from draining and shutting down
+            log.log(Level.WARNING, "Unable to write the session snapshot", e);
+        }
+        localCopies = null;
+        SessionReplicator copier = replicator;
+        if (copier != null) {
+            replicator = null;
+            copier.stop(deadline);
+        }
+        for (DynamoEndpoint replica : replicaEndpoints) {
+            if (service != null) {
+                // the rotator and client are shared, the service shuts them down
+                if (replica.getRotator() != null) {
+                    service.releaseRotator(replicaRotatorKey(replica), replicaTopologyListener);
+                }
+                continue;
+            }
+            if (replica.getRotator() != null) {
+                replica.getRotator().shutdown();
+            }
+            replica.getDynamo().shutdown();
+        }
+        if (service != null) {
+            // the shared clients are the service's to shut down
+            this.service = null;
+            this.statsdClient = null;
+            this.dynamo = null;
+            updateLifecycleState(LifecycleState.STOPPED);
+            return;
+        }
+        if (statsdClient != null) {
+            statsdClient.shutdown();
+            statsdClient = null;
+        }
         getDynamo().shutdown();
         updateLifecycleState(LifecycleState.STOPPED);
     }
@@ -351,7 +966,7 @@ public class DynamoManager implements Manager, Lifecycle, PropertyChangeListener
 
     @Override
     public int getSessionIdLength() {
-        return 37;
+        return sessionIdGenerator.getSessionIdLength();
     }
 
     @Override
@@ -361,12 +976,12 @@ public class DynamoManager implements Manager, Lifecycle, PropertyChangeListener
 
     @Override
     public long getSessionCounter() {
-        return 10000000;
+        return stats.getSessionsCreated();
     }
 
     @Override
     public void setSessionCounter(long l) {
-
+        stats.setSessionsCreated(l);
     }
 
     @Override
@@ -379,24 +994,27 @@ public class DynamoManager implements Manager, Lifecycle, PropertyChangeListener
 
     }
 
+    /**
+     * @return the sessions created on this node and not yet removed within the session timeout
+     */
     @Override
     public int getActiveSessions() {
-        return 1000000;
+        return stats.getActiveSessions();
     }
 
     @Override
     public long getExpiredSessions() {
-        return 0;
+        return stats.getExpiredAtLoad();
     }
 
     @Override
     public void setExpiredSessions(long l) {
-
+        stats.setExpiredAtLoad(l);
     }
 
     @Override
     public int getRejectedSessions() {
-        return 0;
+        return (int) stats.getRejected();
     }
 
     @Override
@@ -411,39 +1029,108 @@ public class DynamoManager implements Manager, Lifecycle, PropertyChangeListener
 
     @Override
     public int getSessionAverageAliveTime() {
-        return 0;
+        return stats.getSessionAverageAliveTime();
     }
 
     @Override
     public int getSessionCreateRate() {
-        return 0;
+        return stats.getSessionCreateRate();
     }
 
     @Override
     public int getSessionExpireRate() {
-        return 0;
+        return stats.getSessionExpireRate();
     }
 
+    /**
+     * Restore the local session copies from the snapshot the last stop wrote, if there is one. The snapshot is
+     * deleted, so a later start can't restore it again; each copy is checked against Dynamo when it is first loaded.
+     */
     @Override
     public void load() throws ClassNotFoundException, IOException {
-
+        LocalSessionCopies copies = this.localCopies;
+        File file = getSnapshotFile();
+        if (copies == null || file == null) {
+            return;
+        }
+        DataInputStream in;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        } catch (FileNotFoundException e) {
+            return;
+        }
+        try {
+            int restored = copies.readSnapshot(in, System.currentTimeMillis());
+            log.info("Restored " + restored + " session copies from " + file);
+        } finally {
+            in.close();
+            if (!file.delete()) {
+                log.warning("Unable to delete session snapshot " + file);
+            }
+        }
     }
 
+    /**
+     * Write the local session copies to the snapshot file, for the next start to restore. Written to a temporary
+     * file first, so a stop that fails half way doesn't leave a truncated snapshot.
+     */
     @Override
     public void unload() throws IOException {
-
-    }
-
-    @Override
-    public void add(Session session) {
+        LocalSessionCopies copies = this.localCopies;
+        File file = getSnapshotFile();
+        if (copies == null || file == null) {
+            return;
+        }
+        File partial = new File(file.getPath() + ".tmp");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(partial)));
+        int written;
         try {
-            save((DynamoSession)session);
-        } catch (IOException ex) {
-            log.log(Level.SEVERE, "Error adding new session", ex);
+            written = copies.writeSnapshot(out, System.currentTimeMillis());
+        } finally {
+            out.close();
         }
+        if (!partial.renameTo(file) && !(file.delete() && partial.renameTo(file))) {
+            throw new IOException("Unable to move " + partial + " to " + file);
+        }
+        log.info("Wrote " + written + " session copies to " + file);
     }
 
-    @Override
+    /**
+     * @return the snapshot file, relative to the Context's work directory if the pathname is relative, or null if
+     * snapshots are off
+     */
+    private File getSnapshotFile() {
+        if (snapshotPathname == null || snapshotPathname.isEmpty()) {
+            return null;
+        }
+        File file = new File(snapshotPathname);
+        if (file.isAbsolute()) {
+            return file;
+        }
+        File dir = null;
+        if (container instanceof Context && ((Context) container).getServletContext() != null) {
+            dir = (File) ((Context) container).getServletContext().getAttribute(ServletContext.TEMPDIR);
+        }
+        return new File(dir != null ? dir : new File(System.getProperty("java.io.tmpdir")), snapshotPathname);
+    }
+
+    @Override
+    public void add(Session session) {
+        DynamoSession dynamoSession = (DynamoSession) session;
+        if (deferNewSessions && dynamoSession.isNew() && !isStored(dynamoSession)) {
+            // the valve saves it when the request ends; until then only this node knows it
+            unsavedSessions.put(dynamoSession.getIdInternal(), dynamoSession);
+            stats.newSessionDeferred();
+            return;
+        }
+        try {
+            save(dynamoSession);
+        } catch (IOException ex) {
+            log.log(Level.SEVERE, "Error adding new session", ex);
+        }
+    }
+
+    @Override
     public void addPropertyChangeListener(PropertyChangeListener propertyChangeListener) {
 
     }
@@ -458,22 +1145,68 @@ public class DynamoManager implements Manager, Lifecycle, PropertyChangeListener
         if (rotator != null) {
             rotator.process();
         }
+        for (DynamoEndpoint replica : replicaEndpoints) {
+            if (replica.getRotator() != null) {
+                replica.getRotator().process();
+            }
+        }
+        ClassDictionaries dictionaries = classDictionaries;
+        if (dictionaries != null) {
+            dictionaries.maybeBuild();
+        }
+        long now = System.currentTimeMillis();
+        saveUnsavedSessions(now - UNSAVED_SESSION_MILLIS);
+        LocalSessionCopies copies = localCopies;
+        if (copies != null) {
+            copies.prune(now);
+        }
+        SessionCounts counts = sessionCounts;
+        if (counts != null && counts.maybePublish(now)) {
+            long estimate = counts.estimate();
+            stats.distinctSessionsEstimated(estimate);
+            if (statsdClient != null && estimate >= 0) {
+                statsdClient.gauge("session.distinct", estimate);
+            }
+        }
+        if (sizeProfileSampleRate > 0 && now - lastSizeReport >= sizeReportInterval * 1000L) {
+            lastSizeReport = now;
+            log.info("Session size report for " + (container == null ? "" : container.getName()) + ": "
+                    + sizeProfiler.report(sizeReportTopN));
+            publishLargestAttributes();
+        }
+    }
+
+    private void publishLargestAttributes() {
+        List<SessionSizeProfiler.AttributeSize> largest = sizeProfiler.getTopAttributes(sizeReportTopN);
+        stats.largestAttributes(SessionSizeProfiler.averageBytes(largest));
+        if (statsdClient == null) {
+            return;
+        }
+        for (SessionSizeProfiler.AttributeSize size : largest) {
+            String key = "session.attribute." + SessionSizeProfiler.statName(size.getName());
+            statsdClient.gauge(key + ".avgBytes", size.getAverageBytes());
+            statsdClient.gauge(key + ".maxBytes", size.getMaxBytes());
+        }
     }
 
     @Override
     public void changeSessionId(Session session) {
-        session.setId(UUID.randomUUID().toString());
+        String oldId = session.getIdInternal();
+        session.setId(sessionIdGenerator.generateSessionId());
+        if (session instanceof DynamoSession && unsavedSessions.remove(oldId, session)) {
+            unsavedSessions.put(session.getIdInternal(), (DynamoSession) session);
+        }
     }
 
     @Override
     public Session createEmptySession() {
         DynamoSession session = new DynamoSession(this);
-        session.setId(UUID.randomUUID().toString());
+        session.setId(sessionIdGenerator.generateSessionId());
         session.setMaxInactiveInterval(maxInactiveInterval);
         session.setValid(true);
         session.setCreationTime(System.currentTimeMillis());
         session.setNew(true);
-        setCurrentSession(session);
+        snapshotSession(session, null, false, 0);
         log.fine("Created new empty session " + session.getIdInternal());
         return session;
     }
@@ -485,6 +1218,7 @@ public class DynamoManager implements Manager, Lifecycle, PropertyChangeListener
         if (sessionId != null) {
             session.setId(sessionId);
         }
+        stats.sessionCreated();
 
         return session;
     }
@@ -502,59 +1236,132 @@ public class DynamoManager implements Manager, Lifecycle, PropertyChangeListener
 
     @Override
     public Session findSession(String id) throws IOException {
+        if (id != null && !isSessionId(id)) {
+            stats.notFound();
+            return null;
+        }
+        DynamoSession shared = id == null ? null : sharedSessions.find(id);
+        if (shared != null) {
+            return shared;
+        }
         return loadSession(id);
     }
 
+    /**
+     * Get the session a request asked for, sharing it with other requests for it that are running on this node (if
+     * shareSessions is on). Must be matched by releaseSession.
+     * @return the session, or null if there is none
+     */
+    public DynamoSession acquireSession(String id) throws IOException {
+        if (!shareSessions) {
+            return null; // the request will load its own copy through findSession
+        }
+        return sharedSessions.acquire(id);
+    }
+
+    /**
+     * Done with a session got from acquireSession. It is saved once the last request using it releases it.
+     * @param id the id it was acquired with
+     * @param session the session, may be null
+     * @param requestClass how this request wants it saved
+     */
+    public void releaseSession(String id, DynamoSession session, RequestClass requestClass) throws IOException {
+        sharedSessions.release(id, session, requestClass);
+    }
+
     public Session loadSession(String id) throws IOException {
         if (rotator == null) {
             log.severe("Processing requests but rotator is not initialized");
             return null;
         }
-        if (rotator.getCurrentTableName() == null) {
+        TableTopology topology = rotator.getTopology();
+        if (topology.getCurrentTableName() == null) {
             log.severe("No table is yet set to current");
             return null;
         }
 
-        long t0 = System.currentTimeMillis();
         if (id == null || id.length() == 0) {
             return createEmptySession();
         }
-
-        DynamoSession session = currentSession.get();
-
-        if (session != null) {
-            if (id.equals(session.getId())) {
-                return session;
-            } else {
-                currentSession.remove();
-            }
+        if (!isSessionId(id)) {
+            log.fine("Ignoring session id " + id + ", it names one of the manager's own items");
+            stats.notFound();
+            return null;
+        }
+        DynamoSession unsaved = unsavedSessions.get(id);
+        if (unsaved != null) {
+            return unsaved; // created by a request on this node that hasn't finished
+        }
+        DeferredRemovals removals = this.removals;
+        if (removals != null && removals.isRemoved(id)) {
+            log.fine("Session " + id + " was removed on this node");
+            stats.tombstoneHit();
+            stats.notFound();
+            return null;
         }
 
+        OperationTimer timer = new OperationTimer("load", LOAD_STAT_KEYS);
+        DynamoSession session;
         String currentTable = "";
         String previousTable;
 
         try {
-            currentTable = rotator.getCurrentTableName();
-            previousTable = rotator.getPreviousTableName();
+            currentTable = topology.getCurrentTableName();
+            previousTable = topology.getPreviousTableName();
             boolean sessionFoundInPreviousTable = false;
             if (log.isLoggable(Level.FINE)) {
                 log.fine("Loading session " + id + " from Dynamo, current = " + currentTable);
             }
+            timer.setTableName(currentTable);
             GetItemRequest request = new GetItemRequest()
                     .withTableName(currentTable)
                     .withKey(new Key().withHashKeyElement(new AttributeValue().withS(id)));
             // set eventual consistency or fully consistent
             request = request.withConsistentRead(!eventualConsistency);
 
-            GetItemResult result = getDynamo().getItem(request);
+            LocalSessionCopies copies = this.localCopies;
+            Map<String, AttributeValue> copy = copies == null ? null
+                    : copies.get(currentTable, id, System.currentTimeMillis());
+            if (copy != null && !isActive(Long.parseLong(copy.get(COLUMN_LAST_ACCESSED).getN()),
+                    System.currentTimeMillis(), Integer.parseInt(copy.get(COLUMN_MAX_INACTIVE).getN()))) {
+                copy = null; // another node may have touched it since, so let Dynamo say whether it expired
+                copies.drop(id);
+            }
+            GetItemResult restored = copy != null || copies == null ? null
+                    : checkRestoredCopy(copies, currentTable, id, request);
+            GetItemResult result;
+            if (restored != null) {
+                result = restored;
+            } else if (copy != null) {
+                stats.localCopyHit();
+                result = new GetItemResult().withItem(copy);
+            } else {
+                result = readSessionItem(request);
+            }
+            timer.lap(OperationTimer.Phase.DYNAMO);
+            if (result != null) {
+                timer.addConsumedUnits(result.getConsumedCapacityUnits());
+            }
 
             // if not found in the current table, we look in the previous table
-            if (result == null || result.getItem() == null && rotator.getPreviousTableName() != null) {
+            boolean missCounted = false;
+            if (result == null || result.getItem() == null && previousTable != null) {
+                if (result != null) {
+                    stats.missedRead(currentTable, result.getConsumedCapacityUnits());
+                    missCounted = true;
+                }
                 try {
                     log.fine("Falling back to previous table: " + previousTable);
+                    timer.setTableName(previousTable);
                     request = request.withTableName(previousTable);
-                    result = getDynamo().getItem(request);
+                    result = readSessionItem(request);
+                    timer.lap(OperationTimer.Phase.FALLBACK);
                     sessionFoundInPreviousTable = true;
+                    if (result != null) {
+                        timer.addConsumedUnits(result.getConsumedCapacityUnits());
+                    }
+                    stats.fallbackRead(previousTable, result == null ? null : result.getConsumedCapacityUnits(),
+                            result != null && result.getItem() != null);
                 } catch (ResourceNotFoundException e) {
                     // Occasionally, the table we call 'previous' has actually been deleted by another process
                     // In that case we are *just about* to delete it anyway, PLUS, this session is not in our
@@ -565,13 +1372,45 @@ public class DynamoManager implements Manager, Lifecycle, PropertyChangeListener
 
             if (result == null || result.getItem() == null) {
                 log.info("Existing session " + id + " not found in Dynamo");
+                if (result != null && !sessionFoundInPreviousTable && !missCounted) {
+                    stats.missedRead(currentTable, result.getConsumedCapacityUnits());
+                }
+                stats.notFound();
+                finishTiming(timer, id);
                 return null;
             }
-
-            ByteBuffer data = result.getItem().get(COLUMN_DATA).getB();
+            if (result.getItem().containsKey(COLUMN_REMOVED)) {
+                // a tombstone: removed since, and it hides any older copy in the previous table
+                log.fine("Session " + id + " was removed");
+                stats.notFound();
+                finishTiming(timer, id);
+                return null;
+            }
+            stats.loaded(sessionFoundInPreviousTable || copy != null ? null : currentTable,
+                    sessionFoundInPreviousTable ? null : result.getConsumedCapacityUnits());
+
+            String foundTable = sessionFoundInPreviousTable ? previousTable : currentTable;
+            Map<String, AttributeValue> item = result.getItem();
+            ByteBuffer data = readData(foundTable, id, item, timer);
+            if (data == null) {
+                // the chunk set was replaced while we read it, so the head we have is stale; read it once more
+                result = readSessionItem(request);
+                item = result == null ? null : result.getItem();
+                if (result != null) {
+                    timer.addConsumedUnits(result.getConsumedCapacityUnits());
+                }
+                data = item == null ? null : readData(foundTable, id, item, timer);
+                if (data == null) {
+                    log.warning("Session " + id + " chunks could not be read from " + foundTable);
+                    stats.notFound();
+                    finishTiming(timer, id);
+                    return null;
+                }
+            }
+            timer.addBytes(data.remaining());
             Long lastAccessed = System.currentTimeMillis();
             try {
-                lastAccessed = Long.parseLong(result.getItem().get(COLUMN_LAST_ACCESSED).getN());
+                lastAccessed = Long.parseLong(item.get(COLUMN_LAST_ACCESSED).getN());
                 if (log.isLoggable(Level.FINE)) {
                     log.fine("Session " + id + " lastAccessed at " + lastAccessed);
                 }
@@ -582,12 +1421,17 @@ public class DynamoManager implements Manager, Lifecycle, PropertyChangeListener
             session = (DynamoSession) createEmptySession();
             session.setId(id);
             session.setManager(this);
-            long t2 = System.currentTimeMillis();
-            serializer.deserializeInto(data, session);
-            long t3 = System.currentTimeMillis();
-
-            if (log.isLoggable(Level.FINE)) {
-                log.fine("Deserialized session in " + (t3-t2) + "ms");
+            AttributeValue created = item.get(COLUMN_CREATED);
+            AttributeValue maxInactive = item.get(COLUMN_MAX_INACTIVE);
+            if (lazyDeserialization && created != null && maxInactive != null) {
+                // enough to check expiry without deserializing; attributes are decoded on first access
+                session.setCreationTime(Long.parseLong(created.getN()));
+                session.setMaxInactiveInterval(Integer.parseInt(maxInactive.getN()));
+                session.setPendingData(data);
+            } else {
+                // written before these columns existed, the payload is the only place to find them
+                serializer.deserializeInto(data, session);
+                timer.lap(OperationTimer.Phase.DESERIALIZE);
             }
 
             // assert active
@@ -597,8 +1441,13 @@ public class DynamoManager implements Manager, Lifecycle, PropertyChangeListener
                         "last accessed = " + lastAccessed +
                         ", now = " + now +
                         ", max inactive = " + session.getMaxInactiveInterval());
+                stats.expiredAtLoad();
+                session.discardPendingData(); // nobody will use these attributes, don't decode them to expire them
+                session.setLastAccessedTime(lastAccessed); // so remove sees it expired and has nothing to write
                 session.expire(); // internal processing, whatever that means
                 remove(session); // delete
+                timer.lap(OperationTimer.Phase.EXPIRY);
+                finishTiming(timer, id);
                 return null; // return null if the session is inactive
             }
 
@@ -609,7 +1458,7 @@ public class DynamoManager implements Manager, Lifecycle, PropertyChangeListener
                 session.setNew(true); // force the session to be saved using PutItem
             }
 
-            if (logSessionContents && log.isLoggable(Level.FINE)) {
+            if (logSessionContents && log.isLoggable(Level.FINE) && session.isDecoded()) {
                 log.fine("Session Contents [" + session.getId() + "]:");
                 for (Object name : Collections.list(session.getAttributeNames())) {
                     log.fine("  " + name.toString());
@@ -619,17 +1468,15 @@ public class DynamoManager implements Manager, Lifecycle, PropertyChangeListener
             // Set the lastAccessedTime according to the lastAccessedTime from the dynamo record,
             // since we don't save the serialized session itself if attributes haven't changed
             session.setLastAccessedTime(lastAccessed);
+            timer.lap(OperationTimer.Phase.EXPIRY);
 
-            long t1 = System.currentTimeMillis();
-
-            if (log.isLoggable(Level.FINE)) {
-                log.fine("Loaded session id " + id + " in " + (t1-t0) + "ms, "
-                        + result.getConsumedCapacityUnits() + " read units");
+            snapshotSession(session, foundTable, sessionFoundInPreviousTable, timer.getTotalNanos() / 1000000);
+            session.getContext().setVersion(foundTable, readVersion(item));
+            if (copies != null && copy == null && !sessionFoundInPreviousTable) {
+                copies.put(foundTable, item, now);
             }
-            if (statsdClient != null) {
-                statsdClient.time("session.load", t0, t1);
-            }
-            setCurrentSession(session);
+            timer.lap(OperationTimer.Phase.HASH);
+            finishTiming(timer, id);
             return session;
         } catch (IOException e) {
             log.severe(e.getMessage());
@@ -651,6 +1498,196 @@ public class DynamoManager implements Manager, Lifecycle, PropertyChangeListener
         }
     }
 
+    /**
+     * @return the session payload of a head item, reading its chunks if it has them, or null if they are gone
+     */
+    private ByteBuffer readData(String table, String id, Map<String, AttributeValue> item, OperationTimer timer) {
+        SessionChunkStore.ChunkSet chunks = SessionChunkStore.ChunkSet.fromItem(item);
+        if (chunks == null) {
+            return item.get(COLUMN_DATA).getB();
+        }
+        ByteBuffer data = chunkStore.read(table, id, chunks, !eventualConsistency);
+        timer.lap(OperationTimer.Phase.CHUNKS);
+        timer.addConsumedUnits(chunks.getConsumedUnits());
+        return data;
+    }
+
+    /**
+     * Stop the timer, send the total and per-phase timers to statsd and, if the operation was slow, log a trace of it
+     * (sampled at slowOperationSampleRate).
+     */
+    private void finishTiming(OperationTimer timer, String id) {
+        long totalNanos = timer.stop();
+        if (statsdClient != null) {
+            timer.report(statsdClient);
+        }
+        if (slowOperationThreshold > 0 && totalNanos >= slowOperationThreshold * 1000000L
+                && (slowOperationSampleRate >= 1.0
+                        || ThreadLocalRandom.current().nextDouble() < slowOperationSampleRate)
+                && slowLog.isLoggable(Level.WARNING)) {
+            slowLog.warning(timer.trace(id));
+        } else if (log.isLoggable(Level.FINE)) {
+            log.fine(timer.trace(id));
+        }
+    }
+
+    /**
+     * Check a copy restored from a snapshot against Dynamo, reading only the columns that say whether it is current.
+     * @return the copy with the stored last accessed time, if it has the stored version, else null
+     */
+    private GetItemResult checkRestoredCopy(LocalSessionCopies copies, String table, String id,
+                                                          GetItemRequest request) {
+        Map<String, AttributeValue> copy = copies.restored(table, id);
+        if (copy == null) {
+            return null;
+        }
+        GetItemResult result = readSessionItem(new GetItemRequest()
+                .withTableName(table)
+                .withKey(request.getKey())
+                .withConsistentRead(request.getConsistentRead())
+                .withAttributesToGet(COLUMN_ID, COLUMN_VERSION, COLUMN_LAST_ACCESSED, COLUMN_MAX_INACTIVE,
+                        COLUMN_REMOVED));
+        Map<String, AttributeValue> stored = result == null ? null : result.getItem();
+        if (stored == null || stored.containsKey(COLUMN_REMOVED) || readVersion(stored) != readVersion(copy)
+                || stored.get(COLUMN_LAST_ACCESSED) == null || stored.get(COLUMN_MAX_INACTIVE) == null) {
+            copies.drop(id);
+            return null;
+        }
+        copy.put(COLUMN_LAST_ACCESSED, stored.get(COLUMN_LAST_ACCESSED));
+        copy.put(COLUMN_MAX_INACTIVE, stored.get(COLUMN_MAX_INACTIVE));
+        copies.put(table, copy, System.currentTimeMillis());
+        stats.restoredCopyHit();
+        return new GetItemResult().withItem(copy).withConsumedCapacityUnits(result.getConsumedCapacityUnits());
+    }
+
+    /**
+     * Get a session item, from the nearest endpoint if that isn't home and has a usable copy, else from home. A
+     * session this node wrote is read from home until the write has been copied, as the copy may be older.
+     */
+    private GetItemResult readSessionItem(GetItemRequest request) {
+        DynamoEndpoint local = this.readEndpoint;
+        if (local == null && homeEndpoint == null) {
+            return readHomeItem(request);
+        }
+        SessionReplicator replicator = this.replicator;
+        if (local != null && replicator != null
+                && replicator.isPending(request.getTableName(), request.getKey().getHashKeyElement().getS())) {
+            local = null; // ours is the latest write, and it isn't there yet
+        }
+        GetItemResult result = local == null ? null : readReplicaItem(local, request);
+        if (result != null) {
+            return result;
+        }
+        if (local != null) {
+            stats.replicaFallback();
+        }
+        long start = System.nanoTime();
+        result = readHomeItem(request);
+        recordEndpointRead(homeEndpoint, System.nanoTime() - start);
+        return result;
+    }
+
+    /**
+     * Read the copy of a session item at a replica endpoint.
+     * @return the copy, or null if it can't be used and the item must be read from home: it isn't there (yet), is
+     * chunked, or looks expired, which only the home copy can tell for sure
+     */
+    private GetItemResult readReplicaItem(DynamoEndpoint endpoint, GetItemRequest request) {
+        long start = System.nanoTime();
+        GetItemResult result;
+        try {
+            result = endpoint.getDynamo().getItem(request);
+        } catch (AmazonClientException e) {
+            log.fine("Unable to read from " + endpoint.getName() + ", reading from home: " + e);
+            return null;
+        } finally {
+            recordEndpointRead(endpoint, System.nanoTime() - start);
+        }
+        Map<String, AttributeValue> item = result == null ? null : result.getItem();
+        if (item == null) {
+            return null;
+        }
+        if (item.containsKey(COLUMN_REMOVED)) {
+            return result;
+        }
+        AttributeValue lastAccessed = item.get(COLUMN_LAST_ACCESSED);
+        AttributeValue maxInactive = item.get(COLUMN_MAX_INACTIVE);
+        if (SessionChunkStore.ChunkSet.fromItem(item) != null || lastAccessed == null || maxInactive == null
+                || !isActive(Long.parseLong(lastAccessed.getN()), System.currentTimeMillis(),
+                Integer.parseInt(maxInactive.getN()))) {
+            return null;
+        }
+        return result;
+    }
+
+    private void recordEndpointRead(DynamoEndpoint endpoint, long nanos) {
+        stats.endpointRead(endpoint.getName(), nanos);
+        if (statsdClient != null) {
+            statsdClient.timingNanos(endpoint.getStatKey(), nanos);
+        }
+    }
+
+    /**
+     * Get a session item from the home endpoint. With touch records, its touch item comes in the same batch get, and
+     * the item is returned with the later of the two last accessed times (or of a touch still waiting to be written).
+     */
+    private GetItemResult readHomeItem(GetItemRequest request) {
+        TouchBuffer touchBuffer = this.touchBuffer;
+        if (touchBuffer == null) {
+            return getDynamo().getItem(request);
+        }
+        String table = request.getTableName();
+        String id = request.getKey().getHashKeyElement().getS();
+        Key touchKey = new Key().withHashKeyElement(new AttributeValue().withS(TouchBuffer.touchKey(id)));
+        Map<String, KeysAndAttributes> keys = new HashMap<String, KeysAndAttributes>();
+        keys.put(table, new KeysAndAttributes().withKeys(request.getKey(), touchKey)
+                .withAttributesToGet(request.getAttributesToGet())
+                .withConsistentRead(request.getConsistentRead()));
+        BatchGetItemResult batch = getDynamo().batchGetItem(new BatchGetItemRequest().withRequestItems(keys));
+        Map<String, AttributeValue> item = null;
+        Map<String, AttributeValue> touch = null;
+        Double units = null;
+        BatchResponse response = batch.getResponses() == null ? null : batch.getResponses().get(table);
+        if (response != null) {
+            units = response.getConsumedCapacityUnits();
+            for (Map<String, AttributeValue> found : response.getItems()) {
+                if (id.equals(found.get(COLUMN_ID).getS())) {
+                    item = found;
+                } else {
+                    touch = found;
+                }
+            }
+        }
+        if (batch.getUnprocessedKeys() != null && !batch.getUnprocessedKeys().isEmpty()) {
+            // throttled: read whichever is missing on its own, an old lastAccessed could expire the session
+            if (item == null) {
+                GetItemResult result = getDynamo().getItem(request);
+                item = result.getItem();
+                units = sum(units, result.getConsumedCapacityUnits());
+            }
+            if (touch == null) {
+                GetItemResult result = getDynamo().getItem(new GetItemRequest().withTableName(table)
+                        .withKey(touchKey).withConsistentRead(request.getConsistentRead()));
+                touch = result.getItem();
+                units = sum(units, result.getConsumedCapacityUnits());
+            }
+        }
+        long touched = touchBuffer.pendingTouch(table, id);
+        if (touch != null && touch.get(COLUMN_LAST_ACCESSED) != null) {
+            touched = Math.max(touched, Long.parseLong(touch.get(COLUMN_LAST_ACCESSED).getN()));
+        }
+        AttributeValue lastAccessed = item == null ? null : item.get(COLUMN_LAST_ACCESSED);
+        if (lastAccessed != null && touched > Long.parseLong(lastAccessed.getN())) {
+            item = new HashMap<String, AttributeValue>(item);
+            item.put(COLUMN_LAST_ACCESSED, new AttributeValue().withN(Long.toString(touched)));
+        }
+        return new GetItemResult().withItem(item).withConsumedCapacityUnits(units);
+    }
+
+    private static Double sum(Double a, Double b) {
+        return a == null ? b : b == null ? a : a + b;
+    }
+
     private boolean isActive(long lastAccessedTs, long nowTs, int maxInactiveSeconds) {
         if (maxInactiveSeconds < 0) {
             return true;
@@ -660,6 +1697,11 @@ public class DynamoManager implements Manager, Lifecycle, PropertyChangeListener
         return (inactiveMilli < maxInactiveMilli);
     }
 
+    static long readVersion(Map<String, AttributeValue> item) {
+        AttributeValue version = item.get(COLUMN_VERSION);
+        return version == null ? 0 : Long.parseLong(version.getN());
+    }
+
     private int hashSession(DynamoSession session) {
         int prime = 31;
         int hash = 0;
@@ -672,54 +1714,170 @@ public class DynamoManager implements Manager, Lifecycle, PropertyChangeListener
     }
 
     /**
-     * Store the session and attributes at create or load time, for comparison later on.
+     * Store a hash of the session attributes at create or load time on the session itself, for comparison later on.
      * @param session the session
+     * @param tableName the table the session was read from, or null if it is new
+     * @param foundInPreviousTable whether the session was read from the previous table
+     * @param loadMillis how long the load took
+     */
+    protected void snapshotSession(DynamoSession session, String tableName, boolean foundInPreviousTable,
+                                   long loadMillis) {
+        // a session that isn't decoded yet gets its hashes when it is (see sessionDecoded)
+        DynamoSessionContext context = new DynamoSessionContext(session.isDecoded() ? hashSession(session) : 0,
+                tableName, foundInPreviousTable, System.currentTimeMillis(), loadMillis);
+        if (conflictPolicy == ConflictPolicy.MERGE && session.isDecoded()) {
+            context.setAttributeHashes(hashAttributes(session));
+        }
+        session.setContext(context);
+    }
+
+    /**
+     * Deserialize a lazily loaded session's payload into it. Called by the session on first access.
+     */
+    void decodeSession(DynamoSession session, ByteBuffer data) throws IOException, ClassNotFoundException {
+        long start = System.nanoTime();
+        serializer.deserializeInto(data, session);
+        stats.decoded();
+        if (statsdClient != null) {
+            statsdClient.timingNanos("session.decode", System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * A lazily loaded session has just been decoded, before anything could change it: what it holds now is what is
+     * stored, so take the hashes for change detection.
+     */
+    void sessionDecoded(DynamoSession session) {
+        if (session.getContext() != null) {
+            rememberStored(session, session);
+        }
+    }
+
+    private static Map<String, Integer> hashAttributes(DynamoSession session) {
+        Map<String, Integer> hashes = new HashMap<String, Integer>();
+        for (String name : Collections.list(session.getAttributeNames())) {
+            hashes.put(name, session.getAttribute(name).hashCode());
+        }
+        return hashes;
+    }
+
+    /**
+     * Record that the session as it is now is what is stored, so later saves of this instance only write real
+     * changes, and a merge knows what this request changed.
+     */
+    private void rememberStored(DynamoSession session, DynamoSession stored) {
+        rememberStored(session, hashStored(stored));
+    }
+
+    private void rememberStored(DynamoSession session, StoredHashes stored) {
+        DynamoSessionContext context = session.getContext();
+        context.setAttributeHash(stored.hash);
+        if (stored.attributeHashes != null) {
+            context.setAttributeHashes(stored.attributeHashes);
+        }
+    }
+
+    /**
+     * Hash the session as it is now, before writing it. Requests sharing the instance (see SharedSessions) may
+     * change it while the write is in flight, so hashing it afterwards could record their changes as stored.
      */
-    protected void setCurrentSession(DynamoSession session) {
-        currentSession.set(session);
-        originalAttributeHash = hashSession(session);
+    private StoredHashes hashStored(DynamoSession session) {
+        return new StoredHashes(hashSession(session),
+                conflictPolicy == ConflictPolicy.MERGE ? hashAttributes(session) : null);
+    }
+
+    private static class StoredHashes {
+        final int hash;
+        final Map<String, Integer> attributeHashes;
+
+        StoredHashes(int hash, Map<String, Integer> attributeHashes) {
+            this.hash = hash;
+            this.attributeHashes = attributeHashes;
+        }
     }
 
     public void save(DynamoSession dynamoSession) throws IOException {
-        long t0 = System.currentTimeMillis();
+        save(dynamoSession, false);
+    }
+
+    /**
+     * @param touchOnly only update the last accessed time of a stored session, even if its attributes changed
+     */
+    public void save(DynamoSession dynamoSession, boolean touchOnly) throws IOException {
+        unsavedSessions.remove(dynamoSession.getIdInternal(), dynamoSession);
+        if (!saveEmptySessions && dynamoSession.isNew() && !isStored(dynamoSession)
+                && !dynamoSession.hasAttributes()) {
+            stats.emptySessionSkipped(); // nothing to remember; the next request will get a new session
+            return;
+        }
+        OperationTimer timer = new OperationTimer("save", SAVE_STAT_KEYS);
+        DynamoSessionContext loaded = dynamoSession.getContext();
+        if (loaded != null && loaded.getTableName() != null) {
+            timer.setLoad(loaded.isFoundInPreviousTable(), loaded.getLoadMillis(),
+                    System.currentTimeMillis() - loaded.getLoadedAt());
+        }
         try {
-            String currentTable = rotator.getCurrentTableName();
+            String currentTable = rotator.getTopology().getCurrentTableName(); // one table for the whole save
+            timer.setTableName(currentTable);
+            SessionCounts counts = this.sessionCounts;
+            if (counts != null) {
+                counts.saved(currentTable, dynamoSession.getIdInternal());
+            }
 
             if (log.isLoggable(Level.FINE)) {
                 log.fine("Saving session " + dynamoSession.getIdInternal() + " into Dynamo (" + currentTable + ")");
             }
 
-            ByteBuffer data = serializer.serializeFrom(dynamoSession);
-            Map<String, AttributeValue> dbData = new HashMap<String, AttributeValue>();
-            // We save lastAccessed on every access
-            dbData.put(COLUMN_LAST_ACCESSED, new AttributeValue().withN(Long.toString(System.currentTimeMillis(), 10)));
+            TouchBuffer touchBuffer = this.touchBuffer;
+            if (touchBuffer != null && !dynamoSession.isNew()
+                    && (touchOnly || !haveAttributesChanged(dynamoSession))) {
+                // nothing but the last accessed time to write: leave it to the next batch of touches
+                long now = System.currentTimeMillis();
+                touchBuffer.touch(currentTable, dynamoSession.getIdInternal(), now);
+                LocalSessionCopies copies = this.localCopies;
+                if (copies != null) {
+                    copies.merge(currentTable, dynamoSession.getIdInternal(), Collections.singletonMap(
+                            COLUMN_LAST_ACCESSED, new AttributeValue().withN(Long.toString(now))));
+                }
+                SessionReplicator replicator = this.replicator;
+                if (replicator != null) {
+                    replicator.touch(currentTable, dynamoSession.getIdInternal(), now);
+                }
+                stats.touchBuffered();
+                finishTiming(timer, dynamoSession.getIdInternal());
+                return;
+            }
 
+            // what the write is about to store, taken now in case another request changes the session meanwhile
+            StoredHashes stored = dynamoSession.getContext() != null && dynamoSession.isDecoded() && !touchOnly
+                    ? hashStored(dynamoSession) : null;
             double consumedCapacity;
-            if (dynamoSession.isNew()) {
-                consumedCapacity = putSessionInDynamo(currentTable, dynamoSession); // new session, use PutItem
-            } else {
-                consumedCapacity = updateSessionInDynamo(currentTable, dynamoSession); // existing session, use UpdateItem
+            try {
+                if (dynamoSession.isNew()) {
+                    DeferredRemovals removals = this.removals;
+                    if (removals != null) {
+                        removals.forget(dynamoSession.getIdInternal()); // the id may have been used before
+                    }
+                    consumedCapacity = putSessionInDynamo(currentTable, dynamoSession, timer); // new, use PutItem
+                } else {
+                    consumedCapacity = updateSessionInDynamo(currentTable, dynamoSession, timer, !touchOnly);
+                }
+            } catch (ConditionalCheckFailedException e) {
+                consumedCapacity = resolveConflict(currentTable, dynamoSession, timer);
+                stored = null; // resolveConflict remembers what its retry stored
             }
-
-
-            long t1 = System.currentTimeMillis();
-            if (log.isLoggable(Level.FINE)) {
-                log.fine("Updated session with id " + dynamoSession.getIdInternal() + " in " + (t1 - t0) + "ms, "
-                        + consumedCapacity + " write units.");
+            if (stored != null) {
+                rememberStored(dynamoSession, stored);
+                timer.lap(OperationTimer.Phase.HASH);
             }
+
+            finishTiming(timer, dynamoSession.getIdInternal());
             if (statsdClient != null) {
-                statsdClient.time("session.save", t0, t1);
                 statsdClient.timing("session.size", Math.round(consumedCapacity*1000));
             }
         } catch (IOException e) {
             log.severe(e.getMessage());
             throw e;
-        } finally {
-            currentSession.remove();
-            originalAttributeHash = 0;
-            if (log.isLoggable(Level.FINE)) {
-                log.fine("Session " + dynamoSession.getIdInternal() + " removed from ThreadLocal");
-            }
         }
     }
 
@@ -727,10 +1885,12 @@ public class DynamoManager implements Manager, Lifecycle, PropertyChangeListener
      * Put a new session into Dynamo using PutItemRequest API
      * @param currentTable the current Dyanmo table
      * @param session the session
+     * @param timer timer for this save
      * @return how many units were consumed
      * @throws IOException if something bad happens
      */
-    protected double putSessionInDynamo(String currentTable, DynamoSession session) throws IOException {
+    protected double putSessionInDynamo(String currentTable, DynamoSession session, OperationTimer timer)
+            throws IOException {
         // New session, do PutItem
         if (log.isLoggable(Level.FINE)) {
             log.fine("Storing new session for " + session.getIdInternal());
@@ -739,49 +1899,498 @@ public class DynamoManager implements Manager, Lifecycle, PropertyChangeListener
 
         dbData.put(COLUMN_ID, new AttributeValue().withS(session.getIdInternal()));
         dbData.put(COLUMN_LAST_ACCESSED, new AttributeValue().withN(Long.toString(System.currentTimeMillis(), 10)));
-        dbData.put(COLUMN_DATA, new AttributeValue().withB(serializer.serializeFrom(session)));
+        dbData.put(COLUMN_CREATED, new AttributeValue().withN(Long.toString(session.getCreationTimeInternal())));
+        dbData.put(COLUMN_MAX_INACTIVE, new AttributeValue().withN(Integer.toString(
+                session.getMaxInactiveInterval())));
+        ByteBuffer data = serialize(session, currentTable);
+        int bytes = data.remaining();
+        timer.addBytes(bytes);
+        timer.lap(OperationTimer.Phase.SERIALIZE);
+        if (!checkSessionSize(session, bytes)) {
+            return 0; // nothing stored, the session will not survive this node
+        }
+        double units = 0;
+        if (chunkStore.shouldChunk(bytes)) {
+            SessionChunkStore.ChunkSet chunks = chunkStore.write(currentTable, session.getIdInternal(), data);
+            chunks.addTo(dbData);
+            units += chunks.getConsumedUnits();
+            timer.lap(OperationTimer.Phase.CHUNKS);
+        } else {
+            dbData.put(COLUMN_DATA, new AttributeValue().withB(data));
+        }
+
+        long version = nextVersion(session);
+        dbData.put(COLUMN_VERSION, new AttributeValue().withN(Long.toString(version)));
 
-        PutItemRequest putRequest = new PutItemRequest().withTableName(currentTable).withItem(dbData);
-        PutItemResult result = getDynamo().putItem(putRequest);
-        return result.getConsumedCapacityUnits();
+        PutItemRequest putRequest = new PutItemRequest().withTableName(currentTable).withItem(dbData)
+                .withExpected(expectVersion(session, currentTable))
+                .withReturnValues(ReturnValue.ALL_OLD);
+        PutItemResult result;
+        try {
+            result = getDynamo().putItem(putRequest);
+        } catch (ConditionalCheckFailedException e) {
+            deleteUnusedChunks(currentTable, session.getIdInternal(), dbData);
+            throw e;
+        }
+        timer.lap(OperationTimer.Phase.DYNAMO);
+        setVersion(session, currentTable, version);
+        SessionReplicator replicator = this.replicator;
+        if (replicator != null) {
+            replicator.put(currentTable, dbData);
+        }
+        written(currentTable, session.getIdInternal(), dbData, version);
+        units += result.getConsumedCapacityUnits();
+        units += deleteReplacedChunks(currentTable, session.getIdInternal(), result.getAttributes(), dbData);
+        timer.addConsumedUnits(units);
+        stats.saved(currentTable, true, true, bytes, units);
+        return units;
     }
 
     /**
      * Update an existing session in Dynamo using UpdateItemRequest
      * @param currentTable the current Dynamo table
      * @param session the session
+     * @param timer timer for this save
      * @return how many units were consumed
      * @throws IOException if something bad happens
      */
-    protected double updateSessionInDynamo(String currentTable, DynamoSession session) throws IOException {
+    protected double updateSessionInDynamo(String currentTable, DynamoSession session, OperationTimer timer)
+            throws IOException {
+        return updateSessionInDynamo(currentTable, session, timer, true);
+    }
+
+    /**
+     * @param writeData whether to write the attributes if they changed, or only update the last accessed time
+     */
+    protected double updateSessionInDynamo(String currentTable, DynamoSession session, OperationTimer timer,
+                                           boolean writeData) throws IOException {
 
         Map<String, AttributeValueUpdate> dbData = new HashMap<String, AttributeValueUpdate>();
         // Only set the session data if attributes have changed.
-        boolean attributesHaveChanged = haveAttributesChanged(session);
+        boolean attributesHaveChanged = writeData && haveAttributesChanged(session);
+        timer.lap(OperationTimer.Phase.HASH);
+        int bytes = 0;
+        double units = 0;
         if (attributesHaveChanged) {
             if (log.isLoggable(Level.FINE)) {
                 log.fine("Attributes have changed, saving session data for " + session.getIdInternal());
             }
-            dbData.put(COLUMN_DATA, new AttributeValueUpdate()
-                    .withValue(new AttributeValue().withB(serializer.serializeFrom(session)))
-                    .withAction(AttributeAction.PUT));
+            ByteBuffer data = serialize(session, currentTable);
+            bytes = data.remaining();
+            timer.addBytes(bytes);
+            timer.lap(OperationTimer.Phase.SERIALIZE);
+            if (!checkSessionSize(session, bytes)) {
+                attributesHaveChanged = false; // keep the last stored version alive rather than lose it
+                bytes = 0;
+            } else if (chunkStore.shouldChunk(bytes)) {
+                SessionChunkStore.ChunkSet chunks = chunkStore.write(currentTable, session.getIdInternal(), data);
+                chunks.addTo(dbData, COLUMN_DATA);
+                units += chunks.getConsumedUnits();
+                timer.lap(OperationTimer.Phase.CHUNKS);
+            } else {
+                dbData.put(COLUMN_DATA, new AttributeValueUpdate()
+                        .withValue(new AttributeValue().withB(data))
+                        .withAction(AttributeAction.PUT));
+                SessionChunkStore.ChunkSet.removeFrom(dbData);
+            }
 
         } else if (log.isLoggable(Level.FINE)) {
             log.fine("Attributes have not changed, saving session data for " + session.getIdInternal());
 
         }
-        // Always update the last accessed time
+        // Always update the last accessed time, and with it what's needed to check expiry without decoding
         dbData.put(COLUMN_LAST_ACCESSED, new AttributeValueUpdate()
                 .withValue(new AttributeValue().withN(Long.toString(System.currentTimeMillis(), 10)))
                 .withAction(AttributeAction.PUT));
+        dbData.put(COLUMN_MAX_INACTIVE, new AttributeValueUpdate()
+                .withValue(new AttributeValue().withN(Integer.toString(session.getMaxInactiveInterval())))
+                .withAction(AttributeAction.PUT));
+        if (attributesHaveChanged) {
+            dbData.put(COLUMN_CREATED, new AttributeValueUpdate()
+                    .withValue(new AttributeValue().withN(Long.toString(session.getCreationTimeInternal())))
+                    .withAction(AttributeAction.PUT));
+        }
         UpdateItemRequest updateRequest = new UpdateItemRequest()
                 .withTableName(currentTable)
                 .withKey(new Key().withHashKeyElement(new AttributeValue().withS(session.getIdInternal())))
                 .withAttributeUpdates(dbData);
-        UpdateItemResult result = getDynamo().updateItem(updateRequest);
-        return result.getConsumedCapacityUnits();
+        // Touching lastAccessed can't lose anyone's changes, so only data writes are versioned
+        long version = 0;
+        if (attributesHaveChanged) {
+            version = nextVersion(session);
+            dbData.put(COLUMN_VERSION, new AttributeValueUpdate()
+                    .withValue(new AttributeValue().withN(Long.toString(version)))
+                    .withAction(AttributeAction.PUT));
+            updateRequest.setExpected(expectVersion(session, currentTable));
+            updateRequest.setReturnValues(ReturnValue.UPDATED_OLD); // to find a chunk set we replaced
+        }
+        Map<String, AttributeValue> written = new HashMap<String, AttributeValue>();
+        for (Map.Entry<String, AttributeValueUpdate> entry : dbData.entrySet()) {
+            written.put(entry.getKey(), entry.getValue().getValue());
+        }
+        UpdateItemResult result;
+        try {
+            result = getDynamo().updateItem(updateRequest);
+        } catch (ConditionalCheckFailedException e) {
+            deleteUnusedChunks(currentTable, session.getIdInternal(), written);
+            throw e;
+        }
+        timer.lap(OperationTimer.Phase.DYNAMO);
+        replicateUpdate(currentTable, session.getIdInternal(), written, attributesHaveChanged);
+        if (attributesHaveChanged) {
+            // a data update sets every column, so what we wrote is the whole item
+            Map<String, AttributeValue> item = setColumns(written);
+            item.put(COLUMN_ID, new AttributeValue().withS(session.getIdInternal()));
+            written(currentTable, session.getIdInternal(), item, version);
+        } else if (localCopies != null) {
+            localCopies.merge(currentTable, session.getIdInternal(), written);
+        }
+        units += result.getConsumedCapacityUnits();
+        if (attributesHaveChanged) {
+            setVersion(session, currentTable, version);
+            units += deleteReplacedChunks(currentTable, session.getIdInternal(), result.getAttributes(), written);
+        }
+        timer.addConsumedUnits(units);
+        stats.saved(currentTable, false, attributesHaveChanged, bytes, units);
+        return units;
+    }
+
+    /**
+     * A new version of the session is stored: keep a copy of it, and tell the other nodes to drop theirs.
+     */
+    private void written(String table, String id, Map<String, AttributeValue> item, long version) {
+        LocalSessionCopies copies = this.localCopies;
+        if (copies != null) {
+            copies.put(table, item, System.currentTimeMillis());
+        }
+        InvalidationChannel channel = this.invalidations;
+        if (channel != null) {
+            channel.broadcast(id, version);
+        }
+    }
+
+    /**
+     * @param table the table the payload is for
+     * @return the payload for the session; if its attributes were never decoded that is just what was loaded
+     */
+    private ByteBuffer serialize(DynamoSession session, String table) throws IOException {
+        ByteBuffer pending = session.getPendingData();
+        if (pending != null) {
+            ClassDictionaries dictionaries = classDictionaries;
+            if (dictionaries != null) {
+                dictionaries.carry(pending, table); // e.g. copied forward from the previous table
+            }
+            return pending.duplicate();
+        }
+        return serializer.serializeFrom(session);
     }
 
+    /**
+     * Queue an update for the replicas. A data update sets every column of the item, so it is copied whole.
+     */
+    private void replicateUpdate(String table, String id, Map<String, AttributeValue> written, boolean withData) {
+        SessionReplicator replicator = this.replicator;
+        if (replicator == null) {
+            return;
+        }
+        if (!withData) {
+            replicator.touch(table, id, Long.parseLong(written.get(COLUMN_LAST_ACCESSED).getN()));
+            return;
+        }
+        Map<String, AttributeValue> item = setColumns(written);
+        item.put(COLUMN_ID, new AttributeValue().withS(id));
+        replicator.put(table, item);
+    }
+
+    /**
+     * @return the columns an update set, leaving out those it deleted (e.g. the chunk columns), which have no value
+     */
+    private static Map<String, AttributeValue> setColumns(Map<String, AttributeValue> written) {
+        Map<String, AttributeValue> item = new HashMap<String, AttributeValue>();
+        for (Map.Entry<String, AttributeValue> entry : written.entrySet()) {
+            if (entry.getValue() != null) {
+                item.put(entry.getKey(), entry.getValue());
+            }
+        }
+        return item;
+    }
+
+    /**
+     * @return false for the keys of touch, chunk, class dictionary and session count items, which share the tables
+     * with sessions and all contain '#', so a client can't have them read as a session
+     */
+    static boolean isSessionId(String id) {
+        return id.indexOf('#') < 0;
+    }
+
+    /**
+     * @return whether this session has been written to Dynamo, by us or by another node
+     */
+    private static boolean isStored(DynamoSession session) {
+        return session.getContext() != null && session.getContext().getVersion() > 0;
+    }
+
+    /**
+     * Save the new sessions still waiting for their first save that were created before this time.
+     */
+    private void saveUnsavedSessions(long createdBefore) {
+        for (DynamoSession session : unsavedSessions.values()) {
+            if (session.getCreationTimeInternal() >= createdBefore
+                    || unsavedSessions.get(session.getIdInternal()) != session) {
+                continue;
+            }
+            try {
+                if (session.isValid()) {
+                    save(session);
+                } else {
+                    unsavedSessions.remove(session.getIdInternal(), session);
+                }
+            } catch (IOException e) {
+                log.log(Level.WARNING, "Unable to save new session " + session.getIdInternal(), e);
+            }
+        }
+    }
+
+    /**
+     * Save a new session the request that created it won't save, if it is still waiting for its first save.
+     */
+    public void saveIfUnsaved(Session session) throws IOException {
+        if (session instanceof DynamoSession && unsavedSessions.get(session.getIdInternal()) == session
+                && session.isValid()) {
+            save((DynamoSession) session);
+        }
+    }
+
+    private static long nextVersion(DynamoSession session) {
+        return session.getContext() == null ? 1 : session.getContext().getVersion() + 1;
+    }
+
+    private static void setVersion(DynamoSession session, String table, long version) {
+        if (session.getContext() != null) {
+            session.getContext().setVersion(table, version);
+        }
+    }
+
+    /**
+     * @return the condition for a write to the session item in this table: that it is still at the version we last
+     * read or wrote there, or that it has no version if we never saw it in this table
+     */
+    private static Map<String, ExpectedAttributeValue> expectVersion(DynamoSession session, String table) {
+        DynamoSessionContext context = session.getContext();
+        ExpectedAttributeValue expected;
+        if (context != null && context.getVersion() > 0 && table.equals(context.getVersionTable())) {
+            expected = new ExpectedAttributeValue()
+                    .withValue(new AttributeValue().withN(Long.toString(context.getVersion())));
+        } else {
+            expected = new ExpectedAttributeValue().withExists(false);
+        }
+        return Collections.singletonMap(COLUMN_VERSION, expected);
+    }
+
+    /**
+     * Another request saved the session since this one loaded it. Apply the conflict policy, retrying a few times if
+     * the stored session keeps changing under us.
+     * @return how many units were consumed
+     * @throws IOException if the policy (or running out of retries) means this request's changes are dropped
+     */
+    private double resolveConflict(String table, DynamoSession session, OperationTimer timer) throws IOException {
+        String id = session.getIdInternal();
+        for (int attempt = 1; ; attempt++) {
+            stats.writeConflict();
+            if (statsdClient != null) {
+                statsdClient.increment("session.conflict");
+            }
+            if (conflictPolicy == ConflictPolicy.FAIL || attempt > MAX_CONFLICT_RETRIES
+                    || session.getContext() == null) {
+                stats.conflictFailed();
+                throw new IOException("Session " + id + " was saved by another request since it was loaded, "
+                        + "dropping changes");
+            }
+            DynamoSession stored = readStoredSession(table, id, timer);
+            DynamoSessionContext context = session.getContext();
+            if (stored == null) {
+                if (conflictPolicy == ConflictPolicy.MERGE) {
+                    stats.conflictFailed();
+                    throw new IOException("Session " + id + " was removed by another request, dropping changes");
+                }
+                context.setVersion(null, context.getVersion());
+            } else {
+                context.setVersion(table, stored.getContext().getVersion());
+                if (conflictPolicy == ConflictPolicy.MERGE) {
+                    merge(session, stored);
+                }
+                // only write the data if it still differs from what is stored
+                rememberStored(session, stored);
+            }
+            log.fine("Save of session " + id + " conflicted, retrying with " + conflictPolicy);
+            StoredHashes retried = session.isDecoded() ? hashStored(session) : null;
+            try {
+                double units = stored == null ? putSessionInDynamo(table, session, timer)
+                        : updateSessionInDynamo(table, session, timer);
+                if (retried != null) {
+                    rememberStored(session, retried);
+                }
+                if (conflictPolicy == ConflictPolicy.MERGE) {
+                    stats.conflictMerged();
+                }
+                return units;
+            } catch (ConditionalCheckFailedException e) {
+                // moved again, go round
+            }
+        }
+    }
+
+    /**
+     * Read the session as it is stored now, with a consistent read.
+     * @return the stored session, with its version in the context, or null if there is none
+     */
+    private DynamoSession readStoredSession(String table, String id, OperationTimer timer) throws IOException {
+        GetItemRequest request = new GetItemRequest()
+                .withTableName(table)
+                .withKey(new Key().withHashKeyElement(new AttributeValue().withS(id)))
+                .withConsistentRead(true);
+        Map<String, AttributeValue> item = null;
+        ByteBuffer data = null;
+        for (int attempt = 0; attempt < 2; attempt++) {
+            GetItemResult result = getDynamo().getItem(request);
+            timer.lap(OperationTimer.Phase.DYNAMO);
+            if (result == null || result.getItem() == null) {
+                return null;
+            }
+            timer.addConsumedUnits(result.getConsumedCapacityUnits());
+            item = result.getItem();
+            if (item.containsKey(COLUMN_REMOVED)) {
+                return null;
+            }
+            if (item.get(COLUMN_DATA) == null && SessionChunkStore.ChunkSet.fromItem(item) == null) {
+                break; // only ever touched, no data
+            }
+            data = readData(table, id, item, timer);
+            if (data != null) {
+                break;
+            }
+        }
+        if (data == null && SessionChunkStore.ChunkSet.fromItem(item) != null) {
+            throw new IOException("Chunks of stored session " + id + " keep changing, dropping changes");
+        }
+        DynamoSession stored = new DynamoSession(this);
+        stored.setId(id);
+        stored.setValid(true);
+        if (data != null) {
+            try {
+                serializer.deserializeInto(data, stored);
+            } catch (ClassNotFoundException e) {
+                throw new IOException("Unable to deserialize stored session " + id, e);
+            }
+            timer.lap(OperationTimer.Phase.DESERIALIZE);
+        }
+        snapshotSession(stored, table, false, 0);
+        stored.getContext().setVersion(table, readVersion(item));
+        return stored;
+    }
+
+    /**
+     * Merge the stored session into this one: attributes this request set, changed or removed keep its value, all
+     * others take the stored value, including attributes another request added or removed.
+     */
+    private void merge(DynamoSession session, DynamoSession stored) {
+        Map<String, Integer> loaded = session.getContext().getAttributeHashes();
+        if (loaded == null) {
+            loaded = Collections.emptyMap(); // no record of what we loaded, so treat everything we have as changed
+        }
+        Set<String> names = new HashSet<String>(Collections.list(session.getAttributeNames()));
+        for (String name : names) {
+            Integer before = loaded.get(name);
+            if (before != null && before.intValue() == session.getAttribute(name).hashCode()) {
+                Object value = stored.getAttribute(name);
+                if (value == null) {
+                    session.removeAttribute(name, false);
+                } else {
+                    session.setAttribute(name, value, false);
+                }
+            }
+        }
+        for (String name : Collections.list(stored.getAttributeNames())) {
+            if (!names.contains(name) && !loaded.containsKey(name)) {
+                session.setAttribute(name, stored.getAttribute(name), false);
+            }
+        }
+    }
+
+    /**
+     * A conditional write failed, so nothing points at the chunk set we wrote for it.
+     */
+    private void deleteUnusedChunks(String table, String id, Map<String, AttributeValue> written) {
+        SessionChunkStore.ChunkSet chunks = SessionChunkStore.ChunkSet.fromItem(written);
+        if (chunks != null) {
+            stats.deleted(table, chunkStore.delete(table, id, chunks));
+        }
+    }
+
+    /**
+     * After a head item was overwritten, delete the chunk set it used to point at, if any.
+     * @param old the attributes of the head before the write
+     * @param written the attributes of the head after the write
+     * @return the units consumed
+     */
+    private double deleteReplacedChunks(String table, String id, Map<String, AttributeValue> old,
+                                        Map<String, AttributeValue> written) {
+        SessionChunkStore.ChunkSet replaced = SessionChunkStore.ChunkSet.fromItem(old);
+        if (replaced == null) {
+            return 0;
+        }
+        SessionChunkStore.ChunkSet current = SessionChunkStore.ChunkSet.fromItem(written);
+        if (current != null && current.getGeneration() == replaced.getGeneration()) {
+            return 0;
+        }
+        return chunkStore.delete(table, id, replaced);
+    }
+
+
+    /**
+     * Record the payload size, profile a sample of sessions by attribute, and enforce the size budgets.
+     * @return false if the session is over the hard limit and must not be stored
+     */
+    protected boolean checkSessionSize(DynamoSession session, int bytes) {
+        sizeProfiler.recordPayload(bytes);
+        if (statsdClient != null) {
+            statsdClient.timing("session.bytes", bytes);
+        }
+        List<SessionSizeProfiler.AttributeSize> attributes = null;
+        if (sizeProfileSampleRate > 0 && session.isDecoded()
+                && ThreadLocalRandom.current().nextDouble() < sizeProfileSampleRate) {
+            attributes = sizeProfiler.profile(session);
+        }
+        if (sessionSizeHardLimit > 0 && bytes > sessionSizeHardLimit) {
+            stats.rejected();
+            log.severe("Session " + session.getIdInternal() + " is " + bytes + " bytes, over the hard limit of "
+                    + sessionSizeHardLimit + ", not storing it. Largest attributes: "
+                    + largest(attributes != null ? attributes : measure(session)));
+            return false;
+        }
+        if (sessionSizeSoftLimit > 0 && bytes > sessionSizeSoftLimit) {
+            // don't flood the log when one page keeps saving a big session
+            long now = System.currentTimeMillis();
+            long last = lastSizeWarning.get();
+            if (now - last > 60000 && lastSizeWarning.compareAndSet(last, now)) {
+                log.warning("Session " + session.getIdInternal() + " is " + bytes + " bytes, over the soft limit of "
+                        + sessionSizeSoftLimit + ". Largest attributes: "
+                        + largest(attributes != null ? attributes : measure(session)));
+            }
+        }
+        return true;
+    }
+
+    private static List<SessionSizeProfiler.AttributeSize> measure(DynamoSession session) {
+        if (!session.isDecoded()) {
+            return Collections.emptyList(); // not worth decoding just to log it
+        }
+        return SessionSizeProfiler.measure(session);
+    }
+
+    private static String largest(List<SessionSizeProfiler.AttributeSize> attributes) {
+        return attributes.subList(0, Math.min(5, attributes.size())).toString();
+    }
 
     /**
      * If the original session and the current session have the same attributes (and values) then return false,
@@ -793,7 +2402,14 @@ public class DynamoManager implements Manager, Lifecycle, PropertyChangeListener
         if (logSessionContents && log.isLoggable(Level.FINE)) {
             log.fine("Session Contents [" + session.getId() + "]:");
         }
-        return hashSession(session) != originalAttributeHash;
+        if (!session.isDecoded()) {
+            return false; // nobody looked at the attributes, so nobody changed them
+        }
+        DynamoSessionContext context = session.getContext();
+        if (context == null) {
+            return true; // nothing to compare against, so assume it changed
+        }
+        return hashSession(session) != context.getAttributeHash();
     }
 
     @Override
@@ -801,24 +2417,83 @@ public class DynamoManager implements Manager, Lifecycle, PropertyChangeListener
         if (log.isLoggable(Level.FINE)) {
             log.fine("Removing session ID: " + session.getId());
         }
+        if (unsavedSessions.remove(session.getIdInternal(), session)) {
+            return; // never written, so nothing to remove
+        }
+        LocalSessionCopies copies = this.localCopies;
+        if (copies != null) {
+            copies.drop(session.getIdInternal());
+        }
+        InvalidationChannel channel = this.invalidations;
+        if (channel != null) {
+            channel.broadcast(session.getIdInternal(), -1);
+        }
+        if (session instanceof DynamoSession) {
+            DynamoSessionContext context = ((DynamoSession) session).getContext();
+            if (context != null && !context.markRemoved()) {
+                log.fine("Session already removed");
+                return;
+            }
+        }
+        stats.removed(session.getLastAccessedTimeInternal() - session.getCreationTimeInternal());
+        TableTopology topology = rotator.getTopology(); // read once, so a rotation can't split the removal
+        String currentTable = topology.getCurrentTableName();
+        DeferredRemovals removals = this.removals;
+        if (removals != null) {
+            // an expired session needs nothing written, every load will find it expired
+            boolean expired = !isActive(session.getLastAccessedTimeInternal(), System.currentTimeMillis(),
+                    session.getMaxInactiveInterval());
+            removals.remove(currentTable, session.getIdInternal(), !expired);
+            if (!expired) {
+                replicateRemoval(currentTable, session.getIdInternal());
+            }
+            return;
+        }
         Key key = new Key().withHashKeyElement(new AttributeValue().withS(session.getIdInternal()));
         try {
-            DeleteItemRequest deleteItemRequest = new DeleteItemRequest().withTableName(rotator.getCurrentTableName()).withKey(key);
-            getDynamo().deleteItem(deleteItemRequest);
-            if (rotator.getPreviousTableName() != null) {
+            // ALL_OLD tells us whether the session was chunked, so its chunks go with it
+            DeleteItemRequest deleteItemRequest = new DeleteItemRequest().withTableName(currentTable).withKey(key)
+                    .withReturnValues(ReturnValue.ALL_OLD);
+            deleteSessionItems(deleteItemRequest, session.getIdInternal());
+            replicateRemoval(currentTable, session.getIdInternal());
+            String previousTable = topology.getPreviousTableName();
+            if (previousTable != null) {
                 // TODO: this is something of an issue since we have provisioned the previous table to low-write-volume
-                deleteItemRequest = deleteItemRequest.withTableName(rotator.getPreviousTableName());
-                getDynamo().deleteItem(deleteItemRequest);
+                deleteSessionItems(deleteItemRequest.withTableName(previousTable), session.getIdInternal());
             }
 
         } catch (Exception e) {
             log.log(Level.SEVERE, "Error removing session in Dynamo Session Store", e);
-        } finally {
-            currentSession.remove();
-            originalAttributeHash = 0;
         }
     }
 
+    private void replicateRemoval(String table, String id) {
+        SessionReplicator replicator = this.replicator;
+        if (replicator != null) {
+            replicator.remove(table, id);
+        }
+    }
+
+    /**
+     * Delete a session's head item, then its chunks if it had any.
+     */
+    private void deleteSessionItems(DeleteItemRequest deleteItemRequest, String id) {
+        String table = deleteItemRequest.getTableName();
+        DeleteItemResult result = getDynamo().deleteItem(deleteItemRequest);
+        Double units = result == null ? null : result.getConsumedCapacityUnits();
+        SessionChunkStore.ChunkSet chunks = result == null ? null
+                : SessionChunkStore.ChunkSet.fromItem(result.getAttributes());
+        if (chunks != null) {
+            units = (units == null ? 0 : units) + chunkStore.delete(table, id, chunks);
+        }
+        if (touchBuffer != null) {
+            DeleteItemResult touch = getDynamo().deleteItem(new DeleteItemRequest().withTableName(table)
+                    .withKey(new Key().withHashKeyElement(new AttributeValue().withS(TouchBuffer.touchKey(id)))));
+            units = sum(units, touch == null ? null : touch.getConsumedCapacityUnits());
+        }
+        stats.deleted(table, units);
+    }
+
     @Override
     public void remove(Session session, boolean b) {
         remove(session);
@@ -828,27 +2503,177 @@ public class DynamoManager implements Manager, Lifecycle, PropertyChangeListener
         if (this.dynamo != null) {
             return this.dynamo;
         }
+        this.dynamo = createDynamo(dynamoEndpoint);
+        return this.dynamo;
+    }
+
+    protected AmazonDynamoDB createDynamo(String endpoint) {
+        return newDynamoClient(endpoint, awsAccessKey, awsSecretKey);
+    }
+
+    /**
+     * @param endpoint the endpoint to use, or empty for the SDK default
+     * @param awsAccessKey with awsSecretKey, the credentials; if either is empty, the instance credentials are used
+     */
+    static AmazonDynamoDB newDynamoClient(String endpoint, String awsAccessKey, String awsSecretKey) {
+        AmazonDynamoDB client;
         if (!awsAccessKey.isEmpty() && !awsSecretKey.isEmpty()) {
-            this.dynamo = new AmazonDynamoDBClient(new BasicAWSCredentials(awsAccessKey, awsSecretKey));
+            client = new AmazonDynamoDBClient(new BasicAWSCredentials(awsAccessKey, awsSecretKey));
         } else {
-            this.dynamo = new AmazonDynamoDBClient(); // try to use instance credentials
+            client = new AmazonDynamoDBClient(); // try to use instance credentials
         }
-        if (!dynamoEndpoint.isEmpty()) {
-            // Using some sort of mock connection for QA/testing (see ddbmock or Alternator)
-            log.info("Setting dynamo endpoint: " + dynamoEndpoint);
-            this.dynamo.setEndpoint(dynamoEndpoint);
+        if (!endpoint.isEmpty()) {
+            // A region, or some sort of mock connection for QA/testing (see ddbmock or Alternator)
+            log.info("Setting dynamo endpoint: " + endpoint);
+            client.setEndpoint(endpoint);
         }
-        return this.dynamo;
+        return client;
+    }
+
+    /**
+     * Sort out the endpoints listed in dynamoEndpoints, nearest first: sessions are written to the home one (the
+     * first, unless homeEndpoint names another), read from the nearest, and copied to all but home.
+     * @throws IllegalArgumentException if the list or homeEndpoint is invalid
+     */
+    private void initEndpoints() {
+        if (dynamoEndpoints == null || dynamoEndpoints.trim().isEmpty()) {
+            return;
+        }
+        List<DynamoEndpoint> endpoints = DynamoEndpoint.parse(dynamoEndpoints);
+        DynamoEndpoint home = endpoints.get(0);
+        if (homeEndpointName != null && !homeEndpointName.isEmpty()) {
+            home = null;
+            for (DynamoEndpoint endpoint : endpoints) {
+                if (endpoint.getName().equals(homeEndpointName) || endpoint.getUrl().equals(homeEndpointName)) {
+                    home = endpoint;
+                }
+            }
+            if (home == null) {
+                throw new IllegalArgumentException("Home endpoint " + homeEndpointName + " is not listed");
+            }
+        }
+        this.dynamoEndpoint = home.getUrl();
+        home.setDynamo(getDynamo());
+        List<DynamoEndpoint> replicas = new ArrayList<DynamoEndpoint>();
+        for (DynamoEndpoint endpoint : endpoints) {
+            if (endpoint != home) {
+                endpoint.setDynamo(service != null ? service.getDynamo(endpoint.getUrl())
+                        : createDynamo(endpoint.getUrl()));
+                replicas.add(endpoint);
+            }
+        }
+        this.homeEndpoint = home;
+        this.replicaEndpoints = replicas;
+        this.readEndpoint = endpoints.get(0) == home ? null : endpoints.get(0);
+    }
+
+    private final TableTopology.Listener topologyListener = new TableTopology.Listener() {
+        @Override
+        public void topologyChanged(TableTopology previous, TableTopology current) {
+            if (previous.getEpoch() == 0) {
+                stats.tableChanged(current.getCurrentTableName());
+            } else if (!current.getCurrentTableName().equals(previous.getCurrentTableName())) {
+                stats.rotated(current.getCurrentTableName(), current.getPreviousTableName());
+            }
+            ClassDictionaries dictionaries = classDictionaries;
+            if (dictionaries != null && !current.getCurrentTableName().equals(previous.getCurrentTableName())) {
+                dictionaries.tableChanged(current.getCurrentTableName(), current.getPreviousTableName());
+            }
+            SessionCounts counts = sessionCounts;
+            if (counts != null && !current.getCurrentTableName().equals(previous.getCurrentTableName())) {
+                if (previous.getEpoch() != 0) {
+                    log.info("About " + counts.estimate() + " distinct sessions in " + previous.getCurrentTableName()
+                            + " and " + previous.getPreviousTableName() + " when rotating to "
+                            + current.getCurrentTableName());
+                }
+                counts.tableChanged(current.getCurrentTableName(), current.getPreviousTableName());
+            }
+        }
+    };
+
+    /**
+     * Does nothing: replica rotators only keep the tables there, the home rotator's topology is the one used.
+     */
+    private final TableTopology.Listener replicaTopologyListener = new TableTopology.Listener() {
+        @Override
+        public void topologyChanged(TableTopology previous, TableTopology current) {
+        }
+    };
+
+    /**
+     * @return creates a rotator for the tables at this endpoint, coordinated with the other nodes' if
+     * coordinatedRotation is on
+     */
+    private Callable<DynamoTableRotator> rotatorFactory(final AmazonDynamoDB dynamo) {
+        return new Callable<DynamoTableRotator>() {
+            @Override
+            public DynamoTableRotator call() {
+                DynamoTableRotator created = new DynamoTableRotator(getTableBaseName(),
+                        getTableRotationSeconds(), getDefaultReadCapacity(), getDefaultWriteCapacity(), dynamo);
+                if (coordinatedRotation) {
+                    created.setCoordinator(new RotationCoordinator(dynamo,
+                            getTableBaseName() + "_coordination", rotationLeaseSeconds * 1000L),
+                            rotationPollSeconds * 1000L, rotationGraceSeconds);
+                }
+                return created;
+            }
+        };
+    }
+
+    /**
+     * @return the name a replica endpoint's rotator is shared under in the session service
+     */
+    private String replicaRotatorKey(DynamoEndpoint replica) {
+        return getTableBaseName() + "@" + replica.getUrl();
     }
 
     private void initDbConnection() throws LifecycleException {
         long nowSeconds = System.currentTimeMillis() / 1000;
         try {
-            getDynamo();
-            this.rotator = new DynamoTableRotator(getTableBaseName(), getTableRotationSeconds(),
-                    getDefaultReadCapacity(), getDefaultWriteCapacity(), getDynamo());
-            rotator.init(nowSeconds); // set current table, will wait for a table to come online if we need to create
-                                      // a new one.
+            this.chunkStore = new SessionChunkStore(getDynamo(), getChunkSize());
+            if (sessionCountMillis > 0) {
+                log.info("Counting sessions, merging the counts of all nodes every " + sessionCountMillis + "ms");
+                this.sessionCounts = new SessionCounts(getDynamo(), sessionCountMillis);
+            }
+            if (classDictionary && !(serializer instanceof JavaSerializer)) {
+                log.warning("classDictionary only applies to " + JavaSerializer.class.getName() + ", ignoring");
+            }
+            if (serializer instanceof JavaSerializer) {
+                ClassDictionaries dictionaries;
+                if (classDictionary) {
+                    log.info("Writing class descriptors from dictionaries of up to " + classDictionarySize);
+                    dictionaries = new ClassDictionaries(getDynamo(), classDictionarySize, CLASS_DICTIONARY_SAMPLES);
+                } else {
+                    dictionaries = new ClassDictionaries(getDynamo()); // other nodes may still write with them
+                }
+                ((JavaSerializer) serializer).setDictionaries(dictionaries);
+                this.classDictionaries = dictionaries;
+            } else if (serializer instanceof TypedSerializer) {
+                ClassDictionaries dictionaries = new ClassDictionaries(getDynamo()); // to read JavaSerializer's
+                ((TypedSerializer) serializer).setDictionaries(dictionaries);
+                this.classDictionaries = dictionaries;
+            }
+            Callable<DynamoTableRotator> factory = rotatorFactory(getDynamo());
+            if (service != null) {
+                this.rotator = service.acquireRotator(getTableBaseName(), getTableRotationSeconds(), factory,
+                        topologyListener, nowSeconds, waitForWritableTable);
+            } else {
+                this.rotator = factory.call();
+                rotator.addListener(topologyListener);
+                rotator.init(nowSeconds, waitForWritableTable); // set current table, will wait for a table to
+                                                                // come online if we need to create a new one.
+            }
+            for (DynamoEndpoint replica : replicaEndpoints) {
+                // the same table names, kept like the home ones: copies to a missing table are dropped
+                Callable<DynamoTableRotator> replicaFactory = rotatorFactory(replica.getDynamo());
+                if (service != null) {
+                    replica.setRotator(service.acquireRotator(replicaRotatorKey(replica), getTableRotationSeconds(),
+                            replicaFactory, replicaTopologyListener, nowSeconds, false));
+                } else {
+                    replica.setRotator(replicaFactory.call());
+                    replica.getRotator().init(nowSeconds, false);
+                }
+            }
 
             log.info("Connected to Dynamo for session storage. Session live time = "
                     + (getMaxInactiveInterval()) + "s");
@@ -857,6 +2682,32 @@ public class DynamoManager implements Manager, Lifecycle, PropertyChangeListener
         }
     }
 
+    /**
+     * Record how long startup took, and once the table's test write is done in the background, how long until then.
+     */
+    private void recordStartup(final long startNanos) {
+        stats.started((System.nanoTime() - startNanos) / 1000000);
+        final StatsdClient statsdClient = this.statsdClient;
+        final DynamoManagerStats stats = this.stats;
+        if (statsdClient != null) {
+            statsdClient.timingNanos("session.startup.discovery", rotator.getDiscoveryNanos());
+            statsdClient.timingNanos("session.startup", System.nanoTime() - startNanos);
+        }
+        rotator.getReadiness().whenComplete(new BiConsumer<Boolean, Throwable>() {
+            @Override
+            public void accept(Boolean ready, Throwable error) {
+                boolean isReady = error == null && Boolean.TRUE.equals(ready);
+                stats.tableReady(isReady);
+                long readyNanos = System.nanoTime() - startNanos;
+                if (!isReady) {
+                    log.log(Level.SEVERE, "Table " + rotator.getCurrentTableName() + " failed its test write", error);
+                } else if (statsdClient != null) {
+                    statsdClient.timingNanos("session.startup.ready", readyNanos);
+                }
+            }
+        });
+    }
+
     private void initSerializer() throws ClassNotFoundException, IllegalAccessException, InstantiationException {
         log.info("Attempting to use serializer :" + serializationStrategyClass);
         serializer = (Serializer) Class.forName(serializationStrategyClass).newInstance();
@@ -874,32 +2725,88 @@ public class DynamoManager implements Manager, Lifecycle, PropertyChangeListener
         serializer.setClassLoader(classLoader);
     }
 
+    private void initSessionIdGenerator()
+            throws ClassNotFoundException, IllegalAccessException, InstantiationException {
+        log.info("Attempting to use session id generator :" + sessionIdGeneratorClass);
+        SessionIdGenerator generator = (SessionIdGenerator) Class.forName(sessionIdGeneratorClass).newInstance();
+        String prefix = sessionIdPrefix == null ? "" : sessionIdPrefix;
+        if (prefix.contains("{jvmRoute}")) {
+            String jvmRoute = getJvmRoute();
+            prefix = prefix.replace("{jvmRoute}", jvmRoute == null ? "" : jvmRoute);
+        }
+        if (prefix.indexOf('#') >= 0) {
+            log.warning("Session ids can't contain '#', dropping it from the prefix " + prefix);
+            prefix = prefix.replace("#", "");
+        }
+        generator.setPrefix(prefix);
+        sessionIdGenerator = generator;
+    }
+
     /**
-     * Decide whether to skip loading/saving this request based on
-     * ignoreUri and ignoreHeader regexes in configuration.
+     * @return the jvmRoute of the Engine this manager's context runs in, or null
      */
-    protected boolean isIgnorable(Request request) {
-        if (this.ignoreUriPattern != null) {
-            if (ignoreUriPattern.matcher(request.getRequestURI()).matches()) {
-                if (log.isLoggable(Level.FINE)) {
-                    log.fine("Session manager will ignore this session based on uri: " + request.getRequestURI());
-                }
-                return true;
+    private String getJvmRoute() {
+        for (Container c = container; c != null; c = c.getParent()) {
+            if (c instanceof Engine) {
+                return ((Engine) c).getJvmRoute();
             }
         }
-        if (this.ignoreHeaderPattern != null) {
-            for (Enumeration headers = request.getHeaderNames(); headers.hasMoreElements(); ) {
-                String header = headers.nextElement().toString();
-                if (ignoreHeaderPattern.matcher(header).matches()) {
-                    if (log.isLoggable(Level.FINE)) {
-                        log.fine("Session manager will ignore this session based on header: " + header);
-                    }
-                    return true;
-                }
+        return null;
+    }
+
+    /**
+     * Decide what session I/O this request gets, from the requestRules (and the ignoreUri and ignoreHeader regexes)
+     * in configuration.
+     */
+    public RequestClass classify(Request request) {
+        RequestClassifier classifier = this.classifier;
+        RequestClass requestClass = classifier == null ? RequestClass.FULL : classifier.classify(request);
+        if (requestClass != RequestClass.FULL && log.isLoggable(Level.FINE)) {
+            log.fine("Request " + request.getRequestURI() + " classified as " + requestClass);
+        }
+        return requestClass;
+    }
+
+    /**
+     * @return whether this request gets no session I/O at all
+     */
+    protected boolean isIgnorable(Request request) {
+        return classify(request) == RequestClass.NONE;
+    }
 
+    /**
+     * Expose the statistics over JMX, as net.energyhub.session:type=DynamoManager,host=...,context=...
+     * Failing to register is not fatal, we just won't have the MBean.
+     */
+    private void registerStats() {
+        try {
+            String contextName = container != null && container.getName() != null ? container.getName() : "default";
+            String hostName = container != null && container.getParent() != null
+                    && container.getParent().getName() != null ? container.getParent().getName() : "default";
+            ObjectName name = new ObjectName("net.energyhub.session:type=DynamoManager,host="
+                    + ObjectName.quote(hostName) + ",context=" + ObjectName.quote(contextName));
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            if (server.isRegistered(name)) {
+                server.unregisterMBean(name);
             }
+            server.registerMBean(stats, name);
+            this.statsName = name;
+            log.info("Registered statistics MBean " + name);
+        } catch (Exception e) {
+            log.log(Level.WARNING, "Unable to register statistics MBean", e);
         }
-        return false;
+    }
+
+    private void unregisterStats() {
+        if (statsName == null) {
+            return;
+        }
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(statsName);
+        } catch (Exception e) {
+            log.log(Level.WARNING, "Unable to unregister statistics MBean " + statsName, e);
+        }
+        statsName = null;
     }
 
     private void updateLifecycleState(LifecycleState lifecycleState) {
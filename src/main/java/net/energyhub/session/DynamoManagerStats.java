@@ -0,0 +1,752 @@
+/***********************************************************************************************************************
+ *
+ * Dynamo Tomcat Sessions
+ * ==========================================
+ *
+ * Copyright (C) 2013 by EnergyHub Inc. (http://www.energyhub.com)
+ *
+ ***********************************************************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ *
+ **********************************************************************************************************************/
+
+package net.energyhub.session;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Live statistics for one DynamoManager. Everything on the request path is a striped adder or a lock-free rolling
+ * window, so recording costs a few uncontended CAS operations at most.
+ *
+ * Since we never scan the tables, session counts are estimates from what this node has seen: active sessions are the
+ * sessions created here within the last session timeout, less the ones removed here in the same window.
+ */
+public class DynamoManagerStats implements DynamoManagerStatsMXBean {
+    private static final long RATE_WINDOW_MILLIS = 60000;
+    private static final int BUCKETS = 60;
+
+    private final LongAdder created = new LongAdder();
+    private final LongAdder loads = new LongAdder();
+    private final LongAdder loadsNotFound = new LongAdder();
+    private final LongAdder saves = new LongAdder();
+    private final LongAdder puts = new LongAdder();
+    private final LongAdder updates = new LongAdder();
+    private final LongAdder touchOnlyWrites = new LongAdder();
+    private final LongAdder fallbackReads = new LongAdder();
+    private final LongAdder fallbackHits = new LongAdder();
+    private final LongAdder expiredAtLoad = new LongAdder();
+    private final LongAdder removals = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder writeConflicts = new LongAdder();
+    private final LongAdder sharedLoads = new LongAdder();
+    private final LongAdder decodes = new LongAdder();
+    private final LongAdder coalescedSaves = new LongAdder();
+    private final LongAdder bufferedTouches = new LongAdder();
+    private final LongAdder coalescedTouches = new LongAdder();
+    private final LongAdder touchesWritten = new LongAdder();
+    private final LongAdder skippedRemovals = new LongAdder();
+    private final LongAdder coalescedRemovals = new LongAdder();
+    private final LongAdder removalItemsWritten = new LongAdder();
+    private final LongAdder tombstoneHits = new LongAdder();
+    private final LongAdder replicaFallbacks = new LongAdder();
+    private final LongAdder replicatedItems = new LongAdder();
+    private final LongAdder replicationFailures = new LongAdder();
+    private final LongAdder deferredNewSessions = new LongAdder();
+    private final LongAdder localCopyHits = new LongAdder();
+    private final LongAdder invalidationsReceived = new LongAdder();
+    private final LongAdder restoredCopyHits = new LongAdder();
+    private final LongAdder skippedEmptySessions = new LongAdder();
+    private final LongAdder mergedConflicts = new LongAdder();
+    private final LongAdder failedConflicts = new LongAdder();
+    private final LongAdder bytesSerialized = new LongAdder();
+    private final LongAdder rotations = new LongAdder();
+    private final LongAdder aliveSeconds = new LongAdder();
+    private final LongAdder aliveCount = new LongAdder();
+    private final ConcurrentHashMap<String, DoubleAdder> readUnits = new ConcurrentHashMap<String, DoubleAdder>();
+    private final ConcurrentHashMap<String, DoubleAdder> writeUnits = new ConcurrentHashMap<String, DoubleAdder>();
+    private final ConcurrentHashMap<String, DoubleAdder> endpointReads = new ConcurrentHashMap<String, DoubleAdder>();
+    private final ConcurrentHashMap<String, DoubleAdder> endpointReadMillis =
+            new ConcurrentHashMap<String, DoubleAdder>();
+    private final ConcurrentHashMap<String, DoubleAdder> replicaWriteUnits = new ConcurrentHashMap<String, DoubleAdder>();
+    private final ConcurrentHashMap<String, Long> replicationLag = new ConcurrentHashMap<String, Long>();
+    private volatile String currentTableName;
+    private volatile long startupMillis;
+    private volatile long distinctSessions = -1;
+    private volatile Map<String, Long> largestAttributes = Collections.<String, Long>emptyMap();
+    private volatile boolean tableReady;
+
+    private final RollingCounter loadWindow = new RollingCounter(RATE_WINDOW_MILLIS, BUCKETS);
+    private final RollingCounter saveWindow = new RollingCounter(RATE_WINDOW_MILLIS, BUCKETS);
+    private final RollingCounter createWindow = new RollingCounter(RATE_WINDOW_MILLIS, BUCKETS);
+    private final RollingCounter expireWindow = new RollingCounter(RATE_WINDOW_MILLIS, BUCKETS);
+    private final RollingCounter activeCreated;
+    private final RollingCounter activeRemoved;
+
+    /**
+     * @param activeWindowSeconds how long a session created on this node counts as active, usually the session timeout
+     */
+    public DynamoManagerStats(int activeWindowSeconds) {
+        long activeWindowMillis = Math.max(activeWindowSeconds, 60) * 1000L;
+        this.activeCreated = new RollingCounter(activeWindowMillis, BUCKETS);
+        this.activeRemoved = new RollingCounter(activeWindowMillis, BUCKETS);
+    }
+
+    ////////////////////////////////////////////////////////////////////////////////
+    //   Recording, called on the request path
+    ////////////////////////////////////////////////////////////////////////////////
+
+    public void sessionCreated() {
+        long now = System.currentTimeMillis();
+        created.increment();
+        createWindow.increment(now);
+        activeCreated.increment(now);
+    }
+
+    public void loaded(String tableName, Double consumedUnits) {
+        loads.increment();
+        loadWindow.increment(System.currentTimeMillis());
+        addUnits(readUnits, tableName, consumedUnits);
+    }
+
+    public void notFound() {
+        loadsNotFound.increment();
+    }
+
+    /**
+     * A read against the previous table, after the session wasn't found in the current one.
+     */
+    public void fallbackRead(String tableName, Double consumedUnits, boolean found) {
+        fallbackReads.increment();
+        if (found) {
+            fallbackHits.increment();
+        }
+        addUnits(readUnits, tableName, consumedUnits);
+    }
+
+    public void missedRead(String tableName, Double consumedUnits) {
+        addUnits(readUnits, tableName, consumedUnits);
+    }
+
+    public void expiredAtLoad() {
+        expiredAtLoad.increment();
+        expireWindow.increment(System.currentTimeMillis());
+    }
+
+    public void saved(String tableName, boolean put, boolean dataWritten, int bytes, Double consumedUnits) {
+        saves.increment();
+        saveWindow.increment(System.currentTimeMillis());
+        if (put) {
+            puts.increment();
+        } else {
+            updates.increment();
+            if (!dataWritten) {
+                touchOnlyWrites.increment();
+            }
+        }
+        bytesSerialized.add(bytes);
+        addUnits(writeUnits, tableName, consumedUnits);
+    }
+
+    /**
+     * A session was invalidated or found expired.
+     * @param aliveMillis time between its creation and last access
+     */
+    public void removed(long aliveMillis) {
+        removals.increment();
+        activeRemoved.increment(System.currentTimeMillis());
+        alive(aliveMillis);
+    }
+
+    public void deleted(String tableName, Double consumedUnits) {
+        addUnits(writeUnits, tableName, consumedUnits);
+    }
+
+    public void rejected() {
+        rejected.increment();
+    }
+
+    /**
+     * A conditional write found the stored version had moved on.
+     */
+    public void writeConflict() {
+        writeConflicts.increment();
+    }
+
+    /**
+     * A request got a session another request on this node had loaded, instead of loading it.
+     */
+    public void sharedLoad() {
+        sharedLoads.increment();
+    }
+
+    /**
+     * A request finished with a shared session and left the save to the last request using it.
+     */
+    public void coalescedSave() {
+        coalescedSaves.increment();
+    }
+
+    /**
+     * A touch-only save went to the touch buffer rather than to Dynamo.
+     */
+    public void touchBuffered() {
+        saves.increment();
+        saveWindow.increment(System.currentTimeMillis());
+        bufferedTouches.increment();
+    }
+
+    /**
+     * A buffered touch replaced an older one for the same session before it was written.
+     */
+    public void coalescedTouch() {
+        coalescedTouches.increment();
+    }
+
+    public void touchesWritten(String tableName, int count, Double consumedUnits) {
+        touchesWritten.add(count);
+        addUnits(writeUnits, tableName, consumedUnits);
+    }
+
+    /**
+     * A removed session needed nothing written, because it had expired.
+     */
+    public void removalSkipped() {
+        skippedRemovals.increment();
+    }
+
+    /**
+     * A session was removed again before its first removal was written.
+     */
+    public void coalescedRemoval() {
+        coalescedRemovals.increment();
+    }
+
+    /**
+     * Deferred removals were written: tombstone items, and the touch items deleted with them.
+     */
+    public void removalsWritten(String tableName, int count, Double consumedUnits) {
+        removalItemsWritten.add(count);
+        addUnits(writeUnits, tableName, consumedUnits);
+    }
+
+    /**
+     * A load was answered from the local tombstone of a removed session, without reading Dynamo.
+     */
+    public void tombstoneHit() {
+        tombstoneHits.increment();
+    }
+
+    /**
+     * A session item was read from this endpoint.
+     */
+    public void endpointRead(String endpoint, long nanos) {
+        addUnits(endpointReads, endpoint, 1.0);
+        addUnits(endpointReadMillis, endpoint, nanos / 1000000.0);
+    }
+
+    /**
+     * What the nearest endpoint had wasn't usable (missing, chunked or apparently expired), so it was read from home.
+     */
+    public void replicaFallback() {
+        replicaFallbacks.increment();
+    }
+
+    /**
+     * A write was copied to a replica endpoint.
+     * @param lagMillis how long after the home write
+     */
+    public void replicated(String endpoint, long lagMillis, double consumedUnits) {
+        replicatedItems.increment();
+        replicationLag.put(endpoint, lagMillis);
+        addUnits(replicaWriteUnits, endpoint, consumedUnits);
+    }
+
+    public void replicationFailed() {
+        replicationFailures.increment();
+    }
+
+    /**
+     * A new session was registered, and left for the end of the request to save.
+     */
+    public void newSessionDeferred() {
+        deferredNewSessions.increment();
+    }
+
+    /**
+     * A new session was still empty at the end of its request, so it wasn't saved.
+     */
+    public void emptySessionSkipped() {
+        skippedEmptySessions.increment();
+    }
+
+    /**
+     * A load was served from this node's copy of the session, without reading Dynamo.
+     */
+    public void localCopyHit() {
+        localCopyHits.increment();
+    }
+
+    /**
+     * Another node announced a write to a session.
+     */
+    public void invalidationReceived() {
+        invalidationsReceived.increment();
+    }
+
+    /**
+     * A load was served from a copy restored from the snapshot, after checking its version in Dynamo.
+     */
+    public void restoredCopyHit() {
+        restoredCopyHits.increment();
+    }
+
+    /**
+     * A lazily loaded session was deserialized because something used its attributes.
+     */
+    public void decoded() {
+        decodes.increment();
+    }
+
+    public void conflictMerged() {
+        mergedConflicts.increment();
+    }
+
+    public void conflictFailed() {
+        failedConflicts.increment();
+    }
+
+    /**
+     * Record a table rotation, forgetting units for tables other than the new current and previous ones.
+     */
+    public void rotated(String currentTableName, String previousTableName) {
+        rotations.increment();
+        tableChanged(currentTableName);
+        readUnits.keySet().retainAll(Arrays.asList(currentTableName, previousTableName));
+        writeUnits.keySet().retainAll(Arrays.asList(currentTableName, previousTableName));
+    }
+
+    public void tableChanged(String currentTableName) {
+        this.currentTableName = currentTableName;
+    }
+
+    public void started(long startupMillis) {
+        this.startupMillis = startupMillis;
+    }
+
+    /**
+     * The cluster-wide count of distinct sessions in the live tables, as last estimated from the shared sketches.
+     */
+    public void distinctSessionsEstimated(long estimate) {
+        this.distinctSessions = estimate;
+    }
+
+    /**
+     * The average serialized sizes of the largest attributes, as of the last size report.
+     */
+    public void largestAttributes(Map<String, Long> averageBytes) {
+        this.largestAttributes = averageBytes;
+    }
+
+    public void tableReady(boolean ready) {
+        this.tableReady = ready;
+    }
+
+    private void alive(long aliveMillis) {
+        if (aliveMillis >= 0) {
+            aliveSeconds.add(aliveMillis / 1000);
+            aliveCount.increment();
+        }
+    }
+
+    private static void addUnits(ConcurrentHashMap<String, DoubleAdder> units, String tableName, Double consumed) {
+        if (tableName == null || consumed == null) {
+            return;
+        }
+        DoubleAdder adder = units.get(tableName);
+        if (adder == null) {
+            DoubleAdder newAdder = new DoubleAdder();
+            adder = units.putIfAbsent(tableName, newAdder);
+            if (adder == null) {
+                adder = newAdder;
+            }
+        }
+        adder.add(consumed);
+    }
+
+    ////////////////////////////////////////////////////////////////////////////////
+    //   Reporting
+    ////////////////////////////////////////////////////////////////////////////////
+
+    @Override
+    public long getSessionsCreated() {
+        return created.sum();
+    }
+
+    public void setSessionsCreated(long count) {
+        created.reset();
+        created.add(count);
+    }
+
+    @Override
+    public long getLoads() {
+        return loads.sum();
+    }
+
+    @Override
+    public long getLoadsNotFound() {
+        return loadsNotFound.sum();
+    }
+
+    @Override
+    public long getSaves() {
+        return saves.sum();
+    }
+
+    @Override
+    public long getPuts() {
+        return puts.sum();
+    }
+
+    @Override
+    public long getUpdates() {
+        return updates.sum();
+    }
+
+    @Override
+    public long getTouchOnlyWrites() {
+        return touchOnlyWrites.sum();
+    }
+
+    @Override
+    public long getFallbackReads() {
+        return fallbackReads.sum();
+    }
+
+    @Override
+    public long getFallbackHits() {
+        return fallbackHits.sum();
+    }
+
+    @Override
+    public double getFallbackHitRatio() {
+        long reads = fallbackReads.sum();
+        return reads == 0 ? 0.0 : (double) fallbackHits.sum() / reads;
+    }
+
+    @Override
+    public long getExpiredAtLoad() {
+        return expiredAtLoad.sum();
+    }
+
+    public void setExpiredAtLoad(long count) {
+        expiredAtLoad.reset();
+        expiredAtLoad.add(count);
+    }
+
+    @Override
+    public long getRemovals() {
+        return removals.sum();
+    }
+
+    @Override
+    public long getRejected() {
+        return rejected.sum();
+    }
+
+    @Override
+    public long getWriteConflicts() {
+        return writeConflicts.sum();
+    }
+
+    @Override
+    public long getMergedConflicts() {
+        return mergedConflicts.sum();
+    }
+
+    @Override
+    public long getFailedConflicts() {
+        return failedConflicts.sum();
+    }
+
+    @Override
+    public long getSharedLoads() {
+        return sharedLoads.sum();
+    }
+
+    @Override
+    public long getDecodes() {
+        return decodes.sum();
+    }
+
+    @Override
+    public long getCoalescedSaves() {
+        return coalescedSaves.sum();
+    }
+
+    @Override
+    public long getBufferedTouches() {
+        return bufferedTouches.sum();
+    }
+
+    @Override
+    public long getCoalescedTouches() {
+        return coalescedTouches.sum();
+    }
+
+    @Override
+    public long getTouchesWritten() {
+        return touchesWritten.sum();
+    }
+
+    @Override
+    public long getSkippedRemovals() {
+        return skippedRemovals.sum();
+    }
+
+    @Override
+    public long getCoalescedRemovals() {
+        return coalescedRemovals.sum();
+    }
+
+    @Override
+    public long getRemovalItemsWritten() {
+        return removalItemsWritten.sum();
+    }
+
+    @Override
+    public long getTombstoneHits() {
+        return tombstoneHits.sum();
+    }
+
+    @Override
+    public long getReplicaFallbacks() {
+        return replicaFallbacks.sum();
+    }
+
+    @Override
+    public long getReplicatedItems() {
+        return replicatedItems.sum();
+    }
+
+    @Override
+    public long getReplicationFailures() {
+        return replicationFailures.sum();
+    }
+
+    @Override
+    public long getLocalCopyHits() {
+        return localCopyHits.sum();
+    }
+
+    @Override
+    public long getInvalidationsReceived() {
+        return invalidationsReceived.sum();
+    }
+
+    @Override
+    public long getRestoredCopyHits() {
+        return restoredCopyHits.sum();
+    }
+
+    @Override
+    public long getDeferredNewSessions() {
+        return deferredNewSessions.sum();
+    }
+
+    @Override
+    public long getSkippedEmptySessions() {
+        return skippedEmptySessions.sum();
+    }
+
+    @Override
+    public Map<String, Long> getReplicationLagMillis() {
+        return new HashMap<String, Long>(replicationLag);
+    }
+
+    @Override
+    public Map<String, Double> getReplicaWriteUnits() {
+        return sums(replicaWriteUnits);
+    }
+
+    @Override
+    public Map<String, Double> getEndpointReadMillis() {
+        Map<String, Double> average = new HashMap<String, Double>();
+        for (Map.Entry<String, DoubleAdder> entry : endpointReadMillis.entrySet()) {
+            DoubleAdder reads = endpointReads.get(entry.getKey());
+            double count = reads == null ? 0 : reads.sum();
+            average.put(entry.getKey(), count == 0 ? 0 : entry.getValue().sum() / count);
+        }
+        return average;
+    }
+
+    @Override
+    public long getBytesSerialized() {
+        return bytesSerialized.sum();
+    }
+
+    @Override
+    public Map<String, Long> getLargestAttributes() {
+        return new LinkedHashMap<String, Long>(largestAttributes);
+    }
+
+    @Override
+    public long getRotations() {
+        return rotations.sum();
+    }
+
+    @Override
+    public String getCurrentTableName() {
+        return currentTableName;
+    }
+
+    @Override
+    public long getStartupMillis() {
+        return startupMillis;
+    }
+
+    @Override
+    public long getDistinctSessions() {
+        return distinctSessions;
+    }
+
+    @Override
+    public boolean isTableReady() {
+        return tableReady;
+    }
+
+    @Override
+    public Map<String, Double> getConsumedReadUnits() {
+        return sums(readUnits);
+    }
+
+    @Override
+    public Map<String, Double> getConsumedWriteUnits() {
+        return sums(writeUnits);
+    }
+
+    @Override
+    public double getLoadsPerSecond() {
+        return loadWindow.sum(System.currentTimeMillis()) * 1000.0 / RATE_WINDOW_MILLIS;
+    }
+
+    @Override
+    public double getSavesPerSecond() {
+        return saveWindow.sum(System.currentTimeMillis()) * 1000.0 / RATE_WINDOW_MILLIS;
+    }
+
+    /**
+     * @return sessions created per minute, over the last minute
+     */
+    @Override
+    public int getSessionCreateRate() {
+        return (int) createWindow.sum(System.currentTimeMillis());
+    }
+
+    /**
+     * @return sessions found expired per minute, over the last minute
+     */
+    @Override
+    public int getSessionExpireRate() {
+        return (int) expireWindow.sum(System.currentTimeMillis());
+    }
+
+    /**
+     * @return average time, in seconds, between creation and last access of expired or removed sessions
+     */
+    @Override
+    public int getSessionAverageAliveTime() {
+        long count = aliveCount.sum();
+        return count == 0 ? 0 : (int) (aliveSeconds.sum() / count);
+    }
+
+    public int getActiveSessions() {
+        long now = System.currentTimeMillis();
+        long active = activeCreated.sum(now) - activeRemoved.sum(now);
+        return (int) Math.max(0, Math.min(active, Integer.MAX_VALUE));
+    }
+
+    @Override
+    public void reset() {
+        for (LongAdder adder : new LongAdder[]{created, loads, loadsNotFound, saves, puts, updates, touchOnlyWrites,
+                fallbackReads, fallbackHits, expiredAtLoad, removals, rejected, writeConflicts,
+                mergedConflicts, failedConflicts, sharedLoads, coalescedSaves, decodes, bytesSerialized,
+                bufferedTouches, coalescedTouches, touchesWritten, skippedRemovals, coalescedRemovals,
+                removalItemsWritten, tombstoneHits,
+                replicaFallbacks, replicatedItems, replicationFailures, deferredNewSessions, skippedEmptySessions,
+                localCopyHits, invalidationsReceived, restoredCopyHits,
+                rotations, aliveSeconds, aliveCount}) {
+            adder.reset();
+        }
+        readUnits.clear();
+        writeUnits.clear();
+        endpointReads.clear();
+        endpointReadMillis.clear();
+        replicaWriteUnits.clear();
+        replicationLag.clear();
+        largestAttributes = Collections.<String, Long>emptyMap();
+    }
+
+    private static Map<String, Double> sums(Map<String, DoubleAdder> units) {
+        Map<String, Double> result = new HashMap<String, Double>();
+        for (Map.Entry<String, DoubleAdder> entry : units.entrySet()) {
+            result.put(entry.getKey(), entry.getValue().sum());
+        }
+        return result;
+    }
+
+    /**
+     * Count of events in a trailing time window, kept in a ring of buckets. A bucket is claimed for a new time slot
+     * by whichever thread gets there first; an increment racing with that reset can be lost, which is fine for stats.
+     */
+    static class RollingCounter {
+        private final long bucketMillis;
+        private final int buckets;
+        private final AtomicLongArray counts;
+        private final AtomicLongArray slots;
+
+        RollingCounter(long windowMillis, int buckets) {
+            this.bucketMillis = Math.max(1, windowMillis / buckets);
+            this.buckets = buckets;
+            this.counts = new AtomicLongArray(buckets);
+            this.slots = new AtomicLongArray(buckets);
+        }
+
+        void increment(long nowMillis) {
+            long slot = nowMillis / bucketMillis;
+            int index = (int) (slot % buckets);
+            long current = slots.get(index);
+            if (current != slot && slots.compareAndSet(index, current, slot)) {
+                counts.set(index, 0);
+            }
+            counts.incrementAndGet(index);
+        }
+
+        long sum(long nowMillis) {
+            long slot = nowMillis / bucketMillis;
+            long total = 0;
+            for (int i = 0; i < buckets; i++) {
+                long bucketSlot = slots.get(i);
+                if (bucketSlot > slot - buckets && bucketSlot <= slot) {
+                    total += counts.get(i);
+                }
+            }
+            return total;
+        }
+    }
+}
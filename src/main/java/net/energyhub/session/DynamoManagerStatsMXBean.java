@@ -0,0 +1,155 @@
+/***********************************************************************************************************************
+ *
+ * Dynamo Tomcat Sessions
+ * ==========================================
+ *
+ * Copyright (C) 2013 by EnergyHub Inc. (http://www.energyhub.com)
+ *
+ ***********************************************************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ *
+ **********************************************************************************************************************/
+
+package net.energyhub.session;
+
+import java.util.Map;
+
+/**
+ * JMX view of the session manager statistics, registered as
+ * net.energyhub.session:type=DynamoManager,host=...,context=...
+ *
+ * Totals are since the manager started; rates are over the last minute.
+ */
+public interface DynamoManagerStatsMXBean {
+    long getSessionsCreated();
+
+    long getLoads();
+
+    long getLoadsNotFound();
+
+    long getSaves();
+
+    long getPuts();
+
+    long getUpdates();
+
+    long getTouchOnlyWrites();
+
+    long getFallbackReads();
+
+    long getFallbackHits();
+
+    double getFallbackHitRatio();
+
+    long getExpiredAtLoad();
+
+    long getRemovals();
+
+    long getRejected();
+
+    long getWriteConflicts();
+
+    long getMergedConflicts();
+
+    long getFailedConflicts();
+
+    long getSharedLoads();
+
+    long getCoalescedSaves();
+
+    long getDecodes();
+
+    long getBufferedTouches();
+
+    long getCoalescedTouches();
+
+    long getTouchesWritten();
+
+    long getSkippedRemovals();
+
+    long getCoalescedRemovals();
+
+    long getRemovalItemsWritten();
+
+    long getTombstoneHits();
+
+    long getReplicaFallbacks();
+
+    long getReplicatedItems();
+
+    long getReplicationFailures();
+
+    long getLocalCopyHits();
+
+    long getInvalidationsReceived();
+
+    long getRestoredCopyHits();
+
+    long getDeferredNewSessions();
+
+    long getSkippedEmptySessions();
+
+    /**
+     * @return per replica endpoint, how long after its home write the last copy arrived, in ms
+     */
+    Map<String, Long> getReplicationLagMillis();
+
+    Map<String, Double> getReplicaWriteUnits();
+
+    /**
+     * @return per endpoint, the average time to read a session item, in ms
+     */
+    Map<String, Double> getEndpointReadMillis();
+
+    long getBytesSerialized();
+
+    /**
+     * @return the average serialized bytes of the largest attributes by "name (class)", as of the last session size
+     * report; empty unless sizeProfileSampleRate is set
+     */
+    Map<String, Long> getLargestAttributes();
+
+    long getRotations();
+
+    String getCurrentTableName();
+
+    /**
+     * @return how long the manager took to start, in ms
+     */
+    long getStartupMillis();
+
+    /**
+     * @return the distinct sessions saved into the current and previous tables across all nodes, as last estimated
+     * from the shared session count sketches, or -1 if they aren't kept. Sessions removed or expired since still count
+     */
+    long getDistinctSessions();
+
+    /**
+     * @return whether the table picked at startup has passed its test write
+     */
+    boolean isTableReady();
+
+    Map<String, Double> getConsumedReadUnits();
+
+    Map<String, Double> getConsumedWriteUnits();
+
+    double getLoadsPerSecond();
+
+    double getSavesPerSecond();
+
+    int getSessionCreateRate();
+
+    int getSessionExpireRate();
+
+    int getSessionAverageAliveTime();
+
+    void reset();
+}
@@ -25,8 +25,15 @@ import com.amazonaws.services.dynamodb.model.AttributeValue;
 import org.apache.catalina.Manager;
 import org.apache.catalina.session.StandardSession;
 
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.nio.ByteBuffer;
+import java.util.Enumeration;
+
 public class DynamoSession extends StandardSession {
     private boolean isValid = true;
+    private transient DynamoSessionContext context;
+    private transient volatile ByteBuffer pendingData;
 
     public DynamoSession(Manager manager) {
         super(manager);
@@ -65,10 +72,166 @@ public class DynamoSession extends StandardSession {
         this.id = id;
     }
 
+    /**
+     * @return the state captured when this session instance was created or loaded
+     */
+    public DynamoSessionContext getContext() {
+        return context;
+    }
+
+    public void setContext(DynamoSessionContext context) {
+        this.context = context;
+    }
+
+    /**
+     * Keep the stored payload to be deserialized on first access to the attributes, instead of now.
+     */
+    public void setPendingData(ByteBuffer pendingData) {
+        this.pendingData = pendingData;
+    }
+
+    /**
+     * @return the stored payload if the attributes have not been deserialized yet, otherwise null
+     */
+    public ByteBuffer getPendingData() {
+        return pendingData;
+    }
+
+    /**
+     * @return whether the attributes are in memory, i.e. the session was created here or has been deserialized
+     */
+    public boolean isDecoded() {
+        return pendingData == null;
+    }
+
+    /**
+     * Drop the stored payload without deserializing it, e.g. when expiring a session nobody has used.
+     */
+    public void discardPendingData() {
+        pendingData = null;
+    }
+
+    /**
+     * Deserialize the pending payload, if any. Deserialization overwrites the access times and flags with the ones
+     * that were stored, so they are put back afterwards: they were set from the item when the session was loaded
+     * and may have changed since.
+     */
+    private void decode() {
+        if (pendingData == null) {
+            return;
+        }
+        synchronized (this) {
+            ByteBuffer data = pendingData;
+            if (data == null) {
+                return;
+            }
+            long creationTime = this.creationTime;
+            long lastAccessedTime = this.lastAccessedTime;
+            long thisAccessedTime = this.thisAccessedTime;
+            int maxInactiveInterval = this.maxInactiveInterval;
+            boolean isNew = this.isNew;
+            try {
+                ((DynamoManager) manager).decodeSession(this, data);
+            } catch (IOException e) {
+                throw new IllegalStateException("Unable to deserialize session " + id, e);
+            } catch (ClassNotFoundException e) {
+                throw new IllegalStateException("Unable to deserialize session " + id, e);
+            }
+            this.creationTime = creationTime;
+            this.lastAccessedTime = lastAccessedTime;
+            this.thisAccessedTime = thisAccessedTime;
+            this.maxInactiveInterval = maxInactiveInterval;
+            this.isNew = isNew;
+            pendingData = null;
+            ((DynamoManager) manager).sessionDecoded(this);
+        }
+    }
+
+    /**
+     * @return whether the session has any attributes, without deserializing it
+     */
+    public boolean hasAttributes() {
+        return pendingData != null || !attributes.isEmpty();
+    }
+
+    @Override
+    public Object getAttribute(String name) {
+        decode();
+        return super.getAttribute(name);
+    }
+
+    @Override
+    public Enumeration<String> getAttributeNames() {
+        decode();
+        return super.getAttributeNames();
+    }
+
+    @Override
+    public void setAttribute(String name, Object value, boolean notify) {
+        decode();
+        super.setAttribute(name, value, notify);
+    }
+
+    @Override
+    protected void removeAttributeInternal(String name, boolean notify) {
+        decode();
+        super.removeAttributeInternal(name, notify);
+    }
+
+    @Override
+    protected String[] keys() {
+        decode();
+        return super.keys();
+    }
+
+    @Override
+    protected void writeObject(ObjectOutputStream stream) throws IOException {
+        decode();
+        super.writeObject(stream);
+    }
+
+    @Override
+    public void activate() {
+        decode();
+        super.activate();
+    }
+
+    @Override
+    public void passivate() {
+        decode();
+        super.passivate();
+    }
+
+    @Override
+    public void recycle() {
+        pendingData = null;
+        super.recycle();
+    }
+
     public AttributeValue getAttributeValue() {
         return new AttributeValue().withS(this.id);
     }
 
+    /**
+     * Set what a serializer read from a payload, as StandardSession.readObjectData does, without notifying anyone.
+     */
+    void restore(long creationTime, long lastAccessedTime, long thisAccessedTime, int maxInactiveInterval,
+                 boolean isNew, String id) {
+        this.creationTime = creationTime;
+        this.lastAccessedTime = lastAccessedTime;
+        this.thisAccessedTime = thisAccessedTime;
+        this.maxInactiveInterval = maxInactiveInterval;
+        this.isNew = isNew;
+        this.id = id;
+    }
+
+    /**
+     * Put an attribute read from a payload, without decoding or notifying listeners.
+     */
+    void restoreAttribute(String name, Object value) {
+        attributes.put(name, value);
+    }
+
     public void setLastAccessedTime(long accessTime) {
         this.thisAccessedTime = accessTime;
         this.lastAccessedTime = accessTime;
@@ -0,0 +1,133 @@
+/***********************************************************************************************************************
+ *
+ * Dynamo Tomcat Sessions
+ * ==========================================
+ *
+ * Copyright (C) 2013 by EnergyHub Inc. (http://www.energyhub.com)
+ *
+ ***********************************************************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ *
+ **********************************************************************************************************************/
+
+package net.energyhub.session;
+
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * State captured when a session is created or loaded from Dynamo, used later in the same request to decide how to
+ * save it.
+ *
+ * Each load produces a new DynamoSession instance, so the context is carried on the session itself rather than on the
+ * manager or in a ThreadLocal. That keeps it correct when a request hops between threads (async servlets, virtual
+ * threads) and when many requests are being served concurrently.
+ */
+public class DynamoSessionContext {
+    private volatile int attributeHash;
+    private volatile Map<String, Integer> attributeHashes;
+    private volatile String versionTable;
+    private volatile long version;
+    private final AtomicBoolean removed = new AtomicBoolean(false);
+    private final String tableName;
+    private final boolean foundInPreviousTable;
+    private final long loadedAt;
+    private final long loadMillis;
+
+    public DynamoSessionContext(int attributeHash, String tableName, boolean foundInPreviousTable,
+                                long loadedAt, long loadMillis) {
+        this.attributeHash = attributeHash;
+        this.tableName = tableName;
+        this.foundInPreviousTable = foundInPreviousTable;
+        this.loadedAt = loadedAt;
+        this.loadMillis = loadMillis;
+    }
+
+    /**
+     * @return the hash of the session attributes as they were when loaded (or last saved)
+     */
+    public int getAttributeHash() {
+        return attributeHash;
+    }
+
+    /**
+     * Record the attribute hash of what is now stored in Dynamo, e.g. after a successful save.
+     */
+    public void setAttributeHash(int attributeHash) {
+        this.attributeHash = attributeHash;
+    }
+
+    /**
+     * @return the hash of each attribute as it was when loaded (or last saved), if kept for merging; otherwise null
+     */
+    public Map<String, Integer> getAttributeHashes() {
+        return attributeHashes;
+    }
+
+    public void setAttributeHashes(Map<String, Integer> attributeHashes) {
+        this.attributeHashes = attributeHashes;
+    }
+
+    /**
+     * @return the version of the session item we last read or wrote, or 0 if it had none
+     */
+    public long getVersion() {
+        return version;
+    }
+
+    /**
+     * @return the table holding the item getVersion() refers to, or null if the session has never been stored
+     */
+    public String getVersionTable() {
+        return versionTable;
+    }
+
+    /**
+     * Record the version of the session item last read from or written to the table.
+     */
+    public void setVersion(String versionTable, long version) {
+        this.versionTable = versionTable;
+        this.version = version;
+    }
+
+    /**
+     * Tomcat may ask the manager to remove the same session several times while expiring it.
+     * @return true the first time this is called
+     */
+    public boolean markRemoved() {
+        return removed.compareAndSet(false, true);
+    }
+
+    /**
+     * @return the table the session was read from, or null for a newly created session
+     */
+    public String getTableName() {
+        return tableName;
+    }
+
+    public boolean isFoundInPreviousTable() {
+        return foundInPreviousTable;
+    }
+
+    /**
+     * @return wall clock time (millis) at which the session was created or loaded
+     */
+    public long getLoadedAt() {
+        return loadedAt;
+    }
+
+    /**
+     * @return how long the load took, in millis (0 for a newly created session)
+     */
+    public long getLoadMillis() {
+        return loadMillis;
+    }
+}
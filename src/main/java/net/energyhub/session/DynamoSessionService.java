@@ -0,0 +1,366 @@
+/***********************************************************************************************************************
+ *
+ * Dynamo Tomcat Sessions
+ * ==========================================
+ *
+ * Copyright (C) 2013 by EnergyHub Inc. (http://www.energyhub.com)
+ *
+ ***********************************************************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ *
+ **********************************************************************************************************************/
+
+package net.energyhub.session;
+
+import com.amazonaws.services.dynamodb.AmazonDynamoDB;
+import org.apache.catalina.Lifecycle;
+import org.apache.catalina.LifecycleEvent;
+import org.apache.catalina.LifecycleListener;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.logging.Logger;
+
+/**
+ * One Dynamo client, one table rotator per table base name and one statsd client, shared by the managers of every
+ * Context that names this service (sessionService="..."), instead of a set per Context.
+ *
+ * Register it as a Listener of the Engine or Host in server.xml; it is available to managers from before the Engine
+ * or Host starts until after it stops, when it shuts the shared clients down:
+ *
+ *   &lt;Listener className="net.energyhub.session.DynamoSessionService" name="sessions" awsAccessKey="..." .../&gt;
+ *
+ * A rotator is created by the first manager to use its tables, with that manager's settings, and shut down when the
+ * last one stops; managers with replica endpoints share a rotator, and a client, per endpoint as well. Managers still
+ * call process() on it from their background processing, one Context after another; it does nothing when it ran less
+ * than DynamoTableRotator.MIN_PROCESS_MILLIS before, so the tables are managed about once per background tick per
+ * host rather than once per Context.
+ */
+public class DynamoSessionService implements LifecycleListener {
+    final private static Logger log = Logger.getLogger(DynamoSessionService.class.getName());
+
+    private static final ConcurrentHashMap<String, DynamoSessionService> services =
+            new ConcurrentHashMap<String, DynamoSessionService>();
+
+    private String name = "default";
+    private String awsAccessKey = "";
+    private String awsSecretKey = "";
+    private String dynamoEndpoint = "";
+    private String statsdHost = "";
+    private int statsdPort = 8125;
+    private long statsdFlushInterval = StatsdClient.DEFAULT_FLUSH_INTERVAL_MILLIS;
+    private double statsdSampleRate = 1.0;
+    private boolean statsdAggregateTimers = false;
+
+    private AmazonDynamoDB dynamo;
+    private final Map<String, AmazonDynamoDB> endpointClients = new HashMap<String, AmazonDynamoDB>();
+    private StatsdClient statsdClient;
+    private final Map<String, SharedRotator> rotators = new HashMap<String, SharedRotator>();
+
+    /**
+     * @return the registered service with this name, or null
+     */
+    public static DynamoSessionService get(String name) {
+        return services.get(name);
+    }
+
+    @Override
+    public void lifecycleEvent(LifecycleEvent event) {
+        if (Lifecycle.BEFORE_START_EVENT.equals(event.getType())) {
+            register();
+        } else if (Lifecycle.AFTER_STOP_EVENT.equals(event.getType())) {
+            unregister();
+        }
+    }
+
+    /**
+     * Make this service available to managers by its name.
+     * @throws IllegalStateException if another service has the name
+     */
+    public void register() {
+        DynamoSessionService existing = services.putIfAbsent(name, this);
+        if (existing != null && existing != this) {
+            throw new IllegalStateException("A Dynamo session service named " + name + " is already registered");
+        }
+        log.info("Registered Dynamo session service " + name);
+    }
+
+    /**
+     * Withdraw the service and shut down what it shares.
+     */
+    public void unregister() {
+        services.remove(name, this);
+        shutdown();
+    }
+
+    /**
+     * @return the shared Dynamo client, created on first use
+     */
+    public synchronized AmazonDynamoDB getDynamo() {
+        if (dynamo == null) {
+            dynamo = DynamoManager.newDynamoClient(dynamoEndpoint, awsAccessKey, awsSecretKey);
+        }
+        return dynamo;
+    }
+
+    /**
+     * @return the shared client for another Dynamo endpoint, e.g. a replica region (see dynamoEndpoints), created on
+     * first use with the service's credentials
+     */
+    public synchronized AmazonDynamoDB getDynamo(String endpoint) {
+        AmazonDynamoDB client = endpointClients.get(endpoint);
+        if (client == null) {
+            client = DynamoManager.newDynamoClient(endpoint, awsAccessKey, awsSecretKey);
+            endpointClients.put(endpoint, client);
+        }
+        return client;
+    }
+
+    /**
+     * @return the shared statsd client, created on first use, or null if no statsdHost is set
+     */
+    public synchronized StatsdClient getStatsdClient() {
+        if (statsdClient == null && !statsdHost.isEmpty()) {
+            log.info("Configuring shared statsd client on " + statsdHost + ":" + statsdPort);
+            statsdClient = new StatsdClient(statsdHost, statsdPort, statsdFlushInterval, statsdSampleRate,
+                    statsdAggregateTimers);
+        }
+        return statsdClient;
+    }
+
+    /**
+     * Get the rotator for a table base name, creating and initializing it if no manager is using it. Must be matched
+     * by releaseRotator. If the rotator was already running, the listener is told the current topology straight
+     * away, as it would have been by init. Initializing may wait for a table to be created, so it runs outside the
+     * service's lock; managers wanting the same tables meanwhile wait for it, others carry on.
+     * @param factory creates the rotator, with its coordinator if any, if there isn't one yet
+     * @param listener added before the rotator is initialized
+     * @throws IllegalArgumentException if the tables are already rotated at a different interval
+     */
+    public DynamoTableRotator acquireRotator(String tableBaseName, int tableRotationSeconds,
+                                             Callable<DynamoTableRotator> factory, TableTopology.Listener listener,
+                                             long nowSeconds, boolean waitForWritable) throws Exception {
+        SharedRotator shared;
+        boolean starting = false;
+        synchronized (this) {
+            shared = rotators.get(tableBaseName);
+            if (shared == null) {
+                shared = new SharedRotator(tableRotationSeconds);
+                rotators.put(tableBaseName, shared);
+                starting = true;
+            } else if (shared.rotationSeconds != tableRotationSeconds) {
+                throw new IllegalArgumentException("Tables " + tableBaseName + " are already rotated every "
+                        + shared.rotationSeconds + "s, not " + tableRotationSeconds + "s");
+            } else {
+                shared.references++;
+            }
+        }
+        if (starting) {
+            return start(tableBaseName, shared, factory, listener, nowSeconds, waitForWritable);
+        }
+        DynamoTableRotator rotator;
+        try {
+            rotator = shared.rotator.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            unreference(tableBaseName, shared);
+            throw e;
+        } catch (ExecutionException e) {
+            // whoever was starting it has already withdrawn it
+            Throwable cause = e.getCause();
+            throw cause instanceof Exception ? (Exception) cause : e;
+        }
+        rotator.addListener(listener);
+        listener.topologyChanged(TableTopology.EMPTY, rotator.getTopology());
+        return rotator;
+    }
+
+    private DynamoTableRotator start(String tableBaseName, SharedRotator shared,
+                                     Callable<DynamoTableRotator> factory, TableTopology.Listener listener,
+                                     long nowSeconds, boolean waitForWritable) throws Exception {
+        DynamoTableRotator rotator = null;
+        try {
+            rotator = factory.call();
+            rotator.addListener(listener);
+            rotator.init(nowSeconds, waitForWritable);
+            synchronized (this) {
+                if (rotators.get(tableBaseName) != shared) {
+                    throw new IllegalStateException("Dynamo session service " + name + " stopped");
+                }
+                shared.rotator.complete(rotator);
+            }
+            return rotator;
+        } catch (Throwable t) {
+            synchronized (this) {
+                rotators.remove(tableBaseName, shared);
+            }
+            shared.rotator.completeExceptionally(t);
+            if (rotator != null) {
+                rotator.shutdown();
+            }
+            throw t;
+        }
+    }
+
+    /**
+     * Done with a rotator from acquireRotator; the last manager to release it shuts it down.
+     */
+    public void releaseRotator(String tableBaseName, TableTopology.Listener listener) {
+        SharedRotator shared;
+        synchronized (this) {
+            shared = rotators.get(tableBaseName);
+        }
+        if (shared == null) {
+            return;
+        }
+        DynamoTableRotator rotator = shared.started();
+        if (rotator != null) {
+            rotator.removeListener(listener);
+        }
+        unreference(tableBaseName, shared);
+    }
+
+    private void unreference(String tableBaseName, SharedRotator shared) {
+        DynamoTableRotator rotator;
+        synchronized (this) {
+            if (rotators.get(tableBaseName) != shared || --shared.references > 0) {
+                return;
+            }
+            rotators.remove(tableBaseName);
+            rotator = shared.started();
+        }
+        if (rotator != null) {
+            rotator.shutdown();
+        }
+    }
+
+    /**
+     * @return how many table base names have a rotator
+     */
+    public synchronized int getRotatorCount() {
+        return rotators.size();
+    }
+
+    private synchronized void shutdown() {
+        for (SharedRotator shared : rotators.values()) {
+            DynamoTableRotator rotator = shared.started();
+            if (rotator != null) {
+                rotator.shutdown();
+            } // one still starting is shut down by whoever is starting it, when it finds it withdrawn
+        }
+        rotators.clear();
+        if (statsdClient != null) {
+            statsdClient.shutdown();
+            statsdClient = null;
+        }
+        if (dynamo != null) {
+            dynamo.shutdown();
+            dynamo = null;
+        }
+        for (AmazonDynamoDB client : endpointClients.values()) {
+            client.shutdown();
+        }
+        endpointClients.clear();
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public void setName(String name) {
+        this.name = name;
+    }
+
+    public String getAwsAccessKey() {
+        return awsAccessKey;
+    }
+
+    public void setAwsAccessKey(String awsAccessKey) {
+        this.awsAccessKey = awsAccessKey;
+    }
+
+    public String getAwsSecretKey() {
+        return awsSecretKey;
+    }
+
+    public void setAwsSecretKey(String awsSecretKey) {
+        this.awsSecretKey = awsSecretKey;
+    }
+
+    public String getDynamoEndpoint() {
+        return dynamoEndpoint;
+    }
+
+    public void setDynamoEndpoint(String dynamoEndpoint) {
+        this.dynamoEndpoint = dynamoEndpoint;
+    }
+
+    public String getStatsdHost() {
+        return statsdHost;
+    }
+
+    public void setStatsdHost(String statsdHost) {
+        this.statsdHost = statsdHost;
+    }
+
+    public int getStatsdPort() {
+        return statsdPort;
+    }
+
+    public void setStatsdPort(int statsdPort) {
+        this.statsdPort = statsdPort;
+    }
+
+    public long getStatsdFlushInterval() {
+        return statsdFlushInterval;
+    }
+
+    public void setStatsdFlushInterval(long statsdFlushInterval) {
+        this.statsdFlushInterval = statsdFlushInterval;
+    }
+
+    public double getStatsdSampleRate() {
+        return statsdSampleRate;
+    }
+
+    public void setStatsdSampleRate(double statsdSampleRate) {
+        this.statsdSampleRate = statsdSampleRate;
+    }
+
+    public boolean getStatsdAggregateTimers() {
+        return statsdAggregateTimers;
+    }
+
+    public void setStatsdAggregateTimers(boolean statsdAggregateTimers) {
+        this.statsdAggregateTimers = statsdAggregateTimers;
+    }
+
+    private static class SharedRotator {
+        final CompletableFuture<DynamoTableRotator> rotator = new CompletableFuture<DynamoTableRotator>();
+        final int rotationSeconds;
+        int references = 1;
+
+        SharedRotator(int rotationSeconds) {
+            this.rotationSeconds = rotationSeconds;
+        }
+
+        /**
+         * @return the rotator if it has been initialized, else null
+         */
+        DynamoTableRotator started() {
+            return rotator.isDone() && !rotator.isCompletedExceptionally() ? rotator.getNow(null) : null;
+        }
+    }
+}
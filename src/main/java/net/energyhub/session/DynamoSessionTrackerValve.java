@@ -42,41 +42,84 @@ public class DynamoSessionTrackerValve extends ValveBase {
 
     @Override
     public void invoke(Request request, Response response) throws IOException, ServletException {
+        // Take the requested session from the manager up front, so overlapping requests for it on this node share
+        // one instance (and one load), and it is saved once they are all done.
+        RequestClass requestClass = manager.classify(request);
+        String requestedId = requestClass.loads() ? request.getRequestedSessionId() : null;
+        DynamoSession acquired = null;
+        if (requestedId != null) {
+            try {
+                acquired = manager.acquireSession(requestedId);
+            } catch (IOException e) {
+                log.log(Level.WARNING, "Unable to load shared session " + requestedId + ", loading separately", e);
+            }
+        }
         try {
             getNext().invoke(request, response);
         } finally {
-            storeSession(request, response);
+            storeSession(request, response, requestedId, acquired);
         }
     }
 
-    private void storeSession(Request request, Response response) throws IOException {
-        // Use configurable regexes to avoid saving certain requests to the database.
-        if (manager.isIgnorable(request)) {
+    private void storeSession(Request request, Response response, String requestedId, DynamoSession acquired)
+            throws IOException {
+        // Classify again: rules on session attributes can only match now the request has run.
+        RequestClass requestClass = manager.classify(request);
+        if (requestClass == RequestClass.NONE) {
+            if (acquired != null) {
+                manager.releaseSession(requestedId, acquired, RequestClass.NONE);
+            }
+            Session created = request.getSessionInternal(false);
+            if (created != null) {
+                manager.saveIfUnsaved(created); // its first save was left to us
+            }
             return;
         }
 
         final Session session = request.getSessionInternal(false);
+        if (acquired != null && session != acquired) {
+            // the request ended up with a different session (new id, or the shared one was invalidated)
+            manager.releaseSession(requestedId, acquired, RequestClass.NONE);
+        }
         if (session != null) {
             if (session.isValid()) {
                 if (log.isLoggable(Level.FINE)) {
-                    log.fine("Request with session completed, saving session " + session.getId());
+                    log.fine("Request with session completed, saving session " + session.getId() + " as "
+                            + requestClass);
                 }
                 if (session.getSession() != null) {
                     if (log.isLoggable(Level.FINE)) {
                         log.fine("HTTP Session present, saving " + session.getId());
                     }
-                    manager.save((DynamoSession)session);
+                    save((DynamoSession) session, requestedId, acquired, requestClass);
                 } else {
                     if (log.isLoggable(Level.FINE)) {
                         log.fine("No HTTP Session present, Not saving " + session.getId());
                     }
+                    save((DynamoSession) session, requestedId, acquired, RequestClass.READ_ONLY);
                 }
             } else {
                 if (log.isLoggable(Level.FINE)) {
                     log.fine("HTTP Session has been invalidated, removing :" + session.getId());
                 }
                 manager.remove(session);
+                save((DynamoSession) session, requestedId, acquired, RequestClass.NONE);
             }
         }
     }
+
+    /**
+     * Save the session now, or if it is shared, leave it to the last request using it. A session this request created
+     * is stored whatever the request class, or other nodes won't know its id until the background save.
+     */
+    private void save(DynamoSession session, String requestedId, DynamoSession acquired, RequestClass requestClass)
+            throws IOException {
+        if (session == acquired) {
+            manager.releaseSession(requestedId, acquired, requestClass);
+        } else if (requestClass.writes()) {
+            manager.save(session, !requestClass.writesData());
+        } else {
+            manager.saveIfUnsaved(session);
+        }
+    }
 }
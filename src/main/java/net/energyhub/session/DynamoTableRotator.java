@@ -26,7 +26,9 @@ import com.amazonaws.services.dynamodb.model.*;
 
 import java.text.SimpleDateFormat;
 import java.util.*;
-import java.util.concurrent.Semaphore;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
@@ -42,6 +44,11 @@ import java.util.logging.Logger;
  * This is called from Manager.backgroundProcess. I suggest setting Engine.backgroundProcessorDelay="1" in server.xml,
  * as this reduces the time during which different servers may be using different tables as the active table.
  *
+ * With a RotationCoordinator, only the node holding the lease creates, rotates and deletes tables; the others poll the
+ * rotation record it publishes and switch when it does, so they lag it by at most the poll interval (plus the
+ * background process delay). If nothing is published within rotationGraceSeconds of a rotation being due, e.g.
+ * because the leader died mid-rotation and no one has taken over, followers rotate on their own as before.
+ *
  * The tables are created with default read & write provisioned throughput capacity but this is scaled
  * as needed by dynamic-dynamodb which runs independently. When we're rotating tables, we should roll
  * over the latest read & write capacity from the previous table to the new one.
@@ -52,6 +59,15 @@ public class DynamoTableRotator {
     private static Logger log = Logger.getLogger("net.energyhub.session.DynamoTableRotator");
     public static final long CREATE_TABLE_HEADROOM_SECONDS = 60;
     public static final String TABLE_DATE_FORMAT = "yyyyMMdd_HHmmss";
+    /**
+     * How many rotation periods back init looks for a table to use.
+     */
+    public static final int SEARCH_PERIODS = 10;
+    /**
+     * How often process() manages the tables at most. Every Context sharing the rotator calls it each background tick,
+     * one after another, and once a tick is enough.
+     */
+    public static final long MIN_PROCESS_MILLIS = 5000;
 
     protected AmazonDynamoDB dynamo;
     protected String tableBaseName;
@@ -60,7 +76,19 @@ public class DynamoTableRotator {
     protected long defaultWriteCapacity;
     protected String currentTableName;
     protected String previousTableName;
+    protected volatile TableTopology topology = TableTopology.EMPTY;
+    protected final List<TableTopology.Listener> listeners = new CopyOnWriteArrayList<TableTopology.Listener>();
     protected Semaphore semaphore;
+    protected volatile long discoveryNanos;
+    protected final CompletableFuture<Boolean> readiness = new CompletableFuture<Boolean>();
+    protected RotationCoordinator coordinator;
+    protected long pollMillis = 10000;
+    protected long rotationGraceSeconds = 120;
+    protected long lastPoll;
+    protected long minProcessMillis = MIN_PROCESS_MILLIS;
+    protected long lastProcessed;
+    protected long rotationDueSince;
+    protected String published;
 
     protected SimpleDateFormat dateFormat = new SimpleDateFormat(TABLE_DATE_FORMAT);
 
@@ -76,52 +104,272 @@ public class DynamoTableRotator {
         this.dateFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
     }
 
-    public synchronized String getCurrentTableName() {
-        return this.currentTableName;
+    public String getCurrentTableName() {
+        return topology.getCurrentTableName();
+    }
+
+    public String getPreviousTableName() {
+        return topology.getPreviousTableName();
+    }
+
+    /**
+     * @return the tables in use; read it once per operation, so the tables used are from the same rotation
+     */
+    public TableTopology getTopology() {
+        return topology;
     }
 
-    public synchronized String getPreviousTableName() {
-        return this.previousTableName;
+    public void addListener(TableTopology.Listener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(TableTopology.Listener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Publish the current and previous tables as a new topology, if they changed, and tell the listeners.
+     * @param current the description of the current table, for its capacity, or null if not at hand
+     */
+    protected void publishTopology(TableDescription current) {
+        TableTopology before;
+        TableTopology after;
+        synchronized (this) {
+            before = topology;
+            if (eq(currentTableName, before.getCurrentTableName())
+                    && eq(previousTableName, before.getPreviousTableName())) {
+                return;
+            }
+            long readCapacity = 0;
+            long writeCapacity = 0;
+            ProvisionedThroughputDescription throughput = current == null ? null : current.getProvisionedThroughput();
+            if (throughput != null) {
+                readCapacity = throughput.getReadCapacityUnits() == null ? 0 : throughput.getReadCapacityUnits();
+                writeCapacity = throughput.getWriteCapacityUnits() == null ? 0 : throughput.getWriteCapacityUnits();
+            }
+            long now = System.currentTimeMillis();
+            after = new TableTopology(before.getEpoch() + 1, currentTableName, previousTableName,
+                    createNextTableName(now / 1000), now, readCapacity, writeCapacity);
+            topology = after;
+        }
+        log.info("Table topology is now " + after);
+        for (TableTopology.Listener listener : listeners) {
+            try {
+                listener.topologyChanged(before, after);
+            } catch (RuntimeException e) {
+                log.log(Level.WARNING, "Table topology listener failed", e);
+            }
+        }
+    }
+
+    private static boolean eq(String a, String b) {
+        return a == null ? b == null : a.equals(b);
+    }
+
+    /**
+     * Coordinate with the other nodes rather than managing tables independently.
+     * @param pollMillis how often followers read the rotation record
+     * @param rotationGraceSeconds how long after a rotation is due followers wait for the leader before rotating
+     */
+    public void setCoordinator(RotationCoordinator coordinator, long pollMillis, long rotationGraceSeconds) {
+        this.coordinator = coordinator;
+        this.pollMillis = pollMillis;
+        this.rotationGraceSeconds = rotationGraceSeconds;
+    }
+
+    /**
+     * @return whether this node is managing the tables for the cluster (always, without a coordinator)
+     */
+    public boolean isLeader() {
+        return coordinator == null || coordinator.holdsLease(System.currentTimeMillis());
+    }
+
+    /**
+     * Stop coordinating, handing the lease over if we hold it.
+     */
+    public void shutdown() {
+        if (coordinator != null) {
+            coordinator.release();
+        }
     }
 
     /**
      * During server startup, we may find that we need to create a new table (which will happen automatically in
      * the background.) Rather than waiting for the current table to use, let's go back in time and look for existing
-     * active tables, and use that until the new one is online.
+     * active tables, and use that until the new one is online. Waits for the table to pass a test write.
      * @param nowSeconds
      */
     public void init(long nowSeconds) throws InterruptedException {
+        init(nowSeconds, true);
+    }
+
+    /**
+     * As init(nowSeconds), but with one listTables pass and the candidate tables described in parallel.
+     * @param waitForWritable if false and an active table is found, use it straight away and do the test write in
+     *                        the background (see getReadiness); if no table is active we always wait
+     */
+    public void init(long nowSeconds, boolean waitForWritable) throws InterruptedException {
         log.info("Initializing current table");
+        long start = System.nanoTime();
+
+        Set<String> existing = listMyTables();
+        List<String> candidates = new ArrayList<String>();
+        for (int i = 0; i < SEARCH_PERIODS; i++) {
+            String tableName = createCurrentTableName(nowSeconds - i * tableRotationSeconds);
+            if (existing.contains(tableName)) {
+                candidates.add(tableName); // newest first
+            }
+        }
+        String tableName = null;
+        String creating = null;
+        Map<String, TableDescription> described = describeAll(candidates);
+        for (String candidate : candidates) {
+            String status = described.containsKey(candidate) ? described.get(candidate).getTableStatus() : null;
+            if ("ACTIVE".equals(status)) {
+                tableName = candidate;
+                break;
+            }
+            if ("CREATING".equals(status) && creating == null) {
+                creating = candidate;
+            }
+        }
 
-        for (int i=0; i<10; i++) {
-            log.info("Searching for table from " + i*tableRotationSeconds + " seconds ago");
-            long searchSeconds = nowSeconds - i*tableRotationSeconds;
-            String tableName = createCurrentTableName(searchSeconds);
-            if (isActive(tableName)) {
-                // Triple-check the table works before using it
-                ensureTable(tableName, DynamoTableRotator.CREATE_TABLE_HEADROOM_SECONDS*2000);
-                synchronized (this) {
-                    currentTableName = tableName;
-                }
-                log.info("Found and used active table " + tableName + " from " + i + " periods ago");
-                return;
+        if (tableName != null) {
+            log.info("Found active table " + tableName + " from " + candidates.indexOf(tableName)
+                    + " candidates ago");
+        } else {
+            // Hmmm, none found? Let's
+            log.warning("No active tables found, will wait for the current one to come up and use that.");
+            tableName = creating != null ? creating : createCurrentTableName(nowSeconds);
+            if (!existing.contains(tableName)) {
+                createTable(tableName);
             }
+            readiness.complete(waitForTable(tableName, CREATE_TABLE_HEADROOM_SECONDS * 2000));
+        }
+
+        if (waitForWritable && !readiness.isDone()) {
+            // Triple-check the table works before using it
+            readiness.complete(waitForWritable(tableName, CREATE_TABLE_HEADROOM_SECONDS * 2000));
         }
-        // Hmmm, none found? Let's
-        log.warning("No active tables found, will wait for the current one to come up and use that.");
-        String firstTable = createCurrentTableName(nowSeconds);
-        // If first table does not exist, go back and look for a previous table
-        ensureTable(firstTable, DynamoTableRotator.CREATE_TABLE_HEADROOM_SECONDS * 2000);
         synchronized (this) {
-            currentTableName = firstTable;
+            currentTableName = tableName;
+        }
+        publishTopology(described.get(tableName));
+        discoveryNanos = System.nanoTime() - start;
+        log.info("Using table " + tableName + " after " + discoveryNanos / 1000000 + "ms");
+        if (!readiness.isDone()) {
+            checkReadinessInBackground(tableName);
         }
     }
 
+    /**
+     * @return the names of this rotator's tables, in one (paged) listTables pass
+     */
+    protected Set<String> listMyTables() {
+        Set<String> tableNames = new HashSet<String>();
+        String lastEvaluated = null;
+        do {
+            ListTablesResult result = dynamo.listTables(
+                    new ListTablesRequest().withExclusiveStartTableName(lastEvaluated));
+            for (String tableName : result.getTableNames()) {
+                if (isMyTable(tableName)) {
+                    tableNames.add(tableName);
+                }
+            }
+            lastEvaluated = result.getLastEvaluatedTableName();
+        } while (lastEvaluated != null);
+        return tableNames;
+    }
+
+    /**
+     * Describe the tables concurrently.
+     * @return the description of each table that could be described
+     */
+    protected Map<String, TableDescription> describeAll(List<String> tableNames) throws InterruptedException {
+        Map<String, TableDescription> descriptions = new HashMap<String, TableDescription>();
+        if (tableNames.isEmpty()) {
+            return descriptions;
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(tableNames.size(), daemonThreads("describe"));
+        try {
+            Map<String, Future<TableDescription>> described = new LinkedHashMap<String, Future<TableDescription>>();
+            for (final String tableName : tableNames) {
+                described.put(tableName, executor.submit(new Callable<TableDescription>() {
+                    @Override
+                    public TableDescription call() {
+                        return getTable(tableName);
+                    }
+                }));
+            }
+            for (Map.Entry<String, Future<TableDescription>> entry : described.entrySet()) {
+                try {
+                    TableDescription table = entry.getValue().get();
+                    if (table != null) {
+                        log.info("Table " + entry.getKey() + " state: " + table.getTableStatus());
+                        descriptions.put(entry.getKey(), table);
+                    }
+                } catch (ExecutionException e) {
+                    log.log(Level.WARNING, "Unable to describe table " + entry.getKey(), e.getCause());
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        return descriptions;
+    }
+
+    private void checkReadinessInBackground(final String tableName) {
+        Thread thread = daemonThreads("readiness").newThread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    boolean writable = waitForWritable(tableName, CREATE_TABLE_HEADROOM_SECONDS * 2000);
+                    if (writable) {
+                        log.info("Table " + tableName + " passed its test write");
+                    }
+                    readiness.complete(writable);
+                } catch (InterruptedException e) {
+                    readiness.complete(false);
+                } catch (RuntimeException e) {
+                    readiness.completeExceptionally(e);
+                }
+            }
+        });
+        thread.start();
+    }
+
+    private static ThreadFactory daemonThreads(final String purpose) {
+        final AtomicInteger count = new AtomicInteger();
+        return new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "dynamo-table-" + purpose + "-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+    }
+
+    /**
+     * @return how long init took to pick a table, in nanos
+     */
+    public long getDiscoveryNanos() {
+        return discoveryNanos;
+    }
+
+    /**
+     * @return completes with whether the table init picked passed its test write; already complete if init waited
+     */
+    public CompletableFuture<Boolean> getReadiness() {
+        return readiness;
+    }
+
     /**
      * Process is called by the manager to initiate table management (or see if management is required.)
      * This is typically run during background processing. The null case requires
      *    - one check on time (next table change is < 60s away)
      *    - one check on current table vs time (is current table the one we're supposed to use?).
+     * Calls within minProcessMillis of the last one that ran do nothing.
      */
     public void process() {
         if (dynamo == null) {
@@ -136,17 +384,18 @@ public class DynamoTableRotator {
                 log.finer("Rotator is locked already, so this thread is not processing now.");
                 return;
             }
+            long nowMillis = System.currentTimeMillis();
+            if (nowMillis - lastProcessed < minProcessMillis) {
+                log.finer("Tables were managed " + (nowMillis - lastProcessed) + "ms ago, not processing now.");
+                return;
+            }
+            lastProcessed = nowMillis;
             // Run table maintenance
             log.finer("Locked semaphore, checking table state");
-            long nowSeconds = System.currentTimeMillis()/1000;
-            if (createTableRequired(nowSeconds)) {
-                log.info("Need to create next table");
-                createTable(createNextTableName(nowSeconds));
-            }
-
-            if (rotationRequired(nowSeconds)) {
-                log.info("Table rotation *is* required");
-                rotateTables(nowSeconds);
+            if (coordinator == null) {
+                manageTables(nowMillis / 1000);
+            } else {
+                processCoordinated(nowMillis);
             }
 
         } finally {
@@ -157,6 +406,94 @@ public class DynamoTableRotator {
         }
     }
 
+    /**
+     * Create the next table when it's due, and rotate to it when it's time.
+     */
+    protected void manageTables(long nowSeconds) {
+        if (createTableRequired(nowSeconds)) {
+            log.info("Need to create next table");
+            createTable(createNextTableName(nowSeconds));
+        }
+
+        if (rotationRequired(nowSeconds)) {
+            log.info("Table rotation *is* required");
+            rotateTables(nowSeconds);
+        }
+    }
+
+    /**
+     * Manage the tables if we hold (or can take) the lease, otherwise follow the leader's rotation record.
+     */
+    protected void processCoordinated(long nowMillis) {
+        long nowSeconds = nowMillis / 1000;
+        try {
+            if (!coordinator.isAvailable()) {
+                manageTables(nowSeconds); // coordination table still being created
+                return;
+            }
+            boolean leader = coordinator.holdsLease(nowMillis);
+            if (leader && coordinator.leaseDueForRenewal(nowMillis)) {
+                leader = coordinator.tryAcquire(coordinator.ownState(), nowMillis);
+                if (!leader) {
+                    log.warning("Lost the rotation lease, following");
+                }
+            }
+            if (!leader && nowMillis - lastPoll >= pollMillis) {
+                lastPoll = nowMillis;
+                RotationCoordinator.State state = coordinator.read();
+                follow(state);
+                if (state == null || state.getExpires() <= nowMillis) {
+                    leader = coordinator.tryAcquire(state, nowMillis);
+                    if (leader) {
+                        log.info("Took the rotation lease as " + coordinator.getNodeId());
+                        published = null;
+                    }
+                }
+            }
+
+            if (leader) {
+                manageTables(nowSeconds);
+                TableTopology tables = topology;
+                String current = tables.getCurrentTableName();
+                if (current != null && !current.equals(published)) {
+                    if (coordinator.publish(current, tables.getPreviousTableName())) {
+                        log.info("Published rotation to " + current);
+                        published = current;
+                    }
+                }
+            } else if (!rotationRequired(nowSeconds)) {
+                rotationDueSince = 0;
+            } else if (rotationDueSince == 0) {
+                rotationDueSince = nowSeconds;
+            } else if (nowSeconds - rotationDueSince >= rotationGraceSeconds) {
+                log.warning("No rotation published " + (nowSeconds - rotationDueSince)
+                        + "s after it was due, rotating without the leader");
+                manageTables(nowSeconds);
+            }
+        } catch (AmazonClientException e) {
+            log.warning("Rotation coordination failed, managing tables independently: " + e);
+            manageTables(nowSeconds);
+        }
+    }
+
+    /**
+     * Switch to the tables in the leader's rotation record, if it's newer than ours.
+     */
+    protected void follow(RotationCoordinator.State state) {
+        if (state == null || state.getCurrentTable() == null || !isMyTable(state.getCurrentTable())) {
+            return;
+        }
+        synchronized (this) {
+            // table names sort by time
+            if (currentTableName == null || state.getCurrentTable().compareTo(currentTableName) > 0) {
+                log.info("Following rotation from " + currentTableName + " to " + state.getCurrentTable());
+                previousTableName = state.getPreviousTable() != null ? state.getPreviousTable() : currentTableName;
+                currentTableName = state.getCurrentTable();
+            }
+        }
+        publishTopology(null);
+    }
+
     protected boolean rotationRequired(long nowSeconds) {
         String targetCurrentTableName = createCurrentTableName(nowSeconds);
         return !targetCurrentTableName.equals(currentTableName);
@@ -208,7 +545,10 @@ public class DynamoTableRotator {
         waitForTable(tableName, timeoutMillis);
     }
 
-    protected void waitForTable(String tableName, long timeoutMillis) throws InterruptedException {
+    /**
+     * @return whether the table became active and passed a test write within the timeout
+     */
+    protected boolean waitForTable(String tableName, long timeoutMillis) throws InterruptedException {
         long waitStart = System.currentTimeMillis();
 
         while (true) {
@@ -217,18 +557,26 @@ public class DynamoTableRotator {
             }
             if (System.currentTimeMillis() - waitStart > timeoutMillis) {
                 log.severe("Timeout waiting for table " + tableName + " to become active");
-                return;
+                return false;
             }
             Thread.sleep(1000);
         }
 
+        return waitForWritable(tableName, timeoutMillis - (System.currentTimeMillis() - waitStart));
+    }
+
+    /**
+     * @return whether the table passed a test write within the timeout
+     */
+    protected boolean waitForWritable(String tableName, long timeoutMillis) throws InterruptedException {
+        long waitStart = System.currentTimeMillis();
         while (true) {
             if (isWritable(tableName)) {
-                break;
+                return true;
             }
             if (System.currentTimeMillis() - waitStart > timeoutMillis) {
                 log.severe("Timeout waiting for table " + tableName + " to write/read");
-                return;
+                return false;
             }
 
             Thread.sleep(100);
@@ -346,6 +694,7 @@ public class DynamoTableRotator {
             log.info("Rotating previous table from " + previousTableName + " to " + targetPreviousTableName);
             previousTableName = targetPreviousTableName;
         }
+        publishTopology(getTable(targetCurrentTableName));
 
         List<String> tableNames = dynamo.listTables().getTableNames();
         removeExpiredTables(tableNames, nowSeconds);
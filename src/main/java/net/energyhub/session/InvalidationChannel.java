@@ -0,0 +1,279 @@
+/***********************************************************************************************************************
+ *
+ * Dynamo Tomcat Sessions
+ * ==========================================
+ *
+ * Copyright (C) 2013 by EnergyHub Inc. (http://www.energyhub.com)
+ *
+ ***********************************************************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ *
+ **********************************************************************************************************************/
+
+package net.energyhub.session;
+
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Tells the other nodes which sessions this node has written, over UDP, so they can drop their local copies (see
+ * LocalSessionCopies). Messages go to a list of peers, or to a multicast group if the only peer is a group address.
+ *
+ * Delivery is best effort: a lost message only means a peer may serve its copy until it ages out. Each message is a
+ * datagram holding the sender, the table base name (so managers for different applications can share a group), the
+ * session id and its new version.
+ */
+public class InvalidationChannel {
+    final private static Logger log = Logger.getLogger(InvalidationChannel.class.getName());
+
+    private static final int MAGIC = 0x53494e56; // SINV
+    private static final int MAX_MESSAGE_BYTES = 1024;
+
+    public interface Listener {
+        /**
+         * Called on the receiving thread.
+         * @param version the version written, or -1 if the session was removed
+         */
+        void invalidated(String id, long version);
+    }
+
+    private final InetSocketAddress bindAddress;
+    private final String scope;
+    private final Listener listener;
+    private final long nodeId = ThreadLocalRandom.current().nextLong();
+    private volatile List<InetSocketAddress> peers;
+    private DatagramChannel channel;
+    private Thread receiver;
+
+    /**
+     * @param bind host:port to listen on; the host may be left out (:port) to listen on every interface
+     * @param peers comma separated host:port of the other nodes, or a single multicast group:port
+     * @param scope only messages with the same scope are passed on
+     */
+    public InvalidationChannel(String bind, String peers, String scope, Listener listener) {
+        this.bindAddress = address(bind);
+        this.peers = parsePeers(peers);
+        this.scope = scope;
+        this.listener = listener;
+    }
+
+    /**
+     * @throws IllegalArgumentException if the spec is not [host]:port
+     */
+    static InetSocketAddress address(String spec) {
+        String trimmed = spec.trim();
+        int colon = trimmed.lastIndexOf(':');
+        if (colon < 0) {
+            throw new IllegalArgumentException("Expected host:port, not " + spec);
+        }
+        int port = Integer.parseInt(trimmed.substring(colon + 1));
+        String host = trimmed.substring(0, colon);
+        return host.isEmpty() ? new InetSocketAddress(port) : new InetSocketAddress(host, port);
+    }
+
+    /**
+     * @throws IllegalArgumentException if a peer is not host:port, or its host can't be resolved
+     */
+    static List<InetSocketAddress> parsePeers(String peers) {
+        List<InetSocketAddress> parsed = new ArrayList<InetSocketAddress>();
+        if (peers != null) {
+            for (String peer : peers.split(",")) {
+                if (!peer.trim().isEmpty()) {
+                    InetSocketAddress address = address(peer);
+                    if (address.isUnresolved()) {
+                        throw new IllegalArgumentException("Unable to resolve invalidation peer " + peer.trim());
+                    }
+                    parsed.add(address);
+                }
+            }
+        }
+        return Collections.unmodifiableList(parsed);
+    }
+
+    /**
+     * Replace the peer list, e.g. once the peers' ports are known.
+     */
+    public void setPeers(List<InetSocketAddress> peers) {
+        this.peers = Collections.unmodifiableList(new ArrayList<InetSocketAddress>(peers));
+    }
+
+    /**
+     * Open the socket, joining the multicast group if there is one, and start receiving.
+     */
+    public void start() throws IOException {
+        InetSocketAddress group = multicastGroup();
+        if (group != null) {
+            channel = DatagramChannel.open(StandardProtocolFamily.INET)
+                    .setOption(StandardSocketOptions.SO_REUSEADDR, true)
+                    .bind(new InetSocketAddress(bindAddress.getPort()));
+            NetworkInterface networkInterface = multicastInterface();
+            channel.setOption(StandardSocketOptions.IP_MULTICAST_IF, networkInterface);
+            channel.join(group.getAddress(), networkInterface);
+            log.info("Sending session invalidations to group " + group + " on " + networkInterface.getName());
+        } else {
+            channel = DatagramChannel.open().bind(bindAddress);
+            log.info("Sending session invalidations from " + channel.getLocalAddress() + " to " + peers);
+        }
+        receiver = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                receive();
+            }
+        }, "DynamoSessionInvalidations");
+        receiver.setDaemon(true);
+        receiver.start();
+    }
+
+    public int getLocalPort() throws IOException {
+        return ((InetSocketAddress) channel.getLocalAddress()).getPort();
+    }
+
+    /**
+     * Tell the peers a session was written; never blocks for long and never throws.
+     * @param version the version written, or -1 if the session was removed
+     */
+    public void broadcast(String id, long version) {
+        DatagramChannel channel = this.channel;
+        if (channel == null) {
+            return;
+        }
+        ByteBuffer message = encode(id, version);
+        if (message == null) {
+            return;
+        }
+        for (InetSocketAddress peer : peers) {
+            try {
+                channel.send(message.duplicate(), peer);
+            } catch (IOException e) {
+                if (log.isLoggable(Level.FINE)) {
+                    log.log(Level.FINE, "Unable to send invalidation to " + peer, e);
+                }
+            } catch (RuntimeException e) {
+                // e.g. UnresolvedAddressException for a peer set later; the write it reports has already succeeded
+                if (log.isLoggable(Level.FINE)) {
+                    log.log(Level.FINE, "Unable to send invalidation to " + peer, e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Stop receiving and close the socket.
+     */
+    public void stop() {
+        DatagramChannel channel = this.channel;
+        this.channel = null;
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // nothing else to do
+            }
+        }
+        if (receiver != null) {
+            try {
+                receiver.join(1000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private void receive() {
+        ByteBuffer buffer = ByteBuffer.allocate(MAX_MESSAGE_BYTES);
+        DatagramChannel channel = this.channel;
+        while (channel != null && channel.isOpen()) {
+            buffer.clear();
+            try {
+                channel.receive(buffer);
+            } catch (ClosedChannelException e) {
+                return;
+            } catch (IOException e) {
+                log.log(Level.WARNING, "Unable to receive session invalidations", e);
+                continue;
+            }
+            buffer.flip();
+            try {
+                decode(buffer);
+            } catch (IOException e) {
+                log.fine("Ignoring malformed session invalidation");
+            } catch (RuntimeException e) {
+                log.log(Level.WARNING, "Session invalidation listener failed", e);
+            }
+        }
+    }
+
+    private ByteBuffer encode(String id, long version) {
+        try {
+            ByteArrayOutputStream bos = new ByteArrayOutputStream(64);
+            DataOutputStream out = new DataOutputStream(bos);
+            out.writeInt(MAGIC);
+            out.writeLong(nodeId);
+            out.writeUTF(scope);
+            out.writeUTF(id);
+            out.writeLong(version);
+            out.flush();
+            if (bos.size() > MAX_MESSAGE_BYTES) {
+                return null; // no real session id is this long
+            }
+            return ByteBuffer.wrap(bos.toByteArray());
+        } catch (IOException e) {
+            return null; // can't happen writing to memory
+        }
+    }
+
+    private void decode(ByteBuffer buffer) throws IOException {
+        DataInputStream in = new DataInputStream(
+                new ByteArrayInputStream(buffer.array(), buffer.position(), buffer.remaining()));
+        if (in.readInt() != MAGIC || in.readLong() == nodeId || !scope.equals(in.readUTF())) {
+            return; // not ours, or our own message looped back
+        }
+        String id = in.readUTF();
+        long version = in.readLong();
+        listener.invalidated(id, version);
+    }
+
+    private InetSocketAddress multicastGroup() {
+        List<InetSocketAddress> peers = this.peers;
+        if (peers.size() == 1 && peers.get(0).getAddress() != null && peers.get(0).getAddress().isMulticastAddress()) {
+            return peers.get(0);
+        }
+        return null;
+    }
+
+    private NetworkInterface multicastInterface() throws IOException {
+        InetAddress address = bindAddress.getAddress();
+        if (address != null && !address.isAnyLocalAddress()) {
+            NetworkInterface networkInterface = NetworkInterface.getByInetAddress(address);
+            if (networkInterface != null) {
+                return networkInterface;
+            }
+        }
+        for (Enumeration<NetworkInterface> interfaces = NetworkInterface.getNetworkInterfaces();
+             interfaces.hasMoreElements(); ) {
+            NetworkInterface networkInterface = interfaces.nextElement();
+            if (networkInterface.isUp() && networkInterface.supportsMulticast()) {
+                return networkInterface;
+            }
+        }
+        throw new IOException("No network interface supports multicast");
+    }
+}
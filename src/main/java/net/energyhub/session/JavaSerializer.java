@@ -22,21 +22,48 @@
 package net.energyhub.session;
 
 import org.apache.catalina.session.StandardSession;
-import org.apache.catalina.util.CustomObjectInputStream;
 
 import javax.servlet.http.HttpSession;
 import java.io.*;
+import java.lang.reflect.Proxy;
 import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.zip.GZIPInputStream;
 import java.util.zip.GZIPOutputStream;
 
 
+/**
+ * Java serialization of the whole session, gzipped.
+ *
+ * With class dictionaries (see ClassDictionaries) the class descriptors the dictionary holds are written as a 2-byte
+ * id; the payload then starts with DICTIONARY_FORMAT and the dictionary version instead of the gzip header. Payloads
+ * without a dictionary are written and read exactly as before. Classes are resolved through the class loader once
+ * and cached.
+ */
 public class JavaSerializer implements Serializer {
+    /**
+     * First byte of a payload written with a dictionary; a plain payload starts with the gzip magic, 0x1f.
+     */
+    public static final int DICTIONARY_FORMAT = 'D';
+    private static final int DESCRIPTOR_INLINE = 0;
+    private static final int DESCRIPTOR_ID = 1;
+
     private ClassLoader loader;
+    private ConcurrentHashMap<String, Class<?>> classes = new ConcurrentHashMap<String, Class<?>>();
+    private ClassDictionaries dictionaries;
 
     @Override
     public void setClassLoader(ClassLoader loader) {
         this.loader = loader;
+        this.classes = new ConcurrentHashMap<String, Class<?>>();
+    }
+
+    /**
+     * Read payloads written with these dictionaries and, if they are writing, write descriptors from them and learn
+     * from what is written.
+     */
+    public void setDictionaries(ClassDictionaries dictionaries) {
+        this.dictionaries = dictionaries;
     }
 
     @Override
@@ -45,8 +72,15 @@ public class JavaSerializer implements Serializer {
         try {
             StandardSession standardSession = (StandardSession) session;
             ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            ClassDictionary dictionary = dictionaries == null ? null : dictionaries.getActive();
+            if (dictionary != null) {
+                DataOutputStream header = new DataOutputStream(bos);
+                header.writeByte(DICTIONARY_FORMAT);
+                header.writeLong(dictionary.getVersion());
+            }
             GZIPOutputStream gzos = new GZIPOutputStream(new BufferedOutputStream(bos));
-            oos = new ObjectOutputStream(gzos);
+            oos = dictionaries == null || !dictionaries.isWriting() ? new ObjectOutputStream(gzos)
+                    : new DictionaryOutputStream(gzos, dictionary);
 
             oos.writeLong(standardSession.getCreationTime());
             standardSession.writeObjectData(oos);
@@ -71,14 +105,135 @@ public class JavaSerializer implements Serializer {
 
         StandardSession standardSession = (StandardSession) session;
 
-        BufferedInputStream bis = new BufferedInputStream(new ByteArrayInputStream(data.array()));
+        byte[] bytes = data.array();
+        ClassDictionary dictionary = null;
+        int offset = 0;
+        if (bytes.length > 0 && bytes[0] == DICTIONARY_FORMAT) {
+            if (dictionaries == null) {
+                throw new IOException("Session was written with a class dictionary, which is not enabled");
+            }
+            DataInputStream header = new DataInputStream(new ByteArrayInputStream(bytes));
+            header.readByte();
+            dictionary = dictionaries.resolve(header.readLong());
+            offset = 9;
+        }
+        BufferedInputStream bis = new BufferedInputStream(
+                new ByteArrayInputStream(bytes, offset, bytes.length - offset));
 
         GZIPInputStream gzis = new GZIPInputStream(bis);
 
-        ObjectInputStream ois = new CustomObjectInputStream(gzis, loader);
+        ObjectInputStream ois = dictionary == null ? new ClassLoaderInputStream(gzis)
+                : new DictionaryInputStream(gzis, dictionary);
         standardSession.setCreationTime(ois.readLong());
         standardSession.readObjectData(ois);
 
         return session;
     }
+
+    /**
+     * @return the descriptor a dictionary entry holds, read once per dictionary
+     */
+    private ObjectStreamClass model(ClassDictionary dictionary, int id) throws IOException, ClassNotFoundException {
+        if (id < 0 || id >= dictionary.size()) {
+            throw new InvalidClassException("Class descriptor " + id + " is not in dictionary "
+                    + Long.toHexString(dictionary.getVersion()));
+        }
+        ObjectStreamClass model = dictionary.getModel(id);
+        if (model == null) {
+            ObjectInputStream in = new ClassLoaderInputStream(new ByteArrayInputStream(dictionary.getEntry(id)));
+            Object read = in.readObject();
+            if (!(read instanceof ObjectStreamClass)) {
+                throw new InvalidClassException("Class descriptor " + id + " in dictionary "
+                        + Long.toHexString(dictionary.getVersion()) + " is corrupt");
+            }
+            model = (ObjectStreamClass) read;
+            dictionary.setModel(id, model);
+        }
+        return model;
+    }
+
+    /**
+     * Resolves classes like Tomcat's CustomObjectInputStream, through the webapp's loader, but only once per class.
+     */
+    private class ClassLoaderInputStream extends ObjectInputStream {
+        ClassLoaderInputStream(InputStream in) throws IOException {
+            super(in);
+        }
+
+        @Override
+        protected Class<?> resolveClass(ObjectStreamClass desc) throws IOException, ClassNotFoundException {
+            Class<?> cl = classes.get(desc.getName());
+            if (cl == null) {
+                try {
+                    cl = Class.forName(desc.getName(), false, loader);
+                } catch (ClassNotFoundException e) {
+                    cl = super.resolveClass(desc); // primitives, or no loader
+                }
+                classes.putIfAbsent(desc.getName(), cl);
+            }
+            return cl;
+        }
+
+        @Override
+        protected Class<?> resolveProxyClass(String[] interfaces) throws IOException, ClassNotFoundException {
+            Class<?>[] resolved = new Class<?>[interfaces.length];
+            for (int i = 0; i < interfaces.length; i++) {
+                resolved[i] = Class.forName(interfaces[i], false, loader);
+            }
+            try {
+                return Proxy.getProxyClass(loader, resolved);
+            } catch (IllegalArgumentException e) {
+                throw new ClassNotFoundException(null, e);
+            }
+        }
+    }
+
+    private class DictionaryInputStream extends ClassLoaderInputStream {
+        private final ClassDictionary dictionary;
+
+        DictionaryInputStream(InputStream in, ClassDictionary dictionary) throws IOException {
+            super(in);
+            this.dictionary = dictionary;
+        }
+
+        @Override
+        protected ObjectStreamClass readClassDescriptor() throws IOException, ClassNotFoundException {
+            int kind = readUnsignedByte();
+            if (kind == DESCRIPTOR_INLINE) {
+                return super.readClassDescriptor();
+            } else if (kind == DESCRIPTOR_ID) {
+                return model(dictionary, readUnsignedShort());
+            }
+            throw new StreamCorruptedException("Unknown class descriptor kind " + kind);
+        }
+    }
+
+    private class DictionaryOutputStream extends ObjectOutputStream {
+        private final ClassDictionary dictionary;
+
+        /**
+         * @param dictionary the dictionary to write ids from, or null to write the usual stream
+         */
+        DictionaryOutputStream(OutputStream out, ClassDictionary dictionary) throws IOException {
+            super(out);
+            this.dictionary = dictionary;
+        }
+
+        @Override
+        protected void writeClassDescriptor(ObjectStreamClass desc) throws IOException {
+            dictionaries.record(desc);
+            if (dictionary == null) {
+                super.writeClassDescriptor(desc);
+                return;
+            }
+            int id = dictionary.idOf(desc, dictionaries.descriptorBytes(desc));
+            if (id >= 0) {
+                writeByte(DESCRIPTOR_ID);
+                writeShort(id);
+            } else {
+                writeByte(DESCRIPTOR_INLINE);
+                super.writeClassDescriptor(desc);
+            }
+        }
+    }
 }
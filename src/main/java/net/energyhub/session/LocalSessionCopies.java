@@ -0,0 +1,289 @@
+/***********************************************************************************************************************
+ *
+ * Dynamo Tomcat Sessions
+ * ==========================================
+ *
+ * Copyright (C) 2013 by EnergyHub Inc. (http://www.energyhub.com)
+ *
+ ***********************************************************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ *
+ **********************************************************************************************************************/
+
+package net.energyhub.session;
+
+import com.amazonaws.services.dynamodb.model.AttributeValue;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The session items this node last read or wrote, so a load can skip Dynamo when the copy is recent enough.
+ *
+ * A copy is used for at most maxAgeMillis after it was read or written, which bounds how stale a load can be when
+ * another node's write goes unannounced (see InvalidationChannel). Only items holding their data inline are kept;
+ * chunked sessions are always read.
+ *
+ * The copies can be written to a snapshot when the node stops and read back when it starts. Restored copies are not
+ * used as they are: a load first checks the version in Dynamo (see restored(String, String)), and only then takes
+ * the data from the copy.
+ */
+public class LocalSessionCopies {
+    /**
+     * Stop adding copies past this many; loads then just read Dynamo.
+     */
+    public static final int MAX_COPIES = 10000;
+
+    private static final int SNAPSHOT_MAGIC = 0x53534e50;
+    private static final int SNAPSHOT_FORMAT = 1;
+
+    private final long maxAgeMillis;
+    private final ConcurrentHashMap<String, Copy> copies = new ConcurrentHashMap<String, Copy>();
+
+    public LocalSessionCopies(long maxAgeMillis) {
+        this.maxAgeMillis = maxAgeMillis;
+    }
+
+    /**
+     * @return a copy of the item for this session, if we have a recent one from this table, else null
+     */
+    public Map<String, AttributeValue> get(String table, String id, long now) {
+        Copy copy = copies.get(id);
+        if (copy == null || copy.restored) {
+            return null;
+        }
+        if (now - copy.storedAt >= maxAgeMillis) {
+            copies.remove(id, copy);
+            return null;
+        }
+        if (!copy.table.equals(table)) {
+            return null;
+        }
+        return copy.copyItem();
+    }
+
+    /**
+     * @return a copy of the item restored from a snapshot for this session, if it is from this table and hasn't been
+     * checked yet, else null. Once checked, put it back with put(), or drop it.
+     */
+    public Map<String, AttributeValue> restored(String table, String id) {
+        Copy copy = copies.get(id);
+        if (copy == null || !copy.restored || !copy.table.equals(table)) {
+            return null;
+        }
+        return copy.copyItem();
+    }
+
+    /**
+     * Keep the whole item as read from or written to this table; an item without inline data drops the copy.
+     */
+    public void put(String table, Map<String, AttributeValue> item, long now) {
+        String id = item.get(DynamoManager.COLUMN_ID).getS();
+        AttributeValue data = item.get(DynamoManager.COLUMN_DATA);
+        if (data == null || data.getB() == null || item.containsKey(DynamoManager.COLUMN_REMOVED)
+                || !item.containsKey(DynamoManager.COLUMN_LAST_ACCESSED)
+                || !item.containsKey(DynamoManager.COLUMN_MAX_INACTIVE)) {
+            copies.remove(id);
+            return;
+        }
+        if (copies.size() >= MAX_COPIES && !copies.containsKey(id)) {
+            return;
+        }
+        Map<String, AttributeValue> kept = new HashMap<String, AttributeValue>(item);
+        kept.put(DynamoManager.COLUMN_DATA, new AttributeValue().withB(data.getB().duplicate()));
+        copies.put(id, new Copy(table, kept, DynamoManager.readVersion(item), now, false));
+    }
+
+    /**
+     * Apply a write that changed only some columns (a touch) to our copy, if we have one from this table.
+     */
+    public void merge(String table, String id, Map<String, AttributeValue> written) {
+        Copy copy = copies.get(id);
+        if (copy == null || !copy.table.equals(table)) {
+            return;
+        }
+        Map<String, AttributeValue> item = new HashMap<String, AttributeValue>(copy.item);
+        item.putAll(written);
+        copies.replace(id, copy, new Copy(table, item, copy.version, copy.storedAt, copy.restored));
+    }
+
+    /**
+     * Another node wrote this version of the session (or removed it, if the version is negative): drop an older copy.
+     */
+    public void invalidate(String id, long version) {
+        Copy copy = copies.get(id);
+        if (copy != null && (version < 0 || copy.version < version)) {
+            copies.remove(id, copy);
+        }
+    }
+
+    public void drop(String id) {
+        copies.remove(id);
+    }
+
+    public int size() {
+        return copies.size();
+    }
+
+    /**
+     * Forget copies too old to use: those past maxAgeMillis, and restored ones whose session has expired.
+     */
+    public void prune(long now) {
+        for (Map.Entry<String, Copy> entry : copies.entrySet()) {
+            Copy copy = entry.getValue();
+            if (copy.restored ? !isActive(copy.item, now) : now - copy.storedAt >= maxAgeMillis) {
+                copies.remove(entry.getKey(), copy);
+            }
+        }
+    }
+
+    /**
+     * Write the copies of sessions that haven't expired yet, restored ones included.
+     * @return how many were written
+     */
+    public int writeSnapshot(DataOutputStream out, long now) throws IOException {
+        out.writeInt(SNAPSHOT_MAGIC);
+        out.writeByte(SNAPSHOT_FORMAT);
+        out.writeLong(now);
+        int written = 0;
+        for (Copy copy : copies.values()) {
+            if (!isActive(copy.item, now) || !isPlain(copy.item)) {
+                continue;
+            }
+            out.writeBoolean(true);
+            out.writeUTF(copy.table);
+            out.writeShort(copy.item.size());
+            for (Map.Entry<String, AttributeValue> column : copy.item.entrySet()) {
+                AttributeValue value = column.getValue();
+                out.writeUTF(column.getKey());
+                if (value.getS() != null) {
+                    out.writeByte('S');
+                    out.writeUTF(value.getS());
+                } else if (value.getN() != null) {
+                    out.writeByte('N');
+                    out.writeUTF(value.getN());
+                } else {
+                    ByteBuffer data = value.getB().duplicate();
+                    out.writeByte('B');
+                    out.writeInt(data.remaining());
+                    if (data.hasArray()) {
+                        out.write(data.array(), data.arrayOffset() + data.position(), data.remaining());
+                    } else {
+                        byte[] bytes = new byte[data.remaining()];
+                        data.get(bytes);
+                        out.write(bytes);
+                    }
+                }
+            }
+            written++;
+        }
+        out.writeBoolean(false);
+        return written;
+    }
+
+    /**
+     * Read a snapshot written by writeSnapshot, adding the copies of sessions that haven't expired as restored copies.
+     * A copy we already have is kept.
+     * @return how many were restored
+     * @throws IOException if the snapshot can't be read, or isn't one
+     */
+    public int readSnapshot(DataInputStream in, long now) throws IOException {
+        if (in.readInt() != SNAPSHOT_MAGIC) {
+            throw new IOException("Not a session snapshot");
+        }
+        int format = in.readByte();
+        if (format != SNAPSHOT_FORMAT) {
+            throw new IOException("Unknown session snapshot format " + format);
+        }
+        in.readLong(); // when it was written; copies are checked against Dynamo before use, whatever their age
+        int restored = 0;
+        while (in.readBoolean()) {
+            String table = in.readUTF();
+            int columns = in.readUnsignedShort();
+            Map<String, AttributeValue> item = new HashMap<String, AttributeValue>(columns * 2);
+            for (int i = 0; i < columns; i++) {
+                String name = in.readUTF();
+                int type = in.readByte();
+                if (type == 'S') {
+                    item.put(name, new AttributeValue().withS(in.readUTF()));
+                } else if (type == 'N') {
+                    item.put(name, new AttributeValue().withN(in.readUTF()));
+                } else if (type == 'B') {
+                    byte[] bytes = new byte[in.readInt()];
+                    in.readFully(bytes);
+                    item.put(name, new AttributeValue().withB(ByteBuffer.wrap(bytes)));
+                } else {
+                    throw new IOException("Unknown column type " + type + " in session snapshot");
+                }
+            }
+            AttributeValue id = item.get(DynamoManager.COLUMN_ID);
+            if (id == null || item.get(DynamoManager.COLUMN_DATA) == null || !isActive(item, now)
+                    || copies.size() >= MAX_COPIES) {
+                continue;
+            }
+            if (copies.putIfAbsent(id.getS(), new Copy(table, item, DynamoManager.readVersion(item), now, true))
+                    == null) {
+                restored++;
+            }
+        }
+        return restored;
+    }
+
+    private static boolean isActive(Map<String, AttributeValue> item, long now) {
+        AttributeValue lastAccessed = item.get(DynamoManager.COLUMN_LAST_ACCESSED);
+        AttributeValue maxInactive = item.get(DynamoManager.COLUMN_MAX_INACTIVE);
+        if (lastAccessed == null || maxInactive == null) {
+            return false;
+        }
+        int maxInactiveSeconds = Integer.parseInt(maxInactive.getN());
+        return maxInactiveSeconds < 0 || now - Long.parseLong(lastAccessed.getN()) < maxInactiveSeconds * 1000L;
+    }
+
+    /**
+     * @return whether every column is a plain string, number or binary, which is all a snapshot holds
+     */
+    private static boolean isPlain(Map<String, AttributeValue> item) {
+        for (AttributeValue value : item.values()) {
+            if (value == null || value.getS() == null && value.getN() == null && value.getB() == null) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static class Copy {
+        final String table;
+        final Map<String, AttributeValue> item;
+        final long version;
+        final long storedAt;
+        final boolean restored;
+
+        Copy(String table, Map<String, AttributeValue> item, long version, long storedAt, boolean restored) {
+            this.table = table;
+            this.item = item;
+            this.version = version;
+            this.storedAt = storedAt;
+            this.restored = restored;
+        }
+
+        Map<String, AttributeValue> copyItem() {
+            Map<String, AttributeValue> copied = new HashMap<String, AttributeValue>(item);
+            ByteBuffer data = copied.get(DynamoManager.COLUMN_DATA).getB();
+            copied.put(DynamoManager.COLUMN_DATA, new AttributeValue().withB(data.duplicate()));
+            return copied;
+        }
+    }
+}
@@ -0,0 +1,183 @@
+/***********************************************************************************************************************
+ *
+ * Dynamo Tomcat Sessions
+ * ==========================================
+ *
+ * Copyright (C) 2013 by EnergyHub Inc. (http://www.energyhub.com)
+ *
+ ***********************************************************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ *
+ **********************************************************************************************************************/
+
+package net.energyhub.session;
+
+/**
+ * Breaks the time spent in one load or save down by phase, using the monotonic clock.
+ *
+ * Each call to lap() charges the time since the previous lap (or since the timer started) to the given phase, so the
+ * phases add up to the total. The timer also carries the few facts we want in a slow-operation trace.
+ */
+public class OperationTimer {
+    public enum Phase {
+        DYNAMO("dynamo"),
+        FALLBACK("fallback"),
+        CHUNKS("chunks"),
+        DESERIALIZE("deserialize"),
+        SERIALIZE("serialize"),
+        HASH("hash"),
+        EXPIRY("expiry");
+
+        private final String key;
+
+        Phase(String key) {
+            this.key = key;
+        }
+
+        public String getKey() {
+            return key;
+        }
+    }
+
+    private static final Phase[] PHASES = Phase.values();
+
+    private final String operation;
+    private final String[] statKeys;
+    private final long start;
+    private long mark;
+    private long end;
+    private final long[] nanos = new long[PHASES.length];
+
+    private String tableName;
+    private int bytes;
+    private double consumedUnits;
+    private long loadMillis = -1;
+    private long heldMillis;
+    private boolean fromPreviousTable;
+
+    /**
+     * @param operation 'load' or 'save'
+     * @param statKeys statsd key per phase, indexed by ordinal, then the total (see statKeys(String))
+     */
+    public OperationTimer(String operation, String[] statKeys) {
+        this.operation = operation;
+        this.statKeys = statKeys;
+        this.start = System.nanoTime();
+        this.mark = start;
+    }
+
+    /**
+     * Build the statsd keys for an operation once, so recording doesn't concatenate strings: session.[op].[phase]
+     * for each phase, then session.[op] for the total.
+     */
+    public static String[] statKeys(String operation) {
+        String[] keys = new String[PHASES.length + 1];
+        for (Phase phase : PHASES) {
+            keys[phase.ordinal()] = "session." + operation + "." + phase.getKey();
+        }
+        keys[PHASES.length] = "session." + operation;
+        return keys;
+    }
+
+    /**
+     * Charge the time since the last lap to this phase.
+     */
+    public void lap(Phase phase) {
+        long now = System.nanoTime();
+        nanos[phase.ordinal()] += now - mark;
+        mark = now;
+    }
+
+    /**
+     * Stop the clock.
+     * @return the total time, in nanos
+     */
+    public long stop() {
+        end = System.nanoTime();
+        return end - start;
+    }
+
+    public long getTotalNanos() {
+        return (end == 0 ? System.nanoTime() : end) - start;
+    }
+
+    public long getNanos(Phase phase) {
+        return nanos[phase.ordinal()];
+    }
+
+    public void setTableName(String tableName) {
+        this.tableName = tableName;
+    }
+
+    public void addBytes(int bytes) {
+        this.bytes += bytes;
+    }
+
+    public void addConsumedUnits(Double units) {
+        if (units != null) {
+            this.consumedUnits += units;
+        }
+    }
+
+    /**
+     * Note how the session being saved was loaded, for the trace: a slow save of a session that was slow to load, or
+     * held for long, or moved forward from the previous table, tells a different story from one that wasn't.
+     * @param loadMillis how long the load took
+     * @param heldMillis how long ago it was loaded
+     */
+    public void setLoad(boolean fromPreviousTable, long loadMillis, long heldMillis) {
+        this.fromPreviousTable = fromPreviousTable;
+        this.loadMillis = loadMillis;
+        this.heldMillis = heldMillis;
+    }
+
+    /**
+     * Send the total, and a timer for every phase that took any time.
+     */
+    public void report(StatsdClient statsdClient) {
+        statsdClient.timingNanos(statKeys[PHASES.length], getTotalNanos());
+        for (int i = 0; i < nanos.length; i++) {
+            if (nanos[i] > 0) {
+                statsdClient.timingNanos(statKeys[i], nanos[i]);
+            }
+        }
+    }
+
+    /**
+     * @return a single key=value line describing this operation, for the slow operation log
+     */
+    public String trace(String sessionId) {
+        StringBuilder sb = new StringBuilder(160);
+        sb.append("op=").append(operation)
+                .append(" session=").append(sessionId == null ? "none" : Integer.toHexString(sessionId.hashCode()))
+                .append(" table=").append(tableName)
+                .append(" bytes=").append(bytes)
+                .append(" units=").append(consumedUnits)
+                .append(" totalMs=").append(millis(getTotalNanos()));
+        for (Phase phase : PHASES) {
+            long phaseNanos = nanos[phase.ordinal()];
+            if (phaseNanos > 0) {
+                sb.append(' ').append(phase.getKey()).append("Ms=").append(millis(phaseNanos));
+            }
+        }
+        if (loadMillis >= 0) {
+            sb.append(" loadMs=").append(loadMillis).append(" heldMs=").append(heldMillis);
+            if (fromPreviousTable) {
+                sb.append(" fromPrevious=true");
+            }
+        }
+        return sb.toString();
+    }
+
+    private static String millis(long nanos) {
+        return Long.toString(nanos / 1000000) + '.' + Long.toString(nanos / 1000 % 1000 + 1000).substring(1);
+    }
+}
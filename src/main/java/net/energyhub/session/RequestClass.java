@@ -0,0 +1,68 @@
+/***********************************************************************************************************************
+ *
+ * Dynamo Tomcat Sessions
+ * ==========================================
+ *
+ * Copyright (C) 2013 by EnergyHub Inc. (http://www.energyhub.com)
+ *
+ ***********************************************************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ *
+ **********************************************************************************************************************/
+
+package net.energyhub.session;
+
+/**
+ * What session I/O a request gets, as decided by the RequestClassifier. Declared strongest first: when requests
+ * sharing a session disagree, the strongest class among them applies to the save.
+ */
+public enum RequestClass {
+    /** load, and save the attributes if they changed (the default) */
+    FULL,
+    /** load, but only update the last accessed time, never the attributes */
+    TOUCH_ONLY,
+    /** load, but never write; the request doesn't keep the session alive */
+    READ_ONLY,
+    /** no session I/O at all */
+    NONE;
+
+    public boolean loads() {
+        return this != NONE;
+    }
+
+    public boolean writes() {
+        return this == FULL || this == TOUCH_ONLY;
+    }
+
+    public boolean writesData() {
+        return this == FULL;
+    }
+
+    /**
+     * @return the stronger of the two classes
+     */
+    public RequestClass or(RequestClass other) {
+        return other == null || ordinal() <= other.ordinal() ? this : other;
+    }
+
+    /**
+     * @param name e.g. 'full', 'touchOnly', 'read-only', 'NONE'
+     */
+    public static RequestClass parse(String name) {
+        String normalized = name.replaceAll("[^A-Za-z]", "").toUpperCase();
+        for (RequestClass requestClass : values()) {
+            if (requestClass.name().replace("_", "").equals(normalized)) {
+                return requestClass;
+            }
+        }
+        throw new IllegalArgumentException("Unknown request class: " + name);
+    }
+}
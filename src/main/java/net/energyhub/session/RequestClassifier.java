@@ -0,0 +1,306 @@
+/***********************************************************************************************************************
+ *
+ * Dynamo Tomcat Sessions
+ * ==========================================
+ *
+ * Copyright (C) 2013 by EnergyHub Inc. (http://www.energyhub.com)
+ *
+ ***********************************************************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ *
+ **********************************************************************************************************************/
+
+package net.energyhub.session;
+
+import javax.servlet.http.HttpServletRequest;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
+
+/**
+ * Decides what session I/O a request gets from a list of rules, the first matching rule winning.
+ *
+ * Rules are written 'condition [condition...] => class', separated by ';', where all conditions must hold:
+ * <ul>
+ *     <li>uri:/path - the request URI is exactly this</li>
+ *     <li>prefix:/path/ - the request URI starts with this</li>
+ *     <li>suffix:.css - the request URI ends with this</li>
+ *     <li>method:GET,HEAD - the request method is one of these</li>
+ *     <li>header:X-A,X-B - the request has one of these headers</li>
+ *     <li>contentType:application/json - the content type starts with one of these</li>
+ *     <li>attribute:name - the application has set this request attribute</li>
+ * </ul>
+ * and the class is full, touchOnly, readOnly or none (see RequestClass). Requests no rule matches are FULL.
+ *
+ * Most of the cost of a decision is in the URI conditions, so they are compiled into a hash map (exact), and tries
+ * (prefixes, and suffixes reversed), and the rules a URI can match are cached per URI. What's left per request is a
+ * few set lookups for the rules that survive.
+ */
+public class RequestClassifier {
+    static final int MAX_CACHED_URIS = 4096;
+    private static final int[] NO_RULES = new int[0];
+
+    private final List<Rule> rules = new ArrayList<Rule>();
+    private final Map<String, BitSet> exact = new HashMap<String, BitSet>();
+    private final Trie prefixes = new Trie();
+    private final Trie suffixes = new Trie();
+    private final BitSet anyUri = new BitSet(); // rules with no URI condition, or a regex one
+    private final ConcurrentHashMap<String, int[]> candidatesByUri = new ConcurrentHashMap<String, int[]>();
+    private final ConcurrentHashMap<String, Boolean> headerRegexMatches = new ConcurrentHashMap<String, Boolean>();
+
+    /**
+     * @param rules the rules, as above; may be empty
+     * @param ignoreUri regex for URIs that get no session I/O, as the old ignoreUri setting; may be empty
+     * @param ignoreHeader regex for header names that mean no session I/O, as the old ignoreHeader setting; may be
+     *                     empty
+     * @throws IllegalArgumentException if a rule can't be parsed
+     */
+    public static RequestClassifier compile(String rules, String ignoreUri, String ignoreHeader) {
+        RequestClassifier classifier = new RequestClassifier();
+        if (rules != null) {
+            for (String text : rules.split(";")) {
+                if (!text.trim().isEmpty()) {
+                    classifier.add(parseRule(text.trim()));
+                }
+            }
+        }
+        if (ignoreUri != null && !ignoreUri.isEmpty()) {
+            Rule rule = new Rule("ignoreUri", RequestClass.NONE);
+            rule.uriRegex = Pattern.compile(ignoreUri);
+            classifier.add(rule);
+        }
+        if (ignoreHeader != null && !ignoreHeader.isEmpty()) {
+            Rule rule = new Rule("ignoreHeader", RequestClass.NONE);
+            rule.headerRegex = Pattern.compile(ignoreHeader);
+            classifier.add(rule);
+        }
+        return classifier;
+    }
+
+    static Rule parseRule(String text) {
+        int arrow = text.indexOf("=>");
+        if (arrow < 0) {
+            throw new IllegalArgumentException("Request rule has no '=> class': " + text);
+        }
+        Rule rule = new Rule(text, RequestClass.parse(text.substring(arrow + 2).trim()));
+        for (String condition : text.substring(0, arrow).trim().split("\\s+")) {
+            int colon = condition.indexOf(':');
+            if (colon <= 0 || colon == condition.length() - 1) {
+                throw new IllegalArgumentException("Bad condition '" + condition + "' in request rule: " + text);
+            }
+            String type = condition.substring(0, colon);
+            String value = condition.substring(colon + 1);
+            if (type.equals("uri") || type.equals("prefix") || type.equals("suffix")) {
+                if (rule.uriType != null) {
+                    throw new IllegalArgumentException("Only one URI condition allowed per request rule: " + text);
+                }
+                rule.uriType = type;
+                rule.uriValue = value;
+            } else if (type.equals("method")) {
+                rule.methods = new HashSet<String>(Arrays.asList(value.toUpperCase(Locale.ENGLISH).split(",")));
+            } else if (type.equals("header")) {
+                rule.headers = new HashSet<String>(Arrays.asList(value.toLowerCase(Locale.ENGLISH).split(",")));
+            } else if (type.equals("contentType")) {
+                rule.contentTypes = value.toLowerCase(Locale.ENGLISH).split(",");
+            } else if (type.equals("attribute")) {
+                rule.attribute = value;
+            } else {
+                throw new IllegalArgumentException("Unknown condition '" + type + "' in request rule: " + text);
+            }
+        }
+        return rule;
+    }
+
+    private void add(Rule rule) {
+        int id = rules.size();
+        rules.add(rule);
+        if ("uri".equals(rule.uriType)) {
+            BitSet ids = exact.get(rule.uriValue);
+            if (ids == null) {
+                exact.put(rule.uriValue, ids = new BitSet());
+            }
+            ids.set(id);
+        } else if ("prefix".equals(rule.uriType)) {
+            prefixes.add(rule.uriValue, id);
+        } else if ("suffix".equals(rule.uriType)) {
+            suffixes.add(new StringBuilder(rule.uriValue).reverse().toString(), id);
+        } else {
+            anyUri.set(id);
+        }
+    }
+
+    /**
+     * @return the class of the first rule the request matches, or FULL
+     */
+    public RequestClass classify(HttpServletRequest request) {
+        if (rules.isEmpty()) {
+            return RequestClass.FULL;
+        }
+        String uri = request.getRequestURI();
+        int[] candidates = uri == null ? NO_RULES : candidatesFor(uri);
+        for (int id : candidates) {
+            Rule rule = rules.get(id);
+            if (rule.matches(request, this)) {
+                return rule.requestClass;
+            }
+        }
+        return RequestClass.FULL;
+    }
+
+    /**
+     * @return the ids, in order, of the rules whose URI condition this URI meets
+     */
+    int[] candidatesFor(String uri) {
+        int[] cached = candidatesByUri.get(uri);
+        if (cached != null) {
+            return cached;
+        }
+        BitSet ids = (BitSet) anyUri.clone();
+        BitSet exactIds = exact.get(uri);
+        if (exactIds != null) {
+            ids.or(exactIds);
+        }
+        prefixes.collect(uri, ids, false);
+        suffixes.collect(uri, ids, true);
+        for (int id = ids.nextSetBit(0); id >= 0; id = ids.nextSetBit(id + 1)) {
+            Pattern regex = rules.get(id).uriRegex;
+            if (regex != null && !regex.matcher(uri).matches()) {
+                ids.clear(id);
+            }
+        }
+        int[] candidates = new int[ids.cardinality()];
+        for (int i = 0, id = ids.nextSetBit(0); id >= 0; id = ids.nextSetBit(id + 1)) {
+            candidates[i++] = id;
+        }
+        if (candidatesByUri.size() >= MAX_CACHED_URIS) {
+            candidatesByUri.clear(); // e.g. ids in URIs; start over rather than track recency
+        }
+        candidatesByUri.put(uri, candidates);
+        return candidates;
+    }
+
+    private boolean headerMatchesRegex(Pattern regex, String name) {
+        Boolean matches = headerRegexMatches.get(name);
+        if (matches == null) {
+            matches = regex.matcher(name).matches();
+            if (headerRegexMatches.size() < MAX_CACHED_URIS) {
+                headerRegexMatches.put(name, matches);
+            }
+        }
+        return matches;
+    }
+
+    static class Rule {
+        final String text;
+        final RequestClass requestClass;
+        String uriType;
+        String uriValue;
+        Pattern uriRegex;
+        Set<String> methods;
+        Set<String> headers;
+        Pattern headerRegex;
+        String[] contentTypes;
+        String attribute;
+
+        Rule(String text, RequestClass requestClass) {
+            this.text = text;
+            this.requestClass = requestClass;
+        }
+
+        /**
+         * @return whether the request meets the conditions other than the URI (already checked)
+         */
+        boolean matches(HttpServletRequest request, RequestClassifier classifier) {
+            if (methods != null && !methods.contains(request.getMethod())) {
+                return false;
+            }
+            if (attribute != null && request.getAttribute(attribute) == null) {
+                return false;
+            }
+            if (contentTypes != null && !matchesContentType(request.getContentType())) {
+                return false;
+            }
+            if (headers != null || headerRegex != null) {
+                return matchesHeader(request, classifier);
+            }
+            return true;
+        }
+
+        private boolean matchesContentType(String contentType) {
+            if (contentType == null) {
+                return false;
+            }
+            for (String prefix : contentTypes) {
+                if (contentType.regionMatches(true, 0, prefix, 0, prefix.length())) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private boolean matchesHeader(HttpServletRequest request, RequestClassifier classifier) {
+            for (Enumeration<String> names = request.getHeaderNames(); names.hasMoreElements(); ) {
+                String name = names.nextElement();
+                if (headers != null && headers.contains(name.toLowerCase(Locale.ENGLISH))) {
+                    return true;
+                }
+                if (headerRegex != null && classifier.headerMatchesRegex(headerRegex, name)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        @Override
+        public String toString() {
+            return text;
+        }
+    }
+
+    /**
+     * A character trie marking the rules whose pattern ends at each node.
+     */
+    private static class Trie {
+        private final Node root = new Node();
+
+        void add(String pattern, int id) {
+            Node node = root;
+            for (int i = 0; i < pattern.length(); i++) {
+                char c = pattern.charAt(i);
+                Node next = node.children.get(c);
+                if (next == null) {
+                    node.children.put(c, next = new Node());
+                }
+                node = next;
+            }
+            node.ids.set(id);
+        }
+
+        /**
+         * Mark the rules with a pattern that is a prefix of the string (or a suffix, reading it backwards).
+         */
+        void collect(String s, BitSet ids, boolean backwards) {
+            Node node = root;
+            ids.or(node.ids);
+            for (int i = 0; i < s.length() && node != null; i++) {
+                node = node.children.get(s.charAt(backwards ? s.length() - 1 - i : i));
+                if (node != null) {
+                    ids.or(node.ids);
+                }
+            }
+        }
+
+        private static class Node {
+            final Map<Character, Node> children = new HashMap<Character, Node>();
+            final BitSet ids = new BitSet();
+        }
+    }
+}
@@ -0,0 +1,281 @@
+/***********************************************************************************************************************
+ *
+ * Dynamo Tomcat Sessions
+ * ==========================================
+ *
+ * Copyright (C) 2013 by EnergyHub Inc. (http://www.energyhub.com)
+ *
+ ***********************************************************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ *
+ **********************************************************************************************************************/
+
+package net.energyhub.session;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.dynamodb.AmazonDynamoDB;
+import com.amazonaws.services.dynamodb.model.*;
+
+import java.lang.management.ManagementFactory;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.logging.Logger;
+
+/**
+ * Lets one node of a cluster manage the session tables while the others follow it.
+ *
+ * A single item in a small coordination table holds a lease (owner and expiry time) and the rotation record (the
+ * current and previous tables the leader has switched to). The lease is taken and renewed with conditional writes
+ * on the expiry the node last saw, so of the nodes that see it expire only one gets it; the record can only be
+ * published by the lease owner. Followers read the item every poll interval, which is one cheap read instead of a
+ * listTables, and switch tables when the record does.
+ */
+public class RotationCoordinator {
+    private static Logger log = Logger.getLogger("net.energyhub.session.RotationCoordinator");
+
+    public static final String ITEM_ID = "rotation";
+    public static final String COLUMN_OWNER = "owner";
+    public static final String COLUMN_EXPIRES = "expires";
+    public static final String COLUMN_CURRENT = "currentTable";
+    public static final String COLUMN_PREVIOUS = "previousTable";
+
+    protected final AmazonDynamoDB dynamo;
+    protected final String tableName;
+    protected final String nodeId;
+    protected final long leaseMillis;
+    private volatile boolean tableActive;
+    private long leaseExpires;
+
+    public RotationCoordinator(AmazonDynamoDB dynamo, String tableName, long leaseMillis) {
+        this.dynamo = dynamo;
+        this.tableName = tableName;
+        this.leaseMillis = leaseMillis;
+        this.nodeId = ManagementFactory.getRuntimeMXBean().getName() + "/" + UUID.randomUUID();
+    }
+
+    public String getTableName() {
+        return tableName;
+    }
+
+    public String getNodeId() {
+        return nodeId;
+    }
+
+    public long getLeaseMillis() {
+        return leaseMillis;
+    }
+
+    /**
+     * Check the coordination table is there, creating it if not. Doesn't wait for a new table.
+     * @return whether the table is active, i.e. coordination can be used
+     */
+    public boolean isAvailable() {
+        if (tableActive) {
+            return true;
+        }
+        try {
+            TableDescription table = dynamo.describeTable(new DescribeTableRequest().withTableName(tableName))
+                    .getTable();
+            tableActive = "ACTIVE".equals(table.getTableStatus());
+        } catch (ResourceNotFoundException e) {
+            log.info("Creating rotation coordination table " + tableName);
+            KeySchemaElement primary = new KeySchemaElement().withAttributeName(DynamoManager.COLUMN_ID)
+                    .withAttributeType(ScalarAttributeType.S);
+            try {
+                dynamo.createTable(new CreateTableRequest(tableName, new KeySchema().withHashKeyElement(primary))
+                        .withProvisionedThroughput(new ProvisionedThroughput()
+                                .withReadCapacityUnits(5L).withWriteCapacityUnits(1L)));
+            } catch (ResourceInUseException alreadyCreating) {
+                log.fine("Coordination table " + tableName + " is already being created");
+            }
+        } catch (AmazonClientException e) {
+            log.warning("Unable to check coordination table " + tableName + ": " + e);
+        }
+        return tableActive;
+    }
+
+    /**
+     * Read the coordination item. The read is eventually consistent, to keep it cheap for many followers: a stale
+     * record is picked up on the next poll, and a stale expiry only makes tryAcquire fail.
+     * @return the lease and rotation record as last written, or null if there are none yet
+     */
+    public State read() {
+        GetItemResult result = dynamo.getItem(new GetItemRequest()
+                .withTableName(tableName)
+                .withKey(new Key().withHashKeyElement(new AttributeValue().withS(ITEM_ID)))
+                .withConsistentRead(false));
+        Map<String, AttributeValue> item = result.getItem();
+        return item == null ? null : new State(item);
+    }
+
+    /**
+     * Take the lease if it has expired, or renew it if we hold it.
+     * @param observed the state this node last read (or wrote), or null if there was none
+     * @return whether this node now holds the lease
+     */
+    public boolean tryAcquire(State observed, long nowMillis) {
+        if (observed != null && !nodeId.equals(observed.getOwner()) && observed.getExpires() > nowMillis) {
+            return false;
+        }
+        Map<String, ExpectedAttributeValue> expected = new HashMap<String, ExpectedAttributeValue>();
+        if (observed == null) {
+            expected.put(DynamoManager.COLUMN_ID, new ExpectedAttributeValue().withExists(false));
+        } else {
+            expected.put(COLUMN_EXPIRES, new ExpectedAttributeValue()
+                    .withValue(new AttributeValue().withN(Long.toString(observed.getExpires()))));
+        }
+        long expires = nowMillis + leaseMillis;
+        Map<String, AttributeValueUpdate> updates = new HashMap<String, AttributeValueUpdate>();
+        updates.put(COLUMN_OWNER, new AttributeValueUpdate().withAction(AttributeAction.PUT)
+                .withValue(new AttributeValue().withS(nodeId)));
+        updates.put(COLUMN_EXPIRES, new AttributeValueUpdate().withAction(AttributeAction.PUT)
+                .withValue(new AttributeValue().withN(Long.toString(expires))));
+        try {
+            dynamo.updateItem(new UpdateItemRequest()
+                    .withTableName(tableName)
+                    .withKey(new Key().withHashKeyElement(new AttributeValue().withS(ITEM_ID)))
+                    .withAttributeUpdates(updates)
+                    .withExpected(expected));
+        } catch (ConditionalCheckFailedException e) {
+            return false; // someone else got there first
+        }
+        synchronized (this) {
+            leaseExpires = expires;
+        }
+        return true;
+    }
+
+    /**
+     * @return whether this node holds the lease, as far as it knows
+     */
+    public synchronized boolean holdsLease(long nowMillis) {
+        return leaseExpires > nowMillis;
+    }
+
+    /**
+     * @return whether this node holds the lease but a third of it or less is left
+     */
+    public synchronized boolean leaseDueForRenewal(long nowMillis) {
+        return leaseExpires - nowMillis <= leaseMillis / 3;
+    }
+
+    /**
+     * @return the State this node wrote when it last took or renewed the lease, for renewing it
+     */
+    public synchronized State ownState() {
+        return new State(nodeId, leaseExpires, null, null);
+    }
+
+    /**
+     * Publish the tables the leader switched to. Fails if this node has lost the lease.
+     * @return whether it was published
+     */
+    public boolean publish(String currentTable, String previousTable) {
+        Map<String, AttributeValueUpdate> updates = new HashMap<String, AttributeValueUpdate>();
+        updates.put(COLUMN_CURRENT, new AttributeValueUpdate().withAction(AttributeAction.PUT)
+                .withValue(new AttributeValue().withS(currentTable)));
+        if (previousTable != null) {
+            updates.put(COLUMN_PREVIOUS, new AttributeValueUpdate().withAction(AttributeAction.PUT)
+                    .withValue(new AttributeValue().withS(previousTable)));
+        } else {
+            updates.put(COLUMN_PREVIOUS, new AttributeValueUpdate().withAction(AttributeAction.DELETE));
+        }
+        Map<String, ExpectedAttributeValue> expected = new HashMap<String, ExpectedAttributeValue>();
+        expected.put(COLUMN_OWNER, new ExpectedAttributeValue().withValue(new AttributeValue().withS(nodeId)));
+        try {
+            dynamo.updateItem(new UpdateItemRequest()
+                    .withTableName(tableName)
+                    .withKey(new Key().withHashKeyElement(new AttributeValue().withS(ITEM_ID)))
+                    .withAttributeUpdates(updates)
+                    .withExpected(expected));
+            return true;
+        } catch (ConditionalCheckFailedException e) {
+            synchronized (this) {
+                leaseExpires = 0;
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Give up the lease, e.g. when the manager stops, so another node can take over without waiting for it to
+     * expire.
+     */
+    public void release() {
+        synchronized (this) {
+            if (leaseExpires == 0) {
+                return;
+            }
+            leaseExpires = 0;
+        }
+        Map<String, AttributeValueUpdate> updates = new HashMap<String, AttributeValueUpdate>();
+        updates.put(COLUMN_EXPIRES, new AttributeValueUpdate().withAction(AttributeAction.PUT)
+                .withValue(new AttributeValue().withN("0")));
+        Map<String, ExpectedAttributeValue> expected = new HashMap<String, ExpectedAttributeValue>();
+        expected.put(COLUMN_OWNER, new ExpectedAttributeValue().withValue(new AttributeValue().withS(nodeId)));
+        try {
+            dynamo.updateItem(new UpdateItemRequest()
+                    .withTableName(tableName)
+                    .withKey(new Key().withHashKeyElement(new AttributeValue().withS(ITEM_ID)))
+                    .withAttributeUpdates(updates)
+                    .withExpected(expected));
+            log.info("Released rotation lease");
+        } catch (ConditionalCheckFailedException e) {
+            log.fine("Rotation lease was already taken over");
+        } catch (AmazonClientException e) {
+            log.warning("Unable to release rotation lease, it will expire: " + e);
+        }
+    }
+
+    /**
+     * The coordination item as read.
+     */
+    public static class State {
+        private final String owner;
+        private final long expires;
+        private final String currentTable;
+        private final String previousTable;
+
+        State(String owner, long expires, String currentTable, String previousTable) {
+            this.owner = owner;
+            this.expires = expires;
+            this.currentTable = currentTable;
+            this.previousTable = previousTable;
+        }
+
+        State(Map<String, AttributeValue> item) {
+            this(string(item.get(COLUMN_OWNER)),
+                    item.containsKey(COLUMN_EXPIRES) ? Long.parseLong(item.get(COLUMN_EXPIRES).getN()) : 0,
+                    string(item.get(COLUMN_CURRENT)), string(item.get(COLUMN_PREVIOUS)));
+        }
+
+        private static String string(AttributeValue value) {
+            return value == null ? null : value.getS();
+        }
+
+        public String getOwner() {
+            return owner;
+        }
+
+        public long getExpires() {
+            return expires;
+        }
+
+        public String getCurrentTable() {
+            return currentTable;
+        }
+
+        public String getPreviousTable() {
+            return previousTable;
+        }
+    }
+}
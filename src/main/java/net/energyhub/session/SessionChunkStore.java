@@ -0,0 +1,311 @@
+/***********************************************************************************************************************
+ *
+ * Dynamo Tomcat Sessions
+ * ==========================================
+ *
+ * Copyright (C) 2013 by EnergyHub Inc. (http://www.energyhub.com)
+ *
+ ***********************************************************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ *
+ **********************************************************************************************************************/
+
+package net.energyhub.session;
+
+import com.amazonaws.services.dynamodb.AmazonDynamoDB;
+import com.amazonaws.services.dynamodb.model.*;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Stores session payloads that are too big for one item as a set of chunk items in the same table.
+ *
+ * The session's own item (the head) then carries no data, only a description of the chunk set: a generation, the
+ * number of chunks, the chunk size and the total size. Chunks are keyed [session id]#[generation]#[index], and a new
+ * generation is picked for every write, so a chunk set is never modified in place: the chunks are written first and
+ * only become visible when the head is written pointing at them. The chunks of the replaced generation are deleted
+ * afterwards; any left behind (e.g. if this node dies in between) go away when the table is rotated out.
+ */
+public class SessionChunkStore {
+    final private static Logger log = Logger.getLogger(SessionChunkStore.class.getName());
+
+    public static final String COLUMN_CHUNK_GENERATION = "chunkGeneration";
+    public static final String COLUMN_CHUNK_COUNT = "chunkCount";
+    public static final String COLUMN_CHUNK_SIZE = "chunkSize";
+    public static final String COLUMN_SIZE = "size";
+
+    static final int MAX_BATCH_WRITE_ITEMS = 25;
+    static final int MAX_BATCH_WRITE_BYTES = 1000000; // a little under the 1MB request limit
+    static final int MAX_BATCH_GET_KEYS = 100;
+    private static final int MAX_ATTEMPTS = 5;
+
+    private final AmazonDynamoDB dynamo;
+    private final int chunkSize;
+
+    /**
+     * @param dynamo the client
+     * @param chunkSize payloads bigger than this many bytes are chunked; 0 disables chunking
+     */
+    public SessionChunkStore(AmazonDynamoDB dynamo, int chunkSize) {
+        this.dynamo = dynamo;
+        this.chunkSize = chunkSize;
+    }
+
+    public boolean shouldChunk(int bytes) {
+        return chunkSize > 0 && bytes > chunkSize;
+    }
+
+    public static String chunkKey(String id, long generation, int index) {
+        return id + '#' + Long.toString(generation, 36) + '#' + index;
+    }
+
+    /**
+     * Write the payload as a new chunk set. Nothing refers to it until the head is written with ChunkSet.addTo().
+     * @return the chunk set, with the units consumed writing it
+     * @throws IOException if not all chunks could be written
+     */
+    public ChunkSet write(String table, String id, ByteBuffer data) throws IOException {
+        // random rather than incremented, so two nodes saving the same session never write the same chunk keys
+        long generation = ThreadLocalRandom.current().nextLong() & Long.MAX_VALUE;
+        List<ByteBuffer> slices = split(data, chunkSize);
+        ChunkSet chunks = new ChunkSet(generation, slices.size(), chunkSize, data.remaining());
+
+        int perBatch = Math.max(1, Math.min(MAX_BATCH_WRITE_ITEMS, MAX_BATCH_WRITE_BYTES / (chunkSize + 100)));
+        List<WriteRequest> batch = new ArrayList<WriteRequest>(perBatch);
+        for (int i = 0; i < slices.size(); i++) {
+            Map<String, AttributeValue> item = new HashMap<String, AttributeValue>();
+            item.put(DynamoManager.COLUMN_ID, new AttributeValue().withS(chunkKey(id, generation, i)));
+            item.put(DynamoManager.COLUMN_DATA, new AttributeValue().withB(slices.get(i)));
+            batch.add(new WriteRequest().withPutRequest(new PutRequest().withItem(item)));
+            if (batch.size() == perBatch || i == slices.size() - 1) {
+                List<WriteRequest> unprocessed = batchWrite(table, batch, chunks);
+                if (!unprocessed.isEmpty()) {
+                    throw new IOException("Unable to store " + unprocessed.size() + " of " + chunks.count
+                            + " chunks for session " + id + " in " + table);
+                }
+                batch = new ArrayList<WriteRequest>(perBatch);
+            }
+        }
+        return chunks;
+    }
+
+    /**
+     * Read a chunk set and reassemble it into one buffer.
+     * @return the payload, or null if chunks are missing (the set was replaced or deleted since the head was read)
+     */
+    public ByteBuffer read(String table, String id, ChunkSet chunks, boolean consistentRead) {
+        byte[] payload = new byte[chunks.size];
+        BitSet found = new BitSet(chunks.count);
+        for (int start = 0; start < chunks.count; start += MAX_BATCH_GET_KEYS) {
+            List<Key> keys = new ArrayList<Key>();
+            for (int i = start; i < Math.min(chunks.count, start + MAX_BATCH_GET_KEYS); i++) {
+                keys.add(new Key().withHashKeyElement(new AttributeValue().withS(chunkKey(id, chunks.generation, i))));
+            }
+            Map<String, KeysAndAttributes> request = new HashMap<String, KeysAndAttributes>();
+            request.put(table, new KeysAndAttributes().withKeys(keys).withConsistentRead(consistentRead));
+            // responses are capped at 1MB, so a big set normally takes a few rounds of unprocessed keys
+            for (int attempt = 0; request != null && !request.isEmpty(); attempt++) {
+                if (attempt > 0 && !backOff(attempt)) {
+                    return null;
+                }
+                BatchGetItemResult result = dynamo.batchGetItem(new BatchGetItemRequest().withRequestItems(request));
+                BatchResponse response = result.getResponses() == null ? null : result.getResponses().get(table);
+                if (response != null) {
+                    chunks.addConsumedUnits(response.getConsumedCapacityUnits());
+                    for (Map<String, AttributeValue> item : response.getItems()) {
+                        String key = item.get(DynamoManager.COLUMN_ID).getS();
+                        int index = Integer.parseInt(key.substring(key.lastIndexOf('#') + 1));
+                        ByteBuffer chunk = item.get(DynamoManager.COLUMN_DATA).getB().duplicate();
+                        chunk.get(payload, index * chunks.chunkSize, chunk.remaining());
+                        found.set(index);
+                    }
+                }
+                request = result.getUnprocessedKeys();
+            }
+        }
+        if (found.cardinality() != chunks.count) {
+            log.fine("Found " + found.cardinality() + " of " + chunks.count + " chunks for session " + id);
+            return null;
+        }
+        return ByteBuffer.wrap(payload);
+    }
+
+    /**
+     * Delete a chunk set. Failures are only logged, since leftover chunks are invisible and are dropped with the table.
+     * @return the units consumed
+     */
+    public double delete(String table, String id, ChunkSet chunks) {
+        try {
+            List<WriteRequest> batch = new ArrayList<WriteRequest>(MAX_BATCH_WRITE_ITEMS);
+            for (int i = 0; i < chunks.count; i++) {
+                Key key = new Key().withHashKeyElement(new AttributeValue().withS(chunkKey(id, chunks.generation, i)));
+                batch.add(new WriteRequest().withDeleteRequest(new DeleteRequest().withKey(key)));
+                if (batch.size() == MAX_BATCH_WRITE_ITEMS || i == chunks.count - 1) {
+                    List<WriteRequest> unprocessed = batchWrite(table, batch, chunks);
+                    if (!unprocessed.isEmpty()) {
+                        log.warning("Unable to delete " + unprocessed.size() + " chunks for session " + id
+                                + " in " + table);
+                    }
+                    batch = new ArrayList<WriteRequest>(MAX_BATCH_WRITE_ITEMS);
+                }
+            }
+        } catch (Exception e) {
+            log.log(Level.WARNING, "Error deleting chunks for session " + id + " in " + table, e);
+        }
+        return chunks.consumedUnits;
+    }
+
+    /**
+     * @return whatever could not be written after retrying
+     */
+    private List<WriteRequest> batchWrite(String table, List<WriteRequest> requests, ChunkSet chunks) {
+        Map<String, List<WriteRequest>> request = new HashMap<String, List<WriteRequest>>();
+        request.put(table, requests);
+        for (int attempt = 0; ; attempt++) {
+            BatchWriteItemResult result = dynamo.batchWriteItem(new BatchWriteItemRequest().withRequestItems(request));
+            if (result.getResponses() != null && result.getResponses().get(table) != null) {
+                chunks.addConsumedUnits(result.getResponses().get(table).getConsumedCapacityUnits());
+            }
+            request = result.getUnprocessedItems();
+            if (request == null || request.isEmpty() || request.get(table) == null) {
+                return Collections.emptyList();
+            }
+            if (!backOff(attempt + 1)) {
+                return request.get(table);
+            }
+        }
+    }
+
+    /**
+     * Sleep before retrying unprocessed items.
+     * @return false if we have retried enough
+     */
+    private static boolean backOff(int attempt) {
+        if (attempt >= MAX_ATTEMPTS) {
+            return false;
+        }
+        try {
+            Thread.sleep(10L << attempt);
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * Cut the payload into views of at most chunkSize bytes, without copying.
+     *
+     * Each view is a slice, starting at position 0 with a capacity of its own length, because the SDK encodes
+     * binary attributes by reading capacity() bytes from the buffer.
+     */
+    static List<ByteBuffer> split(ByteBuffer data, int chunkSize) {
+        List<ByteBuffer> slices = new ArrayList<ByteBuffer>();
+        for (int offset = data.position(); offset < data.limit(); offset += chunkSize) {
+            ByteBuffer view = data.duplicate();
+            view.position(offset);
+            view.limit(Math.min(data.limit(), offset + chunkSize));
+            slices.add(view.slice());
+        }
+        return slices;
+    }
+
+    /**
+     * Describes a chunk set, as recorded on the head item.
+     */
+    public static class ChunkSet {
+        private final long generation;
+        private final int count;
+        private final int chunkSize;
+        private final int size;
+        private double consumedUnits;
+
+        ChunkSet(long generation, int count, int chunkSize, int size) {
+            this.generation = generation;
+            this.count = count;
+            this.chunkSize = chunkSize;
+            this.size = size;
+        }
+
+        /**
+         * @return the chunk set the head item points at, or null if the item holds its data itself
+         */
+        public static ChunkSet fromItem(Map<String, AttributeValue> item) {
+            if (item == null || item.get(COLUMN_CHUNK_GENERATION) == null) {
+                return null;
+            }
+            return new ChunkSet(Long.parseLong(item.get(COLUMN_CHUNK_GENERATION).getN()),
+                    Integer.parseInt(item.get(COLUMN_CHUNK_COUNT).getN()),
+                    Integer.parseInt(item.get(COLUMN_CHUNK_SIZE).getN()),
+                    Integer.parseInt(item.get(COLUMN_SIZE).getN()));
+        }
+
+        /**
+         * Point a head item being put at this chunk set.
+         */
+        public void addTo(Map<String, AttributeValue> item) {
+            item.put(COLUMN_CHUNK_GENERATION, new AttributeValue().withN(Long.toString(generation)));
+            item.put(COLUMN_CHUNK_COUNT, new AttributeValue().withN(Integer.toString(count)));
+            item.put(COLUMN_CHUNK_SIZE, new AttributeValue().withN(Integer.toString(chunkSize)));
+            item.put(COLUMN_SIZE, new AttributeValue().withN(Integer.toString(size)));
+        }
+
+        /**
+         * Point a head item being updated at this chunk set, dropping any data stored in the head itself.
+         */
+        public void addTo(Map<String, AttributeValueUpdate> updates, String dataColumn) {
+            Map<String, AttributeValue> item = new HashMap<String, AttributeValue>();
+            addTo(item);
+            for (Map.Entry<String, AttributeValue> entry : item.entrySet()) {
+                updates.put(entry.getKey(), new AttributeValueUpdate()
+                        .withValue(entry.getValue()).withAction(AttributeAction.PUT));
+            }
+            updates.put(dataColumn, new AttributeValueUpdate().withAction(AttributeAction.DELETE));
+        }
+
+        /**
+         * Drop the chunk set attributes from a head item being updated with inline data.
+         */
+        public static void removeFrom(Map<String, AttributeValueUpdate> updates) {
+            for (String column : new String[]{COLUMN_CHUNK_GENERATION, COLUMN_CHUNK_COUNT, COLUMN_CHUNK_SIZE,
+                    COLUMN_SIZE}) {
+                updates.put(column, new AttributeValueUpdate().withAction(AttributeAction.DELETE));
+            }
+        }
+
+        public long getGeneration() {
+            return generation;
+        }
+
+        public int getCount() {
+            return count;
+        }
+
+        public int getSize() {
+            return size;
+        }
+
+        public double getConsumedUnits() {
+            return consumedUnits;
+        }
+
+        void addConsumedUnits(Double units) {
+            if (units != null) {
+                consumedUnits += units;
+            }
+        }
+    }
+}
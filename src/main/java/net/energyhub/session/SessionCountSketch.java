@@ -0,0 +1,181 @@
+/***********************************************************************************************************************
+ *
+ * Dynamo Tomcat Sessions
+ * ==========================================
+ *
+ * Copyright (C) 2013 by EnergyHub Inc. (http://www.energyhub.com)
+ *
+ ***********************************************************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ *
+ **********************************************************************************************************************/
+
+package net.energyhub.session;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * A HyperLogLog sketch of distinct session ids: 2^14 one-byte registers, for a standard error of about 0.8% at any
+ * count. Sketches of the same ids from different nodes merge without counting an id twice, so each node can add the
+ * ids it saves and the sum is taken by merging.
+ */
+public class SessionCountSketch {
+    public static final int PRECISION = 14;
+    static final int REGISTERS = 1 << PRECISION;
+    private static final byte FORMAT = 1;
+
+    private final byte[] registers;
+
+    public SessionCountSketch() {
+        this(new byte[REGISTERS]);
+    }
+
+    private SessionCountSketch(byte[] registers) {
+        this.registers = registers;
+    }
+
+    /**
+     * Count this id.
+     * @return whether the sketch changed
+     */
+    public boolean offer(String id) {
+        long hash = hash(id);
+        int index = (int) (hash >>> (64 - PRECISION));
+        // the rank of the first 1 bit in what is left, with a guard bit so it can't run past the end
+        int rank = Long.numberOfLeadingZeros((hash << PRECISION) | (1L << (PRECISION - 1))) + 1;
+        synchronized (registers) {
+            if (registers[index] >= rank) {
+                return false;
+            }
+            registers[index] = (byte) rank;
+            return true;
+        }
+    }
+
+    /**
+     * Count every id the other sketch has counted.
+     * @return whether this sketch changed
+     */
+    public boolean merge(SessionCountSketch other) {
+        byte[] theirs = other.copyRegisters();
+        boolean changed = false;
+        synchronized (registers) {
+            for (int i = 0; i < REGISTERS; i++) {
+                if (theirs[i] > registers[i]) {
+                    registers[i] = theirs[i];
+                    changed = true;
+                }
+            }
+        }
+        return changed;
+    }
+
+    /**
+     * @return the estimated number of distinct ids counted
+     */
+    public long estimate() {
+        byte[] counted = copyRegisters();
+        double sum = 0;
+        int zeros = 0;
+        for (byte register : counted) {
+            sum += 1.0 / (1L << register);
+            if (register == 0) {
+                zeros++;
+            }
+        }
+        double alpha = 0.7213 / (1 + 1.079 / REGISTERS);
+        double estimate = alpha * REGISTERS * REGISTERS / sum;
+        if (estimate <= 2.5 * REGISTERS && zeros > 0) {
+            // few ids: count the empty registers instead, which is more accurate there
+            estimate = REGISTERS * Math.log((double) REGISTERS / zeros);
+        }
+        return Math.round(estimate);
+    }
+
+    /**
+     * @return the registers, deflated; a sketch of few ids is mostly zeros and shrinks to a few hundred bytes
+     */
+    public byte[] toBytes() {
+        byte[] counted = copyRegisters();
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            deflater.setInput(counted);
+            deflater.finish();
+            ByteArrayOutputStream out = new ByteArrayOutputStream(1024);
+            out.write(FORMAT);
+            byte[] buffer = new byte[4096];
+            while (!deflater.finished()) {
+                out.write(buffer, 0, deflater.deflate(buffer));
+            }
+            return out.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * @throws IOException if the bytes aren't a sketch written by toBytes()
+     */
+    public static SessionCountSketch fromBytes(byte[] bytes) throws IOException {
+        if (bytes.length == 0 || bytes[0] != FORMAT) {
+            throw new IOException("Unknown session count sketch format");
+        }
+        byte[] registers = new byte[REGISTERS];
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(bytes, 1, bytes.length - 1);
+            int read = 0;
+            while (read < REGISTERS && !inflater.finished()) {
+                int n = inflater.inflate(registers, read, REGISTERS - read);
+                if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                read += n;
+            }
+            if (read != REGISTERS || !inflater.finished()) {
+                throw new IOException("Truncated session count sketch");
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupt session count sketch", e);
+        } finally {
+            inflater.end();
+        }
+        return new SessionCountSketch(registers);
+    }
+
+    private byte[] copyRegisters() {
+        synchronized (registers) {
+            return registers.clone();
+        }
+    }
+
+    /**
+     * A 64-bit hash of the id: FNV-1a over its chars, then the MurmurHash3 finalizer, since HyperLogLog needs every
+     * bit to be well mixed and String.hashCode() has only 32.
+     */
+    static long hash(String id) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < id.length(); i++) {
+            h ^= id.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
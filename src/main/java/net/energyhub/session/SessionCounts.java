@@ -0,0 +1,236 @@
+/***********************************************************************************************************************
+ *
+ * Dynamo Tomcat Sessions
+ * ==========================================
+ *
+ * Copyright (C) 2013 by EnergyHub Inc. (http://www.energyhub.com)
+ *
+ ***********************************************************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ *
+ **********************************************************************************************************************/
+
+package net.energyhub.session;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.dynamodb.AmazonDynamoDB;
+import com.amazonaws.services.dynamodb.model.*;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Approximate counts of the distinct sessions saved into each table, across all nodes, without scanning.
+ *
+ * Each node adds the ids it saves to a sketch per table (see SessionCountSketch), and every publishMillis merges it
+ * into a shared sketch item in that table, with a put conditional on the version it read. The union of the current
+ * and previous tables' sketches estimates the distinct sessions saved into the live tables. That is not the active
+ * sessions: sketches can't forget, so sessions removed or expired since are still counted, up to two rotations' worth.
+ * A node's ids reach the others' estimates at its next publish, and the estimate is worked out then, not per read.
+ */
+public class SessionCounts {
+    final private static Logger log = Logger.getLogger(SessionCounts.class.getName());
+
+    /**
+     * The id of the shared sketch item; ids with '#' are never loaded as sessions.
+     */
+    public static final String ITEM_ID = "#sessions#";
+    public static final String COLUMN_SKETCH = "sketch";
+    private static final int MAX_CONFLICT_RETRIES = 3;
+
+    private final AmazonDynamoDB dynamo;
+    private final long publishMillis;
+    private final ConcurrentHashMap<String, Counted> tables = new ConcurrentHashMap<String, Counted>();
+    private volatile String currentTable;
+    private volatile String previousTable;
+    private volatile long lastPublish;
+    private volatile long estimate = -1;
+
+    public SessionCounts(AmazonDynamoDB dynamo, long publishMillis) {
+        this.dynamo = dynamo;
+        this.publishMillis = publishMillis;
+    }
+
+    /**
+     * A session was saved into this table.
+     */
+    public void saved(String table, String id) {
+        Counted counted = tables.get(table);
+        if (counted == null) {
+            if (!table.equals(currentTable) && !table.equals(previousTable)) {
+                return; // a rotation is under way, the next save goes to the new table
+            }
+            Counted created = new Counted();
+            counted = tables.putIfAbsent(table, created);
+            if (counted == null) {
+                counted = created;
+            }
+        }
+        if (counted.local.offer(id)) {
+            counted.dirty = true;
+        }
+    }
+
+    /**
+     * Follow a rotation: forget the sketches of tables that are gone.
+     */
+    public void tableChanged(String current, String previous) {
+        this.currentTable = current;
+        this.previousTable = previous;
+        for (String table : tables.keySet()) {
+            if (!table.equals(current) && !table.equals(previous)) {
+                tables.remove(table);
+            }
+        }
+        if (estimate >= 0) {
+            estimate = union(); // without the tables that are gone
+        }
+    }
+
+    /**
+     * Publish this node's sketches and read the others', if publishMillis has passed since the last time.
+     * @return whether it published
+     */
+    public boolean maybePublish(long now) {
+        if (currentTable == null || now - lastPublish < publishMillis) {
+            return false;
+        }
+        lastPublish = now;
+        publishAll();
+        return true;
+    }
+
+    /**
+     * Publish this node's sketches and read the others' now, e.g. when the manager stops.
+     */
+    public void publishAll() {
+        for (String table : new String[]{currentTable, previousTable}) {
+            if (table != null) {
+                publish(table);
+            }
+        }
+        estimate = union();
+    }
+
+    /**
+     * Merge our sketch for the table into the shared one, or just read the shared one if ours hasn't changed.
+     */
+    void publish(String table) {
+        Counted counted = tables.get(table);
+        if (counted == null) {
+            Counted created = new Counted();
+            counted = tables.putIfAbsent(table, created);
+            if (counted == null) {
+                counted = created;
+            }
+        }
+        Key key = new Key().withHashKeyElement(new AttributeValue().withS(ITEM_ID));
+        try {
+            for (int attempt = 0; attempt <= MAX_CONFLICT_RETRIES; attempt++) {
+                Map<String, AttributeValue> item = dynamo.getItem(new GetItemRequest().withTableName(table)
+                        .withKey(key).withConsistentRead(true)).getItem();
+                long version = item == null ? 0 : DynamoManager.readVersion(item);
+                SessionCountSketch shared = readSketch(table, item);
+                boolean dirty = counted.dirty || shared == null; // an unreadable one is replaced with ours
+                counted.dirty = false;
+                if (shared == null) {
+                    shared = new SessionCountSketch();
+                }
+                if (!dirty || !shared.merge(counted.local)) {
+                    counted.shared = shared; // nothing of ours it doesn't have
+                    return;
+                }
+                try {
+                    putSketch(table, shared, version);
+                    counted.shared = shared;
+                    return;
+                } catch (ConditionalCheckFailedException e) {
+                    counted.dirty = true; // another node published since we read; merge into theirs
+                }
+            }
+            log.fine("Gave up publishing the session count of " + table + " after conflicts, will retry");
+        } catch (AmazonClientException e) {
+            counted.dirty = true;
+            log.log(Level.WARNING, "Unable to publish the session count of " + table, e);
+        }
+    }
+
+    /**
+     * @return the shared sketch in the item, an empty one if there is none yet, or null if it can't be read
+     */
+    private static SessionCountSketch readSketch(String table, Map<String, AttributeValue> item) {
+        if (item == null || item.get(COLUMN_SKETCH) == null) {
+            return new SessionCountSketch();
+        }
+        ByteBuffer data = item.get(COLUMN_SKETCH).getB();
+        byte[] bytes = new byte[data.remaining()];
+        data.duplicate().get(bytes);
+        try {
+            return SessionCountSketch.fromBytes(bytes);
+        } catch (IOException e) {
+            log.log(Level.WARNING, "Unable to read the session count of " + table, e);
+            return null;
+        }
+    }
+
+    private void putSketch(String table, SessionCountSketch sketch, long version) {
+        Map<String, AttributeValue> item = new HashMap<String, AttributeValue>();
+        item.put(DynamoManager.COLUMN_ID, new AttributeValue().withS(ITEM_ID));
+        item.put(COLUMN_SKETCH, new AttributeValue().withB(ByteBuffer.wrap(sketch.toBytes())));
+        item.put(DynamoManager.COLUMN_VERSION, new AttributeValue().withN(Long.toString(version + 1)));
+        ExpectedAttributeValue expected = version == 0 ? new ExpectedAttributeValue().withExists(false)
+                : new ExpectedAttributeValue().withValue(new AttributeValue().withN(Long.toString(version)));
+        Map<String, ExpectedAttributeValue> expect = new HashMap<String, ExpectedAttributeValue>();
+        expect.put(DynamoManager.COLUMN_VERSION, expected);
+        dynamo.putItem(new PutItemRequest().withTableName(table).withItem(item).withExpected(expect));
+    }
+
+    /**
+     * @return the estimated number of distinct sessions saved into the current and previous tables, as of the last
+     * publish, or -1 before the first
+     */
+    public long estimate() {
+        return estimate;
+    }
+
+    /**
+     * @return the estimate from the shared sketches as last read and this node's own, or -1 if there are none
+     */
+    private long union() {
+        SessionCountSketch union = null;
+        for (String table : new String[]{currentTable, previousTable}) {
+            Counted counted = table == null ? null : tables.get(table);
+            if (counted == null) {
+                continue;
+            }
+            if (union == null) {
+                union = new SessionCountSketch();
+            }
+            union.merge(counted.local);
+            SessionCountSketch shared = counted.shared;
+            if (shared != null) {
+                union.merge(shared);
+            }
+        }
+        return union == null ? -1 : union.estimate();
+    }
+
+    private static class Counted {
+        final SessionCountSketch local = new SessionCountSketch();
+        volatile boolean dirty;
+        volatile SessionCountSketch shared;
+    }
+}
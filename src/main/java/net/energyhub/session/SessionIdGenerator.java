@@ -0,0 +1,39 @@
+/***********************************************************************************************************************
+ *
+ * Dynamo Tomcat Sessions
+ * ==========================================
+ *
+ * Copyright (C) 2013 by EnergyHub Inc. (http://www.energyhub.com)
+ *
+ ***********************************************************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ *
+ **********************************************************************************************************************/
+
+package net.energyhub.session;
+
+/**
+ * Makes new session ids. Implementations must be thread-safe and have a public no-arg constructor; the manager
+ * picks one by class name (sessionIdGeneratorClass).
+ */
+public interface SessionIdGenerator {
+    /**
+     * @param prefix put at the front of every id, e.g. to route by node or shard; may be empty
+     */
+    void setPrefix(String prefix);
+
+    String generateSessionId();
+
+    /**
+     * @return the length of the ids generated, including the prefix
+     */
+    int getSessionIdLength();
+}
@@ -0,0 +1,338 @@
+/***********************************************************************************************************************
+ *
+ * Dynamo Tomcat Sessions
+ * ==========================================
+ *
+ * Copyright (C) 2013 by EnergyHub Inc. (http://www.energyhub.com)
+ *
+ ***********************************************************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ *
+ **********************************************************************************************************************/
+
+package net.energyhub.session;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.dynamodb.model.*;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Copies what is written to the home endpoint to the other endpoints, in the background, so nodes near those can
+ * read sessions locally.
+ *
+ * Only the latest pending write per session is kept. A session item is copied whole, and only over an older version:
+ * the replica's version is read first and the put is conditional on it, so copies racing from different nodes can't
+ * go backwards. A touch only updates the last accessed time of a copy that exists (touches from different nodes can
+ * land out of order, which at worst makes the copy look expired so loads go home), and a removal writes a tombstone
+ * item (see DeferredRemovals). Chunked sessions aren't copied; their replica copy is deleted instead, so loads go to
+ * the home endpoint for them. Writes that fail are kept for the next flush. Until a write is copied, the node that
+ * made it reads the session from home (see isPending), so it never gets an older copy than it wrote.
+ */
+public class SessionReplicator {
+    final private static Logger log = Logger.getLogger(SessionReplicator.class.getName());
+
+    private static final int MAX_CONFLICT_RETRIES = 3;
+    private static final long DRAIN_PAUSE_MILLIS = 100;
+
+    enum Kind {
+        PUT, TOUCH, REMOVE, DROP
+    }
+
+    private final DynamoManager manager;
+    private final List<DynamoEndpoint> replicas;
+    private final long flushMillis;
+    private final ConcurrentHashMap<String, Replication> pending = new ConcurrentHashMap<String, Replication>();
+    private final Set<String> copying = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    private ScheduledExecutorService flusher;
+
+    public SessionReplicator(DynamoManager manager, List<DynamoEndpoint> replicas, long flushMillis) {
+        this.manager = manager;
+        this.replicas = replicas;
+        this.flushMillis = flushMillis;
+    }
+
+    /**
+     * Start flushing every flushMillis.
+     */
+    public synchronized void start() {
+        if (flusher != null) {
+            return;
+        }
+        flusher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "dynamo-session-replication");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        flusher.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    flush();
+                } catch (RuntimeException e) {
+                    log.log(Level.WARNING, "Error replicating sessions", e);
+                }
+            }
+        }, flushMillis, flushMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stop the flusher and copy what is left.
+     */
+    public void stop() {
+        stop(System.currentTimeMillis() + flushMillis + 5000);
+    }
+
+    /**
+     * Stop the flusher and copy what is left, retrying failures until the deadline.
+     * @param deadline when to give up, in epoch millis
+     */
+    public void stop(long deadline) {
+        ScheduledExecutorService flusher;
+        synchronized (this) {
+            flusher = this.flusher;
+            this.flusher = null;
+        }
+        if (flusher != null) {
+            flusher.shutdown();
+            try {
+                flusher.awaitTermination(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        flush();
+        while (size() > 0 && System.currentTimeMillis() < deadline) {
+            try {
+                Thread.sleep(Math.min(DRAIN_PAUSE_MILLIS, Math.max(1, deadline - System.currentTimeMillis())));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+            flush();
+        }
+        if (size() > 0) {
+            log.warning("Dropping " + size() + " replications not written by the deadline");
+        }
+    }
+
+    /**
+     * A session item was written whole (or with all its columns) at the home endpoint.
+     * @param item the item as stored, with its version
+     */
+    public void put(String table, Map<String, AttributeValue> item) {
+        String id = item.get(DynamoManager.COLUMN_ID).getS();
+        Kind kind = SessionChunkStore.ChunkSet.fromItem(item) == null ? Kind.PUT : Kind.DROP;
+        queue(new Replication(kind, table, id, kind == Kind.PUT ? item : null, System.currentTimeMillis()));
+    }
+
+    /**
+     * Only the last accessed time of a session changed at the home endpoint.
+     */
+    public void touch(String table, String id, long lastAccessed) {
+        queue(new Replication(Kind.TOUCH, table, id, Collections.singletonMap(DynamoManager.COLUMN_LAST_ACCESSED,
+                new AttributeValue().withN(Long.toString(lastAccessed))), System.currentTimeMillis()));
+    }
+
+    /**
+     * A session was removed at the home endpoint.
+     */
+    public void remove(String table, String id) {
+        queue(new Replication(Kind.REMOVE, table, id, null, System.currentTimeMillis()));
+    }
+
+    private void queue(Replication replication) {
+        String key = replication.table + '\n' + replication.id;
+        while (true) {
+            Replication previous = pending.putIfAbsent(key, replication);
+            if (previous == null) {
+                return;
+            }
+            Replication merged = previous.then(replication);
+            if (pending.replace(key, previous, merged)) {
+                return;
+            }
+        }
+    }
+
+    public int size() {
+        return pending.size();
+    }
+
+    /**
+     * @return whether a write of this session is waiting to be copied, or being copied, so the replicas may still
+     * have an older version of it
+     */
+    public boolean isPending(String table, String id) {
+        String key = table + '\n' + id;
+        return pending.containsKey(key) || copying.contains(key);
+    }
+
+    /**
+     * Copy all pending writes to every replica.
+     * @return how many were copied everywhere
+     */
+    public int flush() {
+        int done = 0;
+        for (Iterator<Map.Entry<String, Replication>> it = pending.entrySet().iterator(); it.hasNext(); ) {
+            Map.Entry<String, Replication> entry = it.next();
+            Replication replication = entry.getValue();
+            copying.add(entry.getKey()); // before it leaves pending, so isPending doesn't miss it in between
+            if (!pending.remove(entry.getKey(), replication)) {
+                copying.remove(entry.getKey());
+                continue; // written again meanwhile; the next flush gets it
+            }
+            boolean copied = true;
+            for (DynamoEndpoint replica : replicas) {
+                try {
+                    double units = apply(replica, replication);
+                    manager.getStats().replicated(replica.getName(),
+                            System.currentTimeMillis() - replication.queuedAt, units);
+                } catch (ResourceNotFoundException e) {
+                    log.fine("Table " + replication.table + " is not at " + replica.getName() + ", dropping copy");
+                } catch (AmazonClientException e) {
+                    log.warning("Unable to copy session to " + replica.getName() + ": " + e);
+                    manager.getStats().replicationFailed();
+                    copied = false;
+                }
+            }
+            if (copied) {
+                done++;
+            } else {
+                // copying again is harmless where it already worked; a newer write queued meanwhile wins
+                pending.putIfAbsent(entry.getKey(), replication);
+            }
+            copying.remove(entry.getKey());
+        }
+        return done;
+    }
+
+    /**
+     * @return how many units were consumed at the replica
+     */
+    private double apply(DynamoEndpoint replica, Replication replication) {
+        Key key = new Key().withHashKeyElement(new AttributeValue().withS(replication.id));
+        switch (replication.kind) {
+            case PUT:
+                return copy(replica, replication, key);
+            case TOUCH:
+                try {
+                    // only touch a copy that is there; Dynamo can't condition on the time being later
+                    Map<String, AttributeValueUpdate> updates = new HashMap<String, AttributeValueUpdate>();
+                    updates.put(DynamoManager.COLUMN_LAST_ACCESSED, new AttributeValueUpdate()
+                            .withValue(replication.item.get(DynamoManager.COLUMN_LAST_ACCESSED))
+                            .withAction(AttributeAction.PUT));
+                    UpdateItemResult result = replica.getDynamo().updateItem(new UpdateItemRequest()
+                            .withTableName(replication.table).withKey(key).withAttributeUpdates(updates)
+                            .withExpected(Collections.singletonMap(DynamoManager.COLUMN_ID,
+                                    new ExpectedAttributeValue().withValue(key.getHashKeyElement()))));
+                    return units(result.getConsumedCapacityUnits());
+                } catch (ConditionalCheckFailedException e) {
+                    return 0; // not copied there yet, the copy will carry a later time
+                }
+            case REMOVE:
+                Map<String, AttributeValue> tombstone = new HashMap<String, AttributeValue>();
+                tombstone.put(DynamoManager.COLUMN_ID, key.getHashKeyElement());
+                tombstone.put(DynamoManager.COLUMN_REMOVED, new AttributeValue().withN(
+                        Long.toString(replication.queuedAt)));
+                return units(replica.getDynamo().putItem(new PutItemRequest().withTableName(replication.table)
+                        .withItem(tombstone)).getConsumedCapacityUnits());
+            default:
+                return units(replica.getDynamo().deleteItem(new DeleteItemRequest().withTableName(replication.table)
+                        .withKey(key)).getConsumedCapacityUnits());
+        }
+    }
+
+    /**
+     * Put the item over the replica's copy if that is older.
+     */
+    private double copy(DynamoEndpoint replica, Replication replication, Key key) {
+        long version = DynamoManager.readVersion(replication.item);
+        double units = 0;
+        for (int attempt = 0; attempt < MAX_CONFLICT_RETRIES; attempt++) {
+            GetItemResult stored = replica.getDynamo().getItem(new GetItemRequest().withTableName(replication.table)
+                    .withKey(key).withConsistentRead(true));
+            units += units(stored.getConsumedCapacityUnits());
+            Map<String, AttributeValue> item = stored.getItem();
+            ExpectedAttributeValue expected;
+            if (item == null) {
+                expected = new ExpectedAttributeValue().withExists(false);
+            } else if (item.containsKey(DynamoManager.COLUMN_REMOVED) && version > 1) {
+                return units; // removed; only a new session under the same id replaces that
+            } else if (item.get(DynamoManager.COLUMN_VERSION) == null) {
+                expected = new ExpectedAttributeValue().withExists(false);
+            } else if (DynamoManager.readVersion(item) >= version) {
+                return units; // a later write got there first
+            } else {
+                expected = new ExpectedAttributeValue().withValue(item.get(DynamoManager.COLUMN_VERSION));
+            }
+            try {
+                return units + units(replica.getDynamo().putItem(new PutItemRequest()
+                        .withTableName(replication.table).withItem(replication.item)
+                        .withExpected(Collections.singletonMap(DynamoManager.COLUMN_VERSION, expected)))
+                        .getConsumedCapacityUnits());
+            } catch (ConditionalCheckFailedException e) {
+                // another node copied meanwhile, look again
+            }
+        }
+        log.fine("Copy of session " + replication.id + " to " + replica.getName() + " kept conflicting, dropping it");
+        return units;
+    }
+
+    private static double units(Double units) {
+        return units == null ? 0 : units;
+    }
+
+    /**
+     * One pending copy. Later writes replace earlier ones, except that a touch only moves a pending item's last
+     * accessed time forward.
+     */
+    static final class Replication {
+        final Kind kind;
+        final String table;
+        final String id;
+        final Map<String, AttributeValue> item;
+        final long queuedAt;
+
+        Replication(Kind kind, String table, String id, Map<String, AttributeValue> item, long queuedAt) {
+            this.kind = kind;
+            this.table = table;
+            this.id = id;
+            this.item = item;
+            this.queuedAt = queuedAt;
+        }
+
+        Replication then(Replication next) {
+            if (next.kind != Kind.TOUCH) {
+                return new Replication(next.kind, table, id, next.item, queuedAt);
+            }
+            if (kind == Kind.PUT) {
+                Map<String, AttributeValue> touched = new HashMap<String, AttributeValue>(item);
+                touched.put(DynamoManager.COLUMN_LAST_ACCESSED, next.item.get(DynamoManager.COLUMN_LAST_ACCESSED));
+                return new Replication(kind, table, id, touched, queuedAt);
+            }
+            if (kind == Kind.TOUCH) {
+                return new Replication(kind, table, id, next.item, queuedAt);
+            }
+            return this; // removed or dropped there, nothing to touch
+        }
+    }
+}
@@ -0,0 +1,260 @@
+/***********************************************************************************************************************
+ *
+ * Dynamo Tomcat Sessions
+ * ==========================================
+ *
+ * Copyright (C) 2013 by EnergyHub Inc. (http://www.energyhub.com)
+ *
+ ***********************************************************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ *
+ **********************************************************************************************************************/
+
+package net.energyhub.session;
+
+import org.apache.catalina.session.StandardSession;
+
+import java.io.IOException;
+import java.io.NotSerializableException;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Enumeration;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Finds out what makes sessions big. For a sample of saves, each attribute is serialized on its own and its size
+ * recorded against its name and class; the payload sizes of all saves go into a histogram.
+ *
+ * Attribute sizes are uncompressed Java serialization sizes, so with a compressing serializer they won't add up to
+ * the payload, but they do show which attributes dominate. One profiler is kept per manager, i.e. per Context.
+ */
+public class SessionSizeProfiler {
+    /**
+     * Stop tracking new attribute names past this many, in case an application generates names.
+     */
+    public static final int MAX_TRACKED_ATTRIBUTES = 1000;
+
+    private final ConcurrentHashMap<String, AttributeSize> attributes = new ConcurrentHashMap<String, AttributeSize>();
+    private final StatsdClient.Histogram payloadBytes = new StatsdClient.Histogram(false);
+    private final LongAdder sampled = new LongAdder();
+
+    /**
+     * Record the serialized size of a session payload. Called for every save.
+     */
+    public void recordPayload(int bytes) {
+        payloadBytes.record(bytes);
+    }
+
+    /**
+     * Measure every attribute of the session and add them to the profile.
+     * @return the measured attributes, largest first
+     */
+    public List<AttributeSize> profile(StandardSession session) {
+        sampled.increment();
+        List<AttributeSize> measured = measure(session);
+        for (AttributeSize size : measured) {
+            AttributeSize total = attributes.get(size.getKey());
+            if (total == null) {
+                if (attributes.size() >= MAX_TRACKED_ATTRIBUTES) {
+                    continue;
+                }
+                AttributeSize created = new AttributeSize(size.getName(), size.getClassName());
+                total = attributes.putIfAbsent(size.getKey(), created);
+                if (total == null) {
+                    total = created;
+                }
+            }
+            total.record((int) size.getMaxBytes());
+        }
+        return measured;
+    }
+
+    /**
+     * @return the attributes of this session with their serialized size, largest first, without recording them
+     */
+    public static List<AttributeSize> measure(StandardSession session) {
+        List<AttributeSize> sizes = new ArrayList<AttributeSize>();
+        for (Enumeration<String> names = session.getAttributeNames(); names.hasMoreElements(); ) {
+            String name = names.nextElement();
+            Object value = session.getAttribute(name);
+            if (value == null) {
+                continue;
+            }
+            AttributeSize size = new AttributeSize(name, value.getClass().getName());
+            size.record(serializedSize(value));
+            sizes.add(size);
+        }
+        Collections.sort(sizes, BY_MAX_BYTES);
+        return sizes;
+    }
+
+    /**
+     * @return the n attributes seen with the largest average size, largest first
+     */
+    public List<AttributeSize> getTopAttributes(int n) {
+        List<AttributeSize> all = new ArrayList<AttributeSize>(attributes.values());
+        Collections.sort(all, BY_AVERAGE_BYTES);
+        return all.size() > n ? all.subList(0, n) : all;
+    }
+
+    /**
+     * @return the average serialized bytes of each attribute, keyed by "name (class)", in the order given
+     */
+    public static Map<String, Long> averageBytes(List<AttributeSize> attributes) {
+        Map<String, Long> sizes = new LinkedHashMap<String, Long>();
+        for (AttributeSize size : attributes) {
+            sizes.put(size.getName() + " (" + size.getClassName() + ")", size.getAverageBytes());
+        }
+        return sizes;
+    }
+
+    /**
+     * @return the attribute name made safe for a statsd key, i.e. anything but letters, digits, '_' and '-' replaced
+     */
+    static String statName(String name) {
+        return name.replaceAll("[^A-Za-z0-9_-]", "_");
+    }
+
+    /**
+     * @return a one-line summary of the payload sizes since the last report, and the heaviest attributes seen
+     * since the profiler was created; resets the payload histogram.
+     */
+    public String report(int topN) {
+        StatsdClient.Histogram.Snapshot snapshot = payloadBytes.snapshotAndReset();
+        StringBuilder sb = new StringBuilder();
+        sb.append("saves=").append(snapshot.count)
+                .append(" p50=").append(snapshot.percentile(0.5))
+                .append(" p90=").append(snapshot.percentile(0.9))
+                .append(" p99=").append(snapshot.percentile(0.99))
+                .append(" maxBytes=").append(snapshot.max)
+                .append(" profiled=").append(sampled.sumThenReset())
+                .append(" top=[");
+        String separator = "";
+        for (AttributeSize size : getTopAttributes(topN)) {
+            sb.append(separator).append(size);
+            separator = ", ";
+        }
+        return sb.append(']').toString();
+    }
+
+    /**
+     * @return the uncompressed Java serialization size of the value, or -1 if it can't be serialized
+     */
+    static int serializedSize(Object value) {
+        CountingOutputStream counter = new CountingOutputStream();
+        try {
+            ObjectOutputStream oos = new ObjectOutputStream(counter);
+            oos.writeObject(value);
+            oos.flush();
+            return counter.count;
+        } catch (NotSerializableException e) {
+            return -1; // StandardSession won't save it either
+        } catch (IOException e) {
+            return -1;
+        }
+    }
+
+    private static final Comparator<AttributeSize> BY_MAX_BYTES = new Comparator<AttributeSize>() {
+        @Override
+        public int compare(AttributeSize a, AttributeSize b) {
+            return Long.compare(b.getMaxBytes(), a.getMaxBytes());
+        }
+    };
+
+    private static final Comparator<AttributeSize> BY_AVERAGE_BYTES = new Comparator<AttributeSize>() {
+        @Override
+        public int compare(AttributeSize a, AttributeSize b) {
+            return Long.compare(b.getAverageBytes(), a.getAverageBytes());
+        }
+    };
+
+    /**
+     * Size statistics for one attribute name and value class.
+     */
+    public static class AttributeSize {
+        private final String name;
+        private final String className;
+        private final LongAdder count = new LongAdder();
+        private final LongAdder totalBytes = new LongAdder();
+        private final AtomicLong maxBytes = new AtomicLong();
+
+        AttributeSize(String name, String className) {
+            this.name = name;
+            this.className = className;
+        }
+
+        void record(int bytes) {
+            if (bytes < 0) {
+                return;
+            }
+            count.increment();
+            totalBytes.add(bytes);
+            long current = maxBytes.get();
+            while (bytes > current && !maxBytes.compareAndSet(current, bytes)) {
+                current = maxBytes.get();
+            }
+        }
+
+        String getKey() {
+            return name + '|' + className;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public String getClassName() {
+            return className;
+        }
+
+        public long getCount() {
+            return count.sum();
+        }
+
+        public long getAverageBytes() {
+            long n = count.sum();
+            return n == 0 ? 0 : totalBytes.sum() / n;
+        }
+
+        public long getMaxBytes() {
+            return maxBytes.get();
+        }
+
+        @Override
+        public String toString() {
+            return name + " (" + className + ") avg=" + getAverageBytes() + " max=" + getMaxBytes()
+                    + " n=" + getCount();
+        }
+    }
+
+    private static class CountingOutputStream extends OutputStream {
+        int count;
+
+        @Override
+        public void write(int b) {
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            count += len;
+        }
+    }
+
+}
@@ -0,0 +1,201 @@
+/***********************************************************************************************************************
+ *
+ * Dynamo Tomcat Sessions
+ * ==========================================
+ *
+ * Copyright (C) 2013 by EnergyHub Inc. (http://www.energyhub.com)
+ *
+ ***********************************************************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ *
+ **********************************************************************************************************************/
+
+package net.energyhub.session;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Shares one session instance between the requests for the same session id that overlap on this node.
+ *
+ * The first request to acquire an id loads the session; requests arriving while that load is in flight wait for it
+ * rather than loading their own copy, and requests arriving later, while any of them is still running, get the same
+ * instance. Each acquire is matched by a release, and the session is saved once, when the last request releases it,
+ * so overlapping requests see each other's changes and don't overwrite each other. The session stays registered
+ * while it is being saved, so a request arriving then can't load a copy older than the save; whatever it changes is
+ * saved when it releases the session in turn.
+ */
+public class SharedSessions {
+    final private static Logger log = Logger.getLogger(SharedSessions.class.getName());
+
+    private final DynamoManager manager;
+    private final ConcurrentHashMap<String, Entry> sessions = new ConcurrentHashMap<String, Entry>();
+
+    public SharedSessions(DynamoManager manager) {
+        this.manager = manager;
+    }
+
+    /**
+     * Get the session for a request, loading it unless another request on this node already has.
+     * @return the session, or null if there is none
+     * @throws IOException if the load fails
+     */
+    public DynamoSession acquire(String id) throws IOException {
+        while (true) {
+            Entry created = new Entry();
+            Entry entry = sessions.putIfAbsent(id, created);
+            if (entry == null) {
+                return load(id, created);
+            }
+            synchronized (entry) {
+                if (entry.closed) {
+                    continue; // released and unregistered under us
+                }
+                entry.references++;
+            }
+            manager.getStats().sharedLoad();
+            try {
+                DynamoSession session = entry.session.get();
+                if (session == null) {
+                    release(id, entry, null, RequestClass.NONE);
+                }
+                return session;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                release(id, entry, null, RequestClass.NONE);
+                throw new IOException("Interrupted waiting for session " + id + " to load", e);
+            } catch (ExecutionException e) {
+                release(id, entry, null, RequestClass.NONE);
+                throw new IOException("Unable to load session " + id, e.getCause());
+            }
+        }
+    }
+
+    private DynamoSession load(String id, Entry entry) throws IOException {
+        DynamoSession session;
+        try {
+            session = (DynamoSession) manager.loadSession(id);
+        } catch (IOException e) {
+            entry.session.completeExceptionally(e);
+            release(id, entry, null, RequestClass.NONE);
+            throw e;
+        } catch (RuntimeException e) {
+            entry.session.completeExceptionally(e);
+            release(id, entry, null, RequestClass.NONE);
+            throw e;
+        }
+        entry.session.complete(session);
+        if (session == null) {
+            release(id, entry, null, RequestClass.NONE);
+        }
+        return session;
+    }
+
+    /**
+     * @return the session registered for this id, if one is loaded and in use
+     */
+    public DynamoSession find(String id) {
+        Entry entry = sessions.get(id);
+        if (entry == null || !entry.session.isDone() || entry.session.isCompletedExceptionally()) {
+            return null;
+        }
+        return entry.session.getNow(null);
+    }
+
+    /**
+     * Release a session acquired for a request, saving it if this was the last request using it. The save is as
+     * strong as the strongest class among the requests that used it: if any of them was FULL, the attributes are
+     * saved, and so on.
+     * @param id the id it was acquired with
+     * @param session the session acquire returned, may be null
+     * @param requestClass how this request wants the session saved
+     */
+    public void release(String id, DynamoSession session, RequestClass requestClass) throws IOException {
+        Entry entry = sessions.get(id);
+        if (entry == null || !entry.session.isDone() || entry.session.getNow(null) != session) {
+            // not shared (e.g. registered after the session was replaced), so just save it
+            if (requestClass.writes() && session != null && session.isValid()) {
+                manager.save(session, !requestClass.writesData());
+            }
+            return;
+        }
+        release(id, entry, session, requestClass);
+    }
+
+    private void release(String id, Entry entry, DynamoSession session, RequestClass requestClass)
+            throws IOException {
+        RequestClass saveAs;
+        synchronized (entry) {
+            entry.wanted = entry.wanted.or(requestClass);
+            if (--entry.references > 0) {
+                if (requestClass.writes()) {
+                    manager.getStats().coalescedSave();
+                }
+                return;
+            }
+            saveAs = entry.wanted;
+            entry.wanted = RequestClass.NONE;
+        }
+        try {
+            if (saveAs.writes() && session != null && session.isValid()) {
+                manager.save(session, !saveAs.writesData());
+            }
+        } finally {
+            synchronized (entry) {
+                // someone may have joined while we were saving; they will release it in turn
+                if (entry.references == 0) {
+                    entry.closed = true;
+                    sessions.remove(id, entry);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return how many sessions are in use by requests on this node
+     */
+    public int size() {
+        return sessions.size();
+    }
+
+    /**
+     * Save the sessions requests on this node are still using, e.g. when the manager stops. They stay registered, so
+     * the requests holding them release them as usual rather than each saving its own view.
+     */
+    public void saveInUse() {
+        if (!sessions.isEmpty() && log.isLoggable(Level.FINE)) {
+            log.fine("Saving " + sessions.size() + " shared sessions still in use");
+        }
+        for (Entry entry : sessions.values()) {
+            DynamoSession session = entry.session.isDone() && !entry.session.isCompletedExceptionally()
+                    ? entry.session.getNow(null) : null;
+            if (session == null || !session.isValid()) {
+                continue;
+            }
+            try {
+                manager.save(session, false); // we can't know what the running requests will do, so save it all
+            } catch (IOException e) {
+                log.log(Level.WARNING, "Unable to save shared session " + session.getIdInternal(), e);
+            }
+        }
+    }
+
+    private static class Entry {
+        final CompletableFuture<DynamoSession> session = new CompletableFuture<DynamoSession>();
+        int references = 1;
+        RequestClass wanted = RequestClass.NONE;
+        boolean closed;
+    }
+}
@@ -6,44 +6,142 @@ import java.net.InetSocketAddress;
 import java.net.UnknownHostException;
 import java.nio.ByteBuffer;
 import java.nio.channels.DatagramChannel;
-import java.util.Locale;
-import java.util.Random;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
  * StatsdClient to post dynamo stats to statsd, entirely optional.
- * Based almost entirely on https://github.com/etsy/statsd/blob/master/examples/StatsdClient.java
+ * Originally based on https://github.com/etsy/statsd/blob/master/examples/StatsdClient.java
+ *
+ * Nothing is sent from the calling thread. Counters and gauges are accumulated in memory, timings are either queued
+ * (and sampled) or folded into a histogram per key, and a single background thread flushes everything every
+ * flushIntervalMillis, packing as many lines as fit into each datagram.
+ * If the flusher can't keep up, the timing queue is bounded and extra samples are counted as 'statsd.dropped'.
  */
-
 public class StatsdClient {
+    public static final long DEFAULT_FLUSH_INTERVAL_MILLIS = 1000;
+    public static final int DEFAULT_MAX_PACKET_BYTES = 1432; // fits the usual 1500 byte MTU
+    public static final int DEFAULT_MAX_QUEUED_TIMINGS = 10000;
+
+    private static final String DROPPED_KEY = "statsd.dropped";
+    private static final byte[] PERCENTILE_SUFFIXES[] = {ascii(".p50"), ascii(".p90"), ascii(".p99")};
+    private static final double PERCENTILES[] = {0.5, 0.9, 0.99};
+    private static final byte[] MAX_SUFFIX = ascii(".max");
+    private static final byte[] COUNT_SUFFIX = ascii(".count");
+
     private String host;
     private Integer port;
 
-    private static final Random RNG = new Random();
-
     private InetSocketAddress _address;
     private DatagramChannel _channel;
 
     private String prefix;
+    private byte[] prefixBytes;
     private static Logger log = Logger.getLogger("net.energyhub.session.StatsdClient");
 
+    private final double sampleRate;
+    private final boolean aggregateTimers;
+    private final int maxQueuedTimings;
+
+    private final ConcurrentHashMap<String, Counter> counters = new ConcurrentHashMap<String, Counter>();
+    private final ConcurrentHashMap<String, AtomicLong> gauges = new ConcurrentHashMap<String, AtomicLong>();
+    private final ConcurrentHashMap<String, Histogram> histograms = new ConcurrentHashMap<String, Histogram>();
+    private final ConcurrentLinkedQueue<Timing> timings = new ConcurrentLinkedQueue<Timing>();
+    private final AtomicInteger queuedTimings = new AtomicInteger();
+    private final Counter dropped = new Counter();
+    private final ConcurrentHashMap<String, byte[]> keyBytes = new ConcurrentHashMap<String, byte[]>();
+
+    // only touched by the flusher thread (or by shutdown, once the flusher has stopped)
+    private final ByteBuffer packet;
+    private final ScheduledExecutorService flusher;
 
     public StatsdClient(String host, int port) {
+        this(host, port, DEFAULT_FLUSH_INTERVAL_MILLIS, 1.0, false);
+    }
+
+    public StatsdClient(String host, int port, long flushIntervalMillis, double sampleRate, boolean aggregateTimers) {
+        this(host, port, flushIntervalMillis, sampleRate, aggregateTimers, DEFAULT_MAX_PACKET_BYTES,
+                DEFAULT_MAX_QUEUED_TIMINGS);
+    }
+
+    public StatsdClient(String host, int port, long flushIntervalMillis, double sampleRate, boolean aggregateTimers,
+                        int maxPacketBytes, int maxQueuedTimings) {
         this.host = host;
         this.port = port;
+        this.sampleRate = sampleRate;
+        this.aggregateTimers = aggregateTimers;
+        this.maxQueuedTimings = maxQueuedTimings;
+        this.packet = ByteBuffer.allocate(maxPacketBytes);
         try {
             this.prefix = "dynamo." + java.net.InetAddress.getLocalHost().getHostName();
         } catch (UnknownHostException e) {
             log.severe("Could not figure out hostname, using 'unknown'");
             this.prefix = "unknown";
         }
+        this.prefixBytes = ascii(prefix + ".");
         try {
             _address = new InetSocketAddress(InetAddress.getByName(host), port);
             _channel = DatagramChannel.open();
         } catch (Exception e) {
             throw new RuntimeException("Failed to start StatsD client", e);
         }
-        log.info("Creating statsd client for dynamo-session-manager: " + this.host + ":" + this.port);
+        this.flusher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "dynamo-statsd-flusher");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        this.flusher.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    flush();
+                } catch (Throwable t) {
+                    log.log(Level.SEVERE, "Failed to flush stats", t);
+                }
+            }
+        }, flushIntervalMillis, flushIntervalMillis, TimeUnit.MILLISECONDS);
+        log.info("Creating statsd client for dynamo-session-manager: " + this.host + ":" + this.port
+                + ", flushing every " + flushIntervalMillis + "ms");
+    }
+
+    /**
+     * Stop the flusher, sending whatever has been recorded so far, and close the channel.
+     */
+    public void shutdown() {
+        flusher.shutdown();
+        try {
+            flusher.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        flush();
+        try {
+            _channel.close();
+        } catch (IOException e) {
+            log.warning("Could not close statsd channel: " + e.getMessage());
+        }
+    }
+
+    /**
+     * @return the number of timing samples discarded because the flusher couldn't keep up
+     */
+    public long getDropped() {
+        return dropped.adder.sum();
     }
 
     /**
@@ -71,122 +169,295 @@ public class StatsdClient {
         time(aspect, start, end, sampleRate);
     }
 
-
-    //// Below this line copied from example client --AON
-
-	public boolean timing(String key, int value) {
-		return timing(key, value, 1.0);
-	}
+    public boolean timing(String key, int value) {
+        return timing(key, value, 1.0);
+    }
 
     public boolean timing(String key, double value) {
         Long lval = Math.round(Math.ceil(value));
         return timing(key, delta(0l, lval));
     }
 
-	public boolean timing(String key, int value, double sampleRate) {
-		return send(sampleRate, String.format(Locale.ENGLISH, "%s.%s:%d|ms", prefix, key, value));
-	}
-
-	public boolean decrement(String key) {
-		return increment(key, -1, 1.0);
-	}
-
-	public boolean decrement(String key, int magnitude) {
-		return decrement(key, magnitude, 1.0);
-	}
-
-	public boolean decrement(String key, int magnitude, double sampleRate) {
-		magnitude = magnitude < 0 ? magnitude : -magnitude;
-		return increment(key, magnitude, sampleRate);
-	}
-
-	public boolean decrement(String... keys) {
-		return increment(-1, 1.0, keys);
-	}
-
-	public boolean decrement(int magnitude, String... keys) {
-		magnitude = magnitude < 0 ? magnitude : -magnitude;
-		return increment(magnitude, 1.0, keys);
-	}
-
-	public boolean decrement(int magnitude, double sampleRate, String... keys) {
-		magnitude = magnitude < 0 ? magnitude : -magnitude;
-		return increment(magnitude, sampleRate, keys);
-	}
-
-	public boolean increment(String key) {
-		return increment(key, 1, 1.0);
-	}
-
-	public boolean increment(String key, int magnitude) {
-		return increment(key, magnitude, 1.0);
-	}
-
-	public boolean increment(String key, int magnitude, double sampleRate) {
-		String stat = String.format(Locale.ENGLISH, "%s.%s:%s|c", prefix, key, magnitude);
-		return send(sampleRate, stat);
-	}
-
-	public boolean increment(int magnitude, double sampleRate, String... keys) {
-		String[] stats = new String[keys.length];
-		for (int i = 0; i < keys.length; i++) {
-			stats[i] = String.format(Locale.ENGLISH, "%s.%s:%s|c", prefix, keys[i], magnitude);
-		}
-		return send(sampleRate, stats);
-	}
-
-	public boolean gauge(String key, double magnitude){
-		return gauge(key, magnitude, 1.0);
-	}
-
-	public boolean gauge(String key, double magnitude, double sampleRate){
-		final String stat = String.format(Locale.ENGLISH, "%s.%s:%s|g", prefix, key, magnitude);
-		return send(sampleRate, stat);
-	}
-
-	private boolean send(double sampleRate, String... stats) {
-
-		boolean retval = false; // didn't send anything
-		if (sampleRate < 1.0) {
-			for (String stat : stats) {
-				if (RNG.nextDouble() <= sampleRate) {
-					stat = String.format(Locale.ENGLISH, "%s|@%f", stat, sampleRate);
-					if (doSend(stat)) {
-						retval = true;
-					}
-				}
-			}
-		} else {
-			for (String stat : stats) {
-				if (doSend(stat)) {
-					retval = true;
-				}
-			}
-		}
-
-		return retval;
-	}
-
-	private boolean doSend(final String stat) {
-		try {
-			final byte[] data = stat.getBytes("utf-8");
-			final ByteBuffer buff = ByteBuffer.wrap(data);
-			final int nbSentBytes = _channel.send(buff, _address);
-
-			if (data.length == nbSentBytes) {
-				return true;
-			} else {
-				log.severe("Could not send entirely stat " + stat + " to host " + _address.getHostName()
-                        + ". Only sent " + nbSentBytes + " bytes out of " + data.length);
-				return false;
-			}
-
-		} catch (IOException e) {
-			log.severe("Could not send stat " + stat + " to host " + _address.getHostName());
-            e.printStackTrace();
-			return false;
-		}
-	}
+    /**
+     * Record a timing. The effective sample rate is the lower of the one given and the configured one; sampling
+     * only applies to queued timings, since aggregated timers are cheap to record in full.
+     */
+    public boolean timing(String key, int value, double sampleRate) {
+        return record(key, value, false, sampleRate);
+    }
+
+    /**
+     * Record a timing measured with System.nanoTime(). It is sent in milliseconds, to the microsecond, so that fast
+     * phases don't all round to zero.
+     */
+    public boolean timingNanos(String key, long nanos) {
+        return record(key, nanos / 1000, true, 1.0);
+    }
+
+    private boolean record(String key, long value, boolean micros, double sampleRate) {
+        if (aggregateTimers) {
+            histogram(key, micros).record((int) Math.min(value, Integer.MAX_VALUE));
+            return true;
+        }
+        double rate = Math.min(sampleRate, this.sampleRate);
+        if (rate < 1.0 && ThreadLocalRandom.current().nextDouble() > rate) {
+            return false;
+        }
+        if (queuedTimings.incrementAndGet() > maxQueuedTimings) {
+            queuedTimings.decrementAndGet();
+            dropped.adder.increment();
+            return false;
+        }
+        timings.offer(new Timing(key, value, micros, rate));
+        return true;
+    }
+
+    public boolean decrement(String key) {
+        return increment(key, -1, 1.0);
+    }
+
+    public boolean decrement(String key, int magnitude) {
+        return decrement(key, magnitude, 1.0);
+    }
+
+    public boolean decrement(String key, int magnitude, double sampleRate) {
+        magnitude = magnitude < 0 ? magnitude : -magnitude;
+        return increment(key, magnitude, sampleRate);
+    }
+
+    public boolean decrement(String... keys) {
+        return increment(-1, 1.0, keys);
+    }
+
+    public boolean decrement(int magnitude, String... keys) {
+        magnitude = magnitude < 0 ? magnitude : -magnitude;
+        return increment(magnitude, 1.0, keys);
+    }
+
+    public boolean decrement(int magnitude, double sampleRate, String... keys) {
+        magnitude = magnitude < 0 ? magnitude : -magnitude;
+        return increment(magnitude, sampleRate, keys);
+    }
+
+    public boolean increment(String key) {
+        return increment(key, 1, 1.0);
+    }
+
+    public boolean increment(String key, int magnitude) {
+        return increment(key, magnitude, 1.0);
+    }
+
+    /**
+     * Counters are summed locally and sent once per flush, so they are always recorded in full and the sample rate
+     * is ignored.
+     */
+    public boolean increment(String key, int magnitude, double sampleRate) {
+        counter(key).adder.add(magnitude);
+        return true;
+    }
+
+    public boolean increment(int magnitude, double sampleRate, String... keys) {
+        for (String key : keys) {
+            increment(key, magnitude, sampleRate);
+        }
+        return true;
+    }
+
+    public boolean gauge(String key, double magnitude) {
+        return gauge(key, magnitude, 1.0);
+    }
+
+    /**
+     * Gauges keep the last value set before each flush.
+     */
+    public boolean gauge(String key, double magnitude, double sampleRate) {
+        AtomicLong gauge = gauges.get(key);
+        if (gauge == null) {
+            AtomicLong created = new AtomicLong();
+            gauge = gauges.putIfAbsent(key, created);
+            if (gauge == null) {
+                gauge = created;
+            }
+        }
+        gauge.set(Double.doubleToRawLongBits(magnitude));
+        return true;
+    }
+
+    /**
+     * Send everything recorded since the last flush. Called from the flusher thread.
+     */
+    protected synchronized void flush() {
+        packet.clear();
+        long droppedNow = dropped.takeDelta();
+        if (droppedNow != 0) {
+            writeLine(DROPPED_KEY, null, droppedNow, false, "|c", 1.0);
+        }
+        for (Map.Entry<String, Counter> entry : counters.entrySet()) {
+            long value = entry.getValue().takeDelta();
+            if (value != 0) {
+                writeLine(entry.getKey(), null, value, false, "|c", 1.0);
+            }
+        }
+        for (Map.Entry<String, AtomicLong> entry : gauges.entrySet()) {
+            double value = Double.longBitsToDouble(entry.getValue().get());
+            writeLine(entry.getKey(), null, Math.round(value * 1000), true, "|g", 1.0);
+        }
+        Timing timing;
+        while ((timing = timings.poll()) != null) {
+            queuedTimings.decrementAndGet();
+            writeLine(timing.key, null, timing.value, timing.micros, "|ms", timing.sampleRate);
+        }
+        for (Map.Entry<String, Histogram> entry : histograms.entrySet()) {
+            Histogram.Snapshot snapshot = entry.getValue().snapshotAndReset();
+            if (snapshot.count == 0) {
+                continue;
+            }
+            boolean micros = entry.getValue().micros;
+            for (int i = 0; i < PERCENTILES.length; i++) {
+                writeLine(entry.getKey(), PERCENTILE_SUFFIXES[i], snapshot.percentile(PERCENTILES[i]), micros, "|g",
+                        1.0);
+            }
+            writeLine(entry.getKey(), MAX_SUFFIX, snapshot.max, micros, "|g", 1.0);
+            writeLine(entry.getKey(), COUNT_SUFFIX, snapshot.count, false, "|c", 1.0);
+        }
+        sendPacket();
+    }
+
+    private Counter counter(String key) {
+        Counter counter = counters.get(key);
+        if (counter == null) {
+            Counter created = new Counter();
+            counter = counters.putIfAbsent(key, created);
+            if (counter == null) {
+                counter = created;
+            }
+        }
+        return counter;
+    }
+
+    private Histogram histogram(String key, boolean micros) {
+        Histogram histogram = histograms.get(key);
+        if (histogram == null) {
+            Histogram created = new Histogram(micros);
+            histogram = histograms.putIfAbsent(key, created);
+            if (histogram == null) {
+                histogram = created;
+            }
+        }
+        return histogram;
+    }
+
+    /**
+     * Append "prefix.key[suffix]:value|type[|@rate]\n" to the packet, sending the packet first if the line won't fit.
+     * If thousandths is set, value is fixed point with three decimal places.
+     */
+    private void writeLine(String key, byte[] suffix, long value, boolean thousandths, String type, double rate) {
+        byte[] keyData = keyBytes.get(key);
+        if (keyData == null) {
+            keyData = ascii(key);
+            keyBytes.put(key, keyData);
+        }
+        int length = prefixBytes.length + keyData.length + (suffix == null ? 0 : suffix.length) + 25 + type.length()
+                + (rate < 1.0 ? 16 : 0);
+        if (length > packet.capacity()) {
+            log.warning("Stat " + key + " is too long to send");
+            return;
+        }
+        if (packet.remaining() < length) {
+            sendPacket();
+        }
+        packet.put(prefixBytes).put(keyData);
+        if (suffix != null) {
+            packet.put(suffix);
+        }
+        packet.put((byte) ':');
+        if (thousandths) {
+            if (value < 0) {
+                packet.put((byte) '-');
+                value = -value;
+            }
+            putLong(value / 1000);
+            long fraction = value % 1000;
+            if (fraction != 0) {
+                packet.put((byte) '.');
+                packet.put((byte) ('0' + fraction / 100)).put((byte) ('0' + fraction / 10 % 10))
+                        .put((byte) ('0' + fraction % 10));
+            }
+        } else {
+            putLong(value);
+        }
+        putAscii(type);
+        if (rate < 1.0) {
+            putAscii("|@0.");
+            long millionths = Math.round(rate * 1000000);
+            for (long div = 100000; div > 0; div /= 10) {
+                packet.put((byte) ('0' + millionths / div % 10));
+            }
+        }
+        packet.put((byte) '\n');
+    }
+
+    private void putLong(long value) {
+        if (value < 0) {
+            packet.put((byte) '-');
+            if (value == Long.MIN_VALUE) {
+                putAscii("9223372036854775808");
+                return;
+            }
+            value = -value;
+        }
+        if (value == 0) {
+            packet.put((byte) '0');
+            return;
+        }
+        int start = packet.position();
+        while (value > 0) {
+            packet.put((byte) ('0' + value % 10));
+            value /= 10;
+        }
+        // digits were written least significant first
+        for (int i = start, j = packet.position() - 1; i < j; i++, j--) {
+            byte b = packet.get(i);
+            packet.put(i, packet.get(j));
+            packet.put(j, b);
+        }
+    }
+
+    private void putAscii(String value) {
+        for (int i = 0; i < value.length(); i++) {
+            packet.put((byte) value.charAt(i));
+        }
+    }
+
+    private void sendPacket() {
+        if (packet.position() == 0) {
+            return;
+        }
+        packet.flip();
+        int length = packet.remaining();
+        try {
+            int nbSentBytes = _channel.send(packet, _address);
+            if (nbSentBytes != length) {
+                log.severe("Could not send entirely stats packet to host " + _address.getHostName()
+                        + ". Only sent " + nbSentBytes + " bytes out of " + length);
+            }
+        } catch (IOException e) {
+            log.severe("Could not send stats packet to host " + _address.getHostName() + ": " + e.getMessage());
+        }
+        packet.clear();
+    }
+
+    /**
+     * Metric names are plain ASCII; anything else is replaced so it can't corrupt the packet.
+     */
+    private static byte[] ascii(String value) {
+        byte[] data = new byte[value.length()];
+        for (int i = 0; i < data.length; i++) {
+            char c = value.charAt(i);
+            data[i] = (c < 0x80 && c != ':' && c != '|' && c != '\n') ? (byte) c : (byte) '_';
+        }
+        return data;
+    }
 
     /**
      * Return an int = t1 -t0
@@ -200,4 +471,118 @@ public class StatsdClient {
         return (int) delta;
     }
 
+    /**
+     * Counter recorded with a striped adder on the hot path. The flusher sends the difference from what it sent last
+     * time rather than resetting the adder, so increments racing with a flush are never lost.
+     */
+    private static class Counter {
+        final LongAdder adder = new LongAdder();
+        private long sent;
+
+        long takeDelta() {
+            long total = adder.sum();
+            long delta = total - sent;
+            sent = total;
+            return delta;
+        }
+    }
+
+    private static class Timing {
+        final String key;
+        final long value;
+        final boolean micros;
+        final double sampleRate;
+
+        Timing(String key, long value, boolean micros, double sampleRate) {
+            this.key = key;
+            this.value = value;
+            this.micros = micros;
+            this.sampleRate = sampleRate;
+        }
+    }
+
+    /**
+     * Lock-free log-linear histogram of non-negative ints: exact below 64, then 16 buckets per power of two
+     * (about 6% error), which is plenty for percentiles of timings. Values are millis, or micros if so created.
+     */
+    static class Histogram {
+        private static final int LINEAR = 64;
+        private static final int SUB_BUCKETS = 16;
+        private static final int BUCKETS = LINEAR + (31 - 6) * SUB_BUCKETS;
+
+        private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+        private final AtomicLong max = new AtomicLong();
+        final boolean micros;
+
+        Histogram(boolean micros) {
+            this.micros = micros;
+        }
+
+        void record(int value) {
+            if (value < 0) {
+                value = 0;
+            }
+            buckets.incrementAndGet(bucketFor(value));
+            long current = max.get();
+            while (value > current && !max.compareAndSet(current, value)) {
+                current = max.get();
+            }
+        }
+
+        Snapshot snapshotAndReset() {
+            long counts[] = new long[BUCKETS];
+            long total = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                counts[i] = buckets.getAndSet(i, 0);
+                total += counts[i];
+            }
+            return new Snapshot(counts, total, max.getAndSet(0));
+        }
+
+        static int bucketFor(int value) {
+            if (value < LINEAR) {
+                return value;
+            }
+            int log2 = 31 - Integer.numberOfLeadingZeros(value);
+            int sub = (value >> (log2 - 4)) & (SUB_BUCKETS - 1);
+            return LINEAR + (log2 - 6) * SUB_BUCKETS + sub;
+        }
+
+        /**
+         * @return the largest value that falls into the given bucket
+         */
+        static long upperBound(int bucket) {
+            if (bucket < LINEAR) {
+                return bucket;
+            }
+            int log2 = (bucket - LINEAR) / SUB_BUCKETS + 6;
+            long sub = (bucket - LINEAR) % SUB_BUCKETS;
+            long width = 1L << (log2 - 4);
+            return (1L << log2) + (sub + 1) * width - 1;
+        }
+
+        static class Snapshot {
+            final long counts[];
+            final long count;
+            final long max;
+
+            Snapshot(long counts[], long count, long max) {
+                this.counts = counts;
+                this.count = count;
+                this.max = max;
+            }
+
+            long percentile(double percentile) {
+                long rank = (long) Math.ceil(percentile * count);
+                long seen = 0;
+                for (int i = 0; i < counts.length; i++) {
+                    seen += counts[i];
+                    if (seen >= rank) {
+                        return Math.min(upperBound(i), max);
+                    }
+                }
+                return max;
+            }
+        }
+    }
 }
@@ -0,0 +1,111 @@
+/***********************************************************************************************************************
+ *
+ * Dynamo Tomcat Sessions
+ * ==========================================
+ *
+ * Copyright (C) 2013 by EnergyHub Inc. (http://www.energyhub.com)
+ *
+ ***********************************************************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ *
+ **********************************************************************************************************************/
+
+package net.energyhub.session;
+
+/**
+ * The session tables in use at one moment, as published by the DynamoTableRotator. Immutable, so a request reads it
+ * once and uses a current and previous table from the same rotation, without taking the rotator's lock.
+ */
+public final class TableTopology {
+    public static final TableTopology EMPTY = new TableTopology(0, null, null, null, 0, 0, 0);
+
+    private final long epoch;
+    private final String currentTableName;
+    private final String previousTableName;
+    private final String nextTableName;
+    private final long changedAtMillis;
+    private final long readCapacity;
+    private final long writeCapacity;
+
+    public TableTopology(long epoch, String currentTableName, String previousTableName, String nextTableName,
+                         long changedAtMillis, long readCapacity, long writeCapacity) {
+        this.epoch = epoch;
+        this.currentTableName = currentTableName;
+        this.previousTableName = previousTableName;
+        this.nextTableName = nextTableName;
+        this.changedAtMillis = changedAtMillis;
+        this.readCapacity = readCapacity;
+        this.writeCapacity = writeCapacity;
+    }
+
+    /**
+     * @return a number that goes up by one with every change, 0 before the rotator is initialized
+     */
+    public long getEpoch() {
+        return epoch;
+    }
+
+    public String getCurrentTableName() {
+        return currentTableName;
+    }
+
+    /**
+     * @return the table sessions are read from when they aren't in the current one, or null
+     */
+    public String getPreviousTableName() {
+        return previousTableName;
+    }
+
+    /**
+     * @return the table the next rotation will switch to
+     */
+    public String getNextTableName() {
+        return nextTableName;
+    }
+
+    /**
+     * @return when this topology was published, in epoch millis
+     */
+    public long getChangedAtMillis() {
+        return changedAtMillis;
+    }
+
+    /**
+     * @return the provisioned read capacity of the current table, or 0 if not known
+     */
+    public long getReadCapacity() {
+        return readCapacity;
+    }
+
+    /**
+     * @return the provisioned write capacity of the current table, or 0 if not known
+     */
+    public long getWriteCapacity() {
+        return writeCapacity;
+    }
+
+    @Override
+    public String toString() {
+        return "epoch=" + epoch + " current=" + currentTableName + " previous=" + previousTableName
+                + " next=" + nextTableName + " read=" + readCapacity + " write=" + writeCapacity;
+    }
+
+    /**
+     * Told when the rotator publishes a new topology.
+     */
+    public interface Listener {
+        /**
+         * Called on the thread that changed the topology (startup, or background processing); should be quick.
+         * @param previous the topology before, EMPTY the first time
+         */
+        void topologyChanged(TableTopology previous, TableTopology current);
+    }
+}
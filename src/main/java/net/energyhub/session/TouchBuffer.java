@@ -0,0 +1,286 @@
+/***********************************************************************************************************************
+ *
+ * Dynamo Tomcat Sessions
+ * ==========================================
+ *
+ * Copyright (C) 2013 by EnergyHub Inc. (http://www.energyhub.com)
+ *
+ ***********************************************************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ *
+ **********************************************************************************************************************/
+
+package net.energyhub.session;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.dynamodb.AmazonDynamoDB;
+import com.amazonaws.services.dynamodb.model.*;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Collects the last accessed times of sessions whose attributes didn't change, and writes them in batches as small
+ * touch items next to the session items, instead of updating each session item as its request ends.
+ *
+ * A touch item is keyed by the session id plus '#touch' and holds only lastAccessed, so it costs one write unit
+ * however big the session is, and up to 25 go in one BatchWriteItem. Within a flush window only the newest touch
+ * per session is kept. loadSession reads the touch item with the session item, in one batch get, and uses the later
+ * of the two times. Touch items live in the same rotating tables as the sessions, so they go with them.
+ */
+public class TouchBuffer {
+    final private static Logger log = Logger.getLogger(TouchBuffer.class.getName());
+
+    public static final String TOUCH_SUFFIX = "#touch";
+    private static final int MAX_ATTEMPTS = 5;
+    private static final long DRAIN_PAUSE_MILLIS = 100;
+
+    private final DynamoManager manager;
+    private final AmazonDynamoDB dynamo;
+    private final long flushMillis;
+    private final ConcurrentHashMap<Touch, Long> pending = new ConcurrentHashMap<Touch, Long>();
+    private ScheduledExecutorService flusher;
+
+    public TouchBuffer(DynamoManager manager, AmazonDynamoDB dynamo, long flushMillis) {
+        this.manager = manager;
+        this.dynamo = dynamo;
+        this.flushMillis = flushMillis;
+    }
+
+    public static String touchKey(String id) {
+        return id + TOUCH_SUFFIX;
+    }
+
+    /**
+     * Start flushing every flushMillis.
+     */
+    public synchronized void start() {
+        if (flusher != null) {
+            return;
+        }
+        flusher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "dynamo-session-touches");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        flusher.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    flush();
+                } catch (RuntimeException e) {
+                    log.log(Level.WARNING, "Error flushing session touches", e);
+                }
+            }
+        }, flushMillis, flushMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stop the flusher and write what is left.
+     */
+    public void stop() {
+        stop(System.currentTimeMillis() + flushMillis + 5000);
+    }
+
+    /**
+     * Stop the flusher and write what is left, retrying failures until the deadline.
+     * @param deadline when to give up, in epoch millis
+     */
+    public void stop(long deadline) {
+        ScheduledExecutorService flusher;
+        synchronized (this) {
+            flusher = this.flusher;
+            this.flusher = null;
+        }
+        if (flusher != null) {
+            flusher.shutdown();
+            try {
+                flusher.awaitTermination(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        flush();
+        while (size() > 0 && System.currentTimeMillis() < deadline) {
+            try {
+                Thread.sleep(Math.min(DRAIN_PAUSE_MILLIS, Math.max(1, deadline - System.currentTimeMillis())));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+            flush();
+        }
+        if (size() > 0) {
+            log.warning("Dropping " + size() + " touches not written by the deadline");
+        }
+    }
+
+    /**
+     * Record that a session was accessed; it's written with the next flush.
+     */
+    public void touch(String table, String id, long lastAccessed) {
+        if (!merge(new Touch(table, id), lastAccessed)) {
+            manager.getStats().coalescedTouch();
+        }
+    }
+
+    /**
+     * Keep the later of this time and any pending one.
+     * @return whether there was none pending
+     */
+    private boolean merge(Touch touch, long lastAccessed) {
+        Long previous = pending.putIfAbsent(touch, lastAccessed);
+        if (previous == null) {
+            return true;
+        }
+        while (previous != null && previous < lastAccessed && !pending.replace(touch, previous, lastAccessed)) {
+            previous = pending.putIfAbsent(touch, lastAccessed); // changed or flushed under us
+        }
+        return false;
+    }
+
+    /**
+     * @return the last accessed time waiting to be written for this session, or 0
+     */
+    public long pendingTouch(String table, String id) {
+        Long lastAccessed = pending.get(new Touch(table, id));
+        return lastAccessed == null ? 0 : lastAccessed;
+    }
+
+    public int size() {
+        return pending.size();
+    }
+
+    /**
+     * Write all pending touches, up to 25 to a batch. Touches that can't be written are kept for the next flush.
+     * @return how many were written
+     */
+    public int flush() {
+        if (pending.isEmpty()) {
+            return 0;
+        }
+        Map<String, List<WriteRequest>> byTable = new HashMap<String, List<WriteRequest>>();
+        Map<String, Touch> byKey = new HashMap<String, Touch>();
+        Map<Touch, Long> taken = new HashMap<Touch, Long>();
+        for (Iterator<Map.Entry<Touch, Long>> it = pending.entrySet().iterator(); it.hasNext(); ) {
+            Map.Entry<Touch, Long> entry = it.next();
+            Touch touch = entry.getKey();
+            Long lastAccessed = entry.getValue();
+            if (!pending.remove(touch, lastAccessed)) {
+                continue; // touched again meanwhile; the next flush gets it
+            }
+            taken.put(touch, lastAccessed);
+            Map<String, AttributeValue> item = new HashMap<String, AttributeValue>();
+            item.put(DynamoManager.COLUMN_ID, new AttributeValue().withS(touchKey(touch.id)));
+            item.put(DynamoManager.COLUMN_LAST_ACCESSED, new AttributeValue().withN(Long.toString(lastAccessed)));
+            List<WriteRequest> requests = byTable.get(touch.table);
+            if (requests == null) {
+                byTable.put(touch.table, requests = new ArrayList<WriteRequest>());
+            }
+            requests.add(new WriteRequest().withPutRequest(new PutRequest().withItem(item)));
+            byKey.put(touch.table + '\n' + touchKey(touch.id), touch);
+        }
+
+        int written = 0;
+        for (Map.Entry<String, List<WriteRequest>> table : byTable.entrySet()) {
+            List<WriteRequest> requests = table.getValue();
+            for (int start = 0; start < requests.size(); start += SessionChunkStore.MAX_BATCH_WRITE_ITEMS) {
+                List<WriteRequest> batch = requests.subList(start,
+                        Math.min(requests.size(), start + SessionChunkStore.MAX_BATCH_WRITE_ITEMS));
+                List<WriteRequest> failed = batchWrite(table.getKey(), batch);
+                written += batch.size() - failed.size();
+                for (WriteRequest request : failed) {
+                    String key = request.getPutRequest().getItem().get(DynamoManager.COLUMN_ID).getS();
+                    Touch touch = byKey.get(table.getKey() + '\n' + key);
+                    if (touch != null) {
+                        merge(touch, taken.get(touch)); // try again next time
+                    }
+                }
+            }
+        }
+        return written;
+    }
+
+    /**
+     * @return whatever could not be written after retrying
+     */
+    private List<WriteRequest> batchWrite(String table, List<WriteRequest> requests) {
+        Map<String, List<WriteRequest>> request = new HashMap<String, List<WriteRequest>>();
+        request.put(table, new ArrayList<WriteRequest>(requests));
+        int sent = requests.size();
+        for (int attempt = 0; ; attempt++) {
+            BatchWriteItemResult result;
+            try {
+                result = dynamo.batchWriteItem(new BatchWriteItemRequest().withRequestItems(request));
+            } catch (ResourceNotFoundException e) {
+                log.fine("Table " + table + " is gone, dropping " + sent + " touches");
+                return Collections.emptyList();
+            } catch (AmazonClientException e) {
+                log.warning("Unable to write " + sent + " session touches to " + table + ": " + e);
+                return request.get(table);
+            }
+            Double units = null;
+            if (result.getResponses() != null && result.getResponses().get(table) != null) {
+                units = result.getResponses().get(table).getConsumedCapacityUnits();
+            }
+            request = result.getUnprocessedItems();
+            List<WriteRequest> unprocessed = request == null ? null : request.get(table);
+            int done = sent - (unprocessed == null ? 0 : unprocessed.size());
+            manager.getStats().touchesWritten(table, done, units);
+            if (unprocessed == null || unprocessed.isEmpty()) {
+                return Collections.emptyList();
+            }
+            sent = unprocessed.size();
+            if (attempt + 1 >= MAX_ATTEMPTS) {
+                return unprocessed;
+            }
+            try {
+                Thread.sleep(10L << (attempt + 1));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return unprocessed;
+            }
+        }
+    }
+
+    private static final class Touch {
+        final String table;
+        final String id;
+
+        Touch(String table, String id) {
+            this.table = table;
+            this.id = id;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Touch)) {
+                return false;
+            }
+            Touch other = (Touch) o;
+            return id.equals(other.id) && table.equals(other.table);
+        }
+
+        @Override
+        public int hashCode() {
+            return id.hashCode() * 31 + table.hashCode();
+        }
+    }
+}
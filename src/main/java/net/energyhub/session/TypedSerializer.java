@@ -0,0 +1,526 @@
+/***********************************************************************************************************************
+ *
+ * Dynamo Tomcat Sessions
+ * ==========================================
+ *
+ * Copyright (C) 2013 by EnergyHub Inc. (http://www.energyhub.com)
+ *
+ ***********************************************************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ *
+ **********************************************************************************************************************/
+
+package net.energyhub.session;
+
+import org.apache.catalina.session.StandardSession;
+import org.apache.catalina.util.CustomObjectInputStream;
+
+import javax.servlet.http.HttpSession;
+import java.io.*;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Writes the attribute types sessions mostly hold (strings, boxed primitives, dates, byte arrays, and ArrayLists and
+ * HashMaps of those) as a one byte tag and a raw encoding: varints for integers, UTF-8 for strings, encoded straight
+ * into the output buffer. Any other value is written with Java serialization, on its own, so one unusual attribute
+ * doesn't make the rest pay for class descriptors. Payloads over COMPRESS_ABOVE bytes are gzipped.
+ *
+ * Payloads written by JavaSerializer, plain gzip streams or written with a class dictionary, are still read, so
+ * switching serializers doesn't lose the stored sessions. Unlike Java serialization, a list or map that two
+ * attributes share is stored, and loaded, once per attribute. Attributes that can't be serialized are left out, as
+ * StandardSession does.
+ */
+public class TypedSerializer implements Serializer {
+    final private static Logger log = Logger.getLogger(TypedSerializer.class.getName());
+
+    public static final int COMPRESS_ABOVE = 1024;
+
+    static final byte FORMAT_PLAIN = 1;
+    static final byte FORMAT_GZIP = 2;
+    private static final byte GZIP_MAGIC = 0x1f;
+
+    static final byte NULL = 0;
+    static final byte STRING = 1;
+    static final byte INTEGER = 2;
+    static final byte LONG = 3;
+    static final byte TRUE = 4;
+    static final byte FALSE = 5;
+    static final byte DOUBLE = 6;
+    static final byte FLOAT = 7;
+    static final byte SHORT = 8;
+    static final byte BYTE = 9;
+    static final byte CHARACTER = 10;
+    static final byte DATE = 11;
+    static final byte BYTES = 12;
+    static final byte ARRAY_LIST = 13;
+    static final byte HASH_MAP = 14;
+    static final byte LINKED_HASH_MAP = 15;
+    static final byte JAVA = 31;
+
+    /**
+     * Nesting deeper than this goes to Java serialization, which also copes with cycles.
+     */
+    private static final int MAX_DEPTH = 8;
+
+    private final JavaSerializer legacy = new JavaSerializer();
+    private ClassLoader loader;
+
+    @Override
+    public void setClassLoader(ClassLoader loader) {
+        this.loader = loader;
+        legacy.setClassLoader(loader);
+    }
+
+    /**
+     * Read JavaSerializer payloads written with class dictionaries from these.
+     */
+    public void setDictionaries(ClassDictionaries dictionaries) {
+        legacy.setDictionaries(dictionaries);
+    }
+
+    @Override
+    public ByteBuffer serializeFrom(HttpSession session) throws IOException {
+        StandardSession standardSession = (StandardSession) session;
+        Encoder out = new Encoder(256);
+        out.writeByte(FORMAT_PLAIN);
+        out.writeVarLong(standardSession.getCreationTimeInternal());
+        out.writeVarLong(standardSession.getLastAccessedTimeInternal());
+        out.writeVarLong(standardSession.getThisAccessedTimeInternal());
+        out.writeVarLong(zigZag(standardSession.getMaxInactiveInterval()));
+        out.writeByte(standardSession.isNew() ? TRUE : FALSE);
+        out.writeString(standardSession.getIdInternal());
+        int countAt = out.reserveInt();
+        int count = 0;
+        for (Enumeration<String> names = standardSession.getAttributeNames(); names.hasMoreElements(); ) {
+            String name = names.nextElement();
+            Object value = standardSession.getAttribute(name);
+            if (value == null) {
+                continue;
+            }
+            int mark = out.position();
+            try {
+                out.writeString(name);
+                writeValue(out, value, 0);
+                count++;
+            } catch (NotSerializableException e) {
+                out.reset(mark);
+                if (log.isLoggable(Level.FINE)) {
+                    log.fine("Leaving out attribute " + name + ", it can't be serialized: " + e.getMessage());
+                }
+            }
+        }
+        out.putInt(countAt, count);
+
+        if (out.position() <= COMPRESS_ABOVE) {
+            return out.toByteBuffer();
+        }
+        ByteArrayOutputStream bos = new ByteArrayOutputStream(out.position() / 2);
+        bos.write(FORMAT_GZIP);
+        GZIPOutputStream gzos = new GZIPOutputStream(bos);
+        gzos.write(out.buffer, 1, out.position() - 1);
+        gzos.finish();
+        return ByteBuffer.wrap(bos.toByteArray());
+    }
+
+    @Override
+    public HttpSession deserializeInto(ByteBuffer data, HttpSession session) throws IOException,
+            ClassNotFoundException {
+        ByteBuffer in = data.duplicate();
+        if (!in.hasRemaining()) {
+            throw new IOException("Empty session payload");
+        }
+        byte format = in.get(in.position());
+        if (format == GZIP_MAGIC || format == JavaSerializer.DICTIONARY_FORMAT) {
+            return legacy.deserializeInto(data, session); // written by JavaSerializer
+        }
+        if (!(session instanceof DynamoSession)) {
+            throw new IOException("TypedSerializer can only load into a DynamoSession");
+        }
+        try {
+            return readSession(in, (DynamoSession) session);
+        } catch (BufferUnderflowException e) {
+            throw new IOException("Truncated session payload", e);
+        }
+    }
+
+    private HttpSession readSession(ByteBuffer in, DynamoSession dynamoSession) throws IOException,
+            ClassNotFoundException {
+        byte format = in.get();
+        if (format == FORMAT_GZIP) {
+            in = gunzip(in);
+        } else if (format != FORMAT_PLAIN) {
+            throw new IOException("Unknown session payload format " + format);
+        }
+        long creationTime = readVarLong(in);
+        long lastAccessedTime = readVarLong(in);
+        long thisAccessedTime = readVarLong(in);
+        int maxInactiveInterval = (int) unZigZag(readVarLong(in));
+        boolean isNew = in.get() == TRUE;
+        String id = readString(in);
+        dynamoSession.restore(creationTime, lastAccessedTime, thisAccessedTime, maxInactiveInterval, isNew, id);
+        int count = in.getInt();
+        for (int i = 0; i < count; i++) {
+            String name = readString(in);
+            dynamoSession.restoreAttribute(name, readValue(in));
+        }
+        return dynamoSession;
+    }
+
+    private void writeValue(Encoder out, Object value, int depth) throws IOException {
+        if (value == null) {
+            out.writeByte(NULL);
+            return;
+        }
+        Class<?> type = value.getClass();
+        if (type == String.class) {
+            out.writeByte(STRING);
+            out.writeString((String) value);
+        } else if (type == Integer.class) {
+            out.writeByte(INTEGER);
+            out.writeVarLong(zigZag((Integer) value));
+        } else if (type == Long.class) {
+            out.writeByte(LONG);
+            out.writeVarLong(zigZag((Long) value));
+        } else if (type == Boolean.class) {
+            out.writeByte((Boolean) value ? TRUE : FALSE);
+        } else if (type == Double.class) {
+            out.writeByte(DOUBLE);
+            out.writeLong(Double.doubleToRawLongBits((Double) value));
+        } else if (type == Float.class) {
+            out.writeByte(FLOAT);
+            out.writeInt(Float.floatToRawIntBits((Float) value));
+        } else if (type == Short.class) {
+            out.writeByte(SHORT);
+            out.writeVarLong(zigZag((Short) value));
+        } else if (type == Byte.class) {
+            out.writeByte(BYTE);
+            out.writeByte((Byte) value);
+        } else if (type == Character.class) {
+            out.writeByte(CHARACTER);
+            out.writeVarLong((Character) value);
+        } else if (type == Date.class) {
+            out.writeByte(DATE);
+            out.writeVarLong(zigZag(((Date) value).getTime()));
+        } else if (type == byte[].class) {
+            byte[] bytes = (byte[]) value;
+            out.writeByte(BYTES);
+            out.writeVarLong(bytes.length);
+            out.writeBytes(bytes, 0, bytes.length);
+        } else if (type == ArrayList.class && depth < MAX_DEPTH) {
+            List<?> list = (List<?>) value;
+            out.writeByte(ARRAY_LIST);
+            out.writeVarLong(list.size());
+            for (Object element : list) {
+                writeValue(out, element, depth + 1);
+            }
+        } else if ((type == HashMap.class || type == LinkedHashMap.class) && depth < MAX_DEPTH) {
+            Map<?, ?> map = (Map<?, ?>) value;
+            out.writeByte(type == HashMap.class ? HASH_MAP : LINKED_HASH_MAP);
+            out.writeVarLong(map.size());
+            for (Map.Entry<?, ?> entry : map.entrySet()) {
+                writeValue(out, entry.getKey(), depth + 1);
+                writeValue(out, entry.getValue(), depth + 1);
+            }
+        } else {
+            if (!(value instanceof Serializable)) {
+                throw new NotSerializableException(type.getName());
+            }
+            out.writeByte(JAVA);
+            int lengthAt = out.reserveInt();
+            ObjectOutputStream oos = new ObjectOutputStream(out);
+            oos.writeObject(value);
+            oos.flush();
+            out.putInt(lengthAt, out.position() - lengthAt - 4);
+        }
+    }
+
+    private Object readValue(ByteBuffer in) throws IOException, ClassNotFoundException {
+        byte tag = in.get();
+        switch (tag) {
+            case NULL:
+                return null;
+            case STRING:
+                return readString(in);
+            case INTEGER:
+                return (int) unZigZag(readVarLong(in));
+            case LONG:
+                return unZigZag(readVarLong(in));
+            case TRUE:
+                return Boolean.TRUE;
+            case FALSE:
+                return Boolean.FALSE;
+            case DOUBLE:
+                return Double.longBitsToDouble(in.getLong());
+            case FLOAT:
+                return Float.intBitsToFloat(in.getInt());
+            case SHORT:
+                return (short) unZigZag(readVarLong(in));
+            case BYTE:
+                return in.get();
+            case CHARACTER:
+                return (char) readVarLong(in);
+            case DATE:
+                return new Date(unZigZag(readVarLong(in)));
+            case BYTES: {
+                byte[] bytes = new byte[readLength(in)];
+                in.get(bytes);
+                return bytes;
+            }
+            case ARRAY_LIST: {
+                int size = readLength(in);
+                List<Object> list = new ArrayList<Object>(size);
+                for (int i = 0; i < size; i++) {
+                    list.add(readValue(in));
+                }
+                return list;
+            }
+            case HASH_MAP:
+            case LINKED_HASH_MAP: {
+                int size = readLength(in);
+                Map<Object, Object> map = tag == HASH_MAP ? new HashMap<Object, Object>(size * 4 / 3 + 1)
+                        : new LinkedHashMap<Object, Object>(size * 4 / 3 + 1);
+                for (int i = 0; i < size; i++) {
+                    Object key = readValue(in);
+                    map.put(key, readValue(in));
+                }
+                return map;
+            }
+            case JAVA: {
+                int length = in.getInt();
+                if (length < 0 || length > in.remaining()) {
+                    throw new IOException("Corrupt session payload: " + length + " bytes of object");
+                }
+                InputStream bytes;
+                if (in.hasArray()) {
+                    bytes = new ByteArrayInputStream(in.array(), in.arrayOffset() + in.position(), length);
+                } else {
+                    byte[] copy = new byte[length];
+                    in.duplicate().get(copy);
+                    bytes = new ByteArrayInputStream(copy);
+                }
+                in.position(in.position() + length);
+                return new CustomObjectInputStream(bytes, loader).readObject();
+            }
+            default:
+                throw new IOException("Unknown attribute tag " + tag + " in session payload");
+        }
+    }
+
+    private static ByteBuffer gunzip(ByteBuffer in) throws IOException {
+        byte[] compressed;
+        int offset;
+        if (in.hasArray()) {
+            compressed = in.array();
+            offset = in.arrayOffset() + in.position();
+        } else {
+            compressed = new byte[in.remaining()];
+            in.duplicate().get(compressed);
+            offset = 0;
+        }
+        InputStream gzis = new GZIPInputStream(new ByteArrayInputStream(compressed, offset, in.remaining()));
+        ByteArrayOutputStream bos = new ByteArrayOutputStream(in.remaining() * 4);
+        byte[] buffer = new byte[4096];
+        for (int n; (n = gzis.read(buffer)) > 0; ) {
+            bos.write(buffer, 0, n);
+        }
+        return ByteBuffer.wrap(bos.toByteArray());
+    }
+
+    static long zigZag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    static long unZigZag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    static long readVarLong(ByteBuffer in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = in.get();
+            value |= (long) (b & 0x7f) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+        throw new IOException("Corrupt session payload: varint too long");
+    }
+
+    /**
+     * @return a byte count or element count, which can't be more than the bytes left
+     */
+    private static int readLength(ByteBuffer in) throws IOException {
+        long length = readVarLong(in);
+        if (length < 0 || length > in.remaining()) {
+            throw new IOException("Corrupt session payload: length " + length);
+        }
+        return (int) length;
+    }
+
+    static String readString(ByteBuffer in) throws IOException {
+        int length = readLength(in);
+        String value;
+        if (in.hasArray()) {
+            value = new String(in.array(), in.arrayOffset() + in.position(), length, StandardCharsets.UTF_8);
+            in.position(in.position() + length);
+        } else {
+            byte[] bytes = new byte[length];
+            in.get(bytes);
+            value = new String(bytes, StandardCharsets.UTF_8);
+        }
+        return value;
+    }
+
+    /**
+     * A growable byte buffer with the encodings above. It is also an OutputStream, so Java serialization of an
+     * attribute goes straight into it.
+     */
+    static final class Encoder extends OutputStream {
+        byte[] buffer;
+        private int position;
+
+        Encoder(int capacity) {
+            buffer = new byte[capacity];
+        }
+
+        int position() {
+            return position;
+        }
+
+        void reset(int position) {
+            this.position = position;
+        }
+
+        private void ensure(int more) {
+            if (position + more > buffer.length) {
+                buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, position + more));
+            }
+        }
+
+        @Override
+        public void write(int b) {
+            writeByte(b);
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int length) {
+            writeBytes(bytes, offset, length);
+        }
+
+        void writeByte(int b) {
+            ensure(1);
+            buffer[position++] = (byte) b;
+        }
+
+        void writeBytes(byte[] bytes, int offset, int length) {
+            ensure(length);
+            System.arraycopy(bytes, offset, buffer, position, length);
+            position += length;
+        }
+
+        void writeVarLong(long value) {
+            ensure(10);
+            while ((value & ~0x7fL) != 0) {
+                buffer[position++] = (byte) ((value & 0x7f) | 0x80);
+                value >>>= 7;
+            }
+            buffer[position++] = (byte) value;
+        }
+
+        void writeInt(int value) {
+            ensure(4);
+            putInt(position, value);
+            position += 4;
+        }
+
+        void writeLong(long value) {
+            writeInt((int) (value >>> 32));
+            writeInt((int) value);
+        }
+
+        /**
+         * @return where the int goes, to putInt once it is known
+         */
+        int reserveInt() {
+            ensure(4);
+            position += 4;
+            return position - 4;
+        }
+
+        void putInt(int at, int value) {
+            buffer[at] = (byte) (value >>> 24);
+            buffer[at + 1] = (byte) (value >>> 16);
+            buffer[at + 2] = (byte) (value >>> 8);
+            buffer[at + 3] = (byte) value;
+        }
+
+        /**
+         * Write the UTF-8 length, then encode the characters straight into the buffer. Unpaired surrogates become
+         * '?', as String.getBytes does.
+         */
+        void writeString(String value) {
+            int length = value.length();
+            int bytes = 0;
+            for (int i = 0; i < length; i++) {
+                char c = value.charAt(i);
+                if (c < 0x80) {
+                    bytes++;
+                } else if (c < 0x800) {
+                    bytes += 2;
+                } else if (Character.isHighSurrogate(c) && i + 1 < length
+                        && Character.isLowSurrogate(value.charAt(i + 1))) {
+                    bytes += 4;
+                    i++;
+                } else {
+                    bytes += Character.isSurrogate(c) ? 1 : 3;
+                }
+            }
+            writeVarLong(bytes);
+            ensure(bytes);
+            byte[] buffer = this.buffer;
+            int p = position;
+            for (int i = 0; i < length; i++) {
+                char c = value.charAt(i);
+                if (c < 0x80) {
+                    buffer[p++] = (byte) c;
+                } else if (c < 0x800) {
+                    buffer[p++] = (byte) (0xc0 | (c >> 6));
+                    buffer[p++] = (byte) (0x80 | (c & 0x3f));
+                } else if (Character.isHighSurrogate(c) && i + 1 < length
+                        && Character.isLowSurrogate(value.charAt(i + 1))) {
+                    int codePoint = Character.toCodePoint(c, value.charAt(++i));
+                    buffer[p++] = (byte) (0xf0 | (codePoint >> 18));
+                    buffer[p++] = (byte) (0x80 | ((codePoint >> 12) & 0x3f));
+                    buffer[p++] = (byte) (0x80 | ((codePoint >> 6) & 0x3f));
+                    buffer[p++] = (byte) (0x80 | (codePoint & 0x3f));
+                } else if (Character.isSurrogate(c)) {
+                    buffer[p++] = '?';
+                } else {
+                    buffer[p++] = (byte) (0xe0 | (c >> 12));
+                    buffer[p++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+                    buffer[p++] = (byte) (0x80 | (c & 0x3f));
+                }
+            }
+            position = p;
+        }
+
+        ByteBuffer toByteBuffer() {
+            return ByteBuffer.wrap(Arrays.copyOf(buffer, position));
+        }
+    }
+}
@@ -0,0 +1,45 @@
+/***********************************************************************************************************************
+ *
+ * Dynamo Tomcat Sessions
+ * ==========================================
+ *
+ * Copyright (C) 2013 by EnergyHub Inc. (http://www.energyhub.com)
+ *
+ ***********************************************************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ *
+ **********************************************************************************************************************/
+
+package net.energyhub.session;
+
+import java.util.UUID;
+
+/**
+ * The original id format: a random UUID, 36 characters. Kept for deployments that depend on it.
+ */
+public class UuidSessionIdGenerator implements SessionIdGenerator {
+    private String prefix = "";
+
+    @Override
+    public void setPrefix(String prefix) {
+        this.prefix = prefix == null ? "" : prefix;
+    }
+
+    @Override
+    public String generateSessionId() {
+        return prefix + UUID.randomUUID().toString();
+    }
+
+    @Override
+    public int getSessionIdLength() {
+        return prefix.length() + 36;
+    }
+}
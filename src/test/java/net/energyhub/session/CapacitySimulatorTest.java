@@ -0,0 +1,77 @@
+package net.energyhub.session;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.io.StringReader;
+
+public class CapacitySimulatorTest {
+
+    @Test
+    public void chargesLikeDynamo() {
+        CapacitySimulator simulator = new CapacitySimulator();
+        assertEquals(1.0, simulator.units(10), 0.0);
+        assertEquals(3.0, simulator.units(2900), 0.0); // with the item overhead, just under 3KB
+        simulator.chunkSize = 2048;
+        assertEquals(1 + 3 + 2, simulator.units(3000), 0.0); // head, then 2048 + 952 bytes of chunks
+    }
+
+    @Test
+    public void defaultsToTheManagersConfiguration() {
+        CapacitySimulator simulator = new CapacitySimulator();
+        DynamoManager manager = new DynamoManager();
+        assertEquals(manager.getTableRotationSeconds(), simulator.tableRotationSeconds);
+        assertEquals(manager.getMaxInactiveInterval(), simulator.maxInactiveInterval);
+        assertEquals(manager.getChunkSize(), simulator.chunkSize);
+    }
+
+    @Test
+    public void newSessionThenTouch() {
+        CapacitySimulator simulator = new CapacitySimulator();
+        simulator.request("a", 1000, true, 500);
+        assertEquals(1, simulator.totals.created);
+        assertEquals(1.0, simulator.totals.readUnits, 0.0); // miss in current, no previous yet
+        assertEquals(2.0, simulator.totals.writeUnits, 0.0); // add, then save
+
+        simulator.request("a", 2000, false, 500);
+        assertEquals(2.0, simulator.totals.readUnits, 0.0);
+        assertEquals(3.0, simulator.totals.writeUnits, 0.0);
+        assertEquals(0, simulator.totals.fallbackReads);
+    }
+
+    @Test
+    public void fallsBackAfterRotationAndExpires() {
+        CapacitySimulator simulator = new CapacitySimulator();
+        simulator.tableRotationSeconds = 3600;
+        simulator.maxInactiveInterval = 1800;
+        simulator.eventualConsistency = true;
+        simulator.request("a", 3500 * 1000L, true, 500);
+        simulator.request("a", 3700 * 1000L, false, 500); // next table: found in previous, copied forward
+        assertEquals(1, simulator.totals.fallbackHits);
+        assertEquals(1, simulator.afterRotation.fallbackReads);
+        assertEquals(1.5, simulator.totals.readUnits, 0.0); // three half-unit reads
+
+        simulator.request("a", 6000 * 1000L, false, 500); // idle 2300s: expired
+        assertEquals(1, simulator.totals.expired);
+        assertEquals(2, simulator.totals.created);
+    }
+
+    @Test
+    public void replaysTraceAndReports() throws Exception {
+        CapacitySimulator simulator = new CapacitySimulator();
+        String trace = "# comment\na,1000,1,100\nb,2000,0,100\nbad line\na,61000,0,100\n";
+        assertEquals(1, simulator.replay(new BufferedReader(new StringReader(trace))));
+        assertEquals(3, simulator.totals.requests);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        simulator.report(new PrintStream(out, true));
+        String report = out.toString();
+        assertTrue(report, report.startsWith("time,readUnitsPerSecond"));
+        assertTrue(report, report.contains("# write units/s: peak="));
+        assertTrue(report, report.contains("# cost provisioned for peak=$"));
+    }
+}
@@ -0,0 +1,315 @@
+package net.energyhub.session;
+
+import static org.junit.Assert.*;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.*;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.dynamodb.AmazonDynamoDB;
+import com.amazonaws.services.dynamodb.model.*;
+import org.apache.catalina.Container;
+import org.apache.juli.logging.LogFactory;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.zip.GZIPOutputStream;
+
+public class ClassDictionaryTest {
+    private DynamoManager manager;
+    private AmazonDynamoDB dynamo;
+    private Map<String, Map<String, AttributeValue>> items;
+    private int reads;
+    private String unwritable;
+
+    public static class Item implements Serializable {
+        private static final long serialVersionUID = 1L;
+        String sku;
+        int quantity;
+
+        Item(String sku, int quantity) {
+            this.sku = sku;
+            this.quantity = quantity;
+        }
+    }
+
+    public static class Cart extends ArrayList<Item> {
+        private static final long serialVersionUID = 1L;
+        String owner;
+        Date updated;
+    }
+
+    @Before
+    public void setUp() {
+        manager = mock(DynamoManager.class);
+        Container container = mock(Container.class);
+        when(container.getLogger()).thenReturn(LogFactory.getLog(ClassDictionaryTest.class));
+        when(manager.getContainer()).thenReturn(container);
+        items = new HashMap<String, Map<String, AttributeValue>>();
+        dynamo = mock(AmazonDynamoDB.class);
+        when(dynamo.putItem(any(PutItemRequest.class))).thenAnswer(new Answer<PutItemResult>() {
+            @Override
+            public PutItemResult answer(InvocationOnMock invocation) {
+                PutItemRequest request = (PutItemRequest) invocation.getArguments()[0];
+                if (request.getTableName().equals(unwritable)) {
+                    throw new AmazonServiceException("unavailable");
+                }
+                items.put(request.getTableName() + '\n' + request.getItem().get(DynamoManager.COLUMN_ID).getS(),
+                        request.getItem());
+                return new PutItemResult();
+            }
+        });
+        when(dynamo.getItem(any(GetItemRequest.class))).thenAnswer(new Answer<GetItemResult>() {
+            @Override
+            public GetItemResult answer(InvocationOnMock invocation) {
+                GetItemRequest request = (GetItemRequest) invocation.getArguments()[0];
+                reads++;
+                return new GetItemResult().withItem(
+                        items.get(request.getTableName() + '\n' + request.getKey().getHashKeyElement().getS()));
+            }
+        });
+    }
+
+    private ClassDictionaries dictionaries(String table) {
+        ClassDictionaries dictionaries = new ClassDictionaries(dynamo, 256, 10);
+        dictionaries.tableChanged(table, null);
+        return dictionaries;
+    }
+
+    private JavaSerializer serializer(ClassDictionaries dictionaries) {
+        JavaSerializer serializer = new JavaSerializer();
+        serializer.setClassLoader(getClass().getClassLoader());
+        serializer.setDictionaries(dictionaries);
+        return serializer;
+    }
+
+    private DynamoSession session() {
+        DynamoSession session = new DynamoSession(manager);
+        session.restore(1000L, 2000L, 3000L, -1, false, "abc");
+        Cart cart = new Cart();
+        cart.owner = "someone";
+        cart.updated = new Date(5000L);
+        cart.add(new Item("sku-1", 2));
+        cart.add(new Item("sku-2", 1));
+        session.restoreAttribute("cart", cart);
+        session.restoreAttribute("seen", new HashMap<String, Long>(Collections.singletonMap("home", 7L)));
+        return session;
+    }
+
+    private void assertSession(DynamoSession loaded) {
+        assertEquals("abc", loaded.getIdInternal());
+        assertEquals(1000L, loaded.getCreationTimeInternal());
+        Cart cart = (Cart) loaded.getAttribute("cart");
+        assertEquals("someone", cart.owner);
+        assertEquals(new Date(5000L), cart.updated);
+        assertEquals(2, cart.size());
+        assertEquals("sku-2", cart.get(1).sku);
+        assertEquals(2, cart.get(0).quantity);
+        assertEquals(Long.valueOf(7L), ((Map<?, ?>) loaded.getAttribute("seen")).get("home"));
+    }
+
+    private DynamoSession read(JavaSerializer serializer, ByteBuffer data) throws Exception {
+        DynamoSession loaded = new DynamoSession(manager);
+        serializer.deserializeInto(data, loaded);
+        return loaded;
+    }
+
+    @Test
+    public void writesDescriptorIdsOnceADictionaryIsBuilt() throws Exception {
+        ClassDictionaries dictionaries = dictionaries("t1");
+        JavaSerializer serializer = serializer(dictionaries);
+
+        ByteBuffer plain = serializer.serializeFrom(session());
+        assertEquals(0x1f, plain.array()[0]); // the usual gzip payload until there is a dictionary
+        ClassDictionary dictionary = dictionaries.rebuild();
+        assertNotNull(dictionary);
+        assertTrue(items.containsKey("t1\n" + ClassDictionaries.itemId(dictionary.getVersion())));
+
+        ByteBuffer compact = serializer.serializeFrom(session());
+        assertEquals(JavaSerializer.DICTIONARY_FORMAT, compact.array()[0]);
+        assertTrue(compact.array().length + " < " + plain.array().length,
+                compact.array().length < plain.array().length);
+        assertSession(read(serializer, compact));
+        assertSession(read(serializer, plain));
+    }
+
+    @Test
+    public void otherNodesReadTheDictionaryFromTheTableOnce() throws Exception {
+        ClassDictionaries writer = dictionaries("t1");
+        serializer(writer).serializeFrom(session());
+        writer.rebuild();
+        ByteBuffer data = serializer(writer).serializeFrom(session());
+
+        JavaSerializer reader = serializer(dictionaries("t1"));
+        assertSession(read(reader, data));
+        assertSession(read(reader, data));
+        assertEquals(1, reads);
+    }
+
+    @Test
+    public void rotationCarriesTheDictionaryForwardAndBuildsANewOne() throws Exception {
+        ClassDictionaries dictionaries = dictionaries("t1");
+        JavaSerializer serializer = serializer(dictionaries);
+        serializer.serializeFrom(session());
+        ClassDictionary first = dictionaries.rebuild();
+        ByteBuffer data = serializer.serializeFrom(session());
+
+        dictionaries.tableChanged("t2", "t1");
+        assertTrue(items.containsKey("t2\n" + ClassDictionaries.itemId(first.getVersion())));
+        assertSame(first, dictionaries.getActive()); // the same classes were written, so the same dictionary
+
+        items.remove("t1\n" + ClassDictionaries.itemId(first.getVersion()));
+        assertSession(read(serializer(dictionaries("t2")), data));
+    }
+
+    @Test
+    public void copyingAPayloadForwardCarriesItsDictionary() throws Exception {
+        ClassDictionaries writer = dictionaries("t1");
+        serializer(writer).serializeFrom(session());
+        ClassDictionary first = writer.rebuild();
+        ByteBuffer data = serializer(writer).serializeFrom(session());
+
+        // the session is copied from t1 into t3 without being decoded, after the writer moved on to other dictionaries
+        ClassDictionaries copier = new ClassDictionaries(dynamo);
+        copier.tableChanged("t3", "t1");
+        copier.carry(data, "t3");
+        assertTrue(items.containsKey("t3
+" + ClassDictionaries.itemId(first.getVersion())));
+
+        items.remove("t1
+" + ClassDictionaries.itemId(first.getVersion()));
+        ClassDictionaries restarted = new ClassDictionaries(dynamo);
+        restarted.tableChanged("t4", "t3");
+        assertSession(read(serializer(restarted), data));
+    }
+
+    @Test
+    public void aDictionaryThatCantBeStoredIsNotWrittenWith() throws Exception {
+        ClassDictionaries dictionaries = dictionaries("t1");
+        JavaSerializer serializer = serializer(dictionaries);
+        serializer.serializeFrom(session());
+        assertNotNull(dictionaries.rebuild());
+        serializer.serializeFrom(session());
+
+        unwritable = "t2";
+        dictionaries.tableChanged("t2", "t1");
+        assertNull(dictionaries.getActive());
+        assertEquals(0x1f, serializer.serializeFrom(session()).array()[0]);
+
+        unwritable = null;
+        serializer.serializeFrom(session());
+        ClassDictionary rebuilt = dictionaries.rebuild();
+        assertSame(rebuilt, dictionaries.getActive());
+        assertTrue(items.containsKey("t2\n" + ClassDictionaries.itemId(rebuilt.getVersion())));
+    }
+
+    @Test
+    public void forgetsDictionariesOfTablesNoLongerInUse() throws Exception {
+        ClassDictionaries writer = dictionaries("t1");
+        serializer(writer).serializeFrom(session());
+        writer.rebuild();
+        ByteBuffer data = serializer(writer).serializeFrom(session());
+
+        ClassDictionaries reader = new ClassDictionaries(dynamo);
+        reader.tableChanged("t1", null);
+        assertSession(read(serializer(reader), data));
+        reader.tableChanged("t2", "t1");
+        assertSession(read(serializer(reader), data));
+        assertEquals(1, reads); // still cached while t1 is the previous table
+
+        reader.tableChanged("t3", "t2");
+        try {
+            read(serializer(reader), data);
+            fail("read with a dictionary only in a deleted table");
+        } catch (IOException expected) {
+        }
+    }
+
+    @Test
+    public void readOnlyNodesReadButWritePlainPayloads() throws Exception {
+        ClassDictionaries writer = dictionaries("t1");
+        serializer(writer).serializeFrom(session());
+        writer.rebuild();
+        ByteBuffer compact = serializer(writer).serializeFrom(session());
+
+        ClassDictionaries readOnly = new ClassDictionaries(dynamo);
+        readOnly.tableChanged("t1", null);
+        JavaSerializer serializer = serializer(readOnly);
+        assertSession(read(serializer, compact));
+        ByteBuffer plain = serializer.serializeFrom(session());
+        assertEquals(0x1f, plain.array()[0]);
+        assertNull(readOnly.rebuild());
+        assertNull(readOnly.getActive());
+    }
+
+    @Test
+    public void buildsTheFirstDictionaryAfterEnoughSamples() throws Exception {
+        ClassDictionaries dictionaries = dictionaries("t1");
+        JavaSerializer serializer = serializer(dictionaries);
+        dictionaries.maybeBuild();
+        assertNull(dictionaries.getActive());
+        serializer.serializeFrom(session());
+        serializer.serializeFrom(session());
+        dictionaries.maybeBuild();
+        assertNotNull(dictionaries.getActive());
+    }
+
+    @Test(expected = IOException.class)
+    public void unknownDictionaryFailsTheLoad() throws Exception {
+        ClassDictionaries writer = dictionaries("t1");
+        serializer(writer).serializeFrom(session());
+        writer.rebuild();
+        ByteBuffer data = serializer(writer).serializeFrom(session());
+        items.clear();
+
+        read(serializer(dictionaries("t1")), data);
+    }
+
+    @Test
+    public void unknownDescriptorIdFailsTheLoad() throws Exception {
+        ClassDictionaries dictionaries = dictionaries("t1");
+        JavaSerializer serializer = serializer(dictionaries);
+        serializer.serializeFrom(session());
+        ClassDictionary dictionary = dictionaries.rebuild();
+
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        DataOutputStream header = new DataOutputStream(bos);
+        header.writeByte(JavaSerializer.DICTIONARY_FORMAT);
+        header.writeLong(dictionary.getVersion());
+        GZIPOutputStream gzos = new GZIPOutputStream(bos);
+        ObjectOutputStream oos = new ObjectOutputStream(gzos) {
+            @Override
+            protected void writeClassDescriptor(ObjectStreamClass desc) throws IOException {
+                writeByte(1);
+                writeShort(dictionary.size() + 10);
+            }
+        };
+        oos.writeLong(1000L);
+        oos.writeObject(Long.valueOf(1000L));
+        oos.flush();
+        gzos.finish();
+
+        try {
+            read(serializer, ByteBuffer.wrap(bos.toByteArray()));
+            fail();
+        } catch (InvalidClassException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("not in dictionary"));
+        }
+    }
+
+    @Test
+    public void dictionaryBytesRoundTrip() throws Exception {
+        List<byte[]> entries = Arrays.asList(ClassDictionaries.describe(ObjectStreamClass.lookup(Item.class)),
+                ClassDictionaries.describe(ObjectStreamClass.lookup(Cart.class)));
+        ClassDictionary dictionary = new ClassDictionary(entries);
+        ClassDictionary copy = ClassDictionary.fromBytes(dictionary.toBytes());
+        assertEquals(dictionary.getVersion(), copy.getVersion());
+        assertEquals(1, copy.idOf(ObjectStreamClass.lookup(Cart.class), entries.get(1)));
+        assertEquals(-1, copy.idOf(ObjectStreamClass.lookup(Date.class),
+                ClassDictionaries.describe(ObjectStreamClass.lookup(Date.class))));
+    }
+}
@@ -0,0 +1,145 @@
+package net.energyhub.session;
+
+import static org.junit.Assert.*;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.*;
+
+import com.amazonaws.services.dynamodb.AmazonDynamoDB;
+import com.amazonaws.services.dynamodb.model.*;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import java.util.*;
+
+public class DeferredRemovalsTest {
+    private static final String TABLE = "tomcat-sessions";
+
+    private DynamoManager manager;
+    private DynamoManagerStats stats;
+    private AmazonDynamoDB dynamo;
+    private Set<String> tombstoned;
+    private Set<String> deleted;
+    private List<Integer> batchSizes;
+    private int unprocessedToReturn;
+
+    @Before
+    public void setUp() {
+        manager = mock(DynamoManager.class);
+        stats = new DynamoManagerStats(3600);
+        when(manager.getStats()).thenReturn(stats);
+        dynamo = mock(AmazonDynamoDB.class);
+        tombstoned = new HashSet<String>();
+        deleted = new HashSet<String>();
+        batchSizes = new ArrayList<Integer>();
+        when(dynamo.batchWriteItem(any(BatchWriteItemRequest.class))).thenAnswer(new Answer<BatchWriteItemResult>() {
+            @Override
+            public BatchWriteItemResult answer(InvocationOnMock invocation) {
+                BatchWriteItemRequest request = (BatchWriteItemRequest) invocation.getArguments()[0];
+                List<WriteRequest> writes = request.getRequestItems().get(TABLE);
+                batchSizes.add(writes.size());
+                List<WriteRequest> unprocessed = new ArrayList<WriteRequest>();
+                for (WriteRequest write : writes) {
+                    if (unprocessed.size() < unprocessedToReturn) {
+                        unprocessed.add(write);
+                    } else if (write.getPutRequest() != null) {
+                        Map<String, AttributeValue> item = write.getPutRequest().getItem();
+                        assertNotNull(item.get(DynamoManager.COLUMN_REMOVED));
+                        assertNull(item.get(DynamoManager.COLUMN_DATA));
+                        tombstoned.add(item.get(DynamoManager.COLUMN_ID).getS());
+                    } else {
+                        deleted.add(write.getDeleteRequest().getKey().getHashKeyElement().getS());
+                    }
+                }
+                Map<String, List<WriteRequest>> left = new HashMap<String, List<WriteRequest>>();
+                if (!unprocessed.isEmpty()) {
+                    left.put(TABLE, unprocessed);
+                }
+                return new BatchWriteItemResult().withUnprocessedItems(left);
+            }
+        });
+    }
+
+    @Test
+    public void tombstonesBeforeWriting() {
+        DeferredRemovals removals = new DeferredRemovals(manager, dynamo, 1000, 60000, false);
+        removals.remove(TABLE, "a", true);
+        assertTrue(removals.isRemoved("a"));
+        assertFalse(removals.isRemoved("b"));
+        assertEquals(1, removals.size());
+        verify(dynamo, never()).batchWriteItem(any(BatchWriteItemRequest.class));
+
+        assertEquals(1, removals.flush());
+        assertEquals(Collections.singleton("a"), tombstoned);
+        assertTrue(removals.isRemoved("a"));
+        assertEquals(0, removals.size());
+    }
+
+    @Test
+    public void writesNothingForExpiredSessions() {
+        DeferredRemovals removals = new DeferredRemovals(manager, dynamo, 1000, 60000, false);
+        removals.remove(TABLE, "a", false);
+        assertTrue(removals.isRemoved("a"));
+        assertEquals(0, removals.flush());
+        verify(dynamo, never()).batchWriteItem(any(BatchWriteItemRequest.class));
+        assertEquals(1, stats.getSkippedRemovals());
+    }
+
+    @Test
+    public void coalescesAndBatches() {
+        DeferredRemovals removals = new DeferredRemovals(manager, dynamo, 1000, 60000, false);
+        for (int i = 0; i < 60; i++) {
+            removals.remove(TABLE, "s" + i, true);
+        }
+        removals.remove(TABLE, "s0", true);
+        assertEquals(1, stats.getCoalescedRemovals());
+        assertEquals(60, removals.flush());
+        assertEquals(Arrays.asList(25, 25, 10), batchSizes);
+        assertEquals(60, tombstoned.size());
+        assertEquals(60, stats.getRemovalItemsWritten());
+    }
+
+    @Test
+    public void deletesTouchItems() {
+        DeferredRemovals removals = new DeferredRemovals(manager, dynamo, 1000, 60000, true);
+        removals.remove(TABLE, "a", true);
+        assertEquals(1, removals.flush());
+        assertEquals(Collections.singleton("a"), tombstoned);
+        assertEquals(Collections.singleton(TouchBuffer.touchKey("a")), deleted);
+    }
+
+    @Test
+    public void keepsWhatCouldNotBeWritten() {
+        unprocessedToReturn = 100; // never accepted
+        DeferredRemovals removals = new DeferredRemovals(manager, dynamo, 1000, 60000, false);
+        removals.remove(TABLE, "a", true);
+        assertEquals(0, removals.flush());
+        assertEquals(1, removals.size());
+
+        unprocessedToReturn = 0;
+        assertEquals(1, removals.flush());
+        assertEquals(Collections.singleton("a"), tombstoned);
+    }
+
+    @Test
+    public void forgetsReusedIds() {
+        DeferredRemovals removals = new DeferredRemovals(manager, dynamo, 1000, 60000, false);
+        removals.remove(TABLE, "a", true);
+        removals.forget("a");
+        assertFalse(removals.isRemoved("a"));
+        assertEquals(0, removals.flush());
+        assertTrue(tombstoned.isEmpty());
+    }
+
+    @Test
+    public void purgesOldTombstones() {
+        DeferredRemovals removals = new DeferredRemovals(manager, dynamo, 1000, 60000, false);
+        removals.remove(TABLE, "a", false);
+        removals.purge(System.currentTimeMillis());
+        assertEquals(1, removals.getTombstoneCount());
+        removals.purge(System.currentTimeMillis() + 60000);
+        assertEquals(0, removals.getTombstoneCount());
+        assertFalse(removals.isRemoved("a"));
+    }
+}
@@ -0,0 +1,111 @@
+package net.energyhub.session;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.Collections;
+
+public class DynamoManagerStatsTest {
+
+    @Test
+    public void countsSavesAndLoads() {
+        DynamoManagerStats stats = new DynamoManagerStats(3600);
+        stats.loaded("table_a", 0.5);
+        stats.fallbackRead("table_b", 0.5, true);
+        stats.fallbackRead("table_b", 0.5, false);
+        stats.saved("table_a", true, true, 100, 1.0);
+        stats.saved("table_a", false, false, 0, 1.0);
+        stats.saved("table_a", false, true, 50, 1.0);
+
+        assertEquals(1, stats.getLoads());
+        assertEquals(3, stats.getSaves());
+        assertEquals(1, stats.getPuts());
+        assertEquals(2, stats.getUpdates());
+        assertEquals(1, stats.getTouchOnlyWrites());
+        assertEquals(150, stats.getBytesSerialized());
+        assertEquals(0.5, stats.getFallbackHitRatio(), 0.0001);
+        assertEquals(0.5, stats.getConsumedReadUnits().get("table_a"), 0.0001);
+        assertEquals(1.0, stats.getConsumedReadUnits().get("table_b"), 0.0001);
+        assertEquals(3.0, stats.getConsumedWriteUnits().get("table_a"), 0.0001);
+    }
+
+    @Test
+    public void activeSessions() {
+        DynamoManagerStats stats = new DynamoManagerStats(3600);
+        stats.sessionCreated();
+        stats.sessionCreated();
+        stats.sessionCreated();
+        stats.removed(10000);
+        assertEquals(2, stats.getActiveSessions());
+        assertEquals(3, stats.getSessionCreateRate());
+        assertEquals(10, stats.getSessionAverageAliveTime());
+    }
+
+    @Test
+    public void rotationForgetsOldTables() {
+        DynamoManagerStats stats = new DynamoManagerStats(3600);
+        stats.loaded("table_a", 1.0);
+        stats.loaded("table_b", 1.0);
+        stats.loaded("table_c", 1.0);
+        stats.rotated("table_c", "table_b");
+        assertEquals(1, stats.getRotations());
+        assertEquals("table_c", stats.getCurrentTableName());
+        assertFalse(stats.getConsumedReadUnits().containsKey("table_a"));
+        assertTrue(stats.getConsumedReadUnits().containsKey("table_b"));
+    }
+
+    @Test
+    public void resetClearsTouchCounters() {
+        DynamoManagerStats stats = new DynamoManagerStats(3600);
+        stats.touchBuffered();
+        stats.coalescedTouch();
+        stats.touchesWritten("table_a", 2, 1.0);
+        stats.reset();
+        assertEquals(0, stats.getSaves());
+        assertEquals(0, stats.getBufferedTouches());
+        assertEquals(0, stats.getCoalescedTouches());
+        assertEquals(0, stats.getTouchesWritten());
+    }
+
+    @Test
+    public void keepsLargestAttributesUntilReset() {
+        DynamoManagerStats stats = new DynamoManagerStats(3600);
+        assertTrue(stats.getLargestAttributes().isEmpty());
+        stats.largestAttributes(Collections.singletonMap("cart (java.util.ArrayList)", 2048L));
+        assertEquals(Long.valueOf(2048), stats.getLargestAttributes().get("cart (java.util.ArrayList)"));
+        stats.reset();
+        assertTrue(stats.getLargestAttributes().isEmpty());
+    }
+
+    @Test
+    public void rollingCounterDropsOldBuckets() {
+        DynamoManagerStats.RollingCounter counter = new DynamoManagerStats.RollingCounter(60000, 60);
+        long now = 1000000000L;
+        counter.increment(now);
+        counter.increment(now + 1000);
+        assertEquals(2, counter.sum(now + 1000));
+        assertEquals(1, counter.sum(now + 60500));
+        assertEquals(0, counter.sum(now + 120000));
+        counter.increment(now + 120000);
+        assertEquals(1, counter.sum(now + 120000));
+    }
+
+    @Test
+    public void registersAsMXBean() throws Exception {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName("net.energyhub.session:type=DynamoManager,context=test");
+        DynamoManagerStats stats = new DynamoManagerStats(3600);
+        stats.loaded("table_a", 1.0);
+        server.registerMBean(stats, name);
+        try {
+            assertEquals(1L, server.getAttribute(name, "Loads"));
+            assertNotNull(server.getAttribute(name, "ConsumedReadUnits"));
+        } finally {
+            server.unregisterMBean(name);
+        }
+    }
+}
@@ -8,15 +8,22 @@ import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 
+import com.amazonaws.services.dynamodb.AmazonDynamoDB;
 import com.amazonaws.services.dynamodb.model.*;
 import com.michelboudreau.alternator.AlternatorDB;
 import com.michelboudreau.alternator.AlternatorDBClient;
 
+import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Handler;
 import java.util.logging.Level;
+import java.util.logging.LogRecord;
 import java.util.logging.Logger;
 
 public class DynamoManagerTest {
@@ -110,13 +117,352 @@ public class DynamoManagerTest {
         assertFalse(this.manager.haveAttributesChanged((DynamoSession)session));
     }
 
+    @Test
+    public void testDeferNewSessions() throws Exception {
+        this.manager.setDeferNewSessions(true);
+        DynamoSession session = (DynamoSession) this.manager.createSession(null);
+        session.setAttribute("FOO", "BAR");
+        this.manager.add(session);
+        assertNull(storedItem(session.getId()));
+        assertSame(session, this.manager.loadSession(session.getId())); // this node still finds it
+
+        this.manager.save(session);
+        assertNotNull(storedItem(session.getId()));
+        assertEquals(1, this.manager.getStats().getDeferredNewSessions());
+    }
+
+    @Test
+    public void testDeferredSessionRemovedBeforeSave() throws Exception {
+        this.manager.setDeferNewSessions(true);
+        DynamoSession session = (DynamoSession) this.manager.createSession(null);
+        this.manager.add(session);
+        session.invalidate();
+        assertNull(this.manager.loadSession(session.getId()));
+        assertNull(storedItem(session.getId()));
+    }
+
+    @Test
+    public void testSkipEmptySessions() throws Exception {
+        this.manager.setSaveEmptySessions(false);
+        DynamoSession empty = (DynamoSession) this.manager.createSession(null);
+        this.manager.save(empty);
+        assertNull(storedItem(empty.getId()));
+        assertEquals(1, this.manager.getStats().getSkippedEmptySessions());
+
+        DynamoSession used = (DynamoSession) this.manager.createSession(null);
+        used.setAttribute("FOO", "BAR");
+        this.manager.save(used);
+        assertNotNull(storedItem(used.getId()));
+    }
+
+    @Test
+    public void testJoinDuringSaveKeepsChanges() throws Exception {
+        final TestManager[] joining = new TestManager[1];
+        final String[] joinId = new String[1];
+        final DynamoSession[] joined = new DynamoSession[1];
+        // another request joins the shared session while its last release is writing it, and changes it
+        AlternatorDBClient joiningClient = new AlternatorDBClient() {
+            @Override
+            public UpdateItemResult updateItem(UpdateItemRequest request) {
+                UpdateItemResult result = super.updateItem(request);
+                String id = joinId[0];
+                if (id != null) {
+                    joinId[0] = null;
+                    try {
+                        joined[0] = joining[0].acquireSession(id);
+                        joined[0].setAttribute("JOINED", "YES");
+                    } catch (IOException e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+                return result;
+            }
+        };
+        TestManager shared = new TestManager(joiningClient);
+        joining[0] = shared;
+        shared.setMaxInactiveInterval(maxInterval);
+        shared.setShareSessions(true);
+        shared.start();
+        try {
+            DynamoSession session = (DynamoSession) shared.createSession(null);
+            session.setAttribute("FOO", "BAR");
+            shared.save(session);
+            String id = session.getId();
+
+            DynamoSession first = shared.acquireSession(id);
+            first.setAttribute("FOO", "BAZ");
+            joinId[0] = id;
+            shared.releaseSession(id, first, RequestClass.FULL);
+            assertSame(first, joined[0]);
+            shared.releaseSession(id, joined[0], RequestClass.FULL);
+
+            Session loaded = shared.loadSession(id);
+            assertEquals("BAZ", loaded.getSession().getAttribute("FOO"));
+            assertEquals("YES", loaded.getSession().getAttribute("JOINED"));
+        } finally {
+            shared.stop();
+        }
+    }
+
+    @Test
+    public void testSlowOperationsAreTracedAboveTheThreshold() throws Exception {
+        AlternatorDBClient slowClient = new AlternatorDBClient() {
+            @Override
+            public PutItemResult putItem(PutItemRequest request) {
+                pause();
+                return super.putItem(request);
+            }
+
+            @Override
+            public UpdateItemResult updateItem(UpdateItemRequest request) {
+                pause();
+                return super.updateItem(request);
+            }
+
+            private void pause() {
+                try {
+                    Thread.sleep(20);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        };
+        final List<String> traces = new ArrayList<String>();
+        Handler handler = new Handler() {
+            @Override
+            public void publish(LogRecord record) {
+                if (record.getLevel() == Level.WARNING) {
+                    traces.add(record.getMessage());
+                }
+            }
+
+            @Override
+            public void flush() {
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+        Logger slowLog = Logger.getLogger("net.energyhub.session.SlowOperations");
+        slowLog.addHandler(handler);
+        TestManager slow = new TestManager(slowClient);
+        slow.setMaxInactiveInterval(maxInterval);
+        slow.start();
+        try {
+            slow.setSlowOperationThreshold(60000);
+            DynamoSession fast = (DynamoSession) slow.createSession(null);
+            fast.setAttribute("FOO", "BAR");
+            slow.save(fast);
+            assertTrue(traces.toString(), traces.isEmpty());
+
+            slow.setSlowOperationThreshold(10);
+            DynamoSession session = (DynamoSession) slow.createSession(null);
+            session.setAttribute("FOO", "BAR");
+            slow.save(session);
+            assertEquals(1, traces.size());
+            assertTrue(traces.get(0), traces.get(0).startsWith("op=save session="
+                    + Integer.toHexString(session.getId().hashCode())));
+            assertTrue(traces.get(0), traces.get(0).contains(" dynamoMs="));
+
+            // a save of a loaded session says how it was loaded
+            Session loaded = slow.loadSession(session.getId());
+            loaded.getSession().setAttribute("FOO", "BAZ");
+            traces.clear();
+            slow.save((DynamoSession) loaded);
+            String saveTrace = null;
+            for (String trace : traces) {
+                if (trace.startsWith("op=save")) {
+                    saveTrace = trace;
+                }
+            }
+            assertNotNull(traces.toString(), saveTrace);
+            assertTrue(saveTrace, saveTrace.contains(" loadMs=") && saveTrace.contains(" heldMs="));
+            assertFalse(saveTrace, saveTrace.contains(" fromPrevious="));
+        } finally {
+            slowLog.removeHandler(handler);
+            slow.stop();
+        }
+    }
+
+    @Test
+    public void testReservedIdsAreNotFound() throws Exception {
+        Map<String, AttributeValue> touch = new HashMap<String, AttributeValue>();
+        touch.put(DynamoManager.COLUMN_ID, new AttributeValue().withS("x" + TouchBuffer.TOUCH_SUFFIX));
+        touch.put(DynamoManager.COLUMN_LAST_ACCESSED,
+                new AttributeValue().withN(Long.toString(System.currentTimeMillis())));
+        client.putItem(new PutItemRequest().withTableName(this.manager.rotator.getCurrentTableName()).withItem(touch));
+
+        assertNull(this.manager.loadSession("x" + TouchBuffer.TOUCH_SUFFIX));
+        assertNull(this.manager.findSession("x" + TouchBuffer.TOUCH_SUFFIX));
+        assertNull(this.manager.findSession(SessionCounts.ITEM_ID));
+    }
+
+    @Test
+    public void testSnapshotAfterSessionIsNoLongerChunked() throws Exception {
+        File snapshot = File.createTempFile("sessions", ".snapshot");
+        assertTrue(snapshot.delete());
+        TestManager first = snapshotManager(snapshot);
+        String id;
+        try {
+            DynamoSession session = (DynamoSession) first.createSession(null);
+            byte[] noise = new byte[8192];
+            new Random(1).nextBytes(noise); // so it doesn't compress below the chunk size
+            session.setAttribute("BIG", noise);
+            first.save(session);
+            id = session.getId();
+            assertNotNull(storedItem(id).get(SessionChunkStore.COLUMN_CHUNK_COUNT));
+
+            // the update deletes the chunk columns, which mustn't end up in the local copy without values
+            session.removeAttribute("BIG");
+            session.setAttribute("FOO", "BAR");
+            first.save(session);
+            assertNull(storedItem(id).get(SessionChunkStore.COLUMN_CHUNK_COUNT));
+        } finally {
+            first.stop();
+        }
+        assertTrue(snapshot.exists());
+
+        TestManager second = snapshotManager(snapshot);
+        try {
+            Session loaded = second.loadSession(id);
+            assertEquals("BAR", loaded.getSession().getAttribute("FOO"));
+            assertNull(loaded.getSession().getAttribute("BIG"));
+            assertEquals(1, second.getStats().getRestoredCopyHits());
+        } finally {
+            second.stop();
+            snapshot.delete();
+        }
+    }
+
+    @Test
+    public void testMissedReadIsCountedOnceWhenThePreviousTableIsGone() throws Exception {
+        TestManager missing = new TestManager(new AlternatorDBClient() {
+            @Override
+            public GetItemResult getItem(GetItemRequest request) {
+                if (request.getTableName().equals("sessions_gone")) {
+                    throw new ResourceNotFoundException("deleted by another node");
+                }
+                return super.getItem(request).withConsumedCapacityUnits(0.5);
+            }
+        });
+        missing.setMaxInactiveInterval(maxInterval);
+        missing.start();
+        try {
+            missing.rotator.previousTableName = "sessions_gone";
+            missing.rotator.publishTopology(null);
+            String current = missing.rotator.getCurrentTableName();
+            Double before = missing.getStats().getConsumedReadUnits().get(current);
+
+            assertNull(missing.loadSession("no-such-session"));
+            assertEquals((before == null ? 0.0 : before) + 0.5,
+                    missing.getStats().getConsumedReadUnits().get(current), 0.0001);
+            assertEquals(1, missing.getStats().getLoadsNotFound());
+        } finally {
+            missing.stop();
+        }
+    }
+
+    @Test
+    public void testReadsItsOwnWriteBeforeItReachesTheReplica() throws Exception {
+        final ReplicaClient near = new ReplicaClient();
+        TestManager replicating = new TestManager(new AlternatorDBClient()) {
+            @Override
+            protected AmazonDynamoDB createDynamo(String endpoint) {
+                return near;
+            }
+        };
+        replicating.setMaxInactiveInterval(maxInterval);
+        replicating.setDynamoEndpoints("near=http://near.example.com,home=http://home.example.com");
+        replicating.setHomeEndpoint("home");
+        replicating.setReplicationFlushMillis(3600000); // flushed by hand
+        replicating.start();
+        try {
+            DynamoSession session = (DynamoSession) replicating.createSession(null);
+            session.setAttribute("FOO", "BAR");
+            replicating.save(session);
+            String id = session.getId();
+            replicating.getReplicator().flush();
+            assertEquals("BAR", replicating.loadSession(id).getSession().getAttribute("FOO")); // from the replica
+            assertEquals(1, near.reads);
+
+            session.setAttribute("FOO", "BAZ");
+            replicating.save(session);
+            // the replica still has the first version, so this node reads what it wrote from home
+            assertEquals("BAZ", replicating.loadSession(id).getSession().getAttribute("FOO"));
+            assertEquals(1, near.reads);
+
+            replicating.getReplicator().flush();
+            assertEquals("BAZ", replicating.loadSession(id).getSession().getAttribute("FOO"));
+            assertEquals(2, near.reads);
+        } finally {
+            replicating.stop();
+        }
+    }
+
+    /**
+     * A replica endpoint sharing the home tables but keeping its own items, so its copies can lag behind.
+     */
+    private static class ReplicaClient extends AlternatorDBClient {
+        final Map<String, Map<String, AttributeValue>> items =
+                new ConcurrentHashMap<String, Map<String, AttributeValue>>();
+        volatile int reads;
+
+        @Override
+        public GetItemResult getItem(GetItemRequest request) {
+            reads++;
+            return new GetItemResult().withItem(items.get(request.getTableName() + '\n'
+                    + request.getKey().getHashKeyElement().getS())).withConsumedCapacityUnits(0.5);
+        }
+
+        @Override
+        public PutItemResult putItem(PutItemRequest request) {
+            items.put(request.getTableName() + '\n' + request.getItem().get(DynamoManager.COLUMN_ID).getS(),
+                    new HashMap<String, AttributeValue>(request.getItem()));
+            return new PutItemResult().withConsumedCapacityUnits(1.0);
+        }
+
+        @Override
+        public UpdateItemResult updateItem(UpdateItemRequest request) {
+            Map<String, AttributeValue> item = items.get(request.getTableName() + '\n'
+                    + request.getKey().getHashKeyElement().getS());
+            if (item == null) {
+                throw new ConditionalCheckFailedException("not copied yet");
+            }
+            for (Map.Entry<String, AttributeValueUpdate> update : request.getAttributeUpdates().entrySet()) {
+                item.put(update.getKey(), update.getValue().getValue());
+            }
+            return new UpdateItemResult().withConsumedCapacityUnits(1.0);
+        }
+
+        @Override
+        public DeleteItemResult deleteItem(DeleteItemRequest request) {
+            items.remove(request.getTableName() + '\n' + request.getKey().getHashKeyElement().getS());
+            return new DeleteItemResult().withConsumedCapacityUnits(1.0);
+        }
+    }
+
+    private TestManager snapshotManager(File snapshot) throws Exception {
+        TestManager snapshotting = new TestManager(new AlternatorDBClient());
+        snapshotting.setMaxInactiveInterval(maxInterval);
+        snapshotting.setChunkSize(1024);
+        snapshotting.setLocalCopyMillis(60000);
+        snapshotting.setSnapshotPathname(snapshot.getAbsolutePath());
+        snapshotting.start();
+        return snapshotting;
+    }
+
+    private Map<String, AttributeValue> storedItem(String id) {
+        return client.getItem(new GetItemRequest().withTableName(this.manager.rotator.getCurrentTableName())
+                .withKey(new Key().withHashKeyElement(new AttributeValue().withS(id)))).getItem();
+    }
 
     protected StandardSession setUpSession(Map<String, Object> attributes) {
         StandardSession originalSession = (StandardSession) this.manager.createSession(null);
         for (Map.Entry<String, Object> entry : attributes.entrySet()) {
             originalSession.getSession().setAttribute(entry.getKey(), entry.getValue());
         }
-        this.manager.setCurrentSession((DynamoSession)originalSession);
+        this.manager.snapshotSession((DynamoSession)originalSession, null, false, 0);
         return originalSession;
     }
 }
@@ -0,0 +1,166 @@
+package net.energyhub.session;
+
+import static org.junit.Assert.*;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyBoolean;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Mockito.*;
+
+import org.apache.catalina.Lifecycle;
+import org.apache.catalina.LifecycleEvent;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+
+public class DynamoSessionServiceTest {
+    private DynamoSessionService service;
+    private DynamoTableRotator rotator;
+    private int created;
+    private Callable<DynamoTableRotator> factory;
+
+    @Before
+    public void setUp() {
+        service = new DynamoSessionService();
+        service.setName("test");
+        rotator = mock(DynamoTableRotator.class);
+        when(rotator.getTopology()).thenReturn(
+                new TableTopology(1, "sessions_1", null, "sessions_2", 0, 1, 1));
+        factory = new Callable<DynamoTableRotator>() {
+            @Override
+            public DynamoTableRotator call() {
+                created++;
+                return rotator;
+            }
+        };
+    }
+
+    @After
+    public void tearDown() {
+        service.unregister();
+    }
+
+    private static class Recorder implements TableTopology.Listener {
+        final List<TableTopology> seen = new ArrayList<TableTopology>();
+
+        @Override
+        public void topologyChanged(TableTopology previous, TableTopology current) {
+            seen.add(current);
+        }
+    }
+
+    @Test
+    public void managersShareOneRotatorPerTableBaseName() throws Exception {
+        Recorder first = new Recorder();
+        Recorder second = new Recorder();
+        assertSame(rotator, service.acquireRotator("sessions", 3600, factory, first, 0, false));
+        assertSame(rotator, service.acquireRotator("sessions", 3600, factory, second, 0, false));
+        assertEquals(1, created);
+        verify(rotator, times(1)).init(anyLong(), anyBoolean());
+        // the second manager is told the tables straight away, as init would have
+        assertEquals("sessions_1", second.seen.get(0).getCurrentTableName());
+
+        service.releaseRotator("sessions", first);
+        verify(rotator, never()).shutdown();
+        verify(rotator).removeListener(first);
+        service.releaseRotator("sessions", second);
+        verify(rotator).shutdown();
+        assertEquals(0, service.getRotatorCount());
+    }
+
+    @Test
+    public void initRunsOutsideTheServiceLock() throws Exception {
+        final CountDownLatch initializing = new CountDownLatch(1);
+        final CountDownLatch proceed = new CountDownLatch(1);
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) throws Exception {
+                initializing.countDown();
+                proceed.await();
+                return null;
+            }
+        }).when(rotator).init(anyLong(), anyBoolean());
+        final DynamoTableRotator other = mock(DynamoTableRotator.class);
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            Future<DynamoTableRotator> first = executor.submit(new Callable<DynamoTableRotator>() {
+                @Override
+                public DynamoTableRotator call() throws Exception {
+                    return service.acquireRotator("sessions", 3600, factory, new Recorder(), 0, true);
+                }
+            });
+            initializing.await();
+            final Recorder waiting = new Recorder();
+            Future<DynamoTableRotator> second = executor.submit(new Callable<DynamoTableRotator>() {
+                @Override
+                public DynamoTableRotator call() throws Exception {
+                    return service.acquireRotator("sessions", 3600, factory, waiting, 0, true);
+                }
+            });
+            // other tables, and the other shared clients, aren't held up by the init
+            assertSame(other, service.acquireRotator("other", 3600, new Callable<DynamoTableRotator>() {
+                @Override
+                public DynamoTableRotator call() {
+                    return other;
+                }
+            }, new Recorder(), 0, false));
+            assertNull(service.getStatsdClient());
+            Thread.sleep(50); // let the second manager find the init in flight
+            assertFalse(second.isDone());
+
+            proceed.countDown();
+            assertSame(rotator, first.get(5, TimeUnit.SECONDS));
+            assertSame(rotator, second.get(5, TimeUnit.SECONDS));
+            assertEquals(1, created);
+            assertEquals("sessions_1", waiting.seen.get(0).getCurrentTableName());
+        } finally {
+            proceed.countDown();
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void aFailedInitIsWithdrawn() throws Exception {
+        doThrow(new InterruptedException()).doNothing().when(rotator).init(anyLong(), anyBoolean());
+        try {
+            service.acquireRotator("sessions", 3600, factory, new Recorder(), 0, true);
+            fail();
+        } catch (InterruptedException expected) {
+        }
+        verify(rotator).shutdown();
+        assertEquals(0, service.getRotatorCount());
+        assertSame(rotator, service.acquireRotator("sessions", 3600, factory, new Recorder(), 0, true));
+        assertEquals(2, created);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsADifferentRotationInterval() throws Exception {
+        service.acquireRotator("sessions", 3600, factory, new Recorder(), 0, false);
+        service.acquireRotator("sessions", 60, factory, new Recorder(), 0, false);
+    }
+
+    @Test
+    public void registersWhileTheHostRuns() throws Exception {
+        Lifecycle host = mock(Lifecycle.class);
+        service.lifecycleEvent(new LifecycleEvent(host, Lifecycle.BEFORE_START_EVENT, null));
+        assertSame(service, DynamoSessionService.get("test"));
+
+        service.acquireRotator("sessions", 3600, factory, new Recorder(), 0, false);
+        service.lifecycleEvent(new LifecycleEvent(host, Lifecycle.AFTER_STOP_EVENT, null));
+        assertNull(DynamoSessionService.get("test"));
+        verify(rotator).shutdown();
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void namesAreUnique() {
+        service.register();
+        DynamoSessionService other = new DynamoSessionService();
+        other.setName("test");
+        other.register();
+    }
+}
@@ -0,0 +1,91 @@
+package net.energyhub.session;
+
+import static org.junit.Assert.*;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.*;
+
+import org.apache.catalina.Container;
+import org.apache.juli.logging.LogFactory;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import java.nio.ByteBuffer;
+
+public class DynamoSessionTest {
+    private DynamoManager manager;
+    private JavaSerializer serializer = new JavaSerializer();
+
+    @Before
+    public void setUp() throws Exception {
+        manager = mock(DynamoManager.class);
+        Container container = mock(Container.class);
+        when(container.getLogger()).thenReturn(LogFactory.getLog(DynamoSessionTest.class));
+        when(manager.getContainer()).thenReturn(container);
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) throws Exception {
+                Object[] args = invocation.getArguments();
+                serializer.deserializeInto((ByteBuffer) args[1], (DynamoSession) args[0]);
+                return null;
+            }
+        }).when(manager).decodeSession(any(DynamoSession.class), any(ByteBuffer.class));
+    }
+
+    private ByteBuffer stored() throws Exception {
+        DynamoSession original = new DynamoSession(manager);
+        original.setValid(true);
+        original.setId("abc");
+        original.setCreationTime(1000L);
+        original.setNew(true);
+        original.setAttribute("FOO", "BAR", false);
+        return serializer.serializeFrom(original);
+    }
+
+    @Test
+    public void decodesOnFirstAttributeAccess() throws Exception {
+        DynamoSession session = new DynamoSession(manager);
+        session.setValid(true);
+        session.setId("abc");
+        session.setCreationTime(1000L);
+        session.setNew(false);
+        session.setLastAccessedTime(5000L);
+        session.setPendingData(stored());
+
+        assertFalse(session.isDecoded());
+        session.access();
+        verify(manager, never()).decodeSession(any(DynamoSession.class), any(ByteBuffer.class));
+
+        assertEquals("BAR", session.getAttribute("FOO"));
+        assertTrue(session.isDecoded());
+        assertNull(session.getPendingData());
+        // what was set at load time wins over what the payload holds
+        assertFalse(session.isNew());
+        assertEquals(5000L, session.getLastAccessedTimeInternal());
+
+        session.getAttribute("FOO");
+        verify(manager, times(1)).decodeSession(any(DynamoSession.class), any(ByteBuffer.class));
+        verify(manager, times(1)).sessionDecoded(session);
+    }
+
+    @Test
+    public void setAttributeDecodesFirst() throws Exception {
+        DynamoSession session = new DynamoSession(manager);
+        session.setValid(true);
+        session.setPendingData(stored());
+        session.setAttribute("OTHER", "VALUE", false);
+        assertEquals("BAR", session.getAttribute("FOO"));
+        assertEquals("VALUE", session.getAttribute("OTHER"));
+    }
+
+    @Test
+    public void discardedDataIsNeverDecoded() throws Exception {
+        DynamoSession session = new DynamoSession(manager);
+        session.setValid(true);
+        session.setPendingData(stored());
+        session.discardPendingData();
+        assertNull(session.getAttribute("FOO"));
+        verify(manager, never()).decodeSession(any(DynamoSession.class), any(ByteBuffer.class));
+    }
+}
@@ -0,0 +1,66 @@
+package net.energyhub.session;
+
+import static org.mockito.Matchers.anyBoolean;
+import static org.mockito.Matchers.same;
+import static org.mockito.Mockito.*;
+
+import org.apache.catalina.Valve;
+import org.apache.catalina.connector.Request;
+import org.apache.catalina.connector.Response;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.servlet.http.HttpSession;
+
+public class DynamoSessionTrackerValveTest {
+    private DynamoManager manager;
+    private Request request;
+    private Response response;
+    private DynamoSessionTrackerValve valve;
+
+    @Before
+    public void setUp() {
+        manager = mock(DynamoManager.class);
+        request = mock(Request.class);
+        response = mock(Response.class);
+        valve = new DynamoSessionTrackerValve();
+        valve.setDynamoManager(manager);
+        valve.setNext(mock(Valve.class));
+    }
+
+    private DynamoSession created() {
+        DynamoSession session = mock(DynamoSession.class);
+        when(session.isValid()).thenReturn(true);
+        when(session.getSession()).thenReturn(mock(HttpSession.class));
+        when(request.getSessionInternal(false)).thenReturn(session);
+        return session;
+    }
+
+    @Test
+    public void storesASessionCreatedByAReadOnlyRequest() throws Exception {
+        when(manager.classify(request)).thenReturn(RequestClass.READ_ONLY);
+        DynamoSession session = created();
+
+        valve.invoke(request, response);
+        verify(manager).saveIfUnsaved(session);
+        verify(manager, never()).save(same(session), anyBoolean());
+    }
+
+    @Test
+    public void storesASessionCreatedByAnIgnoredRequest() throws Exception {
+        when(manager.classify(request)).thenReturn(RequestClass.NONE);
+        DynamoSession session = created();
+
+        valve.invoke(request, response);
+        verify(manager).saveIfUnsaved(session);
+    }
+
+    @Test
+    public void savesASessionCreatedByAFullRequest() throws Exception {
+        when(manager.classify(request)).thenReturn(RequestClass.FULL);
+        DynamoSession session = created();
+
+        valve.invoke(request, response);
+        verify(manager).save(session, false);
+    }
+}
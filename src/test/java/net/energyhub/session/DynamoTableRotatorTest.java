@@ -12,7 +12,9 @@ import com.michelboudreau.alternator.AlternatorDB;
 import com.michelboudreau.alternator.AlternatorDBClient;
 
 import java.lang.String;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 /**
  * User: oneill
@@ -51,6 +53,26 @@ public class DynamoTableRotatorTest {
 
     }
 
+    @Test
+    public void testProcessRunsOncePerInterval() {
+        final int[] managed = new int[1];
+        DynamoTableRotator counting = new DynamoTableRotator("testTables", maxInterval, defaultReadCapacity,
+                defaultWriteCapacity, dynamo) {
+            @Override
+            protected void manageTables(long nowSeconds) {
+                managed[0]++;
+            }
+        };
+        // every Context sharing the rotator calls it in the same background tick
+        counting.process();
+        counting.process();
+        assertEquals(1, managed[0]);
+
+        counting.lastProcessed -= DynamoTableRotator.MIN_PROCESS_MILLIS;
+        counting.process();
+        assertEquals(2, managed[0]);
+    }
+
     @Test
     public void testNextCurrentTableNames() {
         long startSeconds = (System.currentTimeMillis() / 1000) / maxInterval * maxInterval;
@@ -204,6 +226,31 @@ public class DynamoTableRotatorTest {
         assertEquals(tableName, rotator.currentTableName);
     }
 
+    @Test
+    public void init_backgroundReadiness() throws Exception {
+        // Check that we use the newest active table straight away and test-write it in the background
+        long nowSeconds = System.currentTimeMillis()/1000;
+        String newer = rotator.createCurrentTableName(nowSeconds - rotator.tableRotationSeconds);
+        String older = rotator.createCurrentTableName(nowSeconds - 3*rotator.tableRotationSeconds);
+        rotator.ensureTable(older, 10000);
+        rotator.ensureTable(newer, 10000);
+
+        rotator.init(nowSeconds, false);
+        assertEquals(newer, rotator.currentTableName);
+        assertTrue(rotator.getDiscoveryNanos() > 0);
+        assertTrue(rotator.getReadiness().get(10, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void listMyTables() throws Exception {
+        long nowSeconds = System.currentTimeMillis()/1000;
+        String tableName = rotator.createCurrentTableName(nowSeconds);
+        rotator.ensureTable(tableName, 10000);
+        rotator.createTable("some-other-table");
+
+        assertEquals(Collections.singleton(tableName), rotator.listMyTables());
+    }
+
     @Test
     public void isMyTable() {
         long nowSeconds = System.currentTimeMillis()/1000;
@@ -0,0 +1,129 @@
+package net.energyhub.session;
+
+import static org.junit.Assert.*;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+public class InvalidationChannelTest {
+    private final List<InvalidationChannel> nodes = new ArrayList<InvalidationChannel>();
+    private final List<BlockingQueue<String>> received = new ArrayList<BlockingQueue<String>>();
+
+    private InvalidationChannel node(String scope) throws Exception {
+        final BlockingQueue<String> queue = new LinkedBlockingQueue<String>();
+        InvalidationChannel channel = new InvalidationChannel("127.0.0.1:0", "", scope,
+                new InvalidationChannel.Listener() {
+                    @Override
+                    public void invalidated(String id, long version) {
+                        queue.add(id + "@" + version);
+                    }
+                });
+        channel.start();
+        nodes.add(channel);
+        received.add(queue);
+        return channel;
+    }
+
+    /**
+     * Point every node at all the others, now their ports are known.
+     */
+    private void connect() throws Exception {
+        for (InvalidationChannel node : nodes) {
+            List<InetSocketAddress> peers = new ArrayList<InetSocketAddress>();
+            for (InvalidationChannel other : nodes) {
+                if (other != node) {
+                    peers.add(new InetSocketAddress("127.0.0.1", other.getLocalPort()));
+                }
+            }
+            node.setPeers(peers);
+        }
+    }
+
+    @After
+    public void tearDown() {
+        for (InvalidationChannel node : nodes) {
+            node.stop();
+        }
+    }
+
+    @Test
+    public void everyOtherNodeHearsOfAWrite() throws Exception {
+        node("sessions");
+        node("sessions");
+        node("sessions");
+        connect();
+
+        nodes.get(0).broadcast("abc", 7);
+        assertEquals("abc@7", received.get(1).poll(5, TimeUnit.SECONDS));
+        assertEquals("abc@7", received.get(2).poll(5, TimeUnit.SECONDS));
+
+        nodes.get(2).broadcast("def", -1);
+        assertEquals("def@-1", received.get(0).poll(5, TimeUnit.SECONDS));
+        assertEquals("def@-1", received.get(1).poll(5, TimeUnit.SECONDS));
+        assertTrue(received.get(0).isEmpty() && received.get(2).isEmpty());
+    }
+
+    @Test
+    public void ignoresOtherApplications() throws Exception {
+        node("sessions");
+        node("other-sessions");
+        node("sessions");
+        connect();
+
+        nodes.get(0).broadcast("abc", 2);
+        assertEquals("abc@2", received.get(2).poll(5, TimeUnit.SECONDS));
+        assertNull(received.get(1).poll(200, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void copiesDropOlderVersionsOnly() throws Exception {
+        final LocalSessionCopies copies = new LocalSessionCopies(60000);
+        copies.put("t1", LocalSessionCopiesTest.item("abc", 3, 1000L), 0);
+        InvalidationChannel sender = node("sessions");
+        InvalidationChannel receiver = new InvalidationChannel("127.0.0.1:0", "", "sessions",
+                new InvalidationChannel.Listener() {
+                    @Override
+                    public void invalidated(String id, long version) {
+                        copies.invalidate(id, version);
+                        received.get(0).add(id + "@" + version);
+                    }
+                });
+        receiver.start();
+        nodes.add(receiver);
+        sender.setPeers(java.util.Collections.singletonList(
+                new InetSocketAddress("127.0.0.1", receiver.getLocalPort())));
+
+        sender.broadcast("abc", 3); // the version we hold
+        assertEquals("abc@3", received.get(0).poll(5, TimeUnit.SECONDS));
+        assertNotNull(copies.get("t1", "abc", 1));
+        sender.broadcast("abc", 4);
+        assertEquals("abc@4", received.get(0).poll(5, TimeUnit.SECONDS));
+        assertNull(copies.get("t1", "abc", 1));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsAPeerThatDoesNotResolve() {
+        InvalidationChannel.parsePeers("10.0.0.1:4000,no-such-host.invalid:4000");
+    }
+
+    @Test
+    public void broadcastToAnUnresolvedPeerDoesNotThrow() throws Exception {
+        InvalidationChannel sender = node("sessions");
+        sender.setPeers(java.util.Collections.singletonList(
+                InetSocketAddress.createUnresolved("no-such-host.invalid", 4000)));
+        sender.broadcast("abc", 3);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsAPeerWithoutAPort() {
+        InvalidationChannel.parsePeers("10.0.0.1:4000,10.0.0.2");
+    }
+}
@@ -0,0 +1,116 @@
+package net.energyhub.session;
+
+import static org.junit.Assert.*;
+
+import com.amazonaws.services.dynamodb.model.AttributeValue;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+public class LocalSessionCopiesTest {
+    static Map<String, AttributeValue> item(String id, long version, long lastAccessed) {
+        Map<String, AttributeValue> item = new HashMap<String, AttributeValue>();
+        item.put(DynamoManager.COLUMN_ID, new AttributeValue().withS(id));
+        item.put(DynamoManager.COLUMN_DATA, new AttributeValue().withB(ByteBuffer.wrap(new byte[]{1, 2, 3})));
+        item.put(DynamoManager.COLUMN_VERSION, new AttributeValue().withN(Long.toString(version)));
+        item.put(DynamoManager.COLUMN_LAST_ACCESSED, new AttributeValue().withN(Long.toString(lastAccessed)));
+        item.put(DynamoManager.COLUMN_MAX_INACTIVE, new AttributeValue().withN("3600"));
+        return item;
+    }
+
+    @Test
+    public void servesACopyOnlyWithinItsAge() {
+        LocalSessionCopies copies = new LocalSessionCopies(1000);
+        copies.put("t1", item("abc", 1, 5L), 10000);
+        assertNotNull(copies.get("t1", "abc", 10999));
+        assertNull(copies.get("t2", "abc", 10999)); // the table rotated since
+        assertNull(copies.get("t1", "abc", 11000));
+        assertEquals(0, copies.size());
+    }
+
+    @Test
+    public void handsOutIndependentBuffers() {
+        LocalSessionCopies copies = new LocalSessionCopies(1000);
+        copies.put("t1", item("abc", 1, 5L), 0);
+        copies.get("t1", "abc", 1).get(DynamoManager.COLUMN_DATA).getB().get();
+        assertEquals(3, copies.get("t1", "abc", 1).get(DynamoManager.COLUMN_DATA).getB().remaining());
+    }
+
+    @Test
+    public void keepsOnlyInlineItems() {
+        LocalSessionCopies copies = new LocalSessionCopies(1000);
+        copies.put("t1", item("abc", 1, 5L), 0);
+        Map<String, AttributeValue> chunked = item("abc", 2, 6L);
+        chunked.remove(DynamoManager.COLUMN_DATA);
+        copies.put("t1", chunked, 0);
+        assertNull(copies.get("t1", "abc", 1));
+    }
+
+    @Test
+    public void touchesUpdateTheCopy() {
+        LocalSessionCopies copies = new LocalSessionCopies(1000);
+        copies.put("t1", item("abc", 1, 5L), 0);
+        copies.merge("t1", "abc", Collections.singletonMap(DynamoManager.COLUMN_LAST_ACCESSED,
+                new AttributeValue().withN("9")));
+        assertEquals("9", copies.get("t1", "abc", 1).get(DynamoManager.COLUMN_LAST_ACCESSED).getN());
+    }
+
+    @Test
+    public void removalDropsAnyVersion() {
+        LocalSessionCopies copies = new LocalSessionCopies(1000);
+        copies.put("t1", item("abc", 5, 5L), 0);
+        copies.invalidate("abc", 2);
+        assertNotNull(copies.get("t1", "abc", 1));
+        copies.invalidate("abc", -1);
+        assertNull(copies.get("t1", "abc", 1));
+    }
+
+    @Test
+    public void snapshotRestoresUncheckedCopies() throws IOException {
+        LocalSessionCopies copies = new LocalSessionCopies(1000);
+        copies.put("t1", item("abc", 4, 5000L), 5000);
+        copies.put("t1", item("old", 1, 5000L - 3600 * 1000L), 5000); // expires as the snapshot is written
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        assertEquals(1, copies.writeSnapshot(new DataOutputStream(bytes), 5001));
+
+        LocalSessionCopies restored = new LocalSessionCopies(1000);
+        assertEquals(1, restored.readSnapshot(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())),
+                60000));
+        assertNull(restored.get("t1", "abc", 60000)); // not until it has been checked
+        assertNull(restored.restored("t2", "abc"));
+        Map<String, AttributeValue> copy = restored.restored("t1", "abc");
+        assertEquals(4, DynamoManager.readVersion(copy));
+        assertEquals(3, copy.get(DynamoManager.COLUMN_DATA).getB().remaining());
+
+        restored.put("t1", copy, 60000);
+        assertNull(restored.restored("t1", "abc"));
+        assertNotNull(restored.get("t1", "abc", 60001));
+    }
+
+    @Test
+    public void pruneDropsRestoredCopiesOnlyOnceExpired() throws IOException {
+        LocalSessionCopies copies = new LocalSessionCopies(1000);
+        copies.put("t1", item("abc", 4, 5000L), 5000);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        copies.writeSnapshot(new DataOutputStream(bytes), 5000);
+        LocalSessionCopies restored = new LocalSessionCopies(1000);
+        restored.readSnapshot(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())), 6000);
+        restored.prune(10000);
+        assertEquals(1, restored.size());
+        restored.prune(5000 + 3600 * 1000L);
+        assertEquals(0, restored.size());
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsWhatIsNotASnapshot() throws IOException {
+        new LocalSessionCopies(1000).readSnapshot(new DataInputStream(new ByteArrayInputStream(new byte[16])), 0);
+    }
+}
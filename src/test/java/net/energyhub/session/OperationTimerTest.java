@@ -0,0 +1,78 @@
+package net.energyhub.session;
+
+import static org.junit.Assert.*;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.*;
+
+import org.junit.Test;
+
+public class OperationTimerTest {
+    private static final String[] SAVE_KEYS = OperationTimer.statKeys("save");
+
+    @Test
+    public void buildsAKeyPerPhaseAndOneForTheTotal() {
+        assertEquals("session.save.dynamo", SAVE_KEYS[OperationTimer.Phase.DYNAMO.ordinal()]);
+        assertEquals("session.save", SAVE_KEYS[SAVE_KEYS.length - 1]);
+    }
+
+    @Test
+    public void phasesAddUpToTheTotal() throws Exception {
+        OperationTimer timer = new OperationTimer("save", SAVE_KEYS);
+        Thread.sleep(5);
+        timer.lap(OperationTimer.Phase.SERIALIZE);
+        Thread.sleep(5);
+        timer.lap(OperationTimer.Phase.DYNAMO);
+        long total = timer.stop();
+
+        assertTrue(timer.getNanos(OperationTimer.Phase.SERIALIZE) >= 5000000L);
+        assertTrue(timer.getNanos(OperationTimer.Phase.DYNAMO) >= 5000000L);
+        assertEquals(0, timer.getNanos(OperationTimer.Phase.FALLBACK));
+        assertTrue(total >= timer.getNanos(OperationTimer.Phase.SERIALIZE)
+                + timer.getNanos(OperationTimer.Phase.DYNAMO));
+        assertEquals(total, timer.getTotalNanos()); // stopped, so it doesn't move on
+    }
+
+    @Test
+    public void reportsOnlyPhasesThatTookTime() throws Exception {
+        OperationTimer timer = new OperationTimer("save", SAVE_KEYS);
+        Thread.sleep(2);
+        timer.lap(OperationTimer.Phase.DYNAMO);
+        timer.stop();
+        StatsdClient statsd = mock(StatsdClient.class);
+        timer.report(statsd);
+        verify(statsd).timingNanos(eq("session.save"), anyLong());
+        verify(statsd).timingNanos(eq("session.save.dynamo"), anyLong());
+        verify(statsd, never()).timingNanos(eq("session.save.serialize"), anyLong());
+    }
+
+    @Test
+    public void tracesThePhasesAndFacts() throws Exception {
+        OperationTimer timer = new OperationTimer("load", OperationTimer.statKeys("load"));
+        timer.setTableName("sessions_1");
+        timer.addBytes(1200);
+        timer.addConsumedUnits(0.5);
+        timer.addConsumedUnits(null);
+        Thread.sleep(2);
+        timer.lap(OperationTimer.Phase.DYNAMO);
+        timer.stop();
+
+        String trace = timer.trace("abc");
+        assertTrue(trace, trace.startsWith("op=load session=" + Integer.toHexString("abc".hashCode())
+                + " table=sessions_1 bytes=1200 units=0.5 totalMs="));
+        assertTrue(trace, trace.contains(" dynamoMs="));
+        assertFalse(trace, trace.contains(" serializeMs="));
+        assertFalse(trace, trace.contains(" loadMs=")); // not a save of a loaded session
+        assertTrue(timer.trace(null).contains(" session=none "));
+    }
+
+    @Test
+    public void tracesHowTheSavedSessionWasLoaded() {
+        OperationTimer timer = new OperationTimer("save", SAVE_KEYS);
+        timer.setLoad(false, 12, 3400);
+        assertTrue(timer.trace("abc").endsWith(" loadMs=12 heldMs=3400"));
+
+        timer.setLoad(true, 80, 20);
+        assertTrue(timer.trace("abc").endsWith(" loadMs=80 heldMs=20 fromPrevious=true"));
+    }
+}
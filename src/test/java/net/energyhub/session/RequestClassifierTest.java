@@ -0,0 +1,84 @@
+package net.energyhub.session;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+import org.junit.Test;
+
+import javax.servlet.http.HttpServletRequest;
+import java.util.Arrays;
+import java.util.Collections;
+
+public class RequestClassifierTest {
+
+    private static HttpServletRequest request(String method, String uri, String... headers) {
+        HttpServletRequest request = mock(HttpServletRequest.class);
+        when(request.getMethod()).thenReturn(method);
+        when(request.getRequestURI()).thenReturn(uri);
+        when(request.getHeaderNames()).thenReturn(Collections.enumeration(Arrays.asList(headers)));
+        return request;
+    }
+
+    @Test
+    public void noRulesIsFull() {
+        RequestClassifier classifier = RequestClassifier.compile("", "", "");
+        assertEquals(RequestClass.FULL, classifier.classify(request("GET", "/")));
+    }
+
+    @Test
+    public void firstMatchingRuleWins() {
+        RequestClassifier classifier = RequestClassifier.compile(
+                "uri:/health => none; prefix:/static/ => none; suffix:.css => readOnly;"
+                        + " prefix:/api/ method:GET,HEAD => touchOnly; prefix:/api/ => full; method:GET => readOnly",
+                "", "");
+        assertEquals(RequestClass.NONE, classifier.classify(request("GET", "/health")));
+        assertEquals(RequestClass.NONE, classifier.classify(request("GET", "/static/site.css")));
+        assertEquals(RequestClass.READ_ONLY, classifier.classify(request("GET", "/theme/site.css")));
+        assertEquals(RequestClass.TOUCH_ONLY, classifier.classify(request("GET", "/api/devices")));
+        assertEquals(RequestClass.FULL, classifier.classify(request("POST", "/api/devices")));
+        assertEquals(RequestClass.READ_ONLY, classifier.classify(request("GET", "/healthy")));
+        assertEquals(RequestClass.FULL, classifier.classify(request("POST", "/healthy")));
+    }
+
+    @Test
+    public void headerAndAttributeConditions() {
+        RequestClassifier classifier = RequestClassifier.compile(
+                "header:X-Poll => touchOnly; attribute:noSession => none", "", "");
+        assertEquals(RequestClass.TOUCH_ONLY, classifier.classify(request("GET", "/", "x-poll")));
+
+        HttpServletRequest request = request("GET", "/");
+        assertEquals(RequestClass.FULL, classifier.classify(request));
+        when(request.getAttribute("noSession")).thenReturn(Boolean.TRUE);
+        assertEquals(RequestClass.NONE, classifier.classify(request));
+    }
+
+    @Test
+    public void legacyRegexesAreNoneRules() {
+        RequestClassifier classifier = RequestClassifier.compile("", ".*/ignore\\.html", "X-MOBILE-.*");
+        assertEquals(RequestClass.NONE, classifier.classify(request("GET", "/a/ignore.html")));
+        assertEquals(RequestClass.NONE, classifier.classify(request("GET", "/", "X-MOBILE-CLIENT-TOKEN")));
+        assertEquals(RequestClass.FULL, classifier.classify(request("GET", "/a/other.html", "Accept")));
+    }
+
+    @Test
+    public void candidatesAreCachedPerUri() {
+        RequestClassifier classifier = RequestClassifier.compile("prefix:/a => none; suffix:.js => readOnly", "", "");
+        int[] candidates = classifier.candidatesFor("/a/b.js");
+        assertArrayEquals(new int[]{0, 1}, candidates);
+        assertSame(candidates, classifier.candidatesFor("/a/b.js"));
+        assertArrayEquals(new int[0], classifier.candidatesFor("/b"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void unknownConditionIsRejected() {
+        RequestClassifier.compile("path:/a => none", "", "");
+    }
+
+    @Test
+    public void parsesClassNames() {
+        assertEquals(RequestClass.TOUCH_ONLY, RequestClass.parse("touch-only"));
+        assertEquals(RequestClass.READ_ONLY, RequestClass.parse("readOnly"));
+        assertEquals(RequestClass.FULL, RequestClass.FULL.or(RequestClass.NONE));
+        assertEquals(RequestClass.TOUCH_ONLY, RequestClass.READ_ONLY.or(RequestClass.TOUCH_ONLY));
+    }
+}
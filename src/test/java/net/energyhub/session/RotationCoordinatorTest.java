@@ -0,0 +1,143 @@
+package net.energyhub.session;
+
+import static org.junit.Assert.*;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.*;
+
+import com.amazonaws.services.dynamodb.AmazonDynamoDB;
+import com.amazonaws.services.dynamodb.model.*;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+public class RotationCoordinatorTest {
+    private static final String TABLE = "tomcat-sessions_coordination";
+    private static final long LEASE = 30000;
+
+    private AmazonDynamoDB dynamo;
+    private Map<String, AttributeValue> item;
+
+    /**
+     * Back the mock client with the one coordination item, checking the expected values of conditional updates.
+     */
+    @Before
+    public void setUp() {
+        dynamo = mock(AmazonDynamoDB.class);
+        when(dynamo.getItem(any(GetItemRequest.class))).thenAnswer(new Answer<GetItemResult>() {
+            @Override
+            public GetItemResult answer(InvocationOnMock invocation) {
+                return new GetItemResult().withItem(item == null ? null : new HashMap<String, AttributeValue>(item));
+            }
+        });
+        when(dynamo.updateItem(any(UpdateItemRequest.class))).thenAnswer(new Answer<UpdateItemResult>() {
+            @Override
+            public UpdateItemResult answer(InvocationOnMock invocation) {
+                UpdateItemRequest request = (UpdateItemRequest) invocation.getArguments()[0];
+                for (Map.Entry<String, ExpectedAttributeValue> e : request.getExpected().entrySet()) {
+                    AttributeValue actual = item == null ? null : item.get(e.getKey());
+                    boolean ok = Boolean.FALSE.equals(e.getValue().getExists()) ? actual == null
+                            : actual != null && actual.equals(e.getValue().getValue());
+                    if (!ok) {
+                        throw new ConditionalCheckFailedException("expected " + e);
+                    }
+                }
+                if (item == null) {
+                    item = new HashMap<String, AttributeValue>();
+                    item.put(DynamoManager.COLUMN_ID, request.getKey().getHashKeyElement());
+                }
+                for (Map.Entry<String, AttributeValueUpdate> e : request.getAttributeUpdates().entrySet()) {
+                    if ("DELETE".equals(e.getValue().getAction())) {
+                        item.remove(e.getKey());
+                    } else {
+                        item.put(e.getKey(), e.getValue().getValue());
+                    }
+                }
+                return new UpdateItemResult();
+            }
+        });
+    }
+
+    @Test
+    public void onlyOneNodeHoldsTheLease() {
+        RotationCoordinator a = new RotationCoordinator(dynamo, TABLE, LEASE);
+        RotationCoordinator b = new RotationCoordinator(dynamo, TABLE, LEASE);
+        long now = 1000000;
+
+        assertTrue(a.tryAcquire(a.read(), now));
+        assertFalse(b.tryAcquire(b.read(), now + 1000));
+        assertTrue(a.holdsLease(now + 1000));
+        assertFalse(b.holdsLease(now + 1000));
+
+        // a renews with what it wrote
+        assertTrue(a.leaseDueForRenewal(now + LEASE - 1000));
+        assertTrue(a.tryAcquire(a.ownState(), now + LEASE - 1000));
+        assertFalse(b.tryAcquire(b.read(), now + LEASE + 1000));
+    }
+
+    @Test
+    public void expiredLeaseIsTakenOverOnce() {
+        RotationCoordinator a = new RotationCoordinator(dynamo, TABLE, LEASE);
+        RotationCoordinator b = new RotationCoordinator(dynamo, TABLE, LEASE);
+        RotationCoordinator c = new RotationCoordinator(dynamo, TABLE, LEASE);
+        long now = 1000000;
+        assertTrue(a.tryAcquire(null, now));
+        assertTrue(a.publish("sessions_20130401_000000", null));
+
+        long later = now + LEASE + 1;
+        RotationCoordinator.State seenByB = b.read();
+        RotationCoordinator.State seenByC = c.read();
+        assertTrue(b.tryAcquire(seenByB, later));
+        assertFalse(c.tryAcquire(seenByC, later)); // saw the same expiry, but b got there first
+
+        // the old leader can't publish any more
+        assertFalse(a.publish("sessions_20130401_010000", "sessions_20130401_000000"));
+        assertFalse(a.holdsLease(later));
+        assertEquals("sessions_20130401_000000", b.read().getCurrentTable());
+    }
+
+    @Test
+    public void releaseHandsOver() {
+        RotationCoordinator a = new RotationCoordinator(dynamo, TABLE, LEASE);
+        RotationCoordinator b = new RotationCoordinator(dynamo, TABLE, LEASE);
+        long now = System.currentTimeMillis();
+        assertTrue(a.tryAcquire(null, now));
+        a.release();
+        assertTrue(b.tryAcquire(b.read(), now + 1));
+    }
+
+    @Test
+    public void followerSwitchesToPublishedTables() {
+        DynamoTableRotator rotator = new DynamoTableRotator("sessions", 3600, 1, 1, dynamo);
+        final List<TableTopology> seen = new ArrayList<TableTopology>();
+        rotator.addListener(new TableTopology.Listener() {
+            @Override
+            public void topologyChanged(TableTopology previous, TableTopology current) {
+                seen.add(current);
+            }
+        });
+        rotator.currentTableName = "sessions_20130401_000000";
+        rotator.follow(new RotationCoordinator.State("leader", 0, "sessions_20130401_010000",
+                "sessions_20130401_000000"));
+        assertEquals("sessions_20130401_010000", rotator.getCurrentTableName());
+        assertEquals("sessions_20130401_000000", rotator.getPreviousTableName());
+
+        // never back in time, nor to someone else's tables
+        rotator.follow(new RotationCoordinator.State("leader", 0, "sessions_20130401_000000", null));
+        rotator.follow(new RotationCoordinator.State("leader", 0, "other_20130401_020000", null));
+        assertEquals("sessions_20130401_010000", rotator.getCurrentTableName());
+
+        // one snapshot per change
+        assertEquals(1, seen.size());
+        TableTopology topology = rotator.getTopology();
+        assertSame(topology, seen.get(0));
+        assertEquals(1, topology.getEpoch());
+        assertEquals("sessions_20130401_000000", topology.getPreviousTableName());
+        assertNotNull(topology.getNextTableName());
+    }
+}
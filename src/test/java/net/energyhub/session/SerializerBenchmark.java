@@ -0,0 +1,215 @@
+/***********************************************************************************************************************
+ *
+ * Dynamo Tomcat Sessions
+ * ==========================================
+ *
+ * Copyright (C) 2013 by EnergyHub Inc. (http://www.energyhub.com)
+ *
+ ***********************************************************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ *
+ **********************************************************************************************************************/
+
+package net.energyhub.session;
+
+import org.apache.catalina.Manager;
+import org.apache.catalina.core.StandardContext;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.*;
+
+/**
+ * Compares serializers on size and speed, on sessions captured from a table or on built-in samples.
+ *
+ * Captured sessions are the payloads JavaSerializer wrote, one per line, base64 encoded (as the data column comes out
+ * of a table export); their attribute classes must be on the classpath. Each session is encoded and decoded with
+ * every serializer, and for each the average payload size and the time per encode and decode are printed. It lives
+ * with the tests, so it isn't shipped; run it with the test classpath (see the README):
+ * mvn -q test-compile exec:java -Dexec.classpathScope=test -Dexec.mainClass=net.energyhub.session.SerializerBenchmark
+ */
+public class SerializerBenchmark {
+    /**
+     * Size and speed of one serializer over a set of sessions.
+     */
+    public static class Result {
+        final String name;
+        final int sessions;
+        final long bytes;
+        final long encodeNanos;
+        final long decodeNanos;
+        final int iterations;
+
+        Result(String name, int sessions, long bytes, long encodeNanos, long decodeNanos, int iterations) {
+            this.name = name;
+            this.sessions = sessions;
+            this.bytes = bytes;
+            this.encodeNanos = encodeNanos;
+            this.decodeNanos = decodeNanos;
+            this.iterations = iterations;
+        }
+
+        public double getAverageBytes() {
+            return sessions == 0 ? 0 : (double) bytes / sessions;
+        }
+
+        public double getEncodeMicros() {
+            return sessions == 0 ? 0 : encodeNanos / 1000.0 / sessions / iterations;
+        }
+
+        public double getDecodeMicros() {
+            return sessions == 0 ? 0 : decodeNanos / 1000.0 / sessions / iterations;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.ROOT, "%-16s sessions=%d avgBytes=%.1f encodeUs=%.2f decodeUs=%.2f",
+                    name, sessions, getAverageBytes(), getEncodeMicros(), getDecodeMicros());
+        }
+    }
+
+    /**
+     * Encode every session, then decode every payload, iterations times each, after a warm-up.
+     */
+    public static Result measure(String name, Serializer serializer, List<DynamoSession> sessions, Manager manager,
+                                 int iterations) throws IOException, ClassNotFoundException {
+        List<ByteBuffer> payloads = new ArrayList<ByteBuffer>(sessions.size());
+        long bytes = 0;
+        for (DynamoSession session : sessions) {
+            ByteBuffer payload = serializer.serializeFrom(session);
+            payloads.add(payload);
+            bytes += payload.remaining();
+        }
+        for (int i = 0; i < Math.max(1, iterations / 10); i++) {
+            run(serializer, sessions, payloads, manager);
+        }
+        long encodeNanos = 0;
+        long decodeNanos = 0;
+        for (int i = 0; i < iterations; i++) {
+            long[] nanos = run(serializer, sessions, payloads, manager);
+            encodeNanos += nanos[0];
+            decodeNanos += nanos[1];
+        }
+        return new Result(name, sessions.size(), bytes, encodeNanos, decodeNanos, iterations);
+    }
+
+    private static long[] run(Serializer serializer, List<DynamoSession> sessions, List<ByteBuffer> payloads,
+                              Manager manager) throws IOException, ClassNotFoundException {
+        long start = System.nanoTime();
+        for (DynamoSession session : sessions) {
+            serializer.serializeFrom(session);
+        }
+        long encoded = System.nanoTime();
+        for (ByteBuffer payload : payloads) {
+            serializer.deserializeInto(payload, new DynamoSession(manager));
+        }
+        return new long[]{encoded - start, System.nanoTime() - encoded};
+    }
+
+    /**
+     * Load captured JavaSerializer payloads, one base64 payload per line.
+     */
+    public static List<DynamoSession> captured(BufferedReader lines, Manager manager)
+            throws IOException, ClassNotFoundException {
+        JavaSerializer serializer = new JavaSerializer();
+        serializer.setClassLoader(Thread.currentThread().getContextClassLoader());
+        List<DynamoSession> sessions = new ArrayList<DynamoSession>();
+        for (String line; (line = lines.readLine()) != null; ) {
+            line = line.trim();
+            if (line.isEmpty()) {
+                continue;
+            }
+            DynamoSession session = new DynamoSession(manager);
+            serializer.deserializeInto(ByteBuffer.wrap(Base64.getDecoder().decode(line)), session);
+            session.setValid(true);
+            sessions.add(session);
+        }
+        return sessions;
+    }
+
+    /**
+     * Sessions shaped like ours: a user id and name, a few flags and counters, a login date, and a small list and map.
+     */
+    public static List<DynamoSession> samples(Manager manager, int count) {
+        Random random = new Random(42);
+        List<DynamoSession> sessions = new ArrayList<DynamoSession>(count);
+        for (int i = 0; i < count; i++) {
+            DynamoSession session = new DynamoSession(manager);
+            session.restore(1365000000000L + i, 1365000000000L + i, 1365000000000L + i, 3600, false,
+                    CompactSessionIdGenerator.encode("", longBytes(random.nextLong(), random.nextLong())));
+            session.restoreAttribute("userId", random.nextInt(1000000));
+            session.restoreAttribute("userName", "user" + random.nextInt(100000) + "@example.com");
+            session.restoreAttribute("locale", "en_US");
+            session.restoreAttribute("authenticated", Boolean.TRUE);
+            session.restoreAttribute("loginTime", new Date(1365000000000L + random.nextInt(3600000)));
+            session.restoreAttribute("pageViews", (long) random.nextInt(500));
+            session.restoreAttribute("csrfToken", Long.toHexString(random.nextLong()) + Long.toHexString(
+                    random.nextLong()));
+            List<String> recent = new ArrayList<String>();
+            for (int j = 0; j < 1 + random.nextInt(5); j++) {
+                recent.add("/thermostat/" + random.nextInt(10000) + "/schedule");
+            }
+            session.restoreAttribute("recentPages", recent);
+            Map<String, Object> preferences = new HashMap<String, Object>();
+            preferences.put("units", random.nextBoolean() ? "F" : "C");
+            preferences.put("timeout", 30);
+            preferences.put("notifications", random.nextBoolean());
+            session.restoreAttribute("preferences", preferences);
+            sessions.add(session);
+        }
+        return sessions;
+    }
+
+    private static byte[] longBytes(long a, long b) {
+        return ByteBuffer.allocate(16).putLong(a).putLong(b).array();
+    }
+
+    public static void main(String[] args) throws Exception {
+        int iterations = 200;
+        String file = null;
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("--iterations") && i + 1 < args.length) {
+                iterations = Integer.parseInt(args[++i]);
+            } else if (file == null && !args[i].startsWith("--")) {
+                file = args[i];
+            } else {
+                System.err.println("Usage: SerializerBenchmark [--iterations n] [captured.txt]");
+                System.exit(2);
+            }
+        }
+        DynamoManager manager = new DynamoManager();
+        manager.setContainer(new StandardContext()); // reading Java payloads logs through it
+        List<DynamoSession> sessions;
+        if (file == null) {
+            sessions = samples(manager, 1000);
+        } else {
+            BufferedReader lines = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+            try {
+                sessions = captured(lines, manager);
+            } finally {
+                lines.close();
+            }
+        }
+        Serializer java = new JavaSerializer();
+        Serializer typed = new TypedSerializer();
+        for (Serializer serializer : new Serializer[]{java, typed}) {
+            serializer.setClassLoader(Thread.currentThread().getContextClassLoader());
+        }
+        Result javaResult = measure("JavaSerializer", java, sessions, manager, iterations);
+        Result typedResult = measure("TypedSerializer", typed, sessions, manager, iterations);
+        System.out.println(javaResult);
+        System.out.println(typedResult);
+        System.out.println(String.format(Locale.ROOT, "typed/java: size %.2f, encode %.2f, decode %.2f",
+                typedResult.getAverageBytes() / javaResult.getAverageBytes(),
+                typedResult.getEncodeMicros() / javaResult.getEncodeMicros(),
+                typedResult.getDecodeMicros() / javaResult.getDecodeMicros()));
+    }
+}
@@ -0,0 +1,102 @@
+package net.energyhub.session;
+
+import static org.junit.Assert.*;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.*;
+
+import com.amazonaws.services.dynamodb.AmazonDynamoDB;
+import com.amazonaws.services.dynamodb.model.*;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import java.nio.ByteBuffer;
+import java.util.*;
+
+public class SessionChunkStoreTest {
+    private static final String TABLE = "tomcat-sessions";
+
+    private AmazonDynamoDB dynamo;
+    private Map<String, Map<String, AttributeValue>> items;
+
+    /**
+     * Back the mock client with a map, so chunks that are written can be read back and deleted.
+     */
+    @Before
+    public void setUp() {
+        dynamo = mock(AmazonDynamoDB.class);
+        items = new HashMap<String, Map<String, AttributeValue>>();
+        when(dynamo.batchWriteItem(any(BatchWriteItemRequest.class))).thenAnswer(new Answer<BatchWriteItemResult>() {
+            @Override
+            public BatchWriteItemResult answer(InvocationOnMock invocation) {
+                BatchWriteItemRequest request = (BatchWriteItemRequest) invocation.getArguments()[0];
+                for (WriteRequest write : request.getRequestItems().get(TABLE)) {
+                    if (write.getPutRequest() != null) {
+                        Map<String, AttributeValue> item = write.getPutRequest().getItem();
+                        items.put(item.get(DynamoManager.COLUMN_ID).getS(), item);
+                    } else {
+                        items.remove(write.getDeleteRequest().getKey().getHashKeyElement().getS());
+                    }
+                }
+                return new BatchWriteItemResult();
+            }
+        });
+        when(dynamo.batchGetItem(any(BatchGetItemRequest.class))).thenAnswer(new Answer<BatchGetItemResult>() {
+            @Override
+            public BatchGetItemResult answer(InvocationOnMock invocation) {
+                BatchGetItemRequest request = (BatchGetItemRequest) invocation.getArguments()[0];
+                List<Map<String, AttributeValue>> found = new ArrayList<Map<String, AttributeValue>>();
+                for (Key key : request.getRequestItems().get(TABLE).getKeys()) {
+                    Map<String, AttributeValue> item = items.get(key.getHashKeyElement().getS());
+                    if (item != null) {
+                        found.add(item);
+                    }
+                }
+                Map<String, BatchResponse> responses = new HashMap<String, BatchResponse>();
+                responses.put(TABLE, new BatchResponse().withItems(found).withConsumedCapacityUnits(1.0));
+                return new BatchGetItemResult().withResponses(responses);
+            }
+        });
+    }
+
+    @Test
+    public void splitsWithoutCopying() {
+        ByteBuffer data = ByteBuffer.wrap(new byte[250]);
+        List<ByteBuffer> slices = SessionChunkStore.split(data, 100);
+        assertEquals(3, slices.size());
+        assertEquals(100, slices.get(0).capacity());
+        assertEquals(50, slices.get(2).capacity());
+        assertSame(data.array(), slices.get(1).array());
+    }
+
+    @Test
+    public void writesAndReadsChunkSet() throws Exception {
+        byte[] payload = new byte[1000];
+        new Random(7).nextBytes(payload);
+        SessionChunkStore store = new SessionChunkStore(dynamo, 64);
+        assertTrue(store.shouldChunk(payload.length));
+
+        SessionChunkStore.ChunkSet chunks = store.write(TABLE, "abc", ByteBuffer.wrap(payload));
+        assertEquals(16, chunks.getCount());
+        assertEquals(16, items.size());
+
+        Map<String, AttributeValue> head = new HashMap<String, AttributeValue>();
+        chunks.addTo(head);
+        SessionChunkStore.ChunkSet described = SessionChunkStore.ChunkSet.fromItem(head);
+        ByteBuffer read = store.read(TABLE, "abc", described, true);
+        assertArrayEquals(payload, read.array());
+
+        store.delete(TABLE, "abc", described);
+        assertTrue(items.isEmpty());
+        assertNull(store.read(TABLE, "abc", described, true));
+    }
+
+    @Test
+    public void headWithoutChunks() {
+        Map<String, AttributeValue> head = new HashMap<String, AttributeValue>();
+        head.put(DynamoManager.COLUMN_DATA, new AttributeValue().withB(ByteBuffer.wrap(new byte[1])));
+        assertNull(SessionChunkStore.ChunkSet.fromItem(head));
+        assertFalse(new SessionChunkStore(dynamo, 0).shouldChunk(1000000));
+    }
+}
@@ -0,0 +1,149 @@
+package net.energyhub.session;
+
+import static org.junit.Assert.*;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.*;
+
+import com.amazonaws.services.dynamodb.AmazonDynamoDB;
+import com.amazonaws.services.dynamodb.model.*;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+public class SessionCountsTest {
+    private AmazonDynamoDB dynamo;
+    private Map<String, Map<String, AttributeValue>> items;
+    private int conflicts;
+
+    @Before
+    public void setUp() {
+        items = new HashMap<String, Map<String, AttributeValue>>();
+        dynamo = mock(AmazonDynamoDB.class);
+        when(dynamo.putItem(any(PutItemRequest.class))).thenAnswer(new Answer<PutItemResult>() {
+            @Override
+            public PutItemResult answer(InvocationOnMock invocation) {
+                PutItemRequest request = (PutItemRequest) invocation.getArguments()[0];
+                String key = request.getTableName() + '\n' + request.getItem().get(DynamoManager.COLUMN_ID).getS();
+                Map<String, AttributeValue> stored = items.get(key);
+                ExpectedAttributeValue expected = request.getExpected().get(DynamoManager.COLUMN_VERSION);
+                boolean matches = Boolean.FALSE.equals(expected.getExists()) ? stored == null
+                        : stored != null && expected.getValue().equals(stored.get(DynamoManager.COLUMN_VERSION));
+                if (!matches) {
+                    conflicts++;
+                    throw new ConditionalCheckFailedException("version");
+                }
+                items.put(key, request.getItem());
+                return new PutItemResult();
+            }
+        });
+        when(dynamo.getItem(any(GetItemRequest.class))).thenAnswer(new Answer<GetItemResult>() {
+            @Override
+            public GetItemResult answer(InvocationOnMock invocation) {
+                GetItemRequest request = (GetItemRequest) invocation.getArguments()[0];
+                return new GetItemResult().withItem(
+                        items.get(request.getTableName() + '\n' + request.getKey().getHashKeyElement().getS()));
+            }
+        });
+    }
+
+    @Test
+    public void sketchEstimatesWithinAFewPercent() throws IOException {
+        SessionCountSketch sketch = new SessionCountSketch();
+        assertEquals(0, sketch.estimate());
+        for (int i = 0; i < 100; i++) {
+            sketch.offer("session-" + i);
+        }
+        assertEquals(100, sketch.estimate(), 2);
+        for (int i = 0; i < 200000; i++) {
+            sketch.offer("session-" + i);
+        }
+        assertEquals(200000, sketch.estimate(), 200000 * 0.03);
+        SessionCountSketch read = SessionCountSketch.fromBytes(sketch.toBytes());
+        assertEquals(sketch.estimate(), read.estimate());
+    }
+
+    @Test
+    public void sketchesMergeWithoutCountingTwice() {
+        SessionCountSketch a = new SessionCountSketch();
+        SessionCountSketch b = new SessionCountSketch();
+        for (int i = 0; i < 20000; i++) {
+            a.offer("session-" + i);
+            b.offer("session-" + (i + 10000));
+        }
+        assertTrue(a.merge(b));
+        assertFalse(a.merge(b));
+        assertEquals(30000, a.estimate(), 30000 * 0.03);
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsWhatIsNotASketch() throws IOException {
+        SessionCountSketch.fromBytes(new byte[]{9, 9, 9});
+    }
+
+    @Test
+    public void nodesSeeEachOthersSessionsAfterPublishing() {
+        SessionCounts one = new SessionCounts(dynamo, 1000);
+        SessionCounts two = new SessionCounts(dynamo, 1000);
+        assertEquals(-1, one.estimate());
+        one.tableChanged("t2", "t1");
+        two.tableChanged("t2", "t1");
+        for (int i = 0; i < 500; i++) {
+            one.saved("t2", "a" + i);
+            two.saved(i < 100 ? "t2" : "t1", "b" + i);
+        }
+        one.saved("t0", "gone"); // a table no longer in use isn't counted
+        assertEquals(-1, one.estimate()); // worked out when publishing
+
+        assertTrue(one.maybePublish(5000));
+        assertEquals(500, one.estimate(), 15);
+        assertFalse(one.maybePublish(5500));
+        assertTrue(two.maybePublish(5000));
+        assertTrue(one.maybePublish(6000));
+        assertEquals(1000, one.estimate(), 30);
+        assertEquals(1000, two.estimate(), 30);
+        assertEquals("1", items.get("t1\n" + SessionCounts.ITEM_ID).get(DynamoManager.COLUMN_VERSION).getN());
+        assertEquals("2", items.get("t2\n" + SessionCounts.ITEM_ID).get(DynamoManager.COLUMN_VERSION).getN());
+
+        one.tableChanged("t3", "t2"); // t1 is gone, and the sessions only in it with it
+        assertEquals(600, one.estimate(), 20);
+    }
+
+    @Test
+    public void mergesIntoAnotherNodesConcurrentPublish() {
+        SessionCounts one = new SessionCounts(dynamo, 1000);
+        SessionCounts two = new SessionCounts(dynamo, 1000);
+        one.tableChanged("t1", null);
+        two.tableChanged("t1", null);
+        one.saved("t1", "a");
+        two.saved("t1", "b");
+        // two reads an empty table, one publishes in between, so two's conditional put fails and it merges again
+        final SessionCounts first = one;
+        doAnswer(new Answer<GetItemResult>() {
+            boolean raced;
+
+            @Override
+            public GetItemResult answer(InvocationOnMock invocation) {
+                GetItemRequest request = (GetItemRequest) invocation.getArguments()[0];
+                GetItemResult result = new GetItemResult().withItem(
+                        items.get(request.getTableName() + '\n' + request.getKey().getHashKeyElement().getS()));
+                if (!raced) {
+                    raced = true;
+                    first.publishAll();
+                }
+                return result;
+            }
+        }).when(dynamo).getItem(any(GetItemRequest.class));
+        two.publishAll();
+        assertEquals(1, conflicts);
+        assertEquals("2", items.get("t1\n" + SessionCounts.ITEM_ID).get(DynamoManager.COLUMN_VERSION).getN());
+        SessionCounts three = new SessionCounts(dynamo, 1000);
+        three.tableChanged("t1", null);
+        three.publishAll();
+        assertEquals(2, three.estimate());
+    }
+}
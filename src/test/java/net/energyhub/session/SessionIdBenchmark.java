@@ -0,0 +1,98 @@
+/***********************************************************************************************************************
+ *
+ * Dynamo Tomcat Sessions
+ * ==========================================
+ *
+ * Copyright (C) 2013 by EnergyHub Inc. (http://www.energyhub.com)
+ *
+ ***********************************************************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ *
+ **********************************************************************************************************************/
+
+package net.energyhub.session;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Compares the session id generators on throughput, with many threads generating ids at once as under a burst of new
+ * sessions. For each generator the time per id is printed. It lives with the tests, so it isn't shipped:
+ * mvn -q test-compile exec:java -Dexec.classpathScope=test -Dexec.mainClass=net.energyhub.session.SessionIdBenchmark
+ */
+public class SessionIdBenchmark {
+
+    /**
+     * Generate perThread ids on each of the threads, after a warm-up.
+     * @return the nanoseconds it took
+     */
+    public static long measure(ExecutorService executor, final SessionIdGenerator generator, int threads,
+                               final int perThread) throws Exception {
+        run(executor, generator, threads, Math.max(1, perThread / 10));
+        return run(executor, generator, threads, perThread);
+    }
+
+    private static long run(ExecutorService executor, final SessionIdGenerator generator, int threads,
+                            final int perThread) throws Exception {
+        List<Callable<Integer>> tasks = new ArrayList<Callable<Integer>>();
+        for (int t = 0; t < threads; t++) {
+            tasks.add(new Callable<Integer>() {
+                @Override
+                public Integer call() {
+                    int length = 0;
+                    for (int i = 0; i < perThread; i++) {
+                        length += generator.generateSessionId().length(); // so the ids aren't optimized away
+                    }
+                    return length;
+                }
+            });
+        }
+        long start = System.nanoTime();
+        for (Future<Integer> done : executor.invokeAll(tasks)) {
+            done.get();
+        }
+        return System.nanoTime() - start;
+    }
+
+    public static void main(String[] args) throws Exception {
+        int threads = Runtime.getRuntime().availableProcessors() * 2;
+        int ids = 200000;
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("--threads") && i + 1 < args.length) {
+                threads = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("--ids") && i + 1 < args.length) {
+                ids = Integer.parseInt(args[++i]);
+            } else {
+                System.err.println("Usage: SessionIdBenchmark [--threads n] [--ids n]");
+                System.exit(2);
+            }
+        }
+        int perThread = Math.max(1, ids / threads);
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            long uuid = measure(executor, new UuidSessionIdGenerator(), threads, perThread);
+            long compact = measure(executor, new CompactSessionIdGenerator(), threads, perThread);
+            long total = (long) threads * perThread;
+            System.out.println(String.format(Locale.ROOT, "%-28s threads=%d ids=%d nsPerId=%.1f",
+                    "UuidSessionIdGenerator", threads, total, (double) uuid / total));
+            System.out.println(String.format(Locale.ROOT, "%-28s threads=%d ids=%d nsPerId=%.1f",
+                    "CompactSessionIdGenerator", threads, total, (double) compact / total));
+            System.out.println(String.format(Locale.ROOT, "compact/uuid: time %.2f", (double) compact / uuid));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}
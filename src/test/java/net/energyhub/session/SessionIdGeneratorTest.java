@@ -0,0 +1,78 @@
+package net.energyhub.session;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.*;
+
+public class SessionIdGeneratorTest {
+
+    @Test
+    public void compactIdsAreUrlSafeAndShort() {
+        CompactSessionIdGenerator generator = new CompactSessionIdGenerator();
+        generator.setPrefix("node1.");
+        String id = generator.generateSessionId();
+        assertEquals(generator.getSessionIdLength(), id.length());
+        assertEquals(28, id.length());
+        assertTrue(id, id.matches("node1\\.[A-Za-z0-9_-]{22}"));
+    }
+
+    @Test
+    public void encodesLikeBase64Url() {
+        assertEquals("", CompactSessionIdGenerator.encode("", new byte[0]));
+        assertEquals("-_8", CompactSessionIdGenerator.encode("", new byte[]{(byte) 0xfb, (byte) 0xff}));
+        assertEquals("p:Zm9vYg", CompactSessionIdGenerator.encode("p:", "foob".getBytes()));
+    }
+
+    @Test
+    public void uuidGeneratorKeepsOldFormat() {
+        UuidSessionIdGenerator generator = new UuidSessionIdGenerator();
+        String id = generator.generateSessionId();
+        assertEquals(36, generator.getSessionIdLength());
+        assertEquals(id, UUID.fromString(id).toString());
+    }
+
+    @Test
+    public void noCollisionsAcrossThreads() throws Exception {
+        final CompactSessionIdGenerator generator = new CompactSessionIdGenerator(4);
+        final int threads = 8;
+        final int perThread = 25000;
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            Set<String> all = new HashSet<String>();
+            for (Future<Set<String>> ids : executor.invokeAll(generateAll(generator, threads, perThread))) {
+                all.addAll(ids.get());
+            }
+            assertEquals(threads * perThread, all.size());
+            for (String id : all) {
+                assertTrue(id, id.matches("[A-Za-z0-9_-]{22}"));
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static List<Callable<Set<String>>> generateAll(final SessionIdGenerator generator,
+                                                                     int threads, final int perThread) {
+        List<Callable<Set<String>>> tasks = new ArrayList<Callable<Set<String>>>();
+        for (int t = 0; t < threads; t++) {
+            tasks.add(new Callable<Set<String>>() {
+                @Override
+                public Set<String> call() {
+                    Set<String> ids = new HashSet<String>(perThread * 2);
+                    for (int i = 0; i < perThread; i++) {
+                        ids.add(generator.generateSessionId());
+                    }
+                    return ids;
+                }
+            });
+        }
+        return tasks;
+    }
+}
@@ -0,0 +1,215 @@
+package net.energyhub.session;
+
+import static org.junit.Assert.*;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.*;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.dynamodb.AmazonDynamoDB;
+import com.amazonaws.services.dynamodb.model.*;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import java.util.*;
+
+public class SessionReplicatorTest {
+    private static final String TABLE = "tomcat-sessions";
+
+    private DynamoManager manager;
+    private DynamoManagerStats stats;
+    private Map<String, Map<String, AttributeValue>> east;
+    private Map<String, Map<String, AttributeValue>> west;
+    private DynamoEndpoint eastEndpoint;
+    private DynamoEndpoint westEndpoint;
+    private SessionReplicator replicator;
+
+    @Before
+    public void setUp() {
+        manager = mock(DynamoManager.class);
+        stats = new DynamoManagerStats(3600);
+        when(manager.getStats()).thenReturn(stats);
+        east = new HashMap<String, Map<String, AttributeValue>>();
+        west = new HashMap<String, Map<String, AttributeValue>>();
+        eastEndpoint = new DynamoEndpoint("east", "http://localhost:9091");
+        eastEndpoint.setDynamo(standIn(east));
+        westEndpoint = new DynamoEndpoint("west", "http://localhost:9092");
+        westEndpoint.setDynamo(standIn(west));
+        replicator = new SessionReplicator(manager, Arrays.asList(eastEndpoint, westEndpoint), 1000);
+    }
+
+    @Test
+    public void copiesToEveryReplica() {
+        replicator.put(TABLE, item("a", 1, 100));
+        assertEquals(1, replicator.flush());
+        assertEquals(1, DynamoManager.readVersion(east.get("a")));
+        assertEquals(1, DynamoManager.readVersion(west.get("a")));
+        assertEquals(2, stats.getReplicatedItems());
+        assertTrue(stats.getReplicationLagMillis().containsKey("east"));
+        assertEquals(0, replicator.size());
+    }
+
+    @Test
+    public void neverCopiesOverANewerVersion() {
+        east.put("a", item("a", 5, 500));
+        replicator.put(TABLE, item("a", 4, 400));
+        replicator.flush();
+        assertEquals(5, DynamoManager.readVersion(east.get("a")));
+        assertEquals(4, DynamoManager.readVersion(west.get("a")));
+    }
+
+    @Test
+    public void keepsOnlyTheLatestWrite() {
+        replicator.put(TABLE, item("a", 1, 100));
+        replicator.put(TABLE, item("a", 2, 200));
+        replicator.touch(TABLE, "a", 300);
+        assertEquals(1, replicator.size());
+        replicator.flush();
+        assertEquals(2, DynamoManager.readVersion(east.get("a")));
+        assertEquals("300", east.get("a").get(DynamoManager.COLUMN_LAST_ACCESSED).getN());
+    }
+
+    @Test
+    public void touchesOnlyExistingCopies() {
+        east.put("a", item("a", 1, 100));
+        replicator.touch(TABLE, "a", 300);
+        replicator.flush();
+        assertEquals("300", east.get("a").get(DynamoManager.COLUMN_LAST_ACCESSED).getN());
+        assertNull(west.get("a"));
+    }
+
+    @Test
+    public void removalLeavesATombstone() {
+        replicator.put(TABLE, item("a", 1, 100));
+        replicator.flush();
+        replicator.remove(TABLE, "a");
+        replicator.flush();
+        assertTrue(east.get("a").containsKey(DynamoManager.COLUMN_REMOVED));
+        assertNull(east.get("a").get(DynamoManager.COLUMN_DATA));
+
+        // a late copy of an older write doesn't bring it back
+        replicator.put(TABLE, item("a", 2, 200));
+        replicator.flush();
+        assertTrue(east.get("a").containsKey(DynamoManager.COLUMN_REMOVED));
+    }
+
+    @Test
+    public void chunkedSessionsAreReadFromHome() {
+        east.put("a", item("a", 1, 100));
+        Map<String, AttributeValue> chunked = item("a", 2, 200);
+        chunked.remove(DynamoManager.COLUMN_DATA);
+        chunked.put(SessionChunkStore.COLUMN_CHUNK_GENERATION, new AttributeValue().withN("1"));
+        chunked.put(SessionChunkStore.COLUMN_CHUNK_COUNT, new AttributeValue().withN("2"));
+        chunked.put(SessionChunkStore.COLUMN_CHUNK_SIZE, new AttributeValue().withN("1000"));
+        chunked.put(SessionChunkStore.COLUMN_SIZE, new AttributeValue().withN("1500"));
+        replicator.put(TABLE, chunked);
+        replicator.flush();
+        assertNull(east.get("a"));
+    }
+
+    @Test
+    public void keepsWhatCouldNotBeCopied() {
+        AmazonDynamoDB down = mock(AmazonDynamoDB.class);
+        when(down.getItem(any(GetItemRequest.class))).thenThrow(new AmazonServiceException("unavailable"));
+        westEndpoint.setDynamo(down);
+        replicator.put(TABLE, item("a", 1, 100));
+        assertEquals(0, replicator.flush());
+        assertEquals(1, replicator.size());
+        assertEquals(1, stats.getReplicationFailures());
+
+        westEndpoint.setDynamo(standIn(west));
+        assertEquals(1, replicator.flush());
+        assertEquals(1, DynamoManager.readVersion(west.get("a")));
+    }
+
+    @Test
+    public void parsesEndpoints() {
+        List<DynamoEndpoint> endpoints = DynamoEndpoint.parse(
+                "west=https://dynamodb.us-west-2.amazonaws.com, https://dynamodb.us-east-1.amazonaws.com");
+        assertEquals(2, endpoints.size());
+        assertEquals("west", endpoints.get(0).getName());
+        assertEquals("https://dynamodb.us-west-2.amazonaws.com", endpoints.get(0).getUrl());
+        assertEquals("dynamodb.us-east-1.amazonaws.com", endpoints.get(1).getName());
+        try {
+            DynamoEndpoint.parse("a=http://x,a=http://y");
+            fail("duplicate names accepted");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    private static Map<String, AttributeValue> item(String id, long version, long lastAccessed) {
+        Map<String, AttributeValue> item = new HashMap<String, AttributeValue>();
+        item.put(DynamoManager.COLUMN_ID, new AttributeValue().withS(id));
+        item.put(DynamoManager.COLUMN_VERSION, new AttributeValue().withN(Long.toString(version)));
+        item.put(DynamoManager.COLUMN_LAST_ACCESSED, new AttributeValue().withN(Long.toString(lastAccessed)));
+        item.put(DynamoManager.COLUMN_DATA, new AttributeValue().withB(java.nio.ByteBuffer.wrap(new byte[]{1})));
+        return item;
+    }
+
+    /**
+     * A local Dynamo stand-in with one table, checking the expected values of conditional writes.
+     */
+    private static AmazonDynamoDB standIn(final Map<String, Map<String, AttributeValue>> items) {
+        AmazonDynamoDB dynamo = mock(AmazonDynamoDB.class);
+        when(dynamo.getItem(any(GetItemRequest.class))).thenAnswer(new Answer<GetItemResult>() {
+            @Override
+            public GetItemResult answer(InvocationOnMock invocation) {
+                GetItemRequest request = (GetItemRequest) invocation.getArguments()[0];
+                Map<String, AttributeValue> item = items.get(request.getKey().getHashKeyElement().getS());
+                return new GetItemResult().withItem(item == null ? null : new HashMap<String, AttributeValue>(item));
+            }
+        });
+        when(dynamo.putItem(any(PutItemRequest.class))).thenAnswer(new Answer<PutItemResult>() {
+            @Override
+            public PutItemResult answer(InvocationOnMock invocation) {
+                PutItemRequest request = (PutItemRequest) invocation.getArguments()[0];
+                String id = request.getItem().get(DynamoManager.COLUMN_ID).getS();
+                check(items.get(id), request.getExpected());
+                items.put(id, new HashMap<String, AttributeValue>(request.getItem()));
+                return new PutItemResult();
+            }
+        });
+        when(dynamo.updateItem(any(UpdateItemRequest.class))).thenAnswer(new Answer<UpdateItemResult>() {
+            @Override
+            public UpdateItemResult answer(InvocationOnMock invocation) {
+                UpdateItemRequest request = (UpdateItemRequest) invocation.getArguments()[0];
+                String id = request.getKey().getHashKeyElement().getS();
+                check(items.get(id), request.getExpected());
+                Map<String, AttributeValue> item = items.get(id);
+                if (item == null) {
+                    items.put(id, item = new HashMap<String, AttributeValue>());
+                    item.put(DynamoManager.COLUMN_ID, request.getKey().getHashKeyElement());
+                }
+                for (Map.Entry<String, AttributeValueUpdate> e : request.getAttributeUpdates().entrySet()) {
+                    item.put(e.getKey(), e.getValue().getValue());
+                }
+                return new UpdateItemResult();
+            }
+        });
+        when(dynamo.deleteItem(any(DeleteItemRequest.class))).thenAnswer(new Answer<DeleteItemResult>() {
+            @Override
+            public DeleteItemResult answer(InvocationOnMock invocation) {
+                DeleteItemRequest request = (DeleteItemRequest) invocation.getArguments()[0];
+                items.remove(request.getKey().getHashKeyElement().getS());
+                return new DeleteItemResult();
+            }
+        });
+        return dynamo;
+    }
+
+    private static void check(Map<String, AttributeValue> item, Map<String, ExpectedAttributeValue> expected) {
+        if (expected == null) {
+            return;
+        }
+        for (Map.Entry<String, ExpectedAttributeValue> e : expected.entrySet()) {
+            AttributeValue actual = item == null ? null : item.get(e.getKey());
+            boolean ok = Boolean.FALSE.equals(e.getValue().getExists()) ? actual == null
+                    : actual != null && actual.equals(e.getValue().getValue());
+            if (!ok) {
+                throw new ConditionalCheckFailedException("expected " + e);
+            }
+        }
+    }
+}
@@ -0,0 +1,55 @@
+package net.energyhub.session;
+
+import static org.junit.Assert.*;
+
+import org.apache.catalina.session.StandardSession;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+public class SessionSizeProfilerTest {
+
+    @Test
+    public void ranksAttributesBySize() {
+        StandardSession session = new StandardSession(null);
+        session.setValid(true);
+        session.setAttribute("small", "x", false);
+        session.setAttribute("big", new byte[10000], false);
+        session.setAttribute("unserializable", new Object(), false);
+
+        SessionSizeProfiler profiler = new SessionSizeProfiler();
+        List<SessionSizeProfiler.AttributeSize> measured = profiler.profile(session);
+        assertEquals("big", measured.get(0).getName());
+        assertTrue(measured.get(0).getMaxBytes() > 10000);
+
+        List<SessionSizeProfiler.AttributeSize> top = profiler.getTopAttributes(1);
+        assertEquals(1, top.size());
+        assertEquals("big", top.get(0).getName());
+        assertEquals("[B", top.get(0).getClassName());
+
+        Map<String, Long> averages = SessionSizeProfiler.averageBytes(profiler.getTopAttributes(2));
+        assertEquals(Arrays.asList("big ([B)", "small (java.lang.String)"), new ArrayList<String>(averages.keySet()));
+        assertEquals(top.get(0).getAverageBytes(), (long) averages.get("big ([B)"));
+    }
+
+    @Test
+    public void statNamesAreSafeForStatsd() {
+        assertEquals("user_cart-2", SessionSizeProfiler.statName("user.cart-2"));
+        assertEquals("a_b_c", SessionSizeProfiler.statName("a:b|c"));
+    }
+
+    @Test
+    public void reportsPayloadPercentiles() {
+        SessionSizeProfiler profiler = new SessionSizeProfiler();
+        for (int i = 1; i <= 100; i++) {
+            profiler.recordPayload(i * 100);
+        }
+        String report = profiler.report(5);
+        assertTrue(report, report.startsWith("saves=100 "));
+        assertTrue(report, report.contains("maxBytes=10000"));
+        assertTrue(profiler.report(5).startsWith("saves=0 "));
+    }
+}
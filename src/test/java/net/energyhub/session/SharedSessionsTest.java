@@ -0,0 +1,116 @@
+package net.energyhub.session;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import java.util.concurrent.*;
+
+public class SharedSessionsTest {
+    private DynamoManager manager;
+    private DynamoManagerStats stats;
+
+    @Before
+    public void setUp() {
+        manager = mock(DynamoManager.class);
+        stats = new DynamoManagerStats(3600);
+        when(manager.getStats()).thenReturn(stats);
+    }
+
+    @Test
+    public void savesOnceWhenLastRequestReleases() throws Exception {
+        DynamoSession session = new DynamoSession(manager);
+        when(manager.loadSession("abc")).thenReturn(session);
+        SharedSessions shared = new SharedSessions(manager);
+
+        assertSame(session, shared.acquire("abc"));
+        assertSame(session, shared.acquire("abc"));
+        assertSame(session, shared.find("abc"));
+        verify(manager, times(1)).loadSession("abc");
+
+        shared.release("abc", session, RequestClass.FULL);
+        verify(manager, never()).save(session, false);
+        shared.release("abc", session, RequestClass.READ_ONLY);
+        verify(manager, times(1)).save(session, false);
+        assertNull(shared.find("abc"));
+        assertEquals(0, shared.size());
+        assertEquals(1, stats.getSharedLoads());
+        assertEquals(1, stats.getCoalescedSaves());
+    }
+
+    @Test
+    public void touchOnlyRequestsDoNotWriteData() throws Exception {
+        DynamoSession session = new DynamoSession(manager);
+        when(manager.loadSession("abc")).thenReturn(session);
+        SharedSessions shared = new SharedSessions(manager);
+
+        shared.acquire("abc");
+        shared.acquire("abc");
+        shared.release("abc", session, RequestClass.TOUCH_ONLY);
+        shared.release("abc", session, RequestClass.NONE);
+        verify(manager, times(1)).save(session, true);
+        verify(manager, never()).save(session, false);
+    }
+
+    @Test
+    public void missingSessionIsNotKept() throws Exception {
+        SharedSessions shared = new SharedSessions(manager);
+        assertNull(shared.acquire("gone"));
+        assertEquals(0, shared.size());
+    }
+
+    @Test
+    public void stopSavesSessionsStillInUse() throws Exception {
+        DynamoSession session = new DynamoSession(manager);
+        when(manager.loadSession("abc")).thenReturn(session);
+        SharedSessions shared = new SharedSessions(manager);
+
+        shared.acquire("abc");
+        shared.saveInUse();
+        verify(manager, times(1)).save(session, false);
+        assertSame(session, shared.find("abc")); // still registered for the request using it
+
+        shared.release("abc", session, RequestClass.TOUCH_ONLY);
+        verify(manager, times(1)).save(session, true);
+        assertEquals(0, shared.size());
+    }
+
+    @Test
+    public void concurrentAcquiresShareOneLoad() throws Exception {
+        final DynamoSession session = new DynamoSession(manager);
+        final CountDownLatch loading = new CountDownLatch(1);
+        final CountDownLatch proceed = new CountDownLatch(1);
+        when(manager.loadSession("abc")).thenAnswer(new Answer<DynamoSession>() {
+            @Override
+            public DynamoSession answer(InvocationOnMock invocation) throws Exception {
+                loading.countDown();
+                proceed.await();
+                return session;
+            }
+        });
+        final SharedSessions shared = new SharedSessions(manager);
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            Callable<DynamoSession> acquire = new Callable<DynamoSession>() {
+                @Override
+                public DynamoSession call() throws Exception {
+                    return shared.acquire("abc");
+                }
+            };
+            Future<DynamoSession> first = executor.submit(acquire);
+            loading.await();
+            Future<DynamoSession> second = executor.submit(acquire);
+            Thread.sleep(50); // let the second request find the load in flight
+            proceed.countDown();
+            assertSame(session, first.get(5, TimeUnit.SECONDS));
+            assertSame(session, second.get(5, TimeUnit.SECONDS));
+            verify(manager, times(1)).loadSession("abc");
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}
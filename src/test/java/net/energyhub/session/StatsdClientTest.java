@@ -0,0 +1,130 @@
+package net.energyhub.session;
+
+import static org.junit.Assert.*;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class StatsdClientTest {
+    private DatagramChannel server;
+    private StatsdClient client;
+
+    @Before
+    public void setUp() throws Exception {
+        server = DatagramChannel.open();
+        server.socket().bind(new InetSocketAddress("127.0.0.1", 0));
+        server.socket().setSoTimeout(2000);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (client != null) {
+            client.shutdown();
+        }
+        server.close();
+    }
+
+    @Test
+    public void countersAreSummedIntoOnePacket() throws Exception {
+        client = new StatsdClient("127.0.0.1", server.socket().getLocalPort(), 60000, 1.0, false);
+        client.increment("session.load");
+        client.increment("session.load", 2);
+        client.decrement("session.remove");
+        client.gauge("table.read", 12.5);
+        client.timing("session.save", 42);
+
+        client.flush();
+        List<String> lines = receive();
+        assertEquals(4, lines.size());
+        assertTrue(contains(lines, ".session.load:3|c"));
+        assertTrue(contains(lines, ".session.remove:-1|c"));
+        assertTrue(contains(lines, ".table.read:12.500|g"));
+        assertTrue(contains(lines, ".session.save:42|ms"));
+    }
+
+    @Test
+    public void countersOnlySendChanges() throws Exception {
+        client = new StatsdClient("127.0.0.1", server.socket().getLocalPort(), 60000, 1.0, false);
+        client.increment("session.load");
+        client.flush();
+        assertEquals(1, receive().size());
+
+        client.increment("other");
+        client.flush();
+        List<String> lines = receive();
+        assertEquals(1, lines.size());
+        assertTrue(contains(lines, ".other:1|c"));
+    }
+
+    @Test
+    public void aggregatedTimersSendPercentiles() throws Exception {
+        client = new StatsdClient("127.0.0.1", server.socket().getLocalPort(), 60000, 1.0, true);
+        for (int i = 1; i <= 100; i++) {
+            client.timing("session.load", i);
+        }
+        client.flush();
+        List<String> lines = receive();
+        assertTrue(contains(lines, ".session.load.count:100|c"));
+        assertTrue(contains(lines, ".session.load.max:100|g"));
+        assertTrue(contains(lines, ".session.load.p50:50|g"));
+    }
+
+    @Test
+    public void fullQueueCountsDrops() throws Exception {
+        client = new StatsdClient("127.0.0.1", server.socket().getLocalPort(), 60000, 1.0, false,
+                StatsdClient.DEFAULT_MAX_PACKET_BYTES, 10);
+        for (int i = 0; i < 15; i++) {
+            client.timing("session.save", i);
+        }
+        assertEquals(5, client.getDropped());
+    }
+
+    @Test
+    public void histogramBuckets() {
+        for (int value : Arrays.asList(0, 1, 63, 64, 65, 100, 1000, 123456, Integer.MAX_VALUE)) {
+            int bucket = StatsdClient.Histogram.bucketFor(value);
+            long upper = StatsdClient.Histogram.upperBound(bucket);
+            assertTrue(value + " <= " + upper, value <= upper);
+            assertTrue(value + " within 7% of " + upper, upper - value <= value * 0.07);
+        }
+    }
+
+    private List<String> receive() throws Exception {
+        List<String> lines = new ArrayList<String>();
+        ByteBuffer buffer = ByteBuffer.allocate(65536);
+        server.configureBlocking(false);
+        long deadline = System.currentTimeMillis() + 2000;
+        while (lines.isEmpty() && System.currentTimeMillis() < deadline) {
+            while (server.receive(buffer) != null) {
+                buffer.flip();
+                String packet = Charset.forName("US-ASCII").decode(buffer).toString();
+                lines.addAll(Arrays.asList(packet.split("\n")));
+                buffer.clear();
+            }
+            Thread.sleep(10);
+        }
+        if (lines.isEmpty()) {
+            throw new SocketTimeoutException("No stats received");
+        }
+        return lines;
+    }
+
+    private boolean contains(List<String> lines, String suffix) {
+        for (String line : lines) {
+            if (line.endsWith(suffix)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
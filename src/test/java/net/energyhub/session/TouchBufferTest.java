@@ -0,0 +1,98 @@
+package net.energyhub.session;
+
+import static org.junit.Assert.*;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.*;
+
+import com.amazonaws.services.dynamodb.AmazonDynamoDB;
+import com.amazonaws.services.dynamodb.model.*;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import java.util.*;
+
+public class TouchBufferTest {
+    private static final String TABLE = "tomcat-sessions";
+
+    private DynamoManager manager;
+    private DynamoManagerStats stats;
+    private AmazonDynamoDB dynamo;
+    private Map<String, Long> written;
+    private List<Integer> batchSizes;
+    private int unprocessedToReturn;
+
+    @Before
+    public void setUp() {
+        manager = mock(DynamoManager.class);
+        stats = new DynamoManagerStats(3600);
+        when(manager.getStats()).thenReturn(stats);
+        dynamo = mock(AmazonDynamoDB.class);
+        written = new HashMap<String, Long>();
+        batchSizes = new ArrayList<Integer>();
+        when(dynamo.batchWriteItem(any(BatchWriteItemRequest.class))).thenAnswer(new Answer<BatchWriteItemResult>() {
+            @Override
+            public BatchWriteItemResult answer(InvocationOnMock invocation) {
+                BatchWriteItemRequest request = (BatchWriteItemRequest) invocation.getArguments()[0];
+                List<WriteRequest> writes = request.getRequestItems().get(TABLE);
+                batchSizes.add(writes.size());
+                List<WriteRequest> unprocessed = new ArrayList<WriteRequest>();
+                for (WriteRequest write : writes) {
+                    Map<String, AttributeValue> item = write.getPutRequest().getItem();
+                    if (unprocessed.size() < unprocessedToReturn) {
+                        unprocessed.add(write);
+                        continue;
+                    }
+                    written.put(item.get(DynamoManager.COLUMN_ID).getS(),
+                            Long.parseLong(item.get(DynamoManager.COLUMN_LAST_ACCESSED).getN()));
+                }
+                Map<String, List<WriteRequest>> left = new HashMap<String, List<WriteRequest>>();
+                if (!unprocessed.isEmpty()) {
+                    left.put(TABLE, unprocessed);
+                }
+                return new BatchWriteItemResult().withUnprocessedItems(left);
+            }
+        });
+    }
+
+    @Test
+    public void keepsNewestTouchPerSession() {
+        TouchBuffer touches = new TouchBuffer(manager, dynamo, 1000);
+        touches.touch(TABLE, "a", 100);
+        touches.touch(TABLE, "a", 300);
+        touches.touch(TABLE, "a", 200);
+        assertEquals(300, touches.pendingTouch(TABLE, "a"));
+        assertEquals(1, touches.size());
+        assertEquals(2, stats.getCoalescedTouches());
+
+        assertEquals(1, touches.flush());
+        assertEquals(Long.valueOf(300), written.get("a" + TouchBuffer.TOUCH_SUFFIX));
+        assertEquals(0, touches.pendingTouch(TABLE, "a"));
+        assertEquals(1, stats.getTouchesWritten());
+    }
+
+    @Test
+    public void writesInBatchesOf25() {
+        TouchBuffer touches = new TouchBuffer(manager, dynamo, 1000);
+        for (int i = 0; i < 60; i++) {
+            touches.touch(TABLE, "s" + i, 1000 + i);
+        }
+        assertEquals(60, touches.flush());
+        assertEquals(Arrays.asList(25, 25, 10), batchSizes);
+        assertEquals(60, written.size());
+    }
+
+    @Test
+    public void keepsWhatCouldNotBeWritten() {
+        unprocessedToReturn = 100; // never accepted
+        TouchBuffer touches = new TouchBuffer(manager, dynamo, 1000);
+        touches.touch(TABLE, "a", 100);
+        assertEquals(0, touches.flush());
+        assertEquals(100, touches.pendingTouch(TABLE, "a"));
+
+        unprocessedToReturn = 0;
+        assertEquals(1, touches.flush());
+        assertEquals(Long.valueOf(100), written.get("a" + TouchBuffer.TOUCH_SUFFIX));
+    }
+}
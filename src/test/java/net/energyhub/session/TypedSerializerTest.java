@@ -0,0 +1,181 @@
+package net.energyhub.session;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+import com.amazonaws.services.dynamodb.AmazonDynamoDB;
+import org.apache.catalina.Container;
+import org.apache.juli.logging.LogFactory;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.util.*;
+
+public class TypedSerializerTest {
+    private DynamoManager manager;
+    private TypedSerializer serializer = new TypedSerializer();
+
+    @Before
+    public void setUp() {
+        manager = mock(DynamoManager.class);
+        Container container = mock(Container.class);
+        when(container.getLogger()).thenReturn(LogFactory.getLog(TypedSerializerTest.class));
+        when(manager.getContainer()).thenReturn(container);
+    }
+
+    private DynamoSession session() {
+        DynamoSession session = new DynamoSession(manager);
+        session.restore(1000L, 2000L, 3000L, -1, false, "abc");
+        return session;
+    }
+
+    private DynamoSession roundTrip(DynamoSession session) throws Exception {
+        DynamoSession loaded = new DynamoSession(manager);
+        serializer.deserializeInto(serializer.serializeFrom(session), loaded);
+        return loaded;
+    }
+
+    @Test
+    public void roundTripsKnownTypes() throws Exception {
+        DynamoSession session = session();
+        List<Object> list = new ArrayList<Object>(Arrays.asList("a", 1, null, 2.5));
+        Map<String, Object> map = new LinkedHashMap<String, Object>();
+        map.put("z", new Date(123456789L));
+        map.put("a", list);
+        Object[][] values = {
+                {"string", "h\u00e9llo \u20ac \ud83d\ude00"}, {"int", -42}, {"long", Long.MIN_VALUE},
+                {"true", true}, {"false", false}, {"double", Math.PI}, {"float", 1.5f}, {"short", (short) -7},
+                {"byte", (byte) 200}, {"char", '\u00e9'}, {"date", new Date(-5L)}, {"bytes", new byte[]{1, 2, 3}},
+                {"list", list}, {"map", new HashMap<String, Object>(map)}, {"linked", map}};
+        for (Object[] value : values) {
+            session.restoreAttribute((String) value[0], value[1]);
+        }
+
+        DynamoSession loaded = roundTrip(session);
+        assertEquals("abc", loaded.getIdInternal());
+        assertEquals(1000L, loaded.getCreationTimeInternal());
+        assertEquals(2000L, loaded.getLastAccessedTimeInternal());
+        assertEquals(-1, loaded.getMaxInactiveInterval());
+        for (Object[] value : values) {
+            Object actual = loaded.getAttribute((String) value[0]);
+            if (value[1] instanceof byte[]) {
+                assertArrayEquals((byte[]) value[1], (byte[]) actual);
+            } else {
+                assertEquals(value[0].toString(), value[1], actual);
+                assertEquals(value[1].getClass(), actual.getClass());
+            }
+        }
+        assertEquals(Arrays.asList("z", "a"), new ArrayList<Object>(
+                ((Map<?, ?>) loaded.getAttribute("linked")).keySet()));
+    }
+
+    @Test
+    public void fallsBackToJavaSerializationPerAttribute() throws Exception {
+        DynamoSession session = session();
+        session.restoreAttribute("custom", new Custom("x"));
+        session.restoreAttribute("nested", new ArrayList<Object>(Collections.singletonList(new Custom("y"))));
+        session.restoreAttribute("unserializable", new Object());
+        session.restoreAttribute("kept", "yes");
+
+        DynamoSession loaded = roundTrip(session);
+        assertEquals(new Custom("x"), loaded.getAttribute("custom"));
+        assertEquals(Collections.singletonList(new Custom("y")), loaded.getAttribute("nested"));
+        assertNull(loaded.getAttribute("unserializable"));
+        assertEquals("yes", loaded.getAttribute("kept"));
+    }
+
+    @Test
+    public void compressesLargePayloads() throws Exception {
+        DynamoSession session = session();
+        StringBuilder big = new StringBuilder();
+        for (int i = 0; i < 500; i++) {
+            big.append("repeated text ");
+        }
+        session.restoreAttribute("big", big.toString());
+        ByteBuffer payload = serializer.serializeFrom(session);
+        assertEquals(TypedSerializer.FORMAT_GZIP, payload.get(0));
+        assertTrue(payload.remaining() < big.length() / 4);
+        DynamoSession loaded = new DynamoSession(manager);
+        serializer.deserializeInto(payload, loaded);
+        assertEquals(big.toString(), loaded.getAttribute("big"));
+    }
+
+    @Test
+    public void readsJavaSerializerPayloads() throws Exception {
+        DynamoSession session = session();
+        session.setValid(true);
+        session.restoreAttribute("FOO", "BAR");
+        ByteBuffer payload = new JavaSerializer().serializeFrom(session);
+        DynamoSession loaded = new DynamoSession(manager);
+        serializer.deserializeInto(payload, loaded);
+        assertEquals("BAR", loaded.getAttribute("FOO"));
+    }
+
+    @Test
+    public void readsJavaSerializerDictionaryPayloads() throws Exception {
+        DynamoSession session = session();
+        session.restoreAttribute("FOO", new Date(5000L));
+        ClassDictionaries dictionaries = new ClassDictionaries(mock(AmazonDynamoDB.class), 256, 1);
+        dictionaries.tableChanged("t1", null);
+        JavaSerializer java = new JavaSerializer();
+        java.setDictionaries(dictionaries);
+        java.serializeFrom(session);
+        assertNotNull(dictionaries.rebuild());
+        ByteBuffer payload = java.serializeFrom(session);
+        assertEquals(JavaSerializer.DICTIONARY_FORMAT, payload.get(0));
+
+        serializer.setDictionaries(dictionaries);
+        DynamoSession loaded = new DynamoSession(manager);
+        serializer.deserializeInto(payload, loaded);
+        assertEquals(new Date(5000L), loaded.getAttribute("FOO"));
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsEmptyPayloads() throws Exception {
+        serializer.deserializeInto(ByteBuffer.allocate(0), new DynamoSession(manager));
+    }
+
+    @Test
+    public void rejectsCorruptPayloads() throws Exception {
+        DynamoSession session = session();
+        session.restoreAttribute("list", new ArrayList<Object>(Arrays.asList("a", "b", "c")));
+        ByteBuffer payload = serializer.serializeFrom(session);
+        byte[] truncated = Arrays.copyOf(payload.array(), payload.remaining() - 3);
+        try {
+            serializer.deserializeInto(ByteBuffer.wrap(truncated), new DynamoSession(manager));
+            fail("truncated payload accepted");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void smallerThanJavaSerialization() throws Exception {
+        List<DynamoSession> sessions = SerializerBenchmark.samples(manager, 50);
+        SerializerBenchmark.Result java = SerializerBenchmark.measure("java", new JavaSerializer(), sessions,
+                manager, 1);
+        SerializerBenchmark.Result typed = SerializerBenchmark.measure("typed", serializer, sessions, manager, 1);
+        assertTrue(typed + " vs " + java, typed.getAverageBytes() < java.getAverageBytes() * 0.7);
+    }
+
+    static class Custom implements Serializable {
+        final String value;
+
+        Custom(String value) {
+            this.value = value;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Custom && ((Custom) o).value.equals(value);
+        }
+
+        @Override
+        public int hashCode() {
+            return value.hashCode();
+        }
+    }
+}